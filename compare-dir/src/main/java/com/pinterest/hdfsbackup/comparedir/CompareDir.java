@@ -33,10 +33,11 @@ public class CompareDir extends Configured implements Tool {
 
     FilePairGroup filePairGroup = null;
     FileListingInDir srcFileList = null;
+    FileListingInDir destFileList = null;
     FSType srcType = FSType.UNKNOWN;
     FSType destType = FSType.UNKNOWN;
 
-    // We only support S3 and HDFS file system for now.
+    // We support S3, HDFS and local file systems.
     if (options.manifestFilename != null) {
       filePairGroup = new FilePairGroup(0);
       long count = filePairGroup.initFromFile(options.manifestFilename);
@@ -56,12 +57,12 @@ public class CompareDir extends Configured implements Tool {
       }
     }
 
-    if (srcType != FSType.S3 && srcType != FSType.HDFS) {
-      log.info("only HDFS and S3 are supported right now.");
+    if (srcType == FSType.UNKNOWN) {
+      log.info("only HDFS, S3 and local files are supported right now.");
       System.exit(1);
     }
-    if (options.destPath != null && destType != FSType.HDFS && destType != FSType.S3) {
-      log.info("only HDFS and S3 are supported right now.");
+    if (options.destPath != null && destType == FSType.UNKNOWN) {
+      log.info("only HDFS, S3 and local files are supported right now.");
       System.exit(1);
     }
 
@@ -69,12 +70,19 @@ public class CompareDir extends Configured implements Tool {
     if (options.manifestFilename == null) {
       DirWalker dirWalker = new DirWalker(conf);
       srcFileList = dirWalker.walkDir(options.srcPath);
+      if (srcType == FSType.S3) {
+        // Compare the packed files, instead of their containers.
+        dirWalker.resolvePacks(srcFileList);
+      }
       srcFileList.display(options.verbose);
       if (options.destPath == null) {
         return 0;
       }
 
-      FileListingInDir destFileList = dirWalker.walkDir(options.destPath);
+      destFileList = dirWalker.walkDir(options.destPath);
+      if (destType == FSType.S3) {
+        dirWalker.resolvePacks(destFileList);
+      }
       destFileList.display(options.verbose);
 
       List<Pair<DirEntry, DirEntry>> diffPairs = new LinkedList<Pair<DirEntry, DirEntry>>();
@@ -108,11 +116,14 @@ public class CompareDir extends Configured implements Tool {
 
       // Each mapper takes care of a file group. We don't need reducers.
       job.setNumReduceTasks(0);
+      if (options.jobBandwidthLimit > 0 && options.bandwidthBudgetDir.isEmpty()) {
+        job.set("s3copy.bwBudgetDir", tempDirRoot + "/bw-budget");
+      }
       int numberMappers = job.getNumMapTasks();
       FilePairPartition partition = new FilePairPartition(numberMappers);
       // Not include dir in the file comparison.
       if (srcFileList != null) {
-        partition.createFileGroups(srcFileList, options.destPath, false);
+        partition.createFileGroups(srcFileList, destFileList, options.destPath, false);
         job.setJobName(String.format("CompareDir  %s <=> %s,  %s checksum",
                                         options.srcPath, options.destPath,
                                         options.verifyChecksum ? "with" : "no"));
@@ -1,8 +1,15 @@
 package com.pinterest.hdfsbackup.comparedir;
 
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.utils.BandwidthBudget;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
+import com.pinterest.hdfsbackup.utils.FSType;
 import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.HostNetworkThrottle;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
 import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
 import com.pinterest.hdfsbackup.utils.SimpleExecutor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,6 +50,17 @@ public class CompareDirMapper implements Mapper<LongWritable, FilePair, Text, Te
   public NetworkBandwidthMonitor bwMonitor;
   public ScheduledExecutorService bwMonitorScheduler;
   public ScheduledFuture<?> bwMonitorHandle;
+  // This task's share of the job bandwidth limit. Null if not enabled.
+  public BandwidthBudget bwBudget;
+  // Backs the task off when the host network is busy. Null if not enabled.
+  public HostNetworkThrottle hostNetworkThrottle;
+
+  // Runs the range-gets of S3 objects for all workers.
+  public PartTransferScheduler partTransferScheduler;
+  // Places the interim files of all workers over the interim dirs.
+  public InterimDirAllocator interimDirAllocator;
+  // Known md5s of files and objects, shared by all workers. Null if not enabled.
+  public ChecksumCache checksumCache;
 
   @Override
   public void map(LongWritable key,
@@ -62,6 +80,14 @@ public class CompareDirMapper implements Mapper<LongWritable, FilePair, Text, Te
     if (addUnfinishedFile(pair)) {
       this.filePairCount++;
 
+      if (this.options.useHDFSChecksum &&
+              FileUtils.getFSType(pair.srcFile.toString()) == FSType.HDFS &&
+              FileUtils.getFSType(pair.destFile.toString()) == FSType.HDFS) {
+        // Both files are in HDFS, compare their native checksums.
+        this.executor.execute(new CompareHDFSChecksumRunnable(pair, this, this.options));
+        return;
+      }
+
       // compute the source file checksum.
       boolean isSource = true;
       this.executor.execute(new CompareDirRunnable(pair, isSource, this, this.options));
@@ -80,11 +106,18 @@ public class CompareDirMapper implements Mapper<LongWritable, FilePair, Text, Te
                               this.filePairCount, this.bytesToCompare));
     this.executor.close();
     log.info("has processed " + this.filePairCount + " file pairs");
+    this.partTransferScheduler.close();
+    if (this.checksumCache != null) {
+      this.checksumCache.flush();
+    }
 
     // Stop the bandwidth monitor.
     log.info("stop bandwidth monitor...");
     this.bwMonitorHandle.cancel(true);
     this.bwMonitorScheduler.shutdown();
+    if (this.bwBudget != null) {
+      this.bwBudget.release();
+    }
 
     synchronized (this) {
       if (this.unfinishedFilePairs.size() > 0) {
@@ -125,9 +158,24 @@ public class CompareDirMapper implements Mapper<LongWritable, FilePair, Text, Te
                                                     this.options.networkBandwidthMonitorInitDelay,
                                                     this.options.networkBandwidthMonitorInterval,
                                                     TimeUnit.MILLISECONDS);
-    this.executor = new SimpleExecutor(this.options.queueSize,
-                                       this.options.workerThreads,
-                                       this.bwMonitor);
+    this.bwBudget = this.options.createBandwidthBudget(conf, this.bwMonitor);
+    if (this.bwBudget != null) {
+      this.bwBudget.run();
+      this.bwMonitorScheduler.scheduleAtFixedRate(this.bwBudget,
+                                                  this.options.bandwidthBudgetInterval,
+                                                  this.options.bandwidthBudgetInterval,
+                                                  TimeUnit.MILLISECONDS);
+    }
+    this.hostNetworkThrottle = this.options.createHostNetworkThrottle(this.bwMonitor);
+    if (this.hostNetworkThrottle != null) {
+      this.bwMonitorScheduler.scheduleAtFixedRate(this.hostNetworkThrottle,
+                                                  0,
+                                                  this.options.networkBandwidthMonitorInterval,
+                                                  TimeUnit.MILLISECONDS);
+    }
+    this.partTransferScheduler = this.options.createPartTransferScheduler();
+    this.interimDirAllocator = this.options.createInterimDirAllocator();
+    this.checksumCache = this.options.createChecksumCache(conf);
     this.executor = new SimpleExecutor(this.options.queueSize,
                                        this.options.workerThreads,
                                        this.bwMonitor);
@@ -2,9 +2,11 @@ package com.pinterest.hdfsbackup.comparedir;
 
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
 import com.pinterest.hdfsbackup.s3tools.S3Downloader;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
 import com.pinterest.hdfsbackup.utils.FSType;
 import com.pinterest.hdfsbackup.utils.FilePair;
 import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.PackIndex;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,6 +24,8 @@ public class CompareDirRunnable implements Runnable {
   final FilePair filePair;
   final S3CopyOptions options;
   final String filename;  // This is the file in the file-pair to work on.
+  // The container the file is packed in, or null if not packed.
+  final PackIndex.Member packMember;
 
 
 
@@ -34,12 +38,14 @@ public class CompareDirRunnable implements Runnable {
     this.isSourceFile = isSourceFile;
     this.options = options;
     this.filename = isSourceFile ? filePair.srcFile.toString() : filePair.destFile.toString();
+    this.packMember = PackIndex.Member.parse(isSourceFile ? filePair.srcPackMember.toString()
+                                                          : filePair.destPackMember.toString());
   }
 
   @Override
   public void run() {
     FSType fsType = FileUtils.getFSType(this.filename);
-    if (fsType != FSType.S3 && fsType != FSType.HDFS) {
+    if (fsType == FSType.UNKNOWN) {
       log.info("FS type unsupported");
       return;
     }
@@ -47,20 +53,42 @@ public class CompareDirRunnable implements Runnable {
     int retry = 0;
     int maxRetry = 3;
     boolean success = false;
-    while (retry < maxRetry) {
+    S3Downloader s3Downloader = null;
+    ChecksumCache checksumCache = this.compareDirMapper.checksumCache;
+    String version = null;
+    boolean cached = false;
+    // A packed file has no version of its own.
+    if (checksumCache != null && this.packMember == null) {
+      version = checksumCache.getVersion(this.filename);
+      checksum = checksumCache.get(this.filename, version);
+      // This version of the file was digested before.
+      cached = checksum != null;
+      success = cached;
+    }
+    if (fsType == FSType.S3 && !success) {
+      s3Downloader = new S3Downloader(this.compareDirMapper.getConf(),
+                                      this.options,
+                                      this.compareDirMapper.reporter,
+                                      this.compareDirMapper.partTransferScheduler,
+                                      this.compareDirMapper.interimDirAllocator,
+                                      null,
+                                      this.compareDirMapper.bwMonitor);
+    }
+    while (!success && retry < maxRetry) {
       retry++;
       if (fsType == FSType.S3) {
-        S3Downloader s3Downloader = new S3Downloader(this.compareDirMapper.getConf(),
-                                                     this.options,
-                                                     this.compareDirMapper.reporter);
-        if (s3Downloader.DownloadFile(this.filename, null, false)) {
+        boolean downloaded = this.packMember != null
+                                 ? s3Downloader.DownloadPackMember(this.packMember, null, false)
+                                 : s3Downloader.DownloadFile(this.filename, null, false);
+        if (downloaded) {
           checksum = new String(s3Downloader.getLastMD5Checksum());
           success = true;
           break;
         } else {
           log.info("failed to compute s3 checksum: " + this.filename);
         }
-      } else if (fsType == FSType.HDFS) {
+      } else {
+        // HDFS or local file.
         MessageDigest md = null;
         try {
           md = MessageDigest.getInstance("MD5");
@@ -77,6 +105,12 @@ public class CompareDirRunnable implements Runnable {
         } catch (Exception e) {}
       }
     }
+    if (s3Downloader != null) {
+      s3Downloader.close();
+    }
+    if (success && !cached && checksumCache != null && this.packMember == null) {
+      checksumCache.put(this.filename, version, checksum);
+    }
     if (!success) {
       log.info("failed to compute checksum for filepair " +
                    (this.isSourceFile ? "source: " : "dest: ") +
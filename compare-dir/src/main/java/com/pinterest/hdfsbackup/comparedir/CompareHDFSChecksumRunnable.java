@@ -0,0 +1,49 @@
+package com.pinterest.hdfsbackup.comparedir;
+
+import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileChecksum;
+
+/**
+ * Compare a HDFS file pair by the native HDFS checksums of both files, without reading
+ * the data.  If the checksums are not comparable (different block size or CRC settings),
+ * both files are digested as with CompareDirRunnable.
+ */
+public class CompareHDFSChecksumRunnable implements Runnable {
+  private static final Log log = LogFactory.getLog(CompareHDFSChecksumRunnable.class);
+  final CompareDirMapper compareDirMapper;
+  final FilePair filePair;
+  final S3CopyOptions options;
+
+  public CompareHDFSChecksumRunnable(FilePair filePair,
+                                     CompareDirMapper mapper,
+                                     S3CopyOptions options) {
+    this.compareDirMapper = mapper;
+    this.filePair = filePair;
+    this.options = options;
+  }
+
+  @Override
+  public void run() {
+    String srcFilename = this.filePair.srcFile.toString();
+    String destFilename = this.filePair.destFile.toString();
+    FileChecksum srcChecksum =
+        FileUtils.getHDFSFileChecksum(srcFilename, this.compareDirMapper.getConf());
+    FileChecksum destChecksum = srcChecksum == null ? null
+        : FileUtils.getHDFSFileChecksum(destFilename, this.compareDirMapper.getConf());
+    if (srcChecksum != null && destChecksum != null &&
+            srcChecksum.getAlgorithmName().equals(destChecksum.getAlgorithmName())) {
+      this.compareDirMapper.setFilePairChecksum(this.filePair, srcChecksum.toString(), true);
+      this.compareDirMapper.setFilePairChecksum(this.filePair, destChecksum.toString(), false);
+      return;
+    }
+    log.info("native checksums not comparable, will digest both files: " +
+                 this.filePair.toString());
+    // Run in this worker: posting to the executor from a worker may block on a full queue.
+    new CompareDirRunnable(this.filePair, true, this.compareDirMapper, this.options).run();
+    new CompareDirRunnable(this.filePair, false, this.compareDirMapper, this.options).run();
+  }
+}
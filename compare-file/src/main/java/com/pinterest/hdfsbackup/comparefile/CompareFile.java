@@ -2,6 +2,7 @@ package com.pinterest.hdfsbackup.comparefile;
 
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
 import com.pinterest.hdfsbackup.s3tools.S3Downloader;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
 import com.pinterest.hdfsbackup.utils.FSType;
 import com.pinterest.hdfsbackup.utils.FileUtils;
 import org.apache.commons.codec.binary.Base64;
@@ -50,29 +51,57 @@ public class CompareFile {
       }
     }
     // Now, both src and dest are provided. We will compare the two files.
-    // As of now only S3 and HDFS are supported.
-    // TODO (shawn@):  support local disk files.
+    // S3, HDFS and local disk files are supported.
     FSType destType = FileUtils.getFSType(s3CopyOptions.destPath);
-    if (srcType != FSType.S3 && srcType != FSType.HDFS &&
-        destType != FSType.HDFS && destType != FSType.S3) {
-      log.info("only HDFS and S3 are supported right now.");
+    if (srcType == FSType.UNKNOWN || destType == FSType.UNKNOWN) {
+      log.info("only HDFS, S3 and local files are supported right now.");
       System.exit(1);
     }
 
 
     int ret = 0;
+    // Known md5s of files and objects, null if not enabled.
+    ChecksumCache checksumCache = s3CopyOptions.createChecksumCache(conf);
+    String srcVersion = null;
+    String destVersion = null;
+    String cachedSrcChecksum = null;
+    String cachedDestChecksum = null;
+    if (checksumCache != null) {
+      srcVersion = checksumCache.getVersion(s3CopyOptions.srcPath);
+      cachedSrcChecksum = checksumCache.get(s3CopyOptions.srcPath, srcVersion);
+      destVersion = checksumCache.getVersion(s3CopyOptions.destPath);
+      cachedDestChecksum = checksumCache.get(s3CopyOptions.destPath, destVersion);
+    }
+
+    // Both files are in HDFS, compare their native checksums if they are comparable.
+    if (s3CopyOptions.useHDFSChecksum) {
+      Boolean match = FileUtils.compareHDFSFileChecksums(s3CopyOptions.srcPath,
+                                                         s3CopyOptions.destPath, conf);
+      if (match != null) {
+        if (match) {
+          log.info("Congratulations! The two files' native HDFS checksums match!");
+        } else {
+          log.info("Unfortunately the two files' native HDFS checksums mismatch");
+        }
+        System.exit(match ? 0 : 1);
+      }
+    }
 
     try {
       log.info("First, read source file: " + s3CopyOptions.srcPath);
-      if (srcType == FSType.S3) {
+      if (cachedSrcChecksum != null) {
+        srcChecksum = cachedSrcChecksum;
+      } else if (srcType == FSType.S3) {
         S3Downloader s3Downloader = new S3Downloader(conf, s3CopyOptions, progress);
         if (s3Downloader.DownloadFile(s3CopyOptions.srcPath, null, false)) {
           srcChecksum = s3Downloader.getLastMD5Checksum();
+          s3Downloader.close();
         } else {
           log.info("failed to download src s3 file: " + s3CopyOptions.srcPath);
           System.exit(1);
         }
-      } else if (srcType == FSType.HDFS) {
+      } else {
+        // HDFS or local file.
         MessageDigest md = MessageDigest.getInstance("MD5");
         if (FileUtils.computeHDFSDigest(s3CopyOptions.srcPath, conf, md)) {
           srcChecksum = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
@@ -83,15 +112,19 @@ public class CompareFile {
       }
 
       log.info("Second, read dest file: " + s3CopyOptions.destPath);
-      if (destType == FSType.S3) {
+      if (cachedDestChecksum != null) {
+        destChecksum = cachedDestChecksum;
+      } else if (destType == FSType.S3) {
         S3Downloader s3Downloader = new S3Downloader(conf, s3CopyOptions, progress);
         if (s3Downloader.DownloadFile(s3CopyOptions.destPath, null, false)) {
           destChecksum = s3Downloader.getLastMD5Checksum();
+          s3Downloader.close();
         } else {
           log.info("failed to download dest file: " + s3CopyOptions.srcPath);
           System.exit(1);
         }
-      } else if (destType == FSType.HDFS) {
+      } else {
+        // HDFS or local file.
         MessageDigest md = MessageDigest.getInstance("MD5");
         if (FileUtils.computeHDFSDigest(s3CopyOptions.destPath, conf, md)) {
           destChecksum = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
@@ -101,6 +134,16 @@ public class CompareFile {
         }
       }
 
+      if (checksumCache != null) {
+        if (cachedSrcChecksum == null) {
+          checksumCache.put(s3CopyOptions.srcPath, srcVersion, srcChecksum);
+        }
+        if (cachedDestChecksum == null) {
+          checksumCache.put(s3CopyOptions.destPath, destVersion, destChecksum);
+        }
+        checksumCache.flush();
+      }
+
       if (srcChecksum.equals(destChecksum)) {
         log.info("Congratulations! The two files' checksums match!");
         ret = 0;
@@ -0,0 +1,130 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Splits a job-wide bandwidth budget evenly across the tasks that are running.
+ *
+ * Each task keeps a heartbeat file "<budgetDir>/<task attempt id>", rewritten every
+ * heartbeat interval.  A task is live if its file was written within LEASE_INTERVALS
+ * intervals of the latest heartbeat, as seen by the file system clock.  At each
+ * heartbeat a task counts the live tasks and sets its own bandwidth limit to
+ * "jobBwLimit / live tasks".  A task that finishes deletes its file, so the other
+ * tasks take over its share at their next heartbeat.  A task that dies is dropped once
+ * its lease expires.
+ *
+ * For its first interval, until the tasks starting with it have written their
+ * heartbeats, a task assumes all "mapred.map.tasks" tasks are running, so the tasks
+ * starting together don't each take the whole budget.  A task may still use more than
+ * its share for up to one interval after another task starts.
+ */
+public class BandwidthBudget implements Runnable {
+  private static final Log log = LogFactory.getLog(BandwidthBudget.class);
+  // A task is dropped if it hasn't written a heartbeat for this many intervals.
+  static final int LEASE_INTERVALS = 3;
+
+  private final Configuration conf;
+  private final Path budgetDir;
+  private final Path heartbeatPath;
+  private final double jobBwLimit;
+  private final long heartbeatInterval;
+  private final NetworkBandwidthMonitor bwMonitor;
+  private boolean released = false;
+  private long heartbeats = 0;
+
+  /**
+   * @param conf
+   * @param budgetDir  HDFS dir shared by the tasks of the job.
+   * @param jobBwLimit  bandwidth limit of the job, in MB/s.
+   * @param heartbeatInterval  in milli-sec.
+   * @param bwMonitor  the limiter of this task.
+   */
+  public BandwidthBudget(Configuration conf,
+                         String budgetDir,
+                         double jobBwLimit,
+                         long heartbeatInterval,
+                         NetworkBandwidthMonitor bwMonitor) {
+    this.conf = conf;
+    this.budgetDir = new Path(budgetDir);
+    String taskId = conf.get("mapred.task.id");
+    if (taskId == null) {
+      taskId = UUID.randomUUID().toString();
+    }
+    this.heartbeatPath = new Path(this.budgetDir, taskId);
+    this.jobBwLimit = jobBwLimit;
+    this.heartbeatInterval = heartbeatInterval;
+    this.bwMonitor = bwMonitor;
+    int numTasks = Math.max(1, conf.getInt("mapred.map.tasks", 1));
+    this.bwMonitor.setBwLimit(jobBwLimit / numTasks);
+    log.info(String.format("job bw budget %f MB/s, initial task share %f MB/s of %d tasks",
+                              jobBwLimit, jobBwLimit / numTasks, numTasks));
+  }
+
+  /**
+   * Write the heartbeat of this task, and update its share of the budget.
+   */
+  @Override
+  public synchronized void run() {
+    if (this.released) {
+      return;
+    }
+    try {
+      FileSystem fs = this.budgetDir.getFileSystem(this.conf);
+      OutputStream outs = fs.create(this.heartbeatPath, true);
+      try {
+        String share = String.valueOf(this.bwMonitor.getBwLimit());
+        outs.write(share.getBytes(Charset.forName("UTF-8")));
+      } finally {
+        outs.close();
+      }
+      this.heartbeats++;
+      if (this.heartbeats == 1) {
+        // The other tasks starting now may not have written their heartbeats yet.
+        return;
+      }
+      // Compare the heartbeats by the file system clock, not by the clocks of the nodes.
+      long now = fs.getFileStatus(this.heartbeatPath).getModificationTime();
+      long leaseExpiry = now - LEASE_INTERVALS * this.heartbeatInterval;
+      int liveTasks = 0;
+      for (FileStatus status : fs.listStatus(this.budgetDir)) {
+        if (status.getModificationTime() >= leaseExpiry) {
+          liveTasks++;
+        }
+      }
+      liveTasks = Math.max(1, liveTasks);
+      double share = this.jobBwLimit / liveTasks;
+      if (share != this.bwMonitor.getBwLimit()) {
+        log.info(String.format("%d live tasks, bw share %f MB/s of job bw budget %f MB/s",
+                                  liveTasks, share, this.jobBwLimit));
+        this.bwMonitor.setBwLimit(share);
+      }
+    } catch (IOException e) {
+      // Keep the current share until the next heartbeat.
+      log.info("failed to update bw budget at " + this.budgetDir + ": " + e.toString());
+    }
+  }
+
+  /**
+   * Return the share of this task to the other tasks.  No more heartbeats are written.
+   */
+  public synchronized void release() {
+    this.released = true;
+    try {
+      FileSystem fs = this.budgetDir.getFileSystem(this.conf);
+      fs.delete(this.heartbeatPath, false);
+      log.info("released bw share of " + this.heartbeatPath.getName());
+    } catch (IOException e) {
+      log.info("failed to release bw share: " + e.toString());
+    }
+  }
+}
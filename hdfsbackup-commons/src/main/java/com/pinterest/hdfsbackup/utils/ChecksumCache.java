@@ -0,0 +1,295 @@
+package com.pinterest.hdfsbackup.utils;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A cache of the md5 checksums of files and S3 objects, kept in a HDFS dir across jobs.
+ *
+ * A checksum is valid only for the version of the file it was computed from: the
+ * length and modification time of a HDFS or local file, or the etag of an S3 object.
+ * The entries of the files in one dir are saved to one file at
+ * "<cacheDir>/<md5 hex of the dir>", one line "name \t version \t md5" per file, sorted
+ * by name.  A dir's entries are loaded when one of its files is first looked up.
+ *
+ * flush() merges the new entries of a dir with the entries other tasks may have saved
+ * since it was loaded, and replaces the dir's file.  Entries of concurrent flushes of the
+ * same dir may be lost, which only costs a recompute.
+ *
+ * The dir files are read and written outside the lock, so a slow HDFS read of one dir
+ * doesn't hold up the lookups of the other workers.
+ */
+public class ChecksumCache {
+  private static final Log log = LogFactory.getLog(ChecksumCache.class);
+
+  private final Configuration conf;
+  private final String cacheDir;
+  // dir => (name => version and md5) of the dirs loaded so far.
+  private final Map<String, TreeMap<String, String[]>> dirs =
+      new HashMap<String, TreeMap<String, String[]>>();
+  // dir => (name => version and md5) of the entries added since the last flush.
+  private final Map<String, TreeMap<String, String[]>> updates =
+      new HashMap<String, TreeMap<String, String[]>>();
+
+  public ChecksumCache(Configuration conf, String cacheDir) {
+    this.conf = conf;
+    this.cacheDir = cacheDir;
+  }
+
+  /**
+   * Get the current version of a file.
+   *
+   * @param filename  full path of a HDFS, local or S3 file.
+   * @return  "length:modificationTime" of a HDFS or local file, the etag of an S3 object,
+   *          or null if it cannot be got.
+   */
+  public String getVersion(String filename) {
+    FSType fsType = FileUtils.getFSType(filename);
+    if (fsType == FSType.S3) {
+      URI uri = new Path(filename).toUri();
+      String key = uri.getPath();
+      if (key.startsWith("/")) {
+        key = key.substring(1);
+      }
+      ObjectMetadata metadata = S3Utils.getObjectMetadata(S3ClientPool.getClient(this.conf),
+                                                          uri.getHost(), key);
+      return metadata == null ? null : metadata.getETag();
+    } else if (fsType == FSType.HDFS || fsType == FSType.LOCAL) {
+      FileStatus status = FileUtils.getHDFSFileStatus(filename, this.conf);
+      if (status == null || status.isDir()) {
+        return null;
+      }
+      return String.format("%d:%d", status.getLen(), status.getModificationTime());
+    }
+    return null;
+  }
+
+  /**
+   * @param filename
+   * @param version  version of the file, from getVersion().
+   * @return  the base64 encoded md5 of this version of the file, or null if not cached.
+   */
+  public String get(String filename, String version) {
+    if (version == null) {
+      return null;
+    }
+    String dir = getDir(filename);
+    loadDir(dir);
+    String[] entry;
+    synchronized (this) {
+      entry = this.dirs.get(dir).get(getName(filename));
+    }
+    if (entry == null || !entry[0].equals(version)) {
+      return null;
+    }
+    log.info(String.format("checksum cache hit: %s (%s) = %s", filename, version, entry[1]));
+    return entry[1];
+  }
+
+  /**
+   * Add the md5 of a version of a file.  It is saved at the next flush().
+   *
+   * @param filename
+   * @param version  version of the file, from getVersion() before the file was read.
+   * @param md5  base64 encoded md5.
+   */
+  public void put(String filename, String version, String md5) {
+    if (version == null || md5 == null || md5.isEmpty()) {
+      return;
+    }
+    update(filename, new String[] {version, md5});
+  }
+
+  /**
+   * Drop the md5 of a file, e.g. when it turned out to be wrong.
+   *
+   * @param filename
+   */
+  public void remove(String filename) {
+    // An empty entry removes the name at flush().
+    update(filename, null);
+  }
+
+  private void update(String filename, String[] entry) {
+    String dir = getDir(filename);
+    String name = getName(filename);
+    loadDir(dir);
+    synchronized (this) {
+      TreeMap<String, String[]> entries = this.dirs.get(dir);
+      if (entry == null) {
+        entries.remove(name);
+      } else {
+        entries.put(name, entry);
+      }
+      TreeMap<String, String[]> dirUpdates = this.updates.get(dir);
+      if (dirUpdates == null) {
+        dirUpdates = new TreeMap<String, String[]>();
+        this.updates.put(dir, dirUpdates);
+      }
+      dirUpdates.put(name, entry);
+    }
+  }
+
+  /**
+   * Save the entries added since the last flush.
+   *
+   * @return  false if the entries of any dir failed to be saved.
+   */
+  public boolean flush() {
+    Map<String, TreeMap<String, String[]>> flushing;
+    synchronized (this) {
+      flushing = new HashMap<String, TreeMap<String, String[]>>(this.updates);
+      this.updates.clear();
+    }
+    boolean ret = true;
+    for (Map.Entry<String, TreeMap<String, String[]>> dirUpdates : flushing.entrySet()) {
+      String dir = dirUpdates.getKey();
+      // Re-read the dir's file to keep the entries saved by other tasks.
+      TreeMap<String, String[]> entries = readDir(dir);
+      for (Map.Entry<String, String[]> update : dirUpdates.getValue().entrySet()) {
+        if (update.getValue() == null) {
+          entries.remove(update.getKey());
+        } else {
+          entries.put(update.getKey(), update.getValue());
+        }
+      }
+      if (!writeDir(dir, entries)) {
+        ret = false;
+        continue;
+      }
+      synchronized (this) {
+        // Keep the entries added while the dir was saved, they are saved at the next flush.
+        TreeMap<String, String[]> newUpdates = this.updates.get(dir);
+        if (newUpdates != null) {
+          for (Map.Entry<String, String[]> update : newUpdates.entrySet()) {
+            if (update.getValue() == null) {
+              entries.remove(update.getKey());
+            } else {
+              entries.put(update.getKey(), update.getValue());
+            }
+          }
+        }
+        this.dirs.put(dir, entries);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Read the entries of a dir from its file, if not loaded yet.
+   */
+  private void loadDir(String dir) {
+    synchronized (this) {
+      if (this.dirs.containsKey(dir)) {
+        return;
+      }
+    }
+    // Workers looking up the same dir at once may each read it, the first read is kept.
+    TreeMap<String, String[]> entries = readDir(dir);
+    synchronized (this) {
+      if (!this.dirs.containsKey(dir)) {
+        this.dirs.put(dir, entries);
+      }
+    }
+  }
+
+  private TreeMap<String, String[]> readDir(String dir) {
+    TreeMap<String, String[]> entries = new TreeMap<String, String[]>();
+    String cacheFilename = getCacheFilename(dir);
+    if (FileUtils.getHDFSFileSize(cacheFilename, this.conf) <= 0) {
+      return entries;
+    }
+    InputStream ins = FileUtils.openHDFSInputStream(cacheFilename, this.conf);
+    if (ins == null) {
+      return entries;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(ins,
+                                                                     Charset.forName("UTF-8")));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length == 3) {
+          entries.put(fields[0], new String[] {fields[1], fields[2]});
+        }
+      }
+      log.info(String.format("loaded %d cached checksums of dir %s", entries.size(), dir));
+    } catch (IOException e) {
+      log.info("ignore bad checksum cache " + cacheFilename + ": " + e.toString());
+      entries.clear();
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {}
+    }
+    return entries;
+  }
+
+  /**
+   * Write the entries of a dir to a temp file, then replace the dir's file with it.
+   */
+  private boolean writeDir(String dir, TreeMap<String, String[]> entries) {
+    String cacheFilename = getCacheFilename(dir);
+    String tempFilename = cacheFilename + "." + UUID.randomUUID().toString() + ".tmp";
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+      sb.append(String.format("%s\t%s\t%s\n",
+                                 entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+    }
+    OutputStream outs = FileUtils.openHDFSOutputStream(tempFilename, this.conf);
+    if (outs == null) {
+      log.info("failed to save checksum cache " + cacheFilename);
+      return false;
+    }
+    try {
+      outs.write(sb.toString().getBytes(Charset.forName("UTF-8")));
+      outs.close();
+      Path cachePath = new Path(cacheFilename);
+      FileSystem fs = cachePath.getFileSystem(this.conf);
+      // rename() doesn't overwrite an existing file.
+      fs.delete(cachePath, false);
+      if (!fs.rename(new Path(tempFilename), cachePath)) {
+        log.info("failed to rename checksum cache " + tempFilename);
+        fs.delete(new Path(tempFilename), false);
+        return false;
+      }
+      log.info(String.format("saved %d cached checksums of dir %s", entries.size(), dir));
+      return true;
+    } catch (IOException e) {
+      log.info("failed to save checksum cache " + cacheFilename + ": " + e.toString());
+      FileUtils.deleteHDFSDir(tempFilename, this.conf);
+      return false;
+    }
+  }
+
+  private String getCacheFilename(String dir) {
+    return this.cacheDir + "/" + DigestUtils.md5Hex(dir);
+  }
+
+  private static String getDir(String filename) {
+    int idx = filename.lastIndexOf('/');
+    return idx < 0 ? "" : filename.substring(0, idx);
+  }
+
+  private static String getName(String filename) {
+    return filename.substring(filename.lastIndexOf('/') + 1);
+  }
+}
@@ -14,12 +14,29 @@ public class DirEntry implements Comparable {
 
   public boolean isFile;
   public long fileSize;
+  // Listing metadata of S3 objects: etag without quotes, and last-modified time in ms.
+  // null / 0 if unknown.
+  public String etag;
+  public long lastModified;
+  // The container a S3 file is packed in, see PackIndex.  null if not packed.
+  public PackIndex.Member packMember;
 
   public DirEntry(String baseDirname, String entryName, boolean isFile, long fileSize) {
+    this(baseDirname, entryName, isFile, fileSize, null, 0);
+  }
+
+  public DirEntry(String baseDirname,
+                  String entryName,
+                  boolean isFile,
+                  long fileSize,
+                  String etag,
+                  long lastModified) {
     this.baseDirname = baseDirname;
     this.entryName = entryName;
     this.isFile = isFile;
     this.fileSize = fileSize;
+    this.etag = etag;
+    this.lastModified = lastModified;
   }
 
   public String name() {
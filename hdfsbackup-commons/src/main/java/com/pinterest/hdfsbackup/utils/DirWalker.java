@@ -12,12 +12,18 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,6 +50,8 @@ public class DirWalker {
       fileListing = walkS3Dir(baseDirname);
     } else if (fsType == FSType.HDFS) {
       fileListing = walkHDFSDir(baseDirname);
+    } else if (fsType == FSType.LOCAL) {
+      fileListing = walkLocalDir(baseDirname);
     } else {
       log.info("unknown fs type: " + baseDirname);
       return null;
@@ -75,7 +83,7 @@ public class DirWalker {
   public FileListingInDir walkS3Dir(String baseDirname) {
     Path baseDirPath = new Path(baseDirname);
     URI baseUri = baseDirPath.toUri();
-    AmazonS3Client s3Client = S3Utils.createAmazonS3Client(this.conf);
+    AmazonS3Client s3Client = S3ClientPool.getClient(this.conf);
     ObjectListing objects = null;
     boolean finished = false;
 
@@ -138,6 +146,10 @@ public class DirWalker {
         // If obj name is "prefix/",  this obj is an empty dir.
         //log.info("get object: key = '" + object.getKey() + "'");
         String objName = object.getKey();
+        if (S3Utils.isChecksumSidecar(objName)) {
+          // checksum sidecars belong to their data objects, they are not files.
+          continue;
+        }
 
         if (objName.equals(prefix)) {
           // User provides "baseDirname" as a full file name.
@@ -146,7 +158,9 @@ public class DirWalker {
           String dirname = baseDirname.substring(0, baseDirname.lastIndexOf('/'));
           log.info(String.format("list a file: basedir = %s, filename = %s",
                                     dirname, filename));
-          fileListing.addEntry(new DirEntry(dirname, filename, true, object.getSize()));
+          fileListing.addEntry(new DirEntry(dirname, filename, true, object.getSize(),
+                                            S3Utils.stripETagQuotes(object.getETag()),
+                                            object.getLastModified().getTime()));
           return fileListing;
         }
 
@@ -171,7 +185,10 @@ public class DirWalker {
           fileSize = object.getSize();
           isFile = true;
         }
-        fileListing.addEntry(new DirEntry(baseDirname, objName, isFile, fileSize));
+        fileListing.addEntry(new DirEntry(baseDirname, objName, isFile, fileSize,
+                                          isFile ? S3Utils.stripETagQuotes(object.getETag())
+                                                 : null,
+                                          isFile ? object.getLastModified().getTime() : 0));
       }
       if (!objects.isTruncated())
         finished = true;
@@ -179,6 +196,100 @@ public class DirWalker {
     return fileListing;
   }
 
+  /**
+   * Replace the pack containers and indexes in a S3 listing with the files packed in
+   * them, see PackIndex.  The containers are found in the pack dirs under the base dir,
+   * and in the pack dirs of its parent dirs up to the bucket root, so a dir below the
+   * root of a container lists the files it holds.
+   *
+   * A file is taken from the latest written of the containers or objects that hold it.
+   *
+   * @param fileListing  listing of a S3 dir.
+   * @return  number of packed files added to the listing.
+   */
+  public long resolvePacks(FileListingInDir fileListing) {
+    String baseDirname = fileListing.baseDirname;
+    List<DirEntry> containers = new ArrayList<DirEntry>();
+    List<String> packFiles = new ArrayList<String>();
+    for (Map.Entry<String, DirEntry> e : fileListing.getFileEntries()) {
+      String filename = baseDirname + "/" + e.getKey();
+      if (PackIndex.isPackContainer(filename)) {
+        containers.add(e.getValue());
+        packFiles.add(e.getKey());
+      } else if (PackIndex.isPackIndex(filename)) {
+        packFiles.add(e.getKey());
+      }
+    }
+    for (String name : packFiles) {
+      fileListing.removeFileEntry(name);
+    }
+    // Pack dirs of the parent dirs, "s3n://bucket/a/b" => "s3n://bucket/a", "s3n://bucket".
+    String bucketRoot = getBucketRoot(baseDirname);
+    String dirname = baseDirname;
+    while (dirname.length() > bucketRoot.length()) {
+      dirname = dirname.substring(0, dirname.lastIndexOf('/'));
+      FileListingInDir packDirListing = walkS3Dir(dirname + "/" + PackIndex.PACK_DIR);
+      for (Map.Entry<String, DirEntry> e : packDirListing.getFileEntries()) {
+        DirEntry entry = e.getValue();
+        if (PackIndex.isPackContainer(entry.baseDirname + "/" + entry.entryName)) {
+          containers.add(entry);
+        }
+      }
+    }
+    // The latest container first.
+    Collections.sort(containers, new Comparator<DirEntry>() {
+      public int compare(DirEntry ent1, DirEntry ent2) {
+        return Long.valueOf(ent2.lastModified).compareTo(ent1.lastModified);
+      }
+    });
+
+    AmazonS3Client s3Client = S3ClientPool.getClient(this.conf);
+    long packedFiles = 0;
+    for (DirEntry container : containers) {
+      String containerFilename = container.baseDirname + "/" + container.entryName;
+      URI containerUri = new Path(containerFilename).toUri();
+      PackIndex index = PackIndex.read(s3Client, containerUri.getHost(),
+                                       containerUri.getPath().substring(1));
+      if (index == null) {
+        log.info("skip pack without index: " + containerFilename);
+        continue;
+      }
+      for (PackIndex.Entry packEntry : index.getEntries()) {
+        PackIndex.Member member = new PackIndex.Member(containerFilename, packEntry);
+        String filename = member.getFilename();
+        String entryBaseDirname = baseDirname;
+        if (filename.equals(baseDirname)) {
+          // The base dir is a packed file itself.
+          entryBaseDirname = baseDirname.substring(0, baseDirname.lastIndexOf('/'));
+        } else if (!filename.startsWith(baseDirname + "/")) {
+          continue;
+        }
+        String entryName = filename.substring(entryBaseDirname.length() + 1);
+        DirEntry listed = fileListing.getFileEntry(entryName);
+        if (listed != null) {
+          if (listed.lastModified >= container.lastModified) {
+            continue;
+          }
+          fileListing.removeFileEntry(entryName);
+        }
+        DirEntry entry = new DirEntry(entryBaseDirname, entryName, true, packEntry.length,
+                                      null, container.lastModified);
+        entry.packMember = member;
+        fileListing.addEntry(entry);
+        packedFiles++;
+      }
+    }
+    log.info(String.format("resolved %d packed files from %d packs in %s",
+                              packedFiles, containers.size(), baseDirname));
+    return packedFiles;
+  }
+
+  // "s3n://bucket/a/b" => "s3n://bucket"
+  private static String getBucketRoot(String filename) {
+    int idx = filename.indexOf('/', filename.indexOf("://") + 3);
+    return idx < 0 ? filename : filename.substring(0, idx);
+  }
+
   /**
    * Get the fullpath's suffix after prefix.
    * The returned suffix doesn't have a leading "/".
@@ -250,6 +361,68 @@ public class DirWalker {
     return fileListing;
   }
 
+  /**
+   * Walk through a local "file://" dir.  Entry names are relative to the base dir, the
+   * same as HDFS entries, so a local dir compares and copies like a HDFS dir.
+   *
+   * @param baseDirname
+   * @return
+   */
+  public FileListingInDir walkLocalDir(String baseDirname) {
+    if (baseDirname.endsWith("/")) {
+      baseDirname = baseDirname.substring(0, baseDirname.length() - 1);
+    }
+    FileListingInDir fileListing = new FileListingInDir(baseDirname);
+    File baseDir = new File(FileUtils.getLocalFilename(baseDirname));
+    log.info("will walk local dir: " + baseDirname + "\n");
+    if (!baseDir.exists()) {
+      log.info("local path doesn't exist: " + baseDirname);
+      return null;
+    }
+    // Special case: the base dirname is a file itself.
+    if (baseDir.isFile()) {
+      log.info(baseDirname + " is a file...");
+      int splitIdx = baseDirname.lastIndexOf('/');
+      fileListing.addEntry(new DirEntry(baseDirname.substring(0, splitIdx),
+                                        baseDirname.substring(splitIdx + 1),
+                                        true,
+                                        baseDir.length(),
+                                        null,
+                                        baseDir.lastModified()));
+      return fileListing;
+    }
+
+    // Each dir to visit is paired with its name relative to the base dir.
+    Queue<File> dirsToVisit = new ArrayDeque<File>();
+    Queue<String> dirNames = new ArrayDeque<String>();
+    dirsToVisit.add(baseDir);
+    dirNames.add("");
+    while (dirsToVisit.size() > 0) {
+      File dir = dirsToVisit.remove();
+      String dirName = dirNames.remove();
+      File[] children = dir.listFiles();
+      if (children == null) {
+        log.info("fail to list path: " + dir.getPath());
+        return null;
+      }
+      if (children.length == 0 && !dirName.isEmpty()) {
+        fileListing.addEntry(new DirEntry(baseDirname, dirName + "/", false, 0));
+      }
+      for (File child : children) {
+        String childName = dirName.isEmpty() ? child.getName()
+                                             : dirName + "/" + child.getName();
+        if (child.isDirectory()) {
+          dirsToVisit.add(child);
+          dirNames.add(childName);
+        } else {
+          fileListing.addEntry(new DirEntry(baseDirname, childName, true, child.length(),
+                                            null, child.lastModified()));
+        }
+      }
+    }
+    return fileListing;
+  }
+
   /**
    * Walk through the base HDFS dir, delete files older than the given datetime stamp.
    *
@@ -194,4 +194,22 @@ public class FileListingInDir {
     }
     return true;
   }
+
+  /**
+   * Remove a file entry.  The max file size is not updated.
+   *
+   * @param filename
+   * @return  the removed entry, or null if the file is not listed.
+   */
+  public DirEntry removeFileEntry(String filename) {
+    DirEntry entry = this.fileEntries.remove(filename);
+    if (entry != null) {
+      this.fileCount--;
+      this.totalFileSize -= entry.fileSize;
+      if (entry.fileSize == 0) {
+        this.emptyFileCount--;
+      }
+    }
+    return entry;
+  }
 }
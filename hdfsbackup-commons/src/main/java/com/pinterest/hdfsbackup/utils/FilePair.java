@@ -17,6 +17,14 @@ public class FilePair implements Writable, Comparable<FilePair> {
   public Text destFile;
   public BooleanWritable isFile;
   public LongWritable fileSize;
+  // Listing metadata of S3 source objects: etag without quotes ("" if unknown),
+  // and last-modified time in ms (0 if unknown).
+  public Text etag;
+  public LongWritable lastModified;
+  // PackIndex.Member of the src and dest files if they are packed in containers,
+  // "" if not packed.
+  public Text srcPackMember;
+  public Text destPackMember;
 
   /**
    * This init function is needed for SequenceFileRecordReader.createValue() to
@@ -27,13 +35,48 @@ public class FilePair implements Writable, Comparable<FilePair> {
     this.destFile = new Text();
     this.isFile = new BooleanWritable(false);
     this.fileSize = new LongWritable(0L);
+    this.etag = new Text();
+    this.lastModified = new LongWritable(0L);
+    this.srcPackMember = new Text();
+    this.destPackMember = new Text();
   }
 
   public FilePair(String srcFile, String destFile, boolean isFile, long fileSize) {
+    this(srcFile, destFile, isFile, fileSize, null, 0);
+  }
+
+  public FilePair(String srcFile,
+                  String destFile,
+                  boolean isFile,
+                  long fileSize,
+                  String etag,
+                  long lastModified) {
     this.srcFile = new Text(srcFile);
     this.destFile = new Text(destFile);
     this.isFile = new BooleanWritable(isFile);
     this.fileSize = new LongWritable(fileSize);
+    this.etag = new Text(etag == null ? "" : etag);
+    this.lastModified = new LongWritable(lastModified);
+    this.srcPackMember = new Text();
+    this.destPackMember = new Text();
+  }
+
+  /**
+   * Create the file pair of a listed entry.  The pack members of the entries are kept.
+   *
+   * @param srcEntry
+   * @param destEntry  the listed dest entry, or null if the dest file is not listed.
+   * @param destFilename
+   */
+  public FilePair(DirEntry srcEntry, DirEntry destEntry, String destFilename) {
+    this(srcEntry.baseDirname + "/" + srcEntry.entryName, destFilename, srcEntry.isFile,
+         srcEntry.fileSize, srcEntry.etag, srcEntry.lastModified);
+    if (srcEntry.packMember != null) {
+      this.srcPackMember.set(srcEntry.packMember.toString());
+    }
+    if (destEntry != null && destEntry.packMember != null) {
+      this.destPackMember.set(destEntry.packMember.toString());
+    }
   }
 
   public String toString() {
@@ -42,7 +85,9 @@ public class FilePair implements Writable, Comparable<FilePair> {
   }
 
   public Writable[] getFields() {
-    return new Writable[] {this.srcFile, this.destFile, this.isFile, this.fileSize};
+    return new Writable[] {this.srcFile, this.destFile, this.isFile, this.fileSize,
+                           this.etag, this.lastModified, this.srcPackMember,
+                           this.destPackMember};
   }
 
   @Override
@@ -60,10 +105,15 @@ public class FilePair implements Writable, Comparable<FilePair> {
   }
 
   public FilePair clone() {
-    return new FilePair(this.srcFile.toString(),
-                            this.destFile.toString(),
-                            this.isFile.get(),
-                            this.fileSize.get());
+    FilePair pair = new FilePair(this.srcFile.toString(),
+                                 this.destFile.toString(),
+                                 this.isFile.get(),
+                                 this.fileSize.get(),
+                                 this.etag.toString(),
+                                 this.lastModified.get());
+    pair.srcPackMember.set(this.srcPackMember);
+    pair.destPackMember.set(this.destPackMember);
+    return pair;
   }
 
   @Override
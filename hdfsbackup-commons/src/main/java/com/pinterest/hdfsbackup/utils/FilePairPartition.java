@@ -25,7 +25,18 @@ public class FilePairPartition {
     }
   }
 
+  /**
+   * Partition the entries of a listing into the groups.
+   *
+   * @param fileList
+   * @param destFileList  listing of the dest dir, to take the pack members of the dest
+   *                      files from.  null if not listed.
+   * @param destDirname
+   * @param includeDir
+   * @return
+   */
   public boolean createFileGroups(FileListingInDir fileList,
+                                  FileListingInDir destFileList,
                                   String destDirname,
                                   boolean includeDir) {
     // Make sure dest dir always have a trailing "/".
@@ -40,15 +51,29 @@ public class FilePairPartition {
       entries.add(ent);
     }
     Collections.sort(entries);
+    // Files packed in the same container go to the same group, so that the group
+    // reads the container once.
+    Map<String, FilePairGroup> containerGroups = new HashMap<String, FilePairGroup>();
     for (DirEntry fileEntry : entries) {
-      FilePair pair = new FilePair(fileEntry.baseDirname + "/" + fileEntry.entryName,
-                                    destDirname == null ? "" : destDirname + fileEntry.entryName,
-                                    true,
-                                    fileEntry.fileSize);
+      FilePair pair = new FilePair(fileEntry,
+                                   destFileList == null ? null
+                                       : destFileList.getFileEntry(fileEntry.entryName),
+                                   destDirname == null ? "" : destDirname + fileEntry.entryName);
       assert(this.groups.size() > 0);
-      FilePairGroup group = this.groups.poll();
+      FilePairGroup group = null;
+      if (fileEntry.packMember != null) {
+        group = containerGroups.get(fileEntry.packMember.containerFilename);
+      }
+      if (group == null) {
+        group = this.groups.poll();
+      } else {
+        this.groups.remove(group);
+      }
       group.add(pair);
       this.groups.add(group);
+      if (fileEntry.packMember != null) {
+        containerGroups.put(fileEntry.packMember.containerFilename, group);
+      }
     }
     if (!includeDir) return true;
     // No need to sort dir entries since they are all empty dirs.
@@ -66,9 +91,15 @@ public class FilePairPartition {
     return true;
   }
 
+  public boolean createFileGroups(FileListingInDir fileList,
+                                  String destDirname,
+                                  boolean includeDir) {
+    return createFileGroups(fileList, null, destDirname, includeDir);
+  }
+
   public boolean createFileGroups(FileListingInDir fileList, String destDirname) {
     boolean includeDir = true;
-    return createFileGroups(fileList, destDirname, includeDir);
+    return createFileGroups(fileList, null, destDirname, includeDir);
   }
 
   public boolean createFileGroupsFromFilePairs(List<FilePair> filePairs) {
@@ -4,6 +4,7 @@ package com.pinterest.hdfsbackup.utils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -13,6 +14,9 @@ import org.apache.hadoop.util.Progressable;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.Map;
 
@@ -24,6 +28,9 @@ public class FileUtils {
   //private static Configuration conf = null;
   static long iopos = 0;
 
+  // Local files are digested through memory-mapped regions of this size.
+  static final long LOCAL_MAP_REGION_SIZE = 64L * 1024 * 1024;
+
   public static FSType getFSType(String filename) {
     if (filename == null) {
       return FSType.UNKNOWN;
@@ -42,14 +49,30 @@ public class FileUtils {
       return FSType.UNKNOWN;
     }
   }
+
+  /**
+   * Get the local path of a "file://" filename.
+   * @param filename
+   * @return
+   */
+  public static String getLocalFilename(String filename) {
+    return new Path(filename).toUri().getPath();
+  }
+
   /**
    * Open a HDFS file to read from.
+   *
+   * A "file://" file is opened as a plain local file, instead of through Hadoop's
+   * checksummed local file system.
    * @param filename
    * @param configuration
    * @return
    */
   public static InputStream openHDFSInputStream(String filename,
                                                 Configuration configuration) {
+    if (getFSType(filename) == FSType.LOCAL) {
+      return openLocalInputStream(getLocalFilename(filename));
+    }
     InputStream istream = null;
     try {
       Path filePath = new Path(filename);
@@ -69,6 +92,9 @@ public class FileUtils {
    * @return
    */
   public static OutputStream openHDFSOutputStream(String filename, Configuration conf) {
+    if (getFSType(filename) == FSType.LOCAL) {
+      return openLocalFileForWrite(filename);
+    }
     OutputStream ostream = null;
     boolean overwrite = true;
     try {
@@ -91,6 +117,9 @@ public class FileUtils {
   public static OutputStream openHDFSOutputStreamWithProgress(String filename,
                                                               Configuration conf,
                                                               Progressable progress) {
+    if (getFSType(filename) == FSType.LOCAL) {
+      return openLocalFileForWrite(filename);
+    }
     OutputStream ostream = null;
     boolean overwrite = true;
     try {
@@ -105,6 +134,26 @@ public class FileUtils {
     return ostream;
   }
 
+  /**
+   * Get the status of a HDFS file.
+   * @param filename
+   * @param conf
+   * @return  the file status, or null if the file doesn't exist or cannot be accessed.
+   */
+  public static FileStatus getHDFSFileStatus(String filename, Configuration conf) {
+    try {
+      Path filePath = new Path(filename);
+      FileSystem fs = filePath.getFileSystem(conf);
+      if (!fs.exists(filePath)) {
+        return null;
+      }
+      return fs.getFileStatus(filePath);
+    } catch (IOException e) {
+      log.info("failed to get file status: " + filename, e);
+    }
+    return null;
+  }
+
   public static long getHDFSFileSize(String filename, Configuration conf) {
     try {
       Path filePath = new Path(filename);
@@ -212,6 +261,27 @@ public class FileUtils {
     return null;
   }
 
+  /**
+   * Create a "file://" file to write to, and its parent dirs.  The returned stream is a
+   * FileOutputStream, whose channel can write byte buffers directly.
+   * @param filename
+   * @return
+   */
+  public static OutputStream openLocalFileForWrite(String filename) {
+    File file = new File(getLocalFilename(filename));
+    File parent = file.getParentFile();
+    if (parent != null && !createLocalDir(parent.getPath())) {
+      log.info("failed to create parent dir of local file: " + filename);
+      return null;
+    }
+    try {
+      return new FileOutputStream(file);
+    } catch (IOException e) {
+      log.info("failed to open local output file " + filename, e);
+    }
+    return null;
+  }
+
   /**
    * Create a local directory.
    * @param dirName
@@ -280,36 +350,7 @@ public class FileUtils {
                                 MessageDigest md,
                                 Progressable progress,
                                 NetworkBandwidthMonitor bwMonitor) {
-    long copiedBytes = 0;
-    byte[] buffer = new byte[1024 * 1024];
-    int len = 0;
-    try {
-      while ((len = ins.read(buffer)) > 0) {
-        if (outs != null) {
-          outs.write(buffer, 0, len);
-        }
-        if (progress != null) progress.progress();
-        if (md != null) md.update(buffer, 0, len);
-        copiedBytes += len;
-
-        if (bwMonitor == null) continue;
-        long sleepTime = bwMonitor.incBytesCopiedWithThrottling(len);
-        if (sleepTime > 0) {
-          try {
-            log.debug(String.format("bw-limit at copyStream: will sleep %d ms", sleepTime));
-            Thread.sleep(sleepTime);
-          } catch(InterruptedException e) {
-            log.warn("copystream: bandwidth rate limit sleep is interrupted: " + sleepTime);
-          }
-        }
-      }
-      log.debug("copied  " + copiedBytes +
-                    " from input to output, end offset = " + FileUtils.iopos);
-    } catch (IOException e) {
-      e.printStackTrace();
-      return -1;
-    }
-    return copiedBytes;
+    return StreamCopier.copy(ins, outs, md, progress, bwMonitor);
   }
 
   /**
@@ -364,10 +405,8 @@ public class FileUtils {
       for (Map.Entry<String, DirEntry> e : srcFileListing.fileEntries.entrySet()) {
         DirEntry fileEntry = e.getValue();
         FilePair pair =
-            new FilePair(fileEntry.baseDirname + "/" + fileEntry.entryName,
-                                destDirname == null ? "" : destDirname + fileEntry.entryName,
-                                true,
-                                fileEntry.fileSize);
+            new FilePair(fileEntry, null,
+                         destDirname == null ? "" : destDirname + fileEntry.entryName);
         //log.info("FilePair " + filepairID + " ::  " + pair.toString());
         writer.append(new LongWritable(filepairID), pair);
         filepairID++;
@@ -393,16 +432,7 @@ public class FileUtils {
    * @return
    */
   public static boolean computeFileDigest(InputStream ins, MessageDigest md) {
-    byte[] buffer = new byte[1024 * 1024];
-    try {
-      int len = 0;
-      while ((len = ins.read(buffer)) > 0) {
-        md.update(buffer, 0, len);
-      }
-    } catch (IOException e) {
-      return false;
-    }
-    return true;
+    return StreamCopier.copy(ins, null, md, null, null) >= 0;
   }
 
   public static boolean computeHDFSDigest(String hdfsFilename,
@@ -415,7 +445,9 @@ public class FileUtils {
                                           Configuration conf,
                                           MessageDigest md,
                                           NetworkBandwidthMonitor bwMonitor) {
-    byte[] buffer = new byte[1024 * 1024];
+    if (getFSType(hdfsFilename) == FSType.LOCAL) {
+      return computeLocalDigest(hdfsFilename, md, bwMonitor);
+    }
     int retry = 0;
     int maxRetry = 5;
     Path filePath = new Path(hdfsFilename);
@@ -438,23 +470,9 @@ public class FileUtils {
         continue;
       }
       try {
-        int len = 0;
-        long bytesRead = 0;
-        while ((len = ins.read(buffer)) > 0) {
-          md.update(buffer, 0, len);
-          bytesRead += len;
-
-          if (bwMonitor == null) continue;
-          long sleepTime = bwMonitor.incBytesCopiedWithThrottling(len);
-          if (sleepTime > 0) {
-            try {
-              log.debug(String.format("bw-limit at HDFSDigest: will sleep %d ms", sleepTime));
-              Thread.sleep(sleepTime);
-            } catch(InterruptedException e) {
-              log.warn("HDFS-digest: bandwidth rate limit sleep is interrupted: " + sleepTime);
-            }
-          }
-        }
+        // A failed attempt may have digested part of the file.
+        md.reset();
+        long bytesRead = StreamCopier.copy(ins, null, md, null, bwMonitor);
         if (bytesRead != fileSize) {
           log.info(String.format("Error: file %s: read bytes %d != file size %d",
                                     hdfsFilename, bytesRead, fileSize));
@@ -477,5 +495,105 @@ public class FileUtils {
     return false;
   }
 
-}
+  /**
+   * Get the native checksum of a HDFS file.  HDFS computes it from the CRCs of the
+   * blocks (MD5-of-MD5-of-CRC32) at the DataNodes, without reading the data.
+   * @param filename
+   * @param conf
+   * @return  the checksum, or null if it cannot be got or the file system has none.
+   */
+  public static FileChecksum getHDFSFileChecksum(String filename, Configuration conf) {
+    try {
+      Path filePath = new Path(filename);
+      FileSystem fs = filePath.getFileSystem(conf);
+      return fs.getFileChecksum(filePath);
+    } catch (IOException e) {
+      log.info("failed to get native checksum of " + filename + ": " + e.toString());
+    }
+    return null;
+  }
 
+  /**
+   * Compare two HDFS files by their native checksums.  The checksums are comparable
+   * only if both files have the same block size and CRC settings, which are part of the
+   * checksum's algorithm name.
+   * @param filename1
+   * @param filename2
+   * @param conf
+   * @return  TRUE or FALSE if the files' checksums are comparable, null if not.
+   */
+  public static Boolean compareHDFSFileChecksums(String filename1,
+                                                 String filename2,
+                                                 Configuration conf) {
+    if (getFSType(filename1) != FSType.HDFS || getFSType(filename2) != FSType.HDFS) {
+      return null;
+    }
+    FileChecksum checksum1 = getHDFSFileChecksum(filename1, conf);
+    if (checksum1 == null) {
+      return null;
+    }
+    FileChecksum checksum2 = getHDFSFileChecksum(filename2, conf);
+    if (checksum2 == null) {
+      return null;
+    }
+    if (!checksum1.getAlgorithmName().equals(checksum2.getAlgorithmName())) {
+      log.info(String.format("native checksums not comparable: %s (%s) :: %s (%s)",
+                                filename1, checksum1.getAlgorithmName(),
+                                filename2, checksum2.getAlgorithmName()));
+      return null;
+    }
+    boolean match = checksum1.equals(checksum2);
+    log.info(String.format("native checksums %s: %s :: %s", match ? "match" : "mismatch",
+                              checksum1.toString(), checksum2.toString()));
+    return match;
+  }
+
+  /**
+   * Compute a "file://" file's checksum.  The file is mapped region by region, and
+   * each region is digested straight from the page cache without copying into the heap.
+   * @param filename
+   * @param md
+   * @param bwMonitor
+   * @return
+   */
+  public static boolean computeLocalDigest(String filename,
+                                           MessageDigest md,
+                                           NetworkBandwidthMonitor bwMonitor) {
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(getLocalFilename(filename), "r");
+      FileChannel channel = file.getChannel();
+      long fileSize = channel.size();
+      long position = 0;
+      while (position < fileSize) {
+        long regionSize = Math.min(LOCAL_MAP_REGION_SIZE, fileSize - position);
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                              regionSize);
+        // Digest in 1MB slices, so the bandwidth limit applies smoothly.
+        while (region.hasRemaining()) {
+          int len = Math.min(1024 * 1024, region.remaining());
+          ByteBuffer slice = region.slice();
+          slice.limit(len);
+          md.update(slice);
+          region.position(region.position() + len);
+
+          if (bwMonitor != null) {
+            bwMonitor.throttle(len);
+          }
+        }
+        position += regionSize;
+      }
+      log.info(String.format("local file checksum success: %s", filename));
+      return true;
+    } catch (IOException e) {
+      log.info("Got exception when read for checksum: " + filename + ": " + e.toString());
+      return false;
+    } finally {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+}
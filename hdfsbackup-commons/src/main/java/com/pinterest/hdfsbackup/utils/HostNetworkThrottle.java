@@ -0,0 +1,267 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Caps the bandwidth of a task by the network usage of the whole host, so the task uses
+ * idle bandwidth freely and backs off when other traffic on the host goes up.
+ *
+ * At each run() the receive and transmit byte counters of the network interfaces are
+ * read from /proc/net/dev.  If the host receives or transmits more than "hostBwLimit"
+ * MB/s, the cap of the task is cut to half of what the task used in the last interval.
+ * Otherwise the cap grows by half of the host's headroom, up to "hostBwLimit".  The cap
+ * is never below "minBwLimit", so a task always makes progress.
+ *
+ * Unless the interfaces to watch are given, the interfaces of the default route (from
+ * /proc/net/route) are watched, e.g. the bond rather than its slaves.  Without a default
+ * route, the physical interfaces are watched, skipping the slaves of a bond or bridge and
+ * the virtual ones, e.g. veth and docker0, whose traffic is counted again on another
+ * interface.
+ *
+ * On hosts without /proc/net/dev the task is not capped.
+ */
+public class HostNetworkThrottle implements Runnable {
+  private static final Log log = LogFactory.getLog(HostNetworkThrottle.class);
+  static final String NET_DEV_FILENAME = "/proc/net/dev";
+  static final String NET_ROUTE_FILENAME = "/proc/net/route";
+  static final String SYS_NET_DIRNAME = "/sys/class/net";
+
+  private final NetworkBandwidthMonitor bwMonitor;
+  private final double hostBwLimit;
+  private final double minBwLimit;
+  // Interfaces to watch.  Empty to watch the interfaces of the default route.
+  private final Set<String> interfaces = new TreeSet<String>();
+  private boolean disabled = false;
+  // Interfaces watched at the last run(), to log when they change.
+  private Set<String> lastWatched = null;
+  private double cap;
+  // Counters of the last run().
+  private long lastTimeNanos = 0;
+  private long lastRxBytes = 0;
+  private long lastTxBytes = 0;
+  private long lastTaskBytes = 0;
+
+  /**
+   * @param bwMonitor  the limiter of this task.
+   * @param hostBwLimit  max receive or transmit bandwidth of the host, in MB/s.
+   * @param minBwLimit  the task is never capped below this, in MB/s.
+   * @param interfaces  ',' separated list of interfaces to watch.  Empty to watch the
+   *                    interfaces of the default route.
+   */
+  public HostNetworkThrottle(NetworkBandwidthMonitor bwMonitor,
+                             double hostBwLimit,
+                             double minBwLimit,
+                             String interfaces) {
+    this.bwMonitor = bwMonitor;
+    this.hostBwLimit = hostBwLimit;
+    this.minBwLimit = minBwLimit;
+    for (String name : interfaces.split(",")) {
+      if (!name.trim().isEmpty()) {
+        this.interfaces.add(name.trim());
+      }
+    }
+    // Start low, and take the headroom found by the first samples.
+    this.cap = minBwLimit;
+    this.bwMonitor.setHostBwCap(this.cap);
+  }
+
+  @Override
+  public synchronized void run() {
+    if (this.disabled) {
+      return;
+    }
+    long[] counters = readCounters();
+    if (counters == null) {
+      log.info("cannot read host network counters, host bandwidth throttling disabled");
+      this.disabled = true;
+      this.bwMonitor.setHostBwCap(0);
+      return;
+    }
+    long now = System.nanoTime();
+    long taskBytes = this.bwMonitor.getBytesCopied();
+    if (this.lastTimeNanos > 0 && now > this.lastTimeNanos) {
+      // In MB/s, 1 MB being 1000 * 1000 bytes as in NetworkBandwidthMonitor.
+      double elapsedUs = (now - this.lastTimeNanos) / 1000.0;
+      double rxRate = (counters[0] - this.lastRxBytes) / elapsedUs;
+      double txRate = (counters[1] - this.lastTxBytes) / elapsedUs;
+      double taskRate = (taskBytes - this.lastTaskBytes) / elapsedUs;
+      double hostRate = Math.max(rxRate, txRate);
+      double newCap;
+      if (hostRate > this.hostBwLimit) {
+        newCap = Math.min(this.cap, taskRate) / 2;
+      } else {
+        newCap = Math.min(this.hostBwLimit, this.cap + (this.hostBwLimit - hostRate) / 2);
+      }
+      newCap = Math.max(this.minBwLimit, newCap);
+      if (newCap < this.cap) {
+        log.info(String.format("host rx %f MB/s, tx %f MB/s over limit %f MB/s, task used " +
+                                   "%f MB/s, back off to %f MB/s",
+                                  rxRate, txRate, this.hostBwLimit, taskRate, newCap));
+      } else {
+        log.debug(String.format("host rx %f MB/s, tx %f MB/s, task cap %f MB/s",
+                                   rxRate, txRate, newCap));
+      }
+      this.cap = newCap;
+      this.bwMonitor.setHostBwCap(newCap);
+    }
+    this.lastTimeNanos = now;
+    this.lastRxBytes = counters[0];
+    this.lastTxBytes = counters[1];
+    this.lastTaskBytes = taskBytes;
+  }
+
+  /**
+   * @return  total received and transmitted bytes of the watched interfaces, or null if
+   *          the counters cannot be read.
+   */
+  private long[] readCounters() {
+    Map<String, long[]> counters = readNetDev();
+    if (counters == null) {
+      return null;
+    }
+    Set<String> watched = this.interfaces;
+    if (watched.isEmpty()) {
+      watched = readDefaultRouteInterfaces();
+      if (watched.isEmpty()) {
+        watched = getPhysicalInterfaces(counters.keySet(), new File(SYS_NET_DIRNAME));
+      }
+    }
+    if (!watched.equals(this.lastWatched)) {
+      log.info("watch host network interfaces " + watched);
+      this.lastWatched = watched;
+    }
+    return sumCounters(counters, watched);
+  }
+
+  private static Map<String, long[]> readNetDev() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(NET_DEV_FILENAME),
+                                                        Charset.forName("UTF-8")));
+      return parseNetDev(reader);
+    } catch (IOException e) {
+      log.info("failed to read " + NET_DEV_FILENAME + ": " + e.toString());
+      return null;
+    } catch (NumberFormatException e) {
+      log.info("bad counters in " + NET_DEV_FILENAME + ": " + e.toString());
+      return null;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+
+  private static Set<String> readDefaultRouteInterfaces() {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(NET_ROUTE_FILENAME), Charset.forName("UTF-8")));
+      return parseDefaultRouteInterfaces(reader);
+    } catch (IOException e) {
+      log.debug("failed to read " + NET_ROUTE_FILENAME + ": " + e.toString());
+      return new TreeSet<String>();
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+
+  /**
+   * @param reader  of /proc/net/dev.
+   * @return  interface name => received and transmitted bytes.
+   */
+  static Map<String, long[]> parseNetDev(BufferedReader reader) throws IOException {
+    Map<String, long[]> counters = new HashMap<String, long[]>();
+    String line;
+    // "  eth0: rx-bytes rx-packets ... (8 receive fields) tx-bytes tx-packets ..."
+    while ((line = reader.readLine()) != null) {
+      int idx = line.indexOf(':');
+      if (idx < 0) {
+        continue;
+      }
+      String name = line.substring(0, idx).trim();
+      String[] fields = line.substring(idx + 1).trim().split("\\s+");
+      if (fields.length < 9) {
+        continue;
+      }
+      counters.put(name, new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[8])});
+    }
+    return counters;
+  }
+
+  /**
+   * @param reader  of /proc/net/route.
+   * @return  names of the interfaces with a default route that is up.
+   */
+  static Set<String> parseDefaultRouteInterfaces(BufferedReader reader) throws IOException {
+    Set<String> names = new TreeSet<String>();
+    String line;
+    // "Iface Destination Gateway Flags RefCnt Use Metric Mask ...", in hex.
+    while ((line = reader.readLine()) != null) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields.length < 8 || !fields[1].equals("00000000") ||
+              !fields[7].equals("00000000")) {
+        continue;
+      }
+      try {
+        // RTF_UP
+        if ((Integer.parseInt(fields[3], 16) & 0x1) != 0) {
+          names.add(fields[0]);
+        }
+      } catch (NumberFormatException e) {
+        // The header.
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @param names  all the interfaces.
+   * @param sysNetDir  /sys/class/net
+   * @return  the interfaces backed by a device, that are not enslaved to a bond or bridge.
+   */
+  static Set<String> getPhysicalInterfaces(Set<String> names, File sysNetDir) {
+    Set<String> physical = new TreeSet<String>();
+    for (String name : names) {
+      File dir = new File(sysNetDir, name);
+      if (new File(dir, "device").exists() && !new File(dir, "master").exists()) {
+        physical.add(name);
+      }
+    }
+    return physical;
+  }
+
+  /**
+   * @return  total received and transmitted bytes of the given interfaces.
+   */
+  static long[] sumCounters(Map<String, long[]> counters, Set<String> interfaces) {
+    long rxBytes = 0;
+    long txBytes = 0;
+    for (String name : interfaces) {
+      long[] values = counters.get(name);
+      if (values != null) {
+        rxBytes += values[0];
+        txBytes += values[1];
+      }
+    }
+    return new long[] {rxBytes, txBytes};
+  }
+}
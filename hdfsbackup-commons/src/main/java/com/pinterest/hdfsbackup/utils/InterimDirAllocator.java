@@ -0,0 +1,193 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Places the interim files of multipart transfers across a set of local dirs,
+ * usually one dir per disk.
+ *
+ * One allocator is shared by all the transfers in a task.  A transfer reserves space
+ * for its parts up front, and each part is placed at the dir with the most free space,
+ * so the parts of one file, and the files of concurrent transfers, are spread over
+ * all disks.  Each dir has a byte quota (0 means no quota), and a dir without enough
+ * usable disk space is skipped.  When the quotas are used up, reserve() blocks until
+ * other transfers release their parts.
+ */
+public class InterimDirAllocator {
+  private static final Log log = LogFactory.getLog(InterimDirAllocator.class);
+
+  private final File[] dirs;
+  // Bytes reserved at each dir.
+  private final long[] reservedBytes;
+  private final long quotaPerDir;
+  private long totalReservedBytes;
+
+  public InterimDirAllocator(List<String> dirnames, long quotaPerDir) {
+    this.dirs = new File[dirnames.size()];
+    for (int i = 0; i < this.dirs.length; i++) {
+      this.dirs[i] = new File(dirnames.get(i));
+    }
+    this.reservedBytes = new long[this.dirs.length];
+    this.quotaPerDir = quotaPerDir;
+    this.totalReservedBytes = 0;
+    log.info(String.format("create interim dir allocator: %s, quota per dir %d bytes",
+                              dirnames.toString(), quotaPerDir));
+  }
+
+  /**
+   * Create an allocator over a ',' separated list of dirs.  The dirs are created
+   * if they don't exist yet.
+   *
+   * @param dirList  ',' separated list of dirs.  Use "/tmp" if empty.
+   * @param quotaPerDir  byte quota of each dir, 0 for no quota.
+   * @return
+   */
+  public static InterimDirAllocator create(String dirList, long quotaPerDir) {
+    List<String> dirnames = new ArrayList<String>();
+    if (dirList != null) {
+      for (String dirname : dirList.split(",")) {
+        dirname = dirname.trim();
+        if (dirname.isEmpty()) {
+          continue;
+        }
+        if (!new File(dirname).isDirectory() && !FileUtils.createLocalDir(dirname)) {
+          log.info("skip interim dir that cannot be created: " + dirname);
+          continue;
+        }
+        dirnames.add(dirname);
+      }
+    }
+    if (dirnames.isEmpty()) {
+      dirnames.add("/tmp");
+    }
+    return new InterimDirAllocator(dirnames, quotaPerDir);
+  }
+
+  /**
+   * Reserve space for the interim files of "partCount" parts.  Block if there isn't
+   * enough space for all of them.  A request that cannot fit even when nothing else is
+   * reserved is served once all other reservations are released.
+   *
+   * @param name  prefix of the interim file names.
+   * @param partSize  max bytes of each part.
+   * @param partCount
+   * @return
+   * @throws InterruptedException
+   */
+  public synchronized Reservation reserve(String name,
+                                          long partSize,
+                                          int partCount) throws InterruptedException {
+    while (true) {
+      int[] placement = place(partSize, partCount, this.totalReservedBytes == 0);
+      if (placement != null) {
+        for (int dir : placement) {
+          this.reservedBytes[dir] += partSize;
+        }
+        this.totalReservedBytes += partSize * partCount;
+        return new Reservation(name + "-" + UUID.randomUUID(), partSize, placement);
+      }
+      log.debug(String.format("interim dirs are full, wait to reserve %d parts of %d bytes",
+                                 partCount, partSize));
+      wait();
+    }
+  }
+
+  /**
+   * Place each part at the dir with the most free space.
+   *
+   * @param overcommit  ignore the quotas, and place at the dirs with usable disk space.
+   * @return  the dir of each part, or null if the parts don't fit.
+   */
+  private int[] place(long partSize, int partCount, boolean overcommit) {
+    long[] freeBytes = new long[this.dirs.length];
+    for (int i = 0; i < this.dirs.length; i++) {
+      long usable = this.dirs[i].getUsableSpace() - this.reservedBytes[i];
+      if (this.quotaPerDir > 0 && !overcommit) {
+        freeBytes[i] = Math.min(usable, this.quotaPerDir - this.reservedBytes[i]);
+      } else {
+        freeBytes[i] = usable;
+      }
+    }
+    int[] placement = new int[partCount];
+    for (int part = 0; part < partCount; part++) {
+      int best = -1;
+      for (int i = 0; i < this.dirs.length; i++) {
+        if (best < 0 || freeBytes[i] > freeBytes[best]) {
+          best = i;
+        }
+      }
+      if (freeBytes[best] < partSize && !overcommit) {
+        return null;
+      }
+      placement[part] = best;
+      freeBytes[best] -= partSize;
+    }
+    return placement;
+  }
+
+  private synchronized void release(int dir, long bytes) {
+    this.reservedBytes[dir] -= bytes;
+    this.totalReservedBytes -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * The interim files of one transfer.
+   */
+  public class Reservation {
+    private final String name;
+    private final long partSize;
+    // Dir index of each part.
+    private final int[] partDirs;
+    private final boolean[] released;
+
+    Reservation(String name, long partSize, int[] partDirs) {
+      this.name = name;
+      this.partSize = partSize;
+      this.partDirs = partDirs;
+      this.released = new boolean[partDirs.length];
+    }
+
+    /**
+     * @param part  part index, from 0.
+     * @return  the interim file of a part.
+     */
+    public File getFile(int part) {
+      return new File(InterimDirAllocator.this.dirs[this.partDirs[part]],
+                      String.format("%s-%04d", this.name, part));
+    }
+
+    /**
+     * Delete the interim file of a part, and return its space.
+     * @param part
+     */
+    public void releasePart(int part) {
+      synchronized (this) {
+        if (this.released[part]) {
+          return;
+        }
+        this.released[part] = true;
+      }
+      File file = getFile(part);
+      if (file.exists() && !file.delete()) {
+        log.info("failed to delete interim file " + file.getPath());
+      }
+      InterimDirAllocator.this.release(this.partDirs[part], this.partSize);
+    }
+
+    /**
+     * Delete all interim files of this reservation, and return their space.
+     */
+    public void release() {
+      for (int part = 0; part < this.partDirs.length; part++) {
+        releasePart(part);
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package com.pinterest.hdfsbackup.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An MD5 digest that also computes the md5 of each part and, optionally, a CRC32 of the
+ * content, in the same pass over the bytes.
+ *
+ * The bytes are fed to all the digests one slice at a time, such that each slice is still
+ * in the CPU cache when the next digest reads it.  digest() returns the md5 of the whole
+ * content, so a MultiDigest can be passed wherever a MessageDigest is taken.  The part
+ * digests and the checksum of the last digest() are kept until the next digest().
+ *
+ * Parts are either "partSize" bytes each, or ended by the caller with endPart() if
+ * "partSize" is 0.
+ *
+ * Single bytes, e.g. from DigestInputStream.read(), are gathered in a buffer and digested
+ * a buffer at a time.
+ */
+public class MultiDigest extends MessageDigest {
+  // Bytes are digested in slices of this size.
+  private static final int SLICE_SIZE = 64 * 1024;
+  // Single bytes are gathered up to this many before they are digested.
+  private static final int PENDING_SIZE = 4 * 1024;
+
+  private final long partSize;
+  private final MessageDigest whole;
+  // md5 of the current part.  Null if part digests are not computed.
+  private final MessageDigest part;
+  // Null if the checksum is not computed.
+  private final CRC32 checksum;
+  private long length = 0;
+  private long partLength = 0;
+  private List<byte[]> partDigests = new ArrayList<byte[]>();
+  // Copy of direct buffer slices, since CRC32 only reads arrays.
+  private byte[] slice = null;
+  // Single bytes not digested yet.
+  private byte[] pending = null;
+  private int pendingLength = 0;
+  // Results of the last digest().
+  private List<byte[]> lastPartDigests = new ArrayList<byte[]>();
+  private long lastChecksum = 0;
+  private long lastLength = 0;
+
+  /**
+   * A plain md5 of the whole content.
+   */
+  public MultiDigest() throws NoSuchAlgorithmException {
+    this(-1, false);
+  }
+
+  /**
+   * @param partSize  size of each part, 0 if parts are ended by endPart(), or negative
+   *                  to skip part digests.
+   * @param withChecksum  if true, also compute a CRC32 of the whole content.
+   * @throws NoSuchAlgorithmException
+   */
+  public MultiDigest(long partSize, boolean withChecksum) throws NoSuchAlgorithmException {
+    super("MD5");
+    this.partSize = partSize;
+    this.whole = MessageDigest.getInstance("MD5");
+    this.part = partSize >= 0 ? MessageDigest.getInstance("MD5") : null;
+    this.checksum = withChecksum ? new CRC32() : null;
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    if (this.pending == null) {
+      this.pending = new byte[PENDING_SIZE];
+    }
+    this.pending[this.pendingLength++] = input;
+    if (this.pendingLength == PENDING_SIZE) {
+      flushPending();
+    }
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    flushPending();
+    digestBytes(input, offset, len);
+  }
+
+  private void flushPending() {
+    if (this.pendingLength > 0) {
+      int n = this.pendingLength;
+      this.pendingLength = 0;
+      digestBytes(this.pending, 0, n);
+    }
+  }
+
+  private void digestBytes(byte[] input, int offset, int len) {
+    while (len > 0) {
+      int n = Math.min(len, SLICE_SIZE);
+      if (this.partSize > 0) {
+        n = (int) Math.min(n, this.partSize - this.partLength);
+      }
+      this.whole.update(input, offset, n);
+      if (this.part != null) {
+        this.part.update(input, offset, n);
+      }
+      if (this.checksum != null) {
+        this.checksum.update(input, offset, n);
+      }
+      this.length += n;
+      this.partLength += n;
+      offset += n;
+      len -= n;
+      if (this.partSize > 0 && this.partLength == this.partSize) {
+        finishPart();
+      }
+    }
+  }
+
+  @Override
+  protected void engineUpdate(ByteBuffer input) {
+    flushPending();
+    if (input.hasArray()) {
+      engineUpdate(input.array(), input.arrayOffset() + input.position(), input.remaining());
+      input.position(input.limit());
+      return;
+    }
+    if (this.slice == null) {
+      this.slice = new byte[SLICE_SIZE];
+    }
+    while (input.hasRemaining()) {
+      int n = Math.min(input.remaining(), SLICE_SIZE);
+      input.get(this.slice, 0, n);
+      digestBytes(this.slice, 0, n);
+    }
+  }
+
+  /**
+   * End the current part.
+   *
+   * @return  md5 of the part, or null if part digests are not computed.
+   */
+  public byte[] endPart() {
+    flushPending();
+    return finishPart();
+  }
+
+  private byte[] finishPart() {
+    if (this.part == null) {
+      return null;
+    }
+    byte[] digest = this.part.digest();
+    this.partDigests.add(digest);
+    this.partLength = 0;
+    return digest;
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    flushPending();
+    if (this.part != null && this.partLength > 0) {
+      finishPart();
+    }
+    this.lastPartDigests = this.partDigests;
+    this.lastChecksum = this.checksum != null ? this.checksum.getValue() : 0;
+    this.lastLength = this.length;
+    byte[] digest = this.whole.digest();
+    engineReset();
+    return digest;
+  }
+
+  @Override
+  protected void engineReset() {
+    this.whole.reset();
+    if (this.part != null) {
+      this.part.reset();
+    }
+    if (this.checksum != null) {
+      this.checksum.reset();
+    }
+    this.partDigests = new ArrayList<byte[]>();
+    this.length = 0;
+    this.partLength = 0;
+    this.pendingLength = 0;
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return 16;
+  }
+
+  /**
+   * @return  md5 of each part of the content of the last digest(), in part order.
+   */
+  public List<byte[]> getPartDigests() {
+    return this.lastPartDigests;
+  }
+
+  /**
+   * @return  CRC32 of the content of the last digest(), or 0 if not computed.
+   */
+  public long getChecksum() {
+    return this.lastChecksum;
+  }
+
+  /**
+   * @return  length of the content of the last digest().
+   */
+  public long getLength() {
+    return this.lastLength;
+  }
+}
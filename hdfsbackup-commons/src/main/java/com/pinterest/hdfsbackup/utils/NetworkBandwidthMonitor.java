@@ -3,146 +3,171 @@ package com.pinterest.hdfsbackup.utils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Created by shawn on 11/4/14.
+ * Limits the network bandwidth of all the workers in a task to "bwLimit" MB/s, with a
+ * token bucket.
+ *
+ * Tokens are added at "bwLimit" MB/s, and the bucket holds at most BURST_MS worth of
+ * them.  A worker takes a token per byte it has transferred.  If the bucket is short of
+ * tokens, the worker sleeps until the tokens it took are added, so each worker is paced
+ * to its share of the bandwidth rather than stalled once an interval.
+ *
+ * The bucket is kept in one atomic field: the time at which all the tokens taken so far
+ * are added.  A take moves that time forward with a compare-and-set, so the workers
+ * never wait on a lock.
+ *
+ * The limit is the lower of "bwLimit" and the host bandwidth cap, if one is set by a
+ * HostNetworkThrottle.
+ *
+ * run() is scheduled at "monitorInterval" to log the bandwidth used.
  */
 public class NetworkBandwidthMonitor implements Runnable {
   private static final Log log = LogFactory.getLog(NetworkBandwidthMonitor.class);
+  // Size of the bucket, in milli-sec of tokens.
+  static final long BURST_MS = 100L;
 
   // Monitor interval in milli-seconds
-  private long monitorInterval;
-
-  // In the last interval, pause worker thread this many milli-seconds.
-  private long sleepTimeInLastInterval;
-  private long perWorkerSleepTimeInLastInterval;
-
-  private long savedSleepTimeInLastInterval;
+  private final long monitorInterval;
 
   // How many worker threads are throttled by this monitor.
-  private long numberOfWorkers;
+  private volatile long numberOfWorkers;
 
-  // network bandwidth limit in MB/s
-  private double bwLimit;
-
-  // How many bytes are copied in last interval.
-  private long bytesCopiedInLastInterval;
+  // network bandwidth limit in MB/s.  No limit if <= 0.
+  private volatile double bwLimit;
+  // Cap of the limit from the host network usage, in MB/s.  No cap if <= 0.
+  private volatile double hostBwCap = 0;
+  private volatile double nanosPerByte;
+  private final long burstNanos;
 
-  // When the program starts: starting time in ms.
-  private long startTimeMs;
+  // The time (System.nanoTime()) at which all the tokens taken so far are added.
+  private final AtomicLong tokensPaidUntil;
 
-  private long bytesCopied;
+  // How many bytes are copied in last interval.
+  private final AtomicLong bytesCopiedInLastInterval = new AtomicLong(0);
+  // How many bytes are copied since the start.
+  private final AtomicLong bytesCopied = new AtomicLong(0);
 
   public NetworkBandwidthMonitor(long monitorInterval, long numWorkers, double bwLimit) {
     this.monitorInterval = monitorInterval;
     this.numberOfWorkers = numWorkers;
-    this.bwLimit = bwLimit;
-    this.sleepTimeInLastInterval = 0L;
-    this.perWorkerSleepTimeInLastInterval = 0L;
-    this.bytesCopiedInLastInterval = 0L;
+    setBwLimit(bwLimit);
+    this.burstNanos = TimeUnit.MILLISECONDS.toNanos(BURST_MS);
+    this.tokensPaidUntil = new AtomicLong(System.nanoTime());
+  }
 
-    this.startTimeMs = System.currentTimeMillis();
-    this.bytesCopied = 0L;
+  /**
+   * Change the bandwidth limit.  Tokens already taken are not repaid at the new rate.
+   *
+   * @param bwLimit  in MB/s.  No limit if <= 0.
+   */
+  public synchronized void setBwLimit(double bwLimit) {
+    this.bwLimit = bwLimit;
+    updateRate();
   }
 
-  public synchronized long getBytesCopiedInLastInterval() {
-    return this.bytesCopiedInLastInterval;
+  public double getBwLimit() {
+    return this.bwLimit;
   }
 
-  public synchronized void incBytesCopiedInLastInterval(long v) {
-    this.bytesCopiedInLastInterval += v;
+  /**
+   * Cap the bandwidth limit, e.g. when the host network is busy.
+   *
+   * @param hostBwCap  in MB/s.  No cap if <= 0.
+   */
+  public synchronized void setHostBwCap(double hostBwCap) {
+    this.hostBwCap = hostBwCap;
+    updateRate();
   }
 
-  // Update the total bytes copied, computed bandwidth usage.
-  // Returns:  number of ms to sleep if the caller's bw usage has exceeded
-  //           rate limit.
-  //           0 if bw usage is within limit.
-  public synchronized long incBytesCopiedWithThrottling(long v) {
-    this.bytesCopied += v;
-    long actualUsedTimeMs = System.currentTimeMillis() - this.startTimeMs;
-    long expectedUsedTimeMs = (long) (this.bytesCopied / 1000 / this.bwLimit);
-    if (expectedUsedTimeMs > actualUsedTimeMs) {
-      return expectedUsedTimeMs - actualUsedTimeMs;
-    }
-    return 0;
+  public double getHostBwCap() {
+    return this.hostBwCap;
   }
 
-  public synchronized void setBytesCopiedInLastInterval(long v) {
-    this.bytesCopiedInLastInterval = v;
+  private void updateRate() {
+    double limit = this.bwLimit;
+    if (this.hostBwCap > 0 && (limit <= 0 || this.hostBwCap < limit)) {
+      limit = this.hostBwCap;
+    }
+    // 1 MB is 1000 * 1000 bytes here, as "bwLimit" has always been enforced.
+    this.nanosPerByte = limit > 0 ? 1000.0 / limit : 0;
   }
 
-  public synchronized void setSleepTimeInLastInterval(long v) {
-    this.sleepTimeInLastInterval = v;
+  /**
+   * Take the tokens of "v" bytes that have been transferred.
+   *
+   * @param v
+   * @return  number of ms the caller should sleep to stay within the limit,
+   *          0 if it can go on.
+   */
+  public long incBytesCopiedWithThrottling(long v) {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(takeTokens(v)));
   }
 
-  public synchronized long getSleepTimeInLastInterval() {
-    return this.sleepTimeInLastInterval;
+  /**
+   * Take the tokens of "v" bytes that have been transferred, and sleep if the bucket is
+   * short of tokens.
+   *
+   * @param v
+   */
+  public void throttle(long v) {
+    long waitNanos = takeTokens(v);
+    if (waitNanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
-  public synchronized void updateSleepTimeInLastInterval(long v) {
-    this.sleepTimeInLastInterval += v;
+  /**
+   * @return  nano-sec to wait until the tokens of "v" bytes are added.
+   */
+  private long takeTokens(long v) {
+    this.bytesCopiedInLastInterval.addAndGet(v);
+    this.bytesCopied.addAndGet(v);
+    double nanosPerByte = this.nanosPerByte;
+    if (nanosPerByte <= 0) {
+      return 0;
+    }
+    long cost = (long) (v * nanosPerByte);
+    while (true) {
+      long now = System.nanoTime();
+      long paidUntil = this.tokensPaidUntil.get();
+      // A full bucket doesn't keep more tokens for later.
+      long newPaidUntil = Math.max(paidUntil, now) + cost;
+      if (this.tokensPaidUntil.compareAndSet(paidUntil, newPaidUntil)) {
+        return newPaidUntil - now - this.burstNanos;
+      }
+    }
   }
 
-  public long getPerWorkerSleepTimeInLastInterval() {
-    return this.perWorkerSleepTimeInLastInterval;
+  public long getBytesCopiedInLastInterval() {
+    return this.bytesCopiedInLastInterval.get();
   }
 
-  public synchronized void setPerWorkerSleepTimeInLastInterval(long v) {
-    this.perWorkerSleepTimeInLastInterval = v;
+  public long getBytesCopied() {
+    return this.bytesCopied.get();
   }
 
-  public synchronized void setNumberOfWorkers(long v) {
+  public void setNumberOfWorkers(long v) {
     this.numberOfWorkers = v;
   }
 
-  public synchronized long getNumberOfWorkers() {
+  public long getNumberOfWorkers() {
     return this.numberOfWorkers;
   }
 
-  public long getSavedSleepTimeInLastInterval() {
-    return this.savedSleepTimeInLastInterval;
-  }
-
   @Override
   public void run() {
-    //long timeUsedToCopy = this.monitorInterval - getSleepTimeInLastInterval();
-    long timeUsedToCopy = this.monitorInterval;
-                              //getPerWorkerSleepTimeInLastInterval();
-    long bytesCopied = getBytesCopiedInLastInterval();
-    setBytesCopiedInLastInterval(0);
-    double bwUsed =  bytesCopied / (1024.0 * 1024) / (timeUsedToCopy / 1000.0);
-    long numWorkers = getNumberOfWorkers();
-
-    if (bwUsed > this.bwLimit) {
-      log.debug(String.format("bw-monitor: bytesCopied = %d, " +
-                               "remaining worker threads = %d, " +
-                               "perWorkerSleep = %d ms, " +
-                               "timeUsedToCopy = %d ms, " +
-                               "total sleepInLastInterval = %d ms, " +
-                               "remaining sleeptime = %d ms, " +
-                               "usedBW = %f, " +
-                               "bwLimit = %f",
-                              bytesCopied,
-                              numWorkers,
-                              getPerWorkerSleepTimeInLastInterval(),
-                              timeUsedToCopy,
-                              this.savedSleepTimeInLastInterval,
-                              getSleepTimeInLastInterval(),
-                              bwUsed,
-                              this.bwLimit));
-
-      double fraction = (bwUsed - this.bwLimit) / bwUsed;
-      long toSleepTime = (long)(fraction * this.monitorInterval);
-      //long perWorkerSleepTime = toSleepTime / (numWorkers > 0 ? numWorkers : 1);
-      long perWorkerSleepTime = toSleepTime;
-      setSleepTimeInLastInterval(toSleepTime * numWorkers);
-      setPerWorkerSleepTimeInLastInterval(perWorkerSleepTime);
-      this.savedSleepTimeInLastInterval = toSleepTime;
-      log.info(String.format("used-bw %f > bw-limit %f, force %d workers to sleep %d ms",
-                             bwUsed, bwLimit, numWorkers, toSleepTime));
-    } else {
-      setSleepTimeInLastInterval(0L);
-      setPerWorkerSleepTimeInLastInterval(0L);
-      this.savedSleepTimeInLastInterval = 0;
-    }
+    long bytesCopied = this.bytesCopiedInLastInterval.getAndSet(0);
+    double bwUsed = bytesCopied / (1000.0 * 1000) / (this.monitorInterval / 1000.0);
+    log.debug(String.format("bw-monitor: used-bw %f MB/s, bw-limit %f MB/s, host cap %f MB/s, "
+                               + "%d workers",
+                               bwUsed, this.bwLimit, this.hostBwCap, this.numberOfWorkers));
   }
 }
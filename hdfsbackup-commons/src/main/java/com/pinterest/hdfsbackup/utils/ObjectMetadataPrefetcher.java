@@ -0,0 +1,106 @@
+package com.pinterest.hdfsbackup.utils;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gets the metadata (HEAD) of the S3 objects a task is about to transfer, ahead of
+ * the transfers, so a transfer doesn't wait a round-trip for the metadata.
+ *
+ * Objects are added in the order they are queued for transfer.  Up to "maxAhead" of
+ * them have their HEAD requests started or done but not yet taken, and each take()
+ * starts the HEAD of the next object in the queue.  So the metadata is at most
+ * "maxAhead" objects old when used.
+ */
+public class ObjectMetadataPrefetcher {
+  private static final Log log = LogFactory.getLog(ObjectMetadataPrefetcher.class);
+
+  private final AmazonS3Client s3client;
+  private final ExecutorService executor;
+  private final int maxAhead;
+  // Objects queued for transfer, whose HEAD is not started yet, in queue order.
+  private final LinkedList<String> upcoming = new LinkedList<String>();
+  // HEAD requests started but not taken, by object filename.
+  private final Map<String, Future<ObjectMetadata>> started =
+      new HashMap<String, Future<ObjectMetadata>>();
+
+  public ObjectMetadataPrefetcher(AmazonS3Client s3client, int threads, int maxAhead) {
+    this.s3client = s3client;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    this.maxAhead = maxAhead;
+  }
+
+  /**
+   * Add an object queued for transfer.
+   *
+   * @param filename  full S3 path of the object.
+   */
+  public synchronized void add(String filename) {
+    this.upcoming.addLast(filename);
+    startNext();
+  }
+
+  /**
+   * Take the metadata of an object about to be transferred.
+   *
+   * @param filename  full S3 path of the object.
+   * @return  the metadata, or null if it's not prefetched or cannot be got.
+   */
+  public ObjectMetadata take(String filename) {
+    Future<ObjectMetadata> future;
+    synchronized (this) {
+      future = this.started.remove(filename);
+      if (future == null) {
+        this.upcoming.remove(filename);
+      }
+      startNext();
+    }
+    if (future == null) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (Exception e) {
+      log.info("failed to prefetch metadata of " + filename + ": " + e.toString());
+      return null;
+    }
+  }
+
+  private void startNext() {
+    while (this.started.size() < this.maxAhead && !this.upcoming.isEmpty()) {
+      final String filename = this.upcoming.removeFirst();
+      this.started.put(filename, this.executor.submit(new Callable<ObjectMetadata>() {
+        @Override
+        public ObjectMetadata call() {
+          URI uri = new Path(filename).toUri();
+          String key = uri.getPath();
+          if (key.startsWith("/")) {
+            key = key.substring(1);
+          }
+          return S3Utils.getObjectMetadata(s3client, uri.getHost(), key);
+        }
+      }));
+    }
+  }
+
+  public synchronized void close() {
+    this.upcoming.clear();
+    for (Future<ObjectMetadata> future : this.started.values()) {
+      future.cancel(true);
+    }
+    this.started.clear();
+    this.executor.shutdownNow();
+  }
+}
@@ -0,0 +1,265 @@
+package com.pinterest.hdfsbackup.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The index of a pack container.
+ *
+ * Small files can be packed into one large container object to save S3 requests.
+ * The containers of files under dir "root" are saved as "root/_hdfsbackup_packs/<name>",
+ * and each container has an index object "<container>.idx" that lists its members.
+ * Each member is a "offset, length, md5, name" line, where name is the member's path
+ * relative to "root".
+ */
+public class PackIndex {
+  private static final Log log = LogFactory.getLog(PackIndex.class);
+
+  public static final String PACK_DIR = "_hdfsbackup_packs";
+  public static final String INDEX_SUFFIX = ".idx";
+  private static final String HEADER = "#hdfsbackup-pack-v1";
+
+  public static class Entry {
+    public final String name;
+    public final long offset;
+    public final long length;
+    // base64 encoded md5 of the member.
+    public final String md5;
+
+    public Entry(String name, long offset, long length, String md5) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+      this.md5 = md5;
+    }
+
+    public String toString() {
+      return String.format("%d\t%d\t%s\t%s", this.offset, this.length, this.md5, this.name);
+    }
+
+    /**
+     * Parse an entry from its toString() form.
+     *
+     * @throws IllegalArgumentException  if the line is not an entry.
+     */
+    public static Entry parse(String line) {
+      String[] fields = line.split("\t", 4);
+      if (fields.length < 4) {
+        throw new IllegalArgumentException("bad pack entry: " + line);
+      }
+      return new Entry(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                          fields[2]);
+    }
+  }
+
+  /**
+   * A file packed in a container: the container's full path, and the file's entry in
+   * the container's index.
+   */
+  public static class Member {
+    public final String containerFilename;
+    public final Entry entry;
+
+    public Member(String containerFilename, Entry entry) {
+      this.containerFilename = containerFilename;
+      this.entry = entry;
+    }
+
+    /**
+     * @return  the full path of the packed file, like "s3://bucket/root/dir/file".
+     */
+    public String getFilename() {
+      return getPackRoot(this.containerFilename) + "/" + this.entry.name;
+    }
+
+    public String toString() {
+      return this.containerFilename + "\t" + this.entry.toString();
+    }
+
+    /**
+     * Parse a member from its toString() form.
+     *
+     * @return  the member, or null if the string is empty.
+     * @throws IllegalArgumentException  if the string is not a member.
+     */
+    public static Member parse(String str) {
+      if (str == null || str.isEmpty()) {
+        return null;
+      }
+      int idx = str.indexOf('\t');
+      if (idx < 0) {
+        throw new IllegalArgumentException("bad pack member: " + str);
+      }
+      return new Member(str.substring(0, idx), Entry.parse(str.substring(idx + 1)));
+    }
+  }
+
+  // base64 encoded md5 of the whole container.
+  public String containerMD5 = "";
+  public long containerLength = 0;
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  public PackIndex() {}
+
+  public void addEntry(Entry entry) {
+    this.entries.add(entry);
+  }
+
+  /**
+   * @return  the members, in the order of their offsets in the container.
+   */
+  public List<Entry> getEntries() {
+    return this.entries;
+  }
+
+  public static boolean isPackIndex(String name) {
+    return name != null && name.contains("/" + PACK_DIR + "/") && name.endsWith(INDEX_SUFFIX);
+  }
+
+  public static boolean isPackContainer(String name) {
+    return name != null && name.contains("/" + PACK_DIR + "/") && !name.endsWith(INDEX_SUFFIX);
+  }
+
+  /**
+   * Get the name of the container of some files.  The name only depends on the names and
+   * sizes of the files, so packing the same files again writes the same container.
+   *
+   * @param packRoot  full path of the dir that holds all the files.
+   * @param names  names of the files relative to "packRoot", in packing order.
+   * @param sizes  sizes of the files.
+   * @return  full path of the container, like "s3://bucket/root/_hdfsbackup_packs/pack-<md5>".
+   */
+  public static String getContainerName(String packRoot, List<String> names, List<Long> sizes) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < names.size(); i++) {
+      sb.append(names.get(i)).append('\t').append(sizes.get(i)).append('\n');
+    }
+    return String.format("%s/%s/pack-%s", packRoot, PACK_DIR,
+                            DigestUtils.md5Hex(sb.toString().getBytes(Charset.forName("UTF-8"))));
+  }
+
+  public static String getIndexName(String containerName) {
+    return containerName + INDEX_SUFFIX;
+  }
+
+  /**
+   * Get the dir that the members of a container are relative to.
+   * @param containerName  full path of a container, like "s3://bucket/root/_hdfsbackup_packs/x"
+   * @return  the root dir, like "s3://bucket/root".
+   */
+  public static String getPackRoot(String containerName) {
+    int idx = containerName.lastIndexOf("/" + PACK_DIR + "/");
+    return idx < 0 ? null : containerName.substring(0, idx);
+  }
+
+  public byte[] toBytes() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(HEADER).append('\n');
+    sb.append(String.format("%d\t%s\n", this.containerLength, this.containerMD5));
+    for (Entry entry : this.entries) {
+      sb.append(entry.toString()).append('\n');
+    }
+    return sb.toString().getBytes(Charset.forName("UTF-8"));
+  }
+
+  /**
+   * Parse an index from its toBytes() form.
+   *
+   * @return  the index, or null if the content is not a pack index.
+   * @throws IOException  if the content cannot be read.
+   * @throws RuntimeException  if the index is corrupted.
+   */
+  public static PackIndex parse(BufferedReader reader) throws IOException {
+    if (!HEADER.equals(reader.readLine())) {
+      return null;
+    }
+    PackIndex index = new PackIndex();
+    String[] fields = reader.readLine().split("\t", 2);
+    index.containerLength = Long.parseLong(fields[0]);
+    index.containerMD5 = fields.length > 1 ? fields[1] : "";
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.length() == 0) {
+        continue;
+      }
+      index.addEntry(Entry.parse(line));
+    }
+    return index;
+  }
+
+  /**
+   * Save the index of container "bucket/key".
+   *
+   * @param s3client
+   * @param bucket
+   * @param key   key of the container, not the index.
+   * @return
+   */
+  public boolean write(AmazonS3Client s3client, String bucket, String key) {
+    byte[] content = toBytes();
+    return S3Utils.putS3Object(s3client, bucket, getIndexName(key), content, content.length,
+                                  new ObjectMetadata());
+  }
+
+  /**
+   * Read the index of container "bucket/key".
+   *
+   * @param s3client
+   * @param bucket
+   * @param key   key of the container, not the index.
+   * @return  the index, or null if it cannot be read.
+   */
+  public static PackIndex read(AmazonS3Client s3client, String bucket, String key) {
+    String indexKey = getIndexName(key);
+    int retry = 0;
+    int maxRetry = 5;
+    while (retry < maxRetry) {
+      retry++;
+      BufferedReader reader = null;
+      try {
+        S3Object object = s3client.getObject(bucket, indexKey);
+        reader = new BufferedReader(new InputStreamReader(object.getObjectContent(),
+                                                          Charset.forName("UTF-8")));
+        PackIndex index = parse(reader);
+        if (index == null) {
+          log.info(String.format("%s/%s is not a pack index", bucket, indexKey));
+        }
+        return index;
+      } catch (AmazonServiceException ase) {
+        log.info("Server error: " + S3Utils.AWSServiceExceptionToString(ase));
+        if (ase.getStatusCode() == 404) {
+          break;
+        }
+      } catch (AmazonClientException ace) {
+        log.info("Client error: " + ace.toString());
+      } catch (IOException e) {
+        log.info("Error reading pack index: " + e.toString());
+      } catch (RuntimeException e) {
+        log.info(String.format("Corrupted pack index %s/%s: %s", bucket, indexKey,
+                                  e.toString()));
+        return null;
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException e) {}
+        }
+      }
+    }
+    log.info(String.format("Failed to read pack index %s/%s", bucket, indexKey));
+    return null;
+  }
+}
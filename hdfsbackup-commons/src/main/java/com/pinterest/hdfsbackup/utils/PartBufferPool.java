@@ -0,0 +1,132 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of reusable memory buffers to hold multipart chunks, bounded by a memory budget.
+ *
+ * One pool is shared by all the transfers in a task.  When the budget is used up,
+ * acquire() blocks until other transfers release their buffers.  Buffers can be
+ * allocated off-heap so that large chunks don't put pressure on the java heap.
+ */
+public class PartBufferPool {
+  private static final Log log = LogFactory.getLog(PartBufferPool.class);
+
+  // Max bytes of all buffers allocated by this pool, both free and in-use.
+  private final long memoryBudget;
+  private final boolean offHeap;
+  private final LinkedList<ByteBuffer> freeBuffers;
+  private long allocatedBytes;
+  private long inUseBytes;
+
+  public PartBufferPool(long memoryBudget, boolean offHeap) {
+    this.memoryBudget = memoryBudget;
+    this.offHeap = offHeap;
+    this.freeBuffers = new LinkedList<ByteBuffer>();
+    this.allocatedBytes = 0;
+    this.inUseBytes = 0;
+    log.info(String.format("create part buffer pool: budget %d bytes, %s",
+                              memoryBudget, offHeap ? "off-heap" : "on-heap"));
+  }
+
+  /**
+   * Get a buffer that can hold "size" bytes. Block if the memory budget is used up.
+   * The returned buffer's position is 0, and its limit is "size".
+   *
+   * @param size
+   * @return
+   * @throws InterruptedException
+   */
+  public synchronized ByteBuffer acquire(int size) throws InterruptedException {
+    ByteBuffer buffer;
+    while ((buffer = takeBuffer(size)) == null) {
+      wait();
+    }
+    return buffer;
+  }
+
+  /**
+   * Get a buffer that can hold "size" bytes if the memory budget allows, without
+   * blocking.  A caller that already holds buffers should use this, and release what it
+   * holds when it gets none, or it may wait forever for its own buffers.
+   *
+   * @param size
+   * @return  the buffer, or null if the memory budget is used up.
+   */
+  public synchronized ByteBuffer tryAcquire(int size) {
+    return takeBuffer(size);
+  }
+
+  private ByteBuffer takeBuffer(int size) {
+    ByteBuffer buffer = takeFreeBuffer(size);
+    if (buffer != null) {
+      this.inUseBytes += buffer.capacity();
+      buffer.clear();
+      buffer.limit(size);
+      return buffer;
+    }
+    if (this.allocatedBytes + size > this.memoryBudget && !this.freeBuffers.isEmpty()) {
+      // Free buffers are too small. Drop them to make room for a new one.
+      for (ByteBuffer free : this.freeBuffers) {
+        this.allocatedBytes -= free.capacity();
+      }
+      this.freeBuffers.clear();
+    }
+    // A chunk larger than the whole budget can only be served when nothing else is used.
+    if (this.allocatedBytes + size <= this.memoryBudget || this.allocatedBytes == 0) {
+      buffer = this.offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+      this.allocatedBytes += size;
+      this.inUseBytes += size;
+      log.debug(String.format("part buffer pool: allocated %d bytes, %d of %d bytes in use",
+                                 size, this.inUseBytes, this.memoryBudget));
+      return buffer;
+    }
+    return null;
+  }
+
+  /**
+   * Return a buffer to the pool.
+   * @param buffer
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    this.inUseBytes -= buffer.capacity();
+    this.freeBuffers.add(buffer);
+    notifyAll();
+  }
+
+  public synchronized long getInUseBytes() {
+    return this.inUseBytes;
+  }
+
+  public long getMemoryBudget() {
+    return this.memoryBudget;
+  }
+
+  // Pick the smallest free buffer that's large enough.
+  private ByteBuffer takeFreeBuffer(int size) {
+    ByteBuffer best = null;
+    for (ByteBuffer buffer : this.freeBuffers) {
+      if (buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity())) {
+        best = buffer;
+      }
+    }
+    if (best != null) {
+      Iterator<ByteBuffer> it = this.freeBuffers.iterator();
+      while (it.hasNext()) {
+        if (it.next() == best) {
+          it.remove();
+          break;
+        }
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,252 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the multipart transfers (part uploads and range-gets) of all files in a task.
+ *
+ * The scheduler owns a fixed number of worker threads, which is the task-wide budget
+ * of in-flight parts.  Each file transfer opens a session to submit its parts.
+ * Workers serve the sessions in round-robin order, and each session can have at most
+ * "maxInflightPartsPerSession" parts in flight (unless the session sets its own limit),
+ * so that one large file cannot starve the others.
+ */
+public class PartTransferScheduler {
+  private static final Log log = LogFactory.getLog(PartTransferScheduler.class);
+
+  private final int maxInflightPartsPerSession;
+  private final Thread[] workers;
+  // Sessions that have pending parts, in round-robin order.
+  private final LinkedList<Session> activeSessions;
+  private int inflightParts;
+  private boolean closed;
+
+  public PartTransferScheduler(int maxInflightParts, int maxInflightPartsPerSession) {
+    this.maxInflightPartsPerSession = Math.max(1, maxInflightPartsPerSession);
+    this.workers = new Thread[Math.max(1, maxInflightParts)];
+    this.activeSessions = new LinkedList<Session>();
+    this.inflightParts = 0;
+    this.closed = false;
+    for (int i = 0; i < this.workers.length; i++) {
+      this.workers[i] = new Thread(new Worker());
+      this.workers[i].setName("hdfsbackup-part-transfer-" + (i + 1));
+      this.workers[i].setDaemon(true);
+      this.workers[i].start();
+    }
+    log.info(String.format("started part transfer scheduler: %d workers, %d parts per file",
+                              this.workers.length, this.maxInflightPartsPerSession));
+  }
+
+  /**
+   * Open a session to submit the parts of one file.
+   * @param name  a name for logging, usually the file name.
+   * @return
+   */
+  public Session newSession(String name) {
+    return new Session(name, this.maxInflightPartsPerSession);
+  }
+
+  /**
+   * Open a session with its own in-flight limit, for a file that should get more
+   * (or fewer) workers than the others.
+   * @param name  a name for logging, usually the file name.
+   * @param maxInflightParts  max in-flight parts of this session.
+   * @return
+   */
+  public Session newSession(String name, int maxInflightParts) {
+    return new Session(name, Math.max(1, maxInflightParts));
+  }
+
+  /**
+   * Stop all workers.  Parts not yet started are cancelled.
+   */
+  public void close() {
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      for (Session session : this.activeSessions) {
+        for (FutureTask<?> task : session.pending) {
+          task.cancel(false);
+        }
+        session.pending.clear();
+      }
+      this.activeSessions.clear();
+      notifyAll();
+    }
+    for (Thread worker : this.workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        log.error("Interrupted while waiting for part transfer workers", e);
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    log.info("part transfer scheduler stopped");
+  }
+
+  public synchronized int getInflightParts() {
+    return this.inflightParts;
+  }
+
+  /**
+   * Pick the session to run a part from: the first session in round-robin order that's
+   * under its in-flight limit.  The caller must hold the scheduler lock.
+   */
+  private Session pickNextSession() {
+    Iterator<Session> it = this.activeSessions.iterator();
+    while (it.hasNext()) {
+      Session session = it.next();
+      if (session.inflight < session.maxInflight) {
+        it.remove();
+        return session;
+      }
+    }
+    return null;
+  }
+
+  private class Worker implements Runnable {
+    public void run() {
+      PartTransferScheduler scheduler = PartTransferScheduler.this;
+      while (true) {
+        Session session = null;
+        FutureTask<?> task = null;
+        synchronized (scheduler) {
+          while (!scheduler.closed && (session = scheduler.pickNextSession()) == null) {
+            try {
+              scheduler.wait();
+            } catch (InterruptedException e) {
+              // A worker only stops when the scheduler is closed.
+            }
+          }
+          if (session == null) {
+            return;
+          }
+          task = session.pending.removeFirst();
+          session.inflight++;
+          // The session goes to the back of the line.
+          if (!session.pending.isEmpty()) {
+            scheduler.activeSessions.addLast(session);
+          }
+          scheduler.inflightParts++;
+          scheduler.notifyAll();
+        }
+        try {
+          task.run();
+        } finally {
+          // A part cancelled with interrupt must not pass the interrupt to the next part.
+          Thread.interrupted();
+          synchronized (scheduler) {
+            scheduler.inflightParts--;
+            session.inflight--;
+            scheduler.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The parts of one file transfer.
+   */
+  public class Session {
+    private final String name;
+    private final int maxInflight;
+    private final LinkedList<FutureTask<?>> pending;
+    private int inflight;
+
+    Session(String name, int maxInflight) {
+      this.name = name;
+      this.maxInflight = maxInflight;
+      this.pending = new LinkedList<FutureTask<?>>();
+      this.inflight = 0;
+    }
+
+    /**
+     * Submit a part.  Block if this session already has enough parts waiting to run,
+     * such that a fast producer cannot queue up unbounded parts.
+     *
+     * @param part
+     * @return
+     * @throws InterruptedException  if interrupted while waiting to submit the part.
+     */
+    public <T> Future<T> submit(Callable<T> part) throws InterruptedException {
+      return submit(part, null);
+    }
+
+    /**
+     * Submit a part, and put its future to "completionQueue" once the part is done,
+     * either completed, failed or cancelled.  This allows the caller to wait for any
+     * part to finish, instead of polling the futures.
+     *
+     * @param part
+     * @param completionQueue
+     * @return
+     * @throws InterruptedException  if interrupted while waiting to submit the part.
+     */
+    public <T> Future<T> submit(Callable<T> part, BlockingQueue<Future<T>> completionQueue)
+        throws InterruptedException {
+      FutureTask<T> task = completionQueue == null ? new FutureTask<T>(part)
+                               : new QueueingFuture<T>(part, completionQueue);
+      PartTransferScheduler scheduler = PartTransferScheduler.this;
+      synchronized (scheduler) {
+        while (!scheduler.closed &&
+                   this.pending.size() >= this.maxInflight) {
+          scheduler.wait();
+        }
+        if (scheduler.closed) {
+          throw new RuntimeException("part transfer scheduler is closed: " + this.name);
+        }
+        this.pending.addLast(task);
+        if (!scheduler.activeSessions.contains(this)) {
+          scheduler.activeSessions.addLast(this);
+        }
+        scheduler.notifyAll();
+      }
+      return task;
+    }
+
+    /**
+     * Cancel the parts of this session that have not started yet.
+     */
+    public void close() {
+      PartTransferScheduler scheduler = PartTransferScheduler.this;
+      synchronized (scheduler) {
+        for (FutureTask<?> task : this.pending) {
+          task.cancel(false);
+        }
+        this.pending.clear();
+        scheduler.activeSessions.remove(this);
+        scheduler.notifyAll();
+      }
+    }
+
+    public String toString() {
+      return this.name;
+    }
+  }
+
+  private static class QueueingFuture<T> extends FutureTask<T> {
+    private final BlockingQueue<Future<T>> completionQueue;
+
+    QueueingFuture(Callable<T> part, BlockingQueue<Future<T>> completionQueue) {
+      super(part);
+      this.completionQueue = completionQueue;
+    }
+
+    @Override
+    protected void done() {
+      this.completionQueue.add(this);
+    }
+  }
+}
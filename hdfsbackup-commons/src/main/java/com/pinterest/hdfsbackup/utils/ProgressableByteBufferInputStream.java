@@ -0,0 +1,75 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A resettable input stream based on a memory buffer.
+ * It reads the bytes between the buffer's position and limit, without altering the buffer.
+ */
+public class ProgressableByteBufferInputStream extends InputStream {
+  protected Progressable progressable;
+  private ByteBuffer buffer;
+  private int mark;
+
+  public ProgressableByteBufferInputStream(ByteBuffer buffer, Progressable progressable) {
+    this.buffer = buffer.duplicate();
+    this.progressable = progressable;
+    this.mark = this.buffer.position();
+  }
+
+  public int available() throws IOException {
+    return this.buffer.remaining();
+  }
+
+  public void close() throws IOException {
+  }
+
+  public synchronized void mark(int readlimit) {
+    if (this.progressable != null) this.progressable.progress();
+    this.mark = this.buffer.position();
+  }
+
+  public boolean markSupported() {
+    return true;
+  }
+
+  public int read() throws IOException {
+    if (this.progressable != null) this.progressable.progress();
+
+    if (!this.buffer.hasRemaining()) {
+      return -1;
+    }
+    return this.buffer.get() & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (this.progressable != null) this.progressable.progress();
+
+    if (len == 0) {
+      return 0;
+    }
+    if (!this.buffer.hasRemaining()) {
+      return -1;
+    }
+    int read = Math.min(len, this.buffer.remaining());
+    this.buffer.get(b, off, read);
+    return read;
+  }
+
+  public synchronized void reset() throws IOException {
+    if (this.progressable != null) this.progressable.progress();
+    this.buffer.position(this.mark);
+  }
+
+  public long skip(long n) throws IOException {
+    if (this.progressable != null) this.progressable.progress();
+
+    int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+    this.buffer.position(this.buffer.position() + skipped);
+    return skipped;
+  }
+}
@@ -0,0 +1,160 @@
+package com.pinterest.hdfsbackup.utils;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3Client;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived S3 clients shared by all transfers in a JVM.
+ *
+ * A client keeps a pool of connections, so sharing one client across the files of a task
+ * keeps the connections warm, instead of opening new TLS connections for every file.
+ * Clients are keyed by their credentials and connection settings.  Instance-profile
+ * credentials are fetched once and refreshed in the background, so no transfer waits on
+ * the instance metadata endpoint.
+ *
+ * The shared clients live until the JVM exits, and must not be shut down by their users.
+ */
+public class S3ClientPool {
+  private static final Log log = LogFactory.getLog(S3ClientPool.class);
+  static final long DEFAULT_CREDENTIALS_REFRESH_MINUTES = 10;
+
+  // Shared clients, by credentials and connection settings.
+  private static final Map<String, AmazonS3Client> clients =
+      new HashMap<String, AmazonS3Client>();
+  // Shared instance-profile credentials, refreshed by "refresher".
+  private static InstanceProfileCredentialsProvider instanceProfileProvider = null;
+  private static ScheduledExecutorService refresher = null;
+
+  /**
+   * Get the shared client for the credentials and connection settings in "conf".
+   *
+   * @param conf
+   * @return
+   */
+  public static synchronized AmazonS3Client getClient(Configuration conf) {
+    ClientConfiguration clientConf = createClientConfiguration(conf);
+    String accessKeyId = conf.get("fs.s3n.awsAccessKeyId");
+    String secretAccessKey = conf.get("fs.s3n.awsSecretAccessKey");
+    boolean useKeys = accessKeyId != null && secretAccessKey != null;
+    String clientKey = String.format("%s:%d:%d:%d:%d:%d:%d",
+                                     useKeys ? accessKeyId : "role",
+                                     clientConf.getMaxConnections(),
+                                     clientConf.getSocketTimeout(),
+                                     clientConf.getConnectionTimeout(),
+                                     clientConf.getMaxErrorRetry(),
+                                     clientConf.getSocketBufferSizeHints()[0],
+                                     clientConf.getSocketBufferSizeHints()[1]);
+    AmazonS3Client client = clients.get(clientKey);
+    if (client != null) {
+      return client;
+    }
+    AWSCredentialsProvider provider;
+    if (useKeys) {
+      provider = new StaticCredentialsProvider(new BasicAWSCredentials(accessKeyId,
+                                                                       secretAccessKey));
+    } else {
+      provider = getInstanceProfileProvider(conf);
+    }
+    client = new AmazonS3Client(provider, clientConf);
+    clients.put(clientKey, client);
+    log.info(String.format("Created shared AmazonS3Client %s with keyId %s",
+                              clientKey, provider.getCredentials().getAWSAccessKeyId()));
+    return client;
+  }
+
+  /**
+   * Create the connection settings of S3 clients from "conf".
+   *
+   * @param conf
+   * @return
+   */
+  public static ClientConfiguration createClientConfiguration(Configuration conf) {
+    ClientConfiguration clientConf = new ClientConfiguration();
+    // Connections of a client.  All workers of a task share one client, so this should
+    // cover "s3copy.taskInflightParts" plus one connection per worker thread.
+    clientConf.setMaxConnections(conf.getInt("s3copy.s3MaxConnections", 100));
+    // Socket read and connect timeouts, in milli-sec.
+    clientConf.setSocketTimeout(conf.getInt("s3copy.s3SocketTimeoutMs", 50 * 1000));
+    clientConf.setConnectionTimeout(conf.getInt("s3copy.s3ConnectionTimeoutMs", 50 * 1000));
+    // Retries of a request by the client, before the error is returned to the caller.
+    clientConf.setMaxErrorRetry(conf.getInt("s3copy.s3MaxErrorRetry", 3));
+    // Socket send / receive buffer sizes.  0 leaves them to the OS, which may be too
+    // small for high-latency, high-bandwidth paths.
+    int sendBuffer = conf.getInt("s3copy.s3SocketSendBufferKB", 0) * 1024;
+    int receiveBuffer = conf.getInt("s3copy.s3SocketReceiveBufferKB", 0) * 1024;
+    clientConf.setSocketBufferSizeHints(sendBuffer, receiveBuffer);
+    return clientConf;
+  }
+
+  /**
+   * Get the shared instance-profile credentials, and start refreshing them in the
+   * background if not yet.
+   */
+  private static AWSCredentialsProvider getInstanceProfileProvider(Configuration conf) {
+    if (instanceProfileProvider != null) {
+      return instanceProfileProvider;
+    }
+    final InstanceProfileCredentialsProvider provider = new InstanceProfileCredentialsProvider();
+    provider.getCredentials();
+    instanceProfileProvider = provider;
+    long refreshMinutes = getCredentialsRefreshMinutes(conf);
+    if (refreshMinutes <= 0) {
+      // The provider still refreshes the credentials on use when they near expiry.
+      log.info("background refresh of instance profile credentials is disabled");
+      return provider;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "hdfsbackup-credentials-refresher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    refresher.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          provider.refresh();
+          log.debug("refreshed instance profile credentials");
+        } catch (Exception e) {
+          log.info("failed to refresh instance profile credentials: " + e.toString());
+        }
+      }
+    }, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+    return provider;
+  }
+
+  /**
+   * Get the interval of the background refresh of instance-profile credentials.
+   * Instance-profile credentials rotate hourly, so they are refreshed well before they
+   * expire.
+   *
+   * @param conf
+   * @return  the interval in minutes, or 0 if there is no background refresh.
+   */
+  static long getCredentialsRefreshMinutes(Configuration conf) {
+    long refreshMinutes = conf.getLong("s3copy.credentialsRefreshMinutes",
+                                       DEFAULT_CREDENTIALS_REFRESH_MINUTES);
+    if (refreshMinutes <= 0) {
+      log.info(String.format("s3copy.credentialsRefreshMinutes = %d, no background refresh",
+                                refreshMinutes));
+      return 0;
+    }
+    return refreshMinutes;
+  }
+}
@@ -3,20 +3,32 @@ package com.pinterest.hdfsbackup.utils;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 
 /**
  * Created by shawn on 8/22/14.
@@ -24,16 +36,35 @@ import java.util.Map.Entry;
 public class S3Utils {
   static final Log log = LogFactory.getLog(S3Utils.class);
 
+  // A single-pass upload doesn't know the whole-file checksum until all parts
+  // are sent, so the checksum is saved to a small sidecar object "<key><suffix>".
+  public static final String CHECKSUM_SIDECAR_SUFFIX = ".hdfsbackup-checksum";
+  // User metadata key telling readers that the object's checksums live in a sidecar.
+  public static final String CHECKSUM_SIDECAR_METADATA = "checksumsidecar";
+  // User metadata key of the part size a multipart-uploaded object was uploaded with.
+  public static final String PART_SIZE_METADATA = "partsize";
+  // Sidecar entry of the hex md5 of each part, ',' separated in part order.
+  public static final String PART_MD5S_SIDECAR_ENTRY = "partmd5s";
+
+  /**
+   * Create a dedicated S3 client, to be shut down by the caller.  Transfers should use
+   * the shared clients of S3ClientPool instead.
+   *
+   * @param conf
+   * @return
+   */
   public static AmazonS3Client createAmazonS3Client(Configuration conf) {
     String accessKeyId = conf.get("fs.s3n.awsAccessKeyId");
     String SecretAccessKey = conf.get("fs.s3n.awsSecretAccessKey");
+    ClientConfiguration clientConf = S3ClientPool.createClientConfiguration(conf);
     AmazonS3Client s3Client;
     if ((accessKeyId != null) && (SecretAccessKey != null)) {
-      s3Client = new AmazonS3Client(new BasicAWSCredentials(accessKeyId, SecretAccessKey));
+      s3Client = new AmazonS3Client(new BasicAWSCredentials(accessKeyId, SecretAccessKey),
+                                    clientConf);
       log.info("Created AmazonS3Client with conf KeyId " + accessKeyId);
     } else {
       InstanceProfileCredentialsProvider provider = new InstanceProfileCredentialsProvider();
-      s3Client = new AmazonS3Client(provider);
+      s3Client = new AmazonS3Client(provider, clientConf);
       log.info("Created AmazonS3Client with role keyId " + provider.getCredentials().getAWSAccessKeyId());
     }
     return s3Client;
@@ -101,9 +132,17 @@ public class S3Utils {
   }
 
   public static boolean createS3Object(String objname, Configuration conf) {
-    AmazonS3Client s3Client = S3Utils.createAmazonS3Client(conf);
-    ObjectMetadata metadata = new ObjectMetadata();
-    metadata.setContentLength(0);
+    return createS3Object(S3ClientPool.getClient(conf), objname);
+  }
+
+  /**
+   * Create an empty S3 object, or a dir marker if the name ends with "/".
+   *
+   * @param s3Client
+   * @param objname
+   * @return
+   */
+  public static boolean createS3Object(AmazonS3Client s3Client, String objname) {
     Path path = new Path(objname);
     URI dirUri = path.toUri();
     String bucket = dirUri.getHost();
@@ -116,14 +155,51 @@ public class S3Utils {
     if (objname.endsWith("/") && !key.endsWith("/")) {
       key = key + "/";
     }
+    ObjectMetadata metadata = new ObjectMetadata();
+    return putS3Object(s3Client, bucket, key, new byte[0], 0, metadata);
+  }
+
+  /**
+   * Upload an S3 object from memory with a single PutObject request.
+   * The content md5 is set in the request, so S3 rejects the object if it's corrupted
+   * on the wire.  The md5 is also saved as user metadata "contentmd5", as the
+   * multipart-uploaded objects do.
+   *
+   * @param s3Client
+   * @param bucket
+   * @param key
+   * @param content   object content is the first "length" bytes of this buffer.
+   * @param length
+   * @param metadata  more metadata of the object.  Content length and md5 are set here.
+   * @return
+   */
+  public static boolean putS3Object(AmazonS3Client s3Client,
+                                    String bucket,
+                                    String key,
+                                    byte[] content,
+                                    int length,
+                                    ObjectMetadata metadata) {
+    String contentMD5;
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(content, 0, length);
+      contentMD5 = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+    } catch (NoSuchAlgorithmException e) {
+      log.info("Failed to get md5 digest instance");
+      return false;
+    }
+    metadata.setContentLength(length);
+    metadata.setContentMD5(contentMD5);
+    metadata.addUserMetadata("contentmd5", contentMD5);
+    metadata.addUserMetadata("contentlength", String.valueOf(length));
     int retry = 0;
     int maxRetry = 5;
     while (retry < maxRetry) {
       retry++;
       try {
-        InputStream emptyContent = new ByteArrayInputStream(new byte[0]);
-        PutObjectResult result = s3Client.putObject(bucket, key, emptyContent, metadata);
-        log.info(String.format("Have created S3 object %s/%s", bucket, key));
+        InputStream ins = new ByteArrayInputStream(content, 0, length);
+        s3Client.putObject(new PutObjectRequest(bucket, key, ins, metadata));
+        log.info(String.format("Have created S3 object %s/%s, %d bytes", bucket, key, length));
         return true;
       } catch (AmazonServiceException ase) {
         log.info("Server error: " + S3Utils.AWSServiceExceptionToString(ase));
@@ -197,5 +273,170 @@ public class S3Utils {
     }
     return false;
   }
-}
 
+  /**
+   * @return  the etag without the quotes S3 puts around it, or null.
+   */
+  public static String stripETagQuotes(String etag) {
+    return etag == null ? null : etag.replace("\"", "");
+  }
+
+  public static String getChecksumSidecarKey(String key) {
+    return key + CHECKSUM_SIDECAR_SUFFIX;
+  }
+
+  public static boolean isChecksumSidecar(String key) {
+    return key != null && key.endsWith(CHECKSUM_SIDECAR_SUFFIX);
+  }
+
+  public static boolean hasChecksumSidecar(ObjectMetadata metadata) {
+    return metadata != null &&
+               "true".equals(metadata.getUserMetadata().get(CHECKSUM_SIDECAR_METADATA));
+  }
+
+  /**
+   * Save the checksum entries of object "bucket/key" to its sidecar object.
+   * Each entry is saved as a "name=value" line.
+   *
+   * @param s3client
+   * @param bucket
+   * @param key   key of the data object, not the sidecar.
+   * @param entries
+   * @return
+   */
+  public static boolean putChecksumSidecar(AmazonS3Client s3client,
+                                           String bucket,
+                                           String key,
+                                           Map<String, String> entries) {
+    StringBuilder sb = new StringBuilder();
+    for (Entry<String, String> ent : entries.entrySet()) {
+      sb.append(ent.getKey()).append('=').append(ent.getValue()).append('\n');
+    }
+    byte[] content = sb.toString().getBytes(Charset.forName("UTF-8"));
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(content.length);
+    String sidecarKey = getChecksumSidecarKey(key);
+    int retry = 0;
+    int maxRetry = 5;
+    while (retry < maxRetry) {
+      retry++;
+      try {
+        s3client.putObject(bucket, sidecarKey, new ByteArrayInputStream(content), metadata);
+        log.info(String.format("Have saved checksum sidecar %s/%s", bucket, sidecarKey));
+        return true;
+      } catch (AmazonServiceException ase) {
+        log.info("Server error: " + S3Utils.AWSServiceExceptionToString(ase));
+      } catch (AmazonClientException ace) {
+        log.info("Client error: " + ace.toString());
+      }
+    }
+    log.info(String.format("Failed to save checksum sidecar %s/%s", bucket, sidecarKey));
+    return false;
+  }
+
+  /**
+   * Read the checksum entries of object "bucket/key" from its sidecar object.
+   *
+   * @param s3client
+   * @param bucket
+   * @param key   key of the data object, not the sidecar.
+   * @return  the checksum entries, or null if the sidecar cannot be read.
+   */
+  public static Map<String, String> getChecksumSidecar(AmazonS3Client s3client,
+                                                       String bucket,
+                                                       String key) {
+    String sidecarKey = getChecksumSidecarKey(key);
+    int retry = 0;
+    int maxRetry = 5;
+    while (retry < maxRetry) {
+      retry++;
+      BufferedReader reader = null;
+      try {
+        S3Object object = s3client.getObject(bucket, sidecarKey);
+        reader = new BufferedReader(new InputStreamReader(object.getObjectContent(),
+                                                          Charset.forName("UTF-8")));
+        Map<String, String> entries = new TreeMap<String, String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int idx = line.indexOf('=');
+          if (idx <= 0) {
+            continue;
+          }
+          entries.put(line.substring(0, idx), line.substring(idx + 1));
+        }
+        return entries;
+      } catch (AmazonServiceException ase) {
+        log.info("Server error: " + S3Utils.AWSServiceExceptionToString(ase));
+        if (ase.getStatusCode() == 404) {
+          break;
+        }
+      } catch (AmazonClientException ace) {
+        log.info("Client error: " + ace.toString());
+      } catch (IOException e) {
+        log.info("Error reading checksum sidecar: " + e.toString());
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException e) {}
+        }
+      }
+    }
+    log.info(String.format("Failed to read checksum sidecar %s/%s", bucket, sidecarKey));
+    return null;
+  }
+
+  /**
+   * Join the part etags of a multipart upload into the "partmd5s" sidecar entry.
+   * The etag of a part is the hex md5 of the part.
+   *
+   * @param partETags  etags in part order.
+   * @return
+   */
+  public static String joinPartMD5s(List<PartETag> partETags) {
+    StringBuilder sb = new StringBuilder();
+    for (PartETag etag : partETags) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(etag.getETag().replace("\"", "").toLowerCase());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Split the "partmd5s" sidecar entry.
+   *
+   * @param partMD5s
+   * @return  hex md5 of each part, or null if the entry is empty.
+   */
+  public static List<String> splitPartMD5s(String partMD5s) {
+    if (partMD5s == null || partMD5s.isEmpty()) {
+      return null;
+    }
+    List<String> md5s = new ArrayList<String>();
+    for (String md5 : partMD5s.split(",")) {
+      md5s.add(md5.trim().toLowerCase());
+    }
+    return md5s;
+  }
+
+  /**
+   * Compute the etag S3 gives to a multipart-uploaded object: the hex md5 of
+   * the concatenated binary md5s of all parts, followed by "-<number of parts>".
+   *
+   * @param partDigests  binary md5 of each part, in part order.
+   * @return
+   */
+  public static String getMultipartETag(List<byte[]> partDigests) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      for (byte[] digest : partDigests) {
+        md.update(digest);
+      }
+      return new String(Hex.encodeHex(md.digest())) + "-" + partDigests.size();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.pinterest.hdfsbackup.utils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies an input stream to an output stream in two overlapped stages.
+ *
+ * The calling thread reads chunks from the input and applies the bandwidth limit.  A
+ * writer thread writes each chunk to the output, updates the digest and reports
+ * progress.  The two stages are connected by a bounded queue of QUEUE_DEPTH chunks, so
+ * a slow network read, md5 and HDFS write run at the same time instead of one after
+ * another.
+ *
+ * Chunks are heap buffers from a pool shared by all copies in the JVM, so a copy doesn't
+ * allocate a new buffer.  Heap buffers are used since streams read into and write from
+ * byte arrays, so a direct buffer would only add a copy.
+ */
+public class StreamCopier {
+  private static final Log log = LogFactory.getLog(StreamCopier.class);
+  static final int CHUNK_SIZE = 1024 * 1024;
+  // Max chunks read ahead of the writer, per copy.
+  static final int QUEUE_DEPTH = 4;
+  // Max bytes of the chunks of all copies.
+  static final long POOL_BUDGET = 64L * 1024 * 1024;
+
+  static final PartBufferPool chunkPool = new PartBufferPool(POOL_BUDGET, false);
+  private static final ExecutorService writers =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "hdfsbackup-stream-writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Copy from input stream to output stream.  Update the digest if provided.
+   *
+   * @param ins
+   * @param outs  if null, the input is only read and digested.
+   * @param md
+   * @param progress
+   * @param bwMonitor
+   * @return  number of bytes actually copied.  -1 if error occurs during copy.
+   */
+  public static long copy(InputStream ins,
+                          OutputStream outs,
+                          MessageDigest md,
+                          Progressable progress,
+                          NetworkBandwidthMonitor bwMonitor) {
+    BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(QUEUE_DEPTH);
+    ChunkWriter writer = new ChunkWriter(chunks, outs, md, progress);
+    Future<Long> writerFuture = writers.submit(writer);
+    long bytesRead = 0;
+    boolean readFailed = false;
+    boolean interrupted = false;
+    try {
+      while (!writer.failed) {
+        ByteBuffer chunk = chunkPool.acquire(CHUNK_SIZE);
+        int len;
+        try {
+          len = ins.read(chunk.array(), chunk.arrayOffset(), CHUNK_SIZE);
+        } catch (IOException e) {
+          chunkPool.release(chunk);
+          throw e;
+        }
+        if (len <= 0) {
+          chunkPool.release(chunk);
+          break;
+        }
+        chunk.limit(len);
+        try {
+          chunks.put(chunk);
+        } catch (InterruptedException e) {
+          chunkPool.release(chunk);
+          throw e;
+        }
+        bytesRead += len;
+        if (bwMonitor != null) {
+          bwMonitor.throttle(len);
+        }
+      }
+    } catch (IOException e) {
+      log.info("failed to read input stream: " + e.toString());
+      readFailed = true;
+    } catch (InterruptedException e) {
+      log.info("stream copy interrupted");
+      readFailed = true;
+      interrupted = true;
+    } finally {
+      // The writer drains the queue even after a failure, so the end marker always fits.
+      while (true) {
+        try {
+          chunks.put(ChunkWriter.END);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    long bytesWritten = -1;
+    while (true) {
+      try {
+        bytesWritten = writerFuture.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException e) {
+        log.info("stream writer failed: " + e.getCause());
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (readFailed || writer.failed || bytesWritten != bytesRead) {
+      return -1;
+    }
+    log.debug("copied  " + bytesWritten + " from input to output");
+    return bytesWritten;
+  }
+
+  /**
+   * The writer stage.  Writes and digests the chunks in order and returns them to the
+   * pool.  After a write error, the remaining chunks are only returned.
+   */
+  private static class ChunkWriter implements Callable<Long> {
+    // Marks the end of the input.
+    static final ByteBuffer END = ByteBuffer.allocate(0);
+    private final BlockingQueue<ByteBuffer> chunks;
+    private final OutputStream outs;
+    private final MessageDigest md;
+    private final Progressable progress;
+    volatile boolean failed = false;
+
+    ChunkWriter(BlockingQueue<ByteBuffer> chunks,
+                OutputStream outs,
+                MessageDigest md,
+                Progressable progress) {
+      this.chunks = chunks;
+      this.outs = outs;
+      this.md = md;
+      this.progress = progress;
+    }
+
+    @Override
+    public Long call() throws InterruptedException {
+      long bytesWritten = 0;
+      while (true) {
+        ByteBuffer chunk = this.chunks.take();
+        if (chunk == END) {
+          return bytesWritten;
+        }
+        try {
+          if (!this.failed) {
+            if (this.outs != null) {
+              this.outs.write(chunk.array(), chunk.arrayOffset(), chunk.limit());
+            }
+            if (this.progress != null) this.progress.progress();
+            if (this.md != null) {
+              this.md.update(chunk.array(), chunk.arrayOffset(), chunk.limit());
+            }
+            bytesWritten += chunk.limit();
+          }
+        } catch (IOException e) {
+          log.info("failed to write output stream: " + e.toString());
+          this.failed = true;
+        } finally {
+          chunkPool.release(chunk);
+        }
+      }
+    }
+  }
+}
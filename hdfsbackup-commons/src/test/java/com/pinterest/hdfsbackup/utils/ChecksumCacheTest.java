@@ -0,0 +1,111 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class ChecksumCacheTest extends TestCase {
+  private File tempDir;
+  private String cacheDir;
+  private Configuration conf;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.tempDir = File.createTempFile("checksum-cache", "");
+    this.tempDir.delete();
+    this.tempDir.mkdirs();
+    this.cacheDir = "file://" + this.tempDir.getAbsolutePath() + "/cache";
+    this.conf = new Configuration();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(this.tempDir);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testPutAndGet() {
+    ChecksumCache cache = new ChecksumCache(this.conf, this.cacheDir);
+    assertNull(cache.get("hdfs://nn/dir/a", "10:1"));
+    cache.put("hdfs://nn/dir/a", "10:1", "bWQ1LWE=");
+    assertEquals("bWQ1LWE=", cache.get("hdfs://nn/dir/a", "10:1"));
+    // Another version of the file.
+    assertNull(cache.get("hdfs://nn/dir/a", "10:2"));
+    assertNull(cache.get("hdfs://nn/dir/a", null));
+    // Same name in another dir.
+    assertNull(cache.get("hdfs://nn/other/a", "10:1"));
+    // Empty checksums are not cached.
+    cache.put("hdfs://nn/dir/b", "10:1", "");
+    assertNull(cache.get("hdfs://nn/dir/b", "10:1"));
+  }
+
+  public void testFlushAndReload() {
+    ChecksumCache cache = new ChecksumCache(this.conf, this.cacheDir);
+    cache.put("hdfs://nn/dir/a", "10:1", "bWQ1LWE=");
+    cache.put("hdfs://nn/dir/b", "20:1", "bWQ1LWI=");
+    cache.put("s3n://bucket/dir/c", "etag", "bWQ1LWM=");
+    assertTrue(cache.flush());
+
+    ChecksumCache reloaded = new ChecksumCache(this.conf, this.cacheDir);
+    assertEquals("bWQ1LWE=", reloaded.get("hdfs://nn/dir/a", "10:1"));
+    assertEquals("bWQ1LWI=", reloaded.get("hdfs://nn/dir/b", "20:1"));
+    assertEquals("bWQ1LWM=", reloaded.get("s3n://bucket/dir/c", "etag"));
+    assertNull(reloaded.get("hdfs://nn/dir/a", "10:2"));
+  }
+
+  public void testFlushKeepsEntriesOfOtherTasks() {
+    ChecksumCache cache1 = new ChecksumCache(this.conf, this.cacheDir);
+    ChecksumCache cache2 = new ChecksumCache(this.conf, this.cacheDir);
+    // Both load the dir before either saves it.
+    assertNull(cache1.get("hdfs://nn/dir/a", "10:1"));
+    assertNull(cache2.get("hdfs://nn/dir/b", "20:1"));
+    cache1.put("hdfs://nn/dir/a", "10:1", "bWQ1LWE=");
+    cache2.put("hdfs://nn/dir/b", "20:1", "bWQ1LWI=");
+    assertTrue(cache1.flush());
+    assertTrue(cache2.flush());
+
+    ChecksumCache reloaded = new ChecksumCache(this.conf, this.cacheDir);
+    assertEquals("bWQ1LWE=", reloaded.get("hdfs://nn/dir/a", "10:1"));
+    assertEquals("bWQ1LWI=", reloaded.get("hdfs://nn/dir/b", "20:1"));
+  }
+
+  public void testRemove() {
+    ChecksumCache cache = new ChecksumCache(this.conf, this.cacheDir);
+    cache.put("hdfs://nn/dir/a", "10:1", "bWQ1LWE=");
+    cache.put("hdfs://nn/dir/b", "20:1", "bWQ1LWI=");
+    assertTrue(cache.flush());
+
+    ChecksumCache cache2 = new ChecksumCache(this.conf, this.cacheDir);
+    cache2.remove("hdfs://nn/dir/a");
+    assertNull(cache2.get("hdfs://nn/dir/a", "10:1"));
+    assertTrue(cache2.flush());
+
+    ChecksumCache reloaded = new ChecksumCache(this.conf, this.cacheDir);
+    assertNull(reloaded.get("hdfs://nn/dir/a", "10:1"));
+    assertEquals("bWQ1LWI=", reloaded.get("hdfs://nn/dir/b", "20:1"));
+  }
+
+  public void testGetVersionOfLocalFile() throws IOException {
+    File file = new File(this.tempDir, "data");
+    FileOutputStream outs = new FileOutputStream(file);
+    outs.write(new byte[123]);
+    outs.close();
+    String version = new ChecksumCache(this.conf, this.cacheDir)
+        .getVersion("file://" + file.getAbsolutePath());
+    assertEquals("123:" + file.lastModified(), version);
+    assertNull(new ChecksumCache(this.conf, this.cacheDir)
+                   .getVersion("file://" + this.tempDir.getAbsolutePath() + "/missing"));
+  }
+}
@@ -0,0 +1,98 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class HostNetworkThrottleTest extends TestCase {
+  private static final String NET_DEV =
+      "Inter-|   Receive                                                |  Transmit\n" +
+      " face |bytes    packets errs drop fifo frame compressed multicast|bytes    " +
+      "packets errs drop fifo colls carrier compressed\n" +
+      "    lo:    5000      50    0    0    0     0          0         0     5000      " +
+      "50    0    0    0     0       0          0\n" +
+      "  eth0: 1000 10 0 0 0 0 0 0 2000 20 0 0 0 0 0 0\n" +
+      "  eth1:100 1 0 0 0 0 0 0 200 2 0 0 0 0 0 0\n" +
+      " bond0: 1100 11 0 0 0 0 0 0 2200 22 0 0 0 0 0 0\n" +
+      "docker0: 300 3 0 0 0 0 0 0 400 4 0 0 0 0 0 0\n" +
+      "vethab12: 400 4 0 0 0 0 0 0 300 3 0 0 0 0 0 0\n";
+
+  private static BufferedReader reader(String content) {
+    return new BufferedReader(new StringReader(content));
+  }
+
+  private static Set<String> set(String... names) {
+    return new TreeSet<String>(Arrays.asList(names));
+  }
+
+  public void testParseNetDev() throws IOException {
+    Map<String, long[]> counters = HostNetworkThrottle.parseNetDev(reader(NET_DEV));
+    assertEquals(set("lo", "eth0", "eth1", "bond0", "docker0", "vethab12"),
+                 new HashSet<String>(counters.keySet()));
+    assertTrue(Arrays.equals(new long[] {5000, 5000}, counters.get("lo")));
+    assertTrue(Arrays.equals(new long[] {1000, 2000}, counters.get("eth0")));
+    // No space after the ':'.
+    assertTrue(Arrays.equals(new long[] {100, 200}, counters.get("eth1")));
+  }
+
+  public void testSumCounters() throws IOException {
+    Map<String, long[]> counters = HostNetworkThrottle.parseNetDev(reader(NET_DEV));
+    assertTrue(Arrays.equals(new long[] {1100, 2200},
+                             HostNetworkThrottle.sumCounters(counters, set("bond0"))));
+    assertTrue(Arrays.equals(new long[] {1100, 2200},
+                             HostNetworkThrottle.sumCounters(counters, set("eth0", "eth1"))));
+    // Unknown interfaces are skipped.
+    assertTrue(Arrays.equals(new long[] {0, 0},
+                             HostNetworkThrottle.sumCounters(counters, set("eth9"))));
+  }
+
+  public void testParseDefaultRouteInterfaces() throws IOException {
+    String route =
+        "Iface\tDestination\tGateway \tFlags\tRefCnt\tUse\tMetric\tMask\t\tMTU\tWindow\tIRTT\n" +
+        "bond0\t00000000\t010200C0\t0003\t0\t0\t0\t00000000\t0\t0\t0\n" +
+        "bond0\t000200C0\t00000000\t0001\t0\t0\t0\t00FFFFFF\t0\t0\t0\n" +
+        "docker0\t000011AC\t00000000\t0001\t0\t0\t0\t0000FFFF\t0\t0\t0\n" +
+        // A default route that is down.
+        "eth2\t00000000\t010300C0\t0002\t0\t0\t100\t00000000\t0\t0\t0\n";
+    assertEquals(set("bond0"), HostNetworkThrottle.parseDefaultRouteInterfaces(reader(route)));
+    assertEquals(set(), HostNetworkThrottle.parseDefaultRouteInterfaces(
+        reader("Iface\tDestination\tGateway \tFlags\tRefCnt\tUse\tMetric\tMask\n")));
+  }
+
+  public void testGetPhysicalInterfaces() throws IOException {
+    File sysNetDir = File.createTempFile("sys-class-net", "");
+    sysNetDir.delete();
+    try {
+      // eth0 and eth1 are enslaved to bond0, eth2 is not.  bond0, docker0 and the veth
+      // have no device.
+      for (String name : new String[] {"eth0", "eth1", "eth2"}) {
+        assertTrue(new File(sysNetDir, name + "/device").mkdirs());
+      }
+      assertTrue(new File(sysNetDir, "eth0/master").mkdirs());
+      assertTrue(new File(sysNetDir, "eth1/master").mkdirs());
+      for (String name : new String[] {"lo", "bond0", "docker0", "vethab12"}) {
+        assertTrue(new File(sysNetDir, name).mkdirs());
+      }
+      assertEquals(set("eth2"), HostNetworkThrottle.getPhysicalInterfaces(
+          set("lo", "eth0", "eth1", "eth2", "bond0", "docker0", "vethab12"), sysNetDir));
+    } finally {
+      for (String name : new String[] {"eth0", "eth1", "eth2"}) {
+        new File(sysNetDir, name + "/device").delete();
+        new File(sysNetDir, name + "/master").delete();
+      }
+      for (String name : new String[] {"lo", "eth0", "eth1", "eth2", "bond0", "docker0",
+                                       "vethab12"}) {
+        new File(sysNetDir, name).delete();
+      }
+      sysNetDir.delete();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class InterimDirAllocatorTest extends TestCase {
+  private File root;
+  private File dir1;
+  private File dir2;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.root = File.createTempFile("interim-dirs", "");
+    this.root.delete();
+    this.dir1 = new File(this.root, "disk1");
+    this.dir2 = new File(this.root, "disk2");
+    assertTrue(this.dir1.mkdirs());
+    assertTrue(this.dir2.mkdirs());
+  }
+
+  @Override
+  protected void tearDown() {
+    for (File dir : new File[] {this.dir1, this.dir2}) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      dir.delete();
+    }
+    this.root.delete();
+  }
+
+  private InterimDirAllocator create(long quotaPerDir) {
+    return new InterimDirAllocator(Arrays.asList(this.dir1.getPath(), this.dir2.getPath()),
+                                   quotaPerDir);
+  }
+
+  public void testPartsSpreadOverDirs() throws Exception {
+    InterimDirAllocator allocator = create(1000);
+    InterimDirAllocator.Reservation reservation = allocator.reserve("down", 100, 4);
+    Set<File> dirs = new HashSet<File>();
+    Set<String> names = new HashSet<String>();
+    for (int part = 0; part < 4; part++) {
+      dirs.add(reservation.getFile(part).getParentFile());
+      names.add(reservation.getFile(part).getName());
+    }
+    assertEquals(new HashSet<File>(Arrays.asList(this.dir1, this.dir2)), dirs);
+    assertEquals(4, names.size());
+    reservation.release();
+  }
+
+  public void testReleasePartDeletesFile() throws Exception {
+    InterimDirAllocator allocator = create(100);
+    InterimDirAllocator.Reservation reservation = allocator.reserve("down", 100, 2);
+    File file = reservation.getFile(0);
+    assertTrue(file.createNewFile());
+    reservation.releasePart(0);
+    assertFalse(file.exists());
+    // Released once only, so the space is not returned twice.
+    reservation.releasePart(0);
+    reservation.release();
+    InterimDirAllocator.Reservation next = allocator.reserve("down", 100, 2);
+    next.release();
+  }
+
+  public void testReserveBlocksUntilReleased() throws Exception {
+    final InterimDirAllocator allocator = create(100);
+    InterimDirAllocator.Reservation first = allocator.reserve("down", 100, 2);
+    final InterimDirAllocator.Reservation[] second = new InterimDirAllocator.Reservation[1];
+    Thread reserver = new Thread(new Runnable() {
+      public void run() {
+        try {
+          second[0] = allocator.reserve("down", 100, 1);
+        } catch (InterruptedException e) {
+          fail("interrupted");
+        }
+      }
+    });
+    reserver.start();
+    reserver.join(300);
+    assertTrue(reserver.isAlive());
+    first.releasePart(1);
+    reserver.join(10000);
+    assertFalse(reserver.isAlive());
+    assertNotNull(second[0]);
+    first.release();
+    second[0].release();
+  }
+
+  public void testInterruptedReserve() throws Exception {
+    final InterimDirAllocator allocator = create(100);
+    InterimDirAllocator.Reservation first = allocator.reserve("down", 100, 2);
+    final Exception[] error = new Exception[1];
+    Thread reserver = new Thread(new Runnable() {
+      public void run() {
+        try {
+          allocator.reserve("down", 100, 1);
+        } catch (InterruptedException e) {
+          error[0] = e;
+        }
+      }
+    });
+    reserver.start();
+    reserver.join(300);
+    assertTrue(reserver.isAlive());
+    reserver.interrupt();
+    reserver.join(10000);
+    assertFalse(reserver.isAlive());
+    assertTrue(error[0] instanceof InterruptedException);
+    first.release();
+  }
+
+  public void testOversizedRequestServedAlone() throws Exception {
+    InterimDirAllocator allocator = create(100);
+    // Larger than all quotas, served since nothing else is reserved.
+    InterimDirAllocator.Reservation large = allocator.reserve("down", 100, 5);
+    assertNotNull(large.getFile(4));
+    large.release();
+  }
+}
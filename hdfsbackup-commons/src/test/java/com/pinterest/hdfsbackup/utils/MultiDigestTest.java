@@ -0,0 +1,143 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class MultiDigestTest extends TestCase {
+  private byte[] content;
+
+  @Override
+  protected void setUp() {
+    // Longer than a slice, so parts and slices end at different bytes.
+    this.content = new byte[200 * 1024 + 7];
+    new Random(1).nextBytes(this.content);
+  }
+
+  private void assertParts(List<byte[]> digests, int... ends) {
+    assertEquals(ends.length, digests.size());
+    int start = 0;
+    for (int i = 0; i < ends.length; i++) {
+      byte[] expected = DigestUtils.md5(Arrays.copyOfRange(this.content, start, ends[i]));
+      assertTrue("part " + i, Arrays.equals(expected, digests.get(i)));
+      start = ends[i];
+    }
+  }
+
+  private void assertWhole(MultiDigest md, byte[] digest) {
+    assertTrue(Arrays.equals(DigestUtils.md5(this.content), digest));
+    assertEquals(this.content.length, md.getLength());
+  }
+
+  public void testFixedSizeParts() throws NoSuchAlgorithmException {
+    int partSize = 70 * 1024;
+    MultiDigest md = new MultiDigest(partSize, true);
+    // Updates that end before, at and after the part boundaries.
+    int[] lengths = {1, 70 * 1024 - 1, 100, 70 * 1024, 3};
+    int offset = 0;
+    for (int len : lengths) {
+      md.update(this.content, offset, len);
+      offset += len;
+    }
+    md.update(this.content, offset, this.content.length - offset);
+    assertWhole(md, md.digest());
+    assertParts(md.getPartDigests(), partSize, 2 * partSize, this.content.length);
+    CRC32 crc = new CRC32();
+    crc.update(this.content);
+    assertEquals(crc.getValue(), md.getChecksum());
+  }
+
+  public void testContentOfWholeParts() throws NoSuchAlgorithmException {
+    int partSize = this.content.length / 7;
+    this.content = Arrays.copyOf(this.content, partSize * 7);
+    MultiDigest md = new MultiDigest(partSize, false);
+    md.update(this.content);
+    assertWhole(md, md.digest());
+    // No empty part at the end.
+    assertEquals(7, md.getPartDigests().size());
+    assertParts(md.getPartDigests(), partSize, 2 * partSize, 3 * partSize, 4 * partSize,
+                5 * partSize, 6 * partSize, 7 * partSize);
+    assertEquals(0, md.getChecksum());
+  }
+
+  public void testPartsEndedByCaller() throws NoSuchAlgorithmException {
+    MultiDigest md = new MultiDigest(0, false);
+    md.update(this.content, 0, 1000);
+    assertTrue(Arrays.equals(DigestUtils.md5(Arrays.copyOfRange(this.content, 0, 1000)),
+                             md.endPart()));
+    md.update(this.content, 1000, 150 * 1024);
+    md.endPart();
+    md.update(this.content, 1000 + 150 * 1024, this.content.length - 1000 - 150 * 1024);
+    assertWhole(md, md.digest());
+    assertParts(md.getPartDigests(), 1000, 1000 + 150 * 1024, this.content.length);
+  }
+
+  public void testSingleBytesAndBuffers() throws NoSuchAlgorithmException {
+    int partSize = 10000;
+    MultiDigest md = new MultiDigest(partSize, true);
+    int offset = 0;
+    // Single bytes across a part boundary and over a full pending buffer.
+    for (; offset < 15000; offset++) {
+      md.update(this.content[offset]);
+    }
+    // Then an array, a direct buffer and single bytes again.
+    md.update(this.content, offset, 5000);
+    offset += 5000;
+    ByteBuffer direct = ByteBuffer.allocateDirect(100 * 1024);
+    direct.put(this.content, offset, 100 * 1024);
+    direct.flip();
+    md.update(direct);
+    offset += 100 * 1024;
+    for (; offset < this.content.length - 5; offset++) {
+      md.update(this.content[offset]);
+    }
+    md.update(ByteBuffer.wrap(this.content, offset, 5));
+    assertWhole(md, md.digest());
+    int[] ends = new int[(this.content.length + partSize - 1) / partSize];
+    for (int i = 0; i < ends.length; i++) {
+      ends[i] = Math.min((i + 1) * partSize, this.content.length);
+    }
+    assertParts(md.getPartDigests(), ends);
+    CRC32 crc = new CRC32();
+    crc.update(this.content);
+    assertEquals(crc.getValue(), md.getChecksum());
+  }
+
+  public void testSingleBytesBeforeEndPart() throws NoSuchAlgorithmException {
+    MultiDigest md = new MultiDigest(0, false);
+    for (int i = 0; i < 10; i++) {
+      md.update(this.content[i]);
+    }
+    md.endPart();
+    md.update(this.content, 10, this.content.length - 10);
+    assertWhole(md, md.digest());
+    assertParts(md.getPartDigests(), 10, this.content.length);
+  }
+
+  public void testDigestResets() throws NoSuchAlgorithmException {
+    MultiDigest md = new MultiDigest(100 * 1024, true);
+    md.update(new byte[] {1, 2, 3});
+    md.update((byte) 4);
+    md.digest();
+    assertEquals(4, md.getLength());
+    md.update((byte) 5);
+    md.reset();
+    md.update(this.content);
+    assertWhole(md, md.digest());
+    assertParts(md.getPartDigests(), 100 * 1024, 200 * 1024, this.content.length);
+  }
+
+  public void testWithoutParts() throws NoSuchAlgorithmException {
+    MultiDigest md = new MultiDigest();
+    md.update(this.content);
+    assertWhole(md, md.digest());
+    assertTrue(md.getPartDigests().isEmpty());
+    assertNull(md.endPart());
+  }
+}
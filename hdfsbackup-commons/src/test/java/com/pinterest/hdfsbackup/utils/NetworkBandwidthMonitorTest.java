@@ -0,0 +1,75 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+public class NetworkBandwidthMonitorTest extends TestCase {
+  public void testNoLimit() {
+    NetworkBandwidthMonitor monitor = new NetworkBandwidthMonitor(1000, 1, 0);
+    assertEquals(0, monitor.incBytesCopiedWithThrottling(1000L * 1000 * 1000));
+    assertEquals(0, monitor.incBytesCopiedWithThrottling(1000L * 1000 * 1000));
+    assertEquals(2000L * 1000 * 1000, monitor.getBytesCopied());
+  }
+
+  public void testBurstNotThrottled() {
+    // 10 MB/s, so the bucket holds 1 MB.
+    NetworkBandwidthMonitor monitor = new NetworkBandwidthMonitor(1000, 1, 10);
+    assertEquals(0, monitor.incBytesCopiedWithThrottling(500 * 1000));
+    assertEquals(0, monitor.incBytesCopiedWithThrottling(400 * 1000));
+  }
+
+  public void testWaitGrowsWithBytesTaken() {
+    NetworkBandwidthMonitor monitor = new NetworkBandwidthMonitor(1000, 1, 10);
+    // 2 MB at 10 MB/s is 200 ms, less the 100 ms of burst.
+    long wait = monitor.incBytesCopiedWithThrottling(2000 * 1000);
+    assertTrue(wait > 50 && wait <= 100);
+    // The next 1 MB waits for the tokens of the first 2 MB too.
+    wait = monitor.incBytesCopiedWithThrottling(1000 * 1000);
+    assertTrue(wait > 150 && wait <= 200);
+    assertEquals(3000 * 1000, monitor.getBytesCopied());
+  }
+
+  public void testHostCapLowersLimit() {
+    NetworkBandwidthMonitor monitor = new NetworkBandwidthMonitor(1000, 1, 100);
+    monitor.setHostBwCap(10);
+    long wait = monitor.incBytesCopiedWithThrottling(2000 * 1000);
+    assertTrue(wait > 50 && wait <= 100);
+
+    // A cap over the limit doesn't raise it.
+    monitor = new NetworkBandwidthMonitor(1000, 1, 10);
+    monitor.setHostBwCap(100);
+    wait = monitor.incBytesCopiedWithThrottling(2000 * 1000);
+    assertTrue(wait > 50 && wait <= 100);
+
+    // A cap without a limit.
+    monitor = new NetworkBandwidthMonitor(1000, 1, 0);
+    monitor.setHostBwCap(10);
+    wait = monitor.incBytesCopiedWithThrottling(2000 * 1000);
+    assertTrue(wait > 50 && wait <= 100);
+    monitor.setHostBwCap(0);
+    assertEquals(0, monitor.incBytesCopiedWithThrottling(2000 * 1000));
+  }
+
+  public void testThrottlePacesWorkers() throws Exception {
+    // 20 MB/s shared by 4 workers.
+    final NetworkBandwidthMonitor monitor = new NetworkBandwidthMonitor(1000, 4, 20);
+    Thread[] workers = new Thread[4];
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 10; j++) {
+            monitor.throttle(100 * 1000);
+          }
+        }
+      });
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join(10000);
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // 4 MB take 200 ms, less the 100 ms of burst.
+    assertTrue("elapsed " + elapsed, elapsed >= 90 && elapsed < 2000);
+    assertEquals(4000 * 1000, monitor.getBytesCopied());
+  }
+}
@@ -0,0 +1,100 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+public class PackIndexTest extends TestCase {
+  private static PackIndex parse(byte[] content) throws IOException {
+    return PackIndex.parse(new BufferedReader(
+        new InputStreamReader(new ByteArrayInputStream(content), Charset.forName("UTF-8"))));
+  }
+
+  public void testFormatAndParse() throws IOException {
+    PackIndex index = new PackIndex();
+    index.containerLength = 300;
+    index.containerMD5 = "Y29udGFpbmVy";
+    index.addEntry(new PackIndex.Entry("a", 0, 100, "bWQ1LWE="));
+    index.addEntry(new PackIndex.Entry("dir/with space/b", 100, 0, "bWQ1LWI="));
+    index.addEntry(new PackIndex.Entry("dir/c", 100, 200, "bWQ1LWM="));
+
+    PackIndex parsed = parse(index.toBytes());
+    assertEquals(300, parsed.containerLength);
+    assertEquals("Y29udGFpbmVy", parsed.containerMD5);
+    List<PackIndex.Entry> entries = parsed.getEntries();
+    assertEquals(3, entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      PackIndex.Entry expected = index.getEntries().get(i);
+      assertEquals(expected.name, entries.get(i).name);
+      assertEquals(expected.offset, entries.get(i).offset);
+      assertEquals(expected.length, entries.get(i).length);
+      assertEquals(expected.md5, entries.get(i).md5);
+    }
+  }
+
+  public void testParseNotAnIndex() throws IOException {
+    assertNull(parse("some other file\n".getBytes("UTF-8")));
+    assertNull(parse(new byte[0]));
+  }
+
+  public void testParseCorruptedIndex() throws IOException {
+    try {
+      parse("#hdfsbackup-pack-v1\n10\tmd5\n0\tten\tmd5\tname\n".getBytes("UTF-8"));
+      fail("bad offset should fail");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+    try {
+      PackIndex.Entry.parse("0\t10\tmd5");
+      fail("missing name should fail");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testMember() {
+    PackIndex.Entry entry = new PackIndex.Entry("dir/b", 10, 20, "bWQ1");
+    PackIndex.Member member =
+        new PackIndex.Member("s3n://bucket/root/_hdfsbackup_packs/pack-x", entry);
+    assertEquals("s3n://bucket/root/dir/b", member.getFilename());
+
+    PackIndex.Member parsed = PackIndex.Member.parse(member.toString());
+    assertEquals(member.containerFilename, parsed.containerFilename);
+    assertEquals("dir/b", parsed.entry.name);
+    assertEquals(10, parsed.entry.offset);
+    assertEquals(20, parsed.entry.length);
+    assertEquals("bWQ1", parsed.entry.md5);
+    assertNull(PackIndex.Member.parse(""));
+  }
+
+  public void testNames() {
+    String container = "s3n://bucket/root/_hdfsbackup_packs/pack-x";
+    assertTrue(PackIndex.isPackContainer(container));
+    assertFalse(PackIndex.isPackIndex(container));
+    assertTrue(PackIndex.isPackIndex(PackIndex.getIndexName(container)));
+    assertFalse(PackIndex.isPackContainer(PackIndex.getIndexName(container)));
+    assertFalse(PackIndex.isPackContainer("s3n://bucket/root/file"));
+    assertEquals("s3n://bucket/root", PackIndex.getPackRoot(container));
+    assertNull(PackIndex.getPackRoot("s3n://bucket/root/file"));
+  }
+
+  public void testContainerName() {
+    List<String> names = Arrays.asList("a", "dir/b");
+    String name = PackIndex.getContainerName("s3n://bucket/root", names, Arrays.asList(1L, 2L));
+    assertTrue(name.startsWith("s3n://bucket/root/_hdfsbackup_packs/pack-"));
+    // The same files get the same container.
+    assertEquals(name, PackIndex.getContainerName("s3n://bucket/root", names,
+                                                  Arrays.asList(1L, 2L)));
+    assertFalse(name.equals(PackIndex.getContainerName("s3n://bucket/root", names,
+                                                       Arrays.asList(1L, 3L))));
+    assertFalse(name.equals(PackIndex.getContainerName("s3n://bucket/root",
+                                                       Arrays.asList("a", "dir/c"),
+                                                       Arrays.asList(1L, 2L))));
+  }
+}
@@ -0,0 +1,79 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class PartBufferPoolTest extends TestCase {
+
+  public void testReuseReleasedBuffer() throws InterruptedException {
+    PartBufferPool pool = new PartBufferPool(1000, false);
+    ByteBuffer buffer = pool.acquire(400);
+    assertEquals(0, buffer.position());
+    assertEquals(400, buffer.limit());
+    assertEquals(400, pool.getInUseBytes());
+    pool.release(buffer);
+    assertEquals(0, pool.getInUseBytes());
+    // The smallest free buffer that fits is reused, with its limit set to the new size.
+    ByteBuffer reused = pool.acquire(300);
+    assertSame(buffer, reused);
+    assertEquals(300, reused.limit());
+    assertEquals(400, pool.getInUseBytes());
+  }
+
+  public void testOffHeap() throws InterruptedException {
+    PartBufferPool pool = new PartBufferPool(1000, true);
+    assertTrue(pool.acquire(100).isDirect());
+    assertFalse(new PartBufferPool(1000, false).acquire(100).isDirect());
+  }
+
+  public void testTryAcquireWithinBudget() throws InterruptedException {
+    PartBufferPool pool = new PartBufferPool(1000, false);
+    ByteBuffer first = pool.acquire(600);
+    assertNull(pool.tryAcquire(600));
+    assertNotNull(pool.tryAcquire(400));
+    pool.release(first);
+    // The free buffer is reused.
+    assertSame(first, pool.tryAcquire(500));
+  }
+
+  public void testDropSmallFreeBuffers() throws InterruptedException {
+    PartBufferPool pool = new PartBufferPool(1000, false);
+    ByteBuffer first = pool.acquire(300);
+    ByteBuffer second = pool.acquire(300);
+    pool.release(first);
+    pool.release(second);
+    // Free buffers too small for the chunk are dropped to make room for it.
+    ByteBuffer large = pool.tryAcquire(900);
+    assertNotNull(large);
+    assertEquals(900, large.capacity());
+    assertEquals(900, pool.getInUseBytes());
+  }
+
+  public void testChunkLargerThanBudget() throws InterruptedException {
+    PartBufferPool pool = new PartBufferPool(1000, false);
+    // Served only when nothing else is allocated.
+    ByteBuffer huge = pool.acquire(2000);
+    assertEquals(2000, huge.capacity());
+    assertNull(pool.tryAcquire(10));
+  }
+
+  public void testAcquireBlocksUntilRelease() throws InterruptedException {
+    final PartBufferPool pool = new PartBufferPool(1000, false);
+    final ByteBuffer first = pool.acquire(1000);
+    final ByteBuffer[] second = new ByteBuffer[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          second[0] = pool.acquire(1000);
+        } catch (InterruptedException e) {}
+      }
+    });
+    waiter.start();
+    waiter.join(200);
+    assertTrue(waiter.isAlive());
+    pool.release(first);
+    waiter.join(5000);
+    assertSame(first, second[0]);
+  }
+}
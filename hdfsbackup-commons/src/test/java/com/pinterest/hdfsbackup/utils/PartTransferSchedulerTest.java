@@ -0,0 +1,207 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PartTransferSchedulerTest extends TestCase {
+  private PartTransferScheduler scheduler;
+
+  @Override
+  protected void tearDown() {
+    if (this.scheduler != null) {
+      this.scheduler.close();
+    }
+  }
+
+  // A part that returns its number once the gate is open.
+  private static Callable<Integer> part(final int number, final CountDownLatch gate) {
+    return new Callable<Integer>() {
+      public Integer call() throws Exception {
+        if (gate != null) {
+          gate.await();
+        }
+        return number;
+      }
+    };
+  }
+
+  // A part that waits for the gate, and keeps the interrupt if interrupted, like I/O code
+  // that restores the interrupt for its caller.
+  private static Callable<Integer> interruptiblePart(final CountDownLatch gate) {
+    return new Callable<Integer>() {
+      public Integer call() {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return 0;
+      }
+    };
+  }
+
+  private void waitForInflightParts(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (this.scheduler.getInflightParts() != count) {
+      assertTrue("parts not started", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testRunParts() throws Exception {
+    this.scheduler = new PartTransferScheduler(3, 2);
+    PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    BlockingQueue<Future<Integer>> doneParts = new LinkedBlockingQueue<Future<Integer>>();
+    List<Future<Integer>> parts = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      parts.add(session.submit(part(i, null), doneParts));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, parts.get(i).get().intValue());
+    }
+    // Every part is put to the completion queue once it's done.
+    for (int i = 0; i < 10; i++) {
+      assertNotNull(doneParts.poll(10, TimeUnit.SECONDS));
+    }
+    assertNull(doneParts.poll());
+    session.close();
+  }
+
+  public void testSessionInflightLimit() throws Exception {
+    this.scheduler = new PartTransferScheduler(2, 1);
+    CountDownLatch gate = new CountDownLatch(1);
+    PartTransferScheduler.Session large = this.scheduler.newSession("large");
+    PartTransferScheduler.Session small = this.scheduler.newSession("small");
+    Future<Integer> first = large.submit(part(1, gate));
+    Future<Integer> second = large.submit(part(2, gate));
+    // The large file has one part in flight, so the other worker runs the small file.
+    Future<Integer> other = small.submit(part(3, null));
+    assertEquals(3, other.get(10, TimeUnit.SECONDS).intValue());
+    assertEquals(1, this.scheduler.getInflightParts());
+    assertFalse(second.isDone());
+    gate.countDown();
+    assertEquals(1, first.get().intValue());
+    assertEquals(2, second.get().intValue());
+  }
+
+  public void testSubmitBlocksWhenSessionIsFull() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 1);
+    CountDownLatch gate = new CountDownLatch(1);
+    final PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    session.submit(part(1, gate));
+    waitForInflightParts(1);
+    // One part may wait to run.
+    session.submit(part(2, gate));
+    final Future<?>[] third = new Future<?>[1];
+    Thread submitter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          third[0] = session.submit(part(3, null));
+        } catch (InterruptedException e) {
+          fail("interrupted");
+        }
+      }
+    });
+    submitter.start();
+    submitter.join(300);
+    assertTrue(submitter.isAlive());
+    gate.countDown();
+    submitter.join(10000);
+    assertFalse(submitter.isAlive());
+    assertEquals(3, third[0].get());
+  }
+
+  public void testInterruptedSubmit() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 1);
+    CountDownLatch gate = new CountDownLatch(1);
+    final PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    session.submit(part(1, gate));
+    waitForInflightParts(1);
+    session.submit(part(2, gate));
+    final Exception[] error = new Exception[1];
+    Thread submitter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          session.submit(part(3, null));
+        } catch (InterruptedException e) {
+          error[0] = e;
+        }
+      }
+    });
+    submitter.start();
+    submitter.join(300);
+    assertTrue(submitter.isAlive());
+    submitter.interrupt();
+    submitter.join(10000);
+    assertFalse(submitter.isAlive());
+    // The interrupt is not wrapped or swallowed.
+    assertTrue(error[0] instanceof InterruptedException);
+    gate.countDown();
+  }
+
+  public void testCloseSessionCancelsPendingParts() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 2);
+    CountDownLatch gate = new CountDownLatch(1);
+    PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    Future<Integer> running = session.submit(part(1, gate));
+    waitForInflightParts(1);
+    Future<Integer> pending = session.submit(part(2, null));
+    session.close();
+    assertTrue(pending.isCancelled());
+    gate.countDown();
+    assertEquals(1, running.get().intValue());
+  }
+
+  public void testSubmitAfterClose() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 1);
+    PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    this.scheduler.close();
+    try {
+      session.submit(part(1, null));
+      fail("submit should fail");
+    } catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  public void testWorkerSurvivesCancelledPart() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 1);
+    PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    Future<Integer> busy = session.submit(interruptiblePart(new CountDownLatch(1)));
+    waitForInflightParts(1);
+    busy.cancel(true);
+    waitForInflightParts(0);
+    // The worker is idle when the interrupt is gone, and it still runs the next part.
+    Thread.sleep(100);
+    Future<Boolean> next = session.submit(new Callable<Boolean>() {
+      public Boolean call() {
+        return Thread.currentThread().isInterrupted();
+      }
+    });
+    assertFalse(next.get(10, TimeUnit.SECONDS));
+  }
+
+  public void testCancelledPartInterruptNotPassedOn() throws Exception {
+    this.scheduler = new PartTransferScheduler(1, 1);
+    PartTransferScheduler.Session session = this.scheduler.newSession("file");
+    PartTransferScheduler.Session other = this.scheduler.newSession("other");
+    Future<Integer> busy = session.submit(interruptiblePart(new CountDownLatch(1)));
+    waitForInflightParts(1);
+    // Pending while the busy part is cancelled, so the worker runs it right after.
+    Future<Boolean> next = other.submit(new Callable<Boolean>() {
+      public Boolean call() {
+        return Thread.currentThread().isInterrupted();
+      }
+    });
+    busy.cancel(true);
+    assertFalse(next.get(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,33 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+
+public class S3ClientPoolTest extends TestCase {
+  public void testCredentialsRefreshMinutes() {
+    Configuration conf = new Configuration();
+    assertEquals(S3ClientPool.DEFAULT_CREDENTIALS_REFRESH_MINUTES,
+                 S3ClientPool.getCredentialsRefreshMinutes(conf));
+    conf.setLong("s3copy.credentialsRefreshMinutes", 30);
+    assertEquals(30, S3ClientPool.getCredentialsRefreshMinutes(conf));
+    // No background refresh, instead of failing every client creation.
+    conf.setLong("s3copy.credentialsRefreshMinutes", 0);
+    assertEquals(0, S3ClientPool.getCredentialsRefreshMinutes(conf));
+    conf.setLong("s3copy.credentialsRefreshMinutes", -5);
+    assertEquals(0, S3ClientPool.getCredentialsRefreshMinutes(conf));
+  }
+
+  private static Configuration keysConf() {
+    Configuration conf = new Configuration();
+    conf.set("fs.s3n.awsAccessKeyId", "fake-key-id");
+    conf.set("fs.s3n.awsSecretAccessKey", "fake-secret-key");
+    return conf;
+  }
+
+  public void testClientShared() {
+    assertSame(S3ClientPool.getClient(keysConf()), S3ClientPool.getClient(keysConf()));
+    Configuration conf = keysConf();
+    conf.setInt("s3copy.s3MaxConnections", 7);
+    assertNotSame(S3ClientPool.getClient(keysConf()), S3ClientPool.getClient(conf));
+  }
+}
@@ -0,0 +1,138 @@
+package com.pinterest.hdfsbackup.utils;
+
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamCopierTest extends TestCase {
+  private byte[] content;
+
+  @Override
+  protected void setUp() {
+    // Many chunks, and more than the queue holds.
+    this.content = new byte[StreamCopier.CHUNK_SIZE * (StreamCopier.QUEUE_DEPTH + 3) + 123];
+    new Random(1).nextBytes(this.content);
+  }
+
+  @Override
+  protected void tearDown() {
+    // Every chunk is returned to the pool.
+    assertEquals(0, StreamCopier.chunkPool.getInUseBytes());
+  }
+
+  // Returns short reads, like a network stream, and fails at "failAt" if >= 0.
+  private static class ChoppyInputStream extends InputStream {
+    private final InputStream ins;
+    private final long failAt;
+    private long position = 0;
+
+    ChoppyInputStream(byte[] content, long failAt) {
+      this.ins = new ByteArrayInputStream(content);
+      this.failAt = failAt;
+    }
+
+    @Override
+    public int read() throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (this.failAt >= 0 && this.position >= this.failAt) {
+        throw new IOException("connection reset");
+      }
+      int n = this.ins.read(b, off, Math.min(len, 100 * 1000));
+      if (n > 0) {
+        this.position += n;
+      }
+      return n;
+    }
+  }
+
+  private static class FailingOutputStream extends OutputStream {
+    private final long failAt;
+    private long position = 0;
+
+    FailingOutputStream(long failAt) {
+      this.failAt = failAt;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (this.position + len > this.failAt) {
+        throw new IOException("disk full");
+      }
+      this.position += len;
+    }
+  }
+
+  public void testCopy() throws Exception {
+    ByteArrayOutputStream outs = new ByteArrayOutputStream();
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    assertEquals(this.content.length,
+                 StreamCopier.copy(new ChoppyInputStream(this.content, -1), outs, md, null,
+                                   null));
+    assertTrue(Arrays.equals(this.content, outs.toByteArray()));
+    assertTrue(Arrays.equals(DigestUtils.md5(this.content), md.digest()));
+  }
+
+  public void testDigestOnly() throws Exception {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    assertEquals(this.content.length,
+                 StreamCopier.copy(new ByteArrayInputStream(this.content), null, md, null,
+                                   null));
+    assertTrue(Arrays.equals(DigestUtils.md5(this.content), md.digest()));
+  }
+
+  public void testEmptyInput() {
+    ByteArrayOutputStream outs = new ByteArrayOutputStream();
+    assertEquals(0, StreamCopier.copy(new ByteArrayInputStream(new byte[0]), outs, null, null,
+                                      null));
+    assertEquals(0, outs.size());
+  }
+
+  public void testReadFailure() {
+    ByteArrayOutputStream outs = new ByteArrayOutputStream();
+    assertEquals(-1, StreamCopier.copy(new ChoppyInputStream(this.content,
+                                                             StreamCopier.CHUNK_SIZE * 2),
+                                       outs, null, null, null));
+  }
+
+  public void testWriteFailure() {
+    assertEquals(-1, StreamCopier.copy(new ByteArrayInputStream(this.content),
+                                       new FailingOutputStream(StreamCopier.CHUNK_SIZE * 3),
+                                       null, null, null));
+  }
+
+  public void testInterrupted() throws Exception {
+    final long[] ret = new long[1];
+    final boolean[] interrupted = new boolean[1];
+    Thread copier = new Thread(new Runnable() {
+      public void run() {
+        Thread.currentThread().interrupt();
+        ret[0] = StreamCopier.copy(new ByteArrayInputStream(content),
+                                   new ByteArrayOutputStream(), null, null, null);
+        interrupted[0] = Thread.currentThread().isInterrupted();
+      }
+    });
+    copier.start();
+    copier.join(10000);
+    assertFalse(copier.isAlive());
+    assertEquals(-1, ret[0]);
+    // The interrupt is kept for the caller.
+    assertTrue(interrupted[0]);
+  }
+}
@@ -1,8 +1,11 @@
 package com.pinterest.hdfsbackup.s3copy;
 
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
 import com.pinterest.hdfsbackup.s3tools.S3Downloader;
+import com.pinterest.hdfsbackup.s3tools.S3ServerSideCopier;
 import com.pinterest.hdfsbackup.s3tools.S3Uploader;
+import com.pinterest.hdfsbackup.s3tools.UploadJournal;
 import com.pinterest.hdfsbackup.utils.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,7 +42,19 @@ public class S3Copy extends Configured implements Tool {
         public void progress() {
         }
       };
-      if (srcType == FSType.S3) {
+      if (srcType == FSType.S3 && FileUtils.getFSType(options.destPath) == FSType.S3) {
+        // Copy from S3 to S3 within S3.
+        S3ServerSideCopier copier = new S3ServerSideCopier(this.conf, options, progressable);
+        String destFilename = options.destPath.endsWith("/")
+                                  ? options.destPath + srcEntry.entryName
+                                  : options.destPath + "/" + srcEntry.entryName;
+        boolean ret = srcEntry.packMember != null
+                          ? copier.copyPackMember(srcEntry.packMember, destFilename)
+                          : copier.copyObject(srcEntry.baseDirname + "/" + srcEntry.entryName,
+                                              destFilename);
+        copier.close();
+        return ret ? 0 : 1;
+      } else if (srcType == FSType.S3) {
         // Copy from S3 to HDFs.
         s3Downloader = new S3Downloader(this.conf, options, progressable);
         if (s3Downloader.DownloadFile(srcEntry, options.destPath, options.verifyChecksum)) {
@@ -53,7 +68,8 @@ public class S3Copy extends Configured implements Tool {
           log.info("Please provide dest directory.");
           return 1;
         }
-        s3Uploader = new S3Uploader(this.conf, options, progressable);
+        s3Uploader = new S3Uploader(this.conf, options, progressable, null,
+                                    options.createPartBufferPool());
         if (s3Uploader.uploadFile(srcEntry, options.destPath)) {
           return 0;
         } else {
@@ -108,6 +124,12 @@ public class S3Copy extends Configured implements Tool {
         log.info("Error: source dir non-exist: " + options.srcPath);
         return 1;
       }
+      srcType = FileUtils.getFSType(options.srcPath);
+      destType = FileUtils.getFSType(options.destPath);
+      if (srcType == FSType.S3) {
+        // Restore or copy the packed files, instead of their containers.
+        dirWalker.resolvePacks(srcFileList);
+      }
       // A special case: only download / upload one file between HDFS and S3.
       if (srcFileList.getFileEntryCount() == 1) {
         for (Map.Entry<String, DirEntry> e : srcFileList.getFileEntries()) {
@@ -115,23 +137,33 @@ public class S3Copy extends Configured implements Tool {
           return copyOneFile(e.getValue(), options);
         }
       }
-      srcType = FileUtils.getFSType(options.srcPath);
-      destType = FileUtils.getFSType(options.destPath);
     }
     // NOTE: if src is S3 and dest is null, we can still download the S3 files and verify its
     // content against the md5 checksum in s3 obj metadata.  The downloaded objs are
     // not really saved anywhere though.
-    // TODO(shawn@): support local file.
+    // A local "file://" path is resolved on the node running each task, so a local dir
+    // must be on every node (e.g. a shared mount), or the job runs with the local runner.
     boolean withinHDFS = false;
+    boolean withinS3 = false;
     if (srcType == FSType.S3 && destType == FSType.HDFS) {
       log.info("from S3 to HDFS");
       toS3 = false;
+    } else if (srcType == FSType.S3 && destType == FSType.LOCAL) {
+      log.info("from S3 to local disk");
+      toS3 = false;
     } else if (srcType == FSType.S3 && destType == FSType.UNKNOWN) {
       log.info("Scan S3 for integrity check");
       toS3 = false;
     } else if (srcType == FSType.HDFS && destType == FSType.S3) {
       log.info("from HDFS to S3");
       toS3 = true;
+    } else if (srcType == FSType.LOCAL && destType == FSType.S3) {
+      log.info("from local disk to S3");
+      toS3 = true;
+    } else if (srcType == FSType.S3 && destType == FSType.S3) {
+      // Server-side copy within S3. The data doesn't go through the cluster.
+      log.info("from S3 to S3");
+      withinS3 = true;
     } else if (srcType == FSType.HDFS && destType == FSType.HDFS) {
       // data copy within HDFS. This is a special case to handle WAL copy. Must provide a
       // manifest file containing all WAL files to copy.
@@ -149,6 +181,12 @@ public class S3Copy extends Configured implements Tool {
     Path mapInputDirPath = new Path(tempDirRoot, "map-input");
     Path redOutputDirPath = new Path(tempDirRoot, "red-output");
     log.info("Use tmp dir: " + tempDirRoot);
+    // Keep upload journals under the temp dir, unless user wants to keep them across jobs.
+    // Then task re-attempts can resume the uploads of previous attempts.
+    String tempJournalDir = null;
+    if (toS3 && options.uploadJournalDir.isEmpty()) {
+      tempJournalDir = tempDirRoot + "/upload-journal";
+    }
 
     try {
       JobConf job = new JobConf(getConf(), S3Copy.class);
@@ -159,6 +197,12 @@ public class S3Copy extends Configured implements Tool {
       // target file, leading to data corruption.
       log.info("disable speculative execution.");
       job.setMapSpeculativeExecution(false);
+      if (tempJournalDir != null) {
+        job.set("s3copy.uploadJournalDir", tempJournalDir);
+      }
+      if (options.jobBandwidthLimit > 0 && options.bandwidthBudgetDir.isEmpty()) {
+        job.set("s3copy.bwBudgetDir", tempDirRoot + "/bw-budget");
+      }
       int numberMappers = job.getNumMapTasks();
       FilePairPartition partition = new FilePairPartition(numberMappers);
       if (srcFileList != null) {
@@ -192,6 +236,8 @@ public class S3Copy extends Configured implements Tool {
         job.setJobName(String.format("HDFS copy with mainfest = %s",
                                      options.manifestFilename));
         job.setMapperClass(HDFSCopyMapper.class);
+      } else if (withinS3) {
+        job.setMapperClass(S3CopyMapper.class);
       } else if (toS3) {
         job.setMapperClass(S3PutMapper.class);
       } else {
@@ -210,6 +256,12 @@ public class S3Copy extends Configured implements Tool {
       return retcode;
     }
     finally {
+      if (tempJournalDir != null) {
+        // Uploads that never finished would not be resumed after the temp dir is gone.
+        AmazonS3Client s3client = S3ClientPool.getClient(this.conf);
+        int count = UploadJournal.abortUploads(this.conf, tempJournalDir, s3client);
+        log.info(String.format("aborted %d unfinished uploads", count));
+      }
       FileUtils.deleteHDFSDir(tempDirRoot, this.conf);
     }
   }
@@ -0,0 +1,51 @@
+package com.pinterest.hdfsbackup.s3copy;
+
+import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.s3tools.S3ServerSideCopier;
+import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+public class S3CopyFileRunnable implements Runnable {
+  private static final Log log = LogFactory.getLog(S3CopyFileRunnable.class);
+  S3CopyMapper s3CopyMapper;
+  FilePair filePair;
+  S3CopyOptions options;
+
+
+  public S3CopyFileRunnable(FilePair filePair, S3CopyMapper mapper, S3CopyOptions options) {
+    this.s3CopyMapper = mapper;
+    this.filePair = filePair;
+    this.options = options;
+  }
+
+  @Override
+  public void run() {
+    log.info("Runnable start processing file pair: " + this.filePair.toString());
+    String destFilename = this.filePair.destFile.toString();
+    String srcFilename = this.filePair.srcFile.toString();
+    boolean ret;
+    if (srcFilename.endsWith("/")) {
+      // src entry is an empty dir, create a dir marker at dest.
+      if (!destFilename.endsWith("/")) {
+        destFilename = destFilename + "/";
+      }
+      ret = S3Utils.createS3Object(destFilename, this.s3CopyMapper.getConf());
+    } else {
+      S3ServerSideCopier copier = new S3ServerSideCopier(this.s3CopyMapper.getConf(),
+                                                         this.options,
+                                                         this.s3CopyMapper.reporter,
+                                                         this.s3CopyMapper.partTransferScheduler);
+      PackIndex.Member member = PackIndex.Member.parse(this.filePair.srcPackMember.toString());
+      ret = member != null ? copier.copyPackMember(member, destFilename)
+                           : copier.copyObject(srcFilename, destFilename);
+      copier.close();
+    }
+    log.info("finish file pair: " + this.filePair.toString() + ", res = " + ret);
+    if (ret) {
+      this.s3CopyMapper.removeUnfinishedFile(this.filePair);
+    }
+  }
+}
@@ -1,9 +1,11 @@
 package com.pinterest.hdfsbackup.s3copy;
 
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
 import com.pinterest.hdfsbackup.s3tools.S3Downloader;
 import com.pinterest.hdfsbackup.utils.FilePair;
 import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.PackIndex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -33,7 +35,11 @@ public class S3GetFileRunnable implements Runnable {
     log.info("Runnable start processing file pair: " + this.filePair.toString());
     S3Downloader s3Downloader = new S3Downloader(this.s3GetMapper.getConf(),
                                                  this.options,
-                                                 this.s3GetMapper.reporter);
+                                                 this.s3GetMapper.reporter,
+                                                 this.s3GetMapper.partTransferScheduler,
+                                                 this.s3GetMapper.interimDirAllocator,
+                                                 this.s3GetMapper.partBufferPool,
+                                                 this.s3GetMapper.bwMonitor);
     String destFilename = this.filePair.destFile.toString();
     String srcFilename = this.filePair.srcFile.toString();
     boolean ret = false;
@@ -44,11 +50,28 @@ public class S3GetFileRunnable implements Runnable {
       } else {
         ret = FileUtils.createHDFSDir(destFilename, this.s3GetMapper.getConf());
       }
+    } else if (PackIndex.isPackIndex(srcFilename)) {
+      // The index is read when its container is restored.
+      ret = true;
+    } else if (PackIndex.isPackContainer(srcFilename) &&
+                   (destFilename.equals("") || PackIndex.getPackRoot(destFilename) != null)) {
+      // Restore the packed files, instead of the container itself.
+      ret = s3Downloader.DownloadPack(srcFilename,
+                                      destFilename.equals("") ? null
+                                          : PackIndex.getPackRoot(destFilename),
+                                      options.verifyChecksum);
     } else {
-      ret = s3Downloader.DownloadFile(this.filePair.srcFile.toString(),
+      ObjectMetadata metadata = null;
+      if (this.s3GetMapper.metadataPrefetcher != null &&
+              this.s3GetMapper.needsMetadataRequest(this.filePair)) {
+        metadata = this.s3GetMapper.metadataPrefetcher.take(srcFilename);
+      }
+      ret = s3Downloader.DownloadFile(this.filePair,
                                          destFilename.equals("") ? null : destFilename,
-                                         options.verifyChecksum);
+                                         options.verifyChecksum,
+                                         metadata);
     }
+    s3Downloader.close();
     log.info("finish file pair: " + this.filePair.toString() + ", res = " + ret);
     if (ret) {
       this.s3GetMapper.removeUnfinishedFile(this.filePair);
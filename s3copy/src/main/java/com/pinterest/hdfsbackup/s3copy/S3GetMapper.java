@@ -1,8 +1,18 @@
 package com.pinterest.hdfsbackup.s3copy;
 
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.s3tools.S3Downloader;
+import com.pinterest.hdfsbackup.utils.BandwidthBudget;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
 import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.HostNetworkThrottle;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
 import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.ObjectMetadataPrefetcher;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3ClientPool;
 import com.pinterest.hdfsbackup.utils.SimpleExecutor;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,7 +25,11 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,18 +54,50 @@ public class S3GetMapper implements Mapper<LongWritable, FilePair, Text, FilePai
   public NetworkBandwidthMonitor bwMonitor;
   public ScheduledExecutorService bwMonitorScheduler;
   public ScheduledFuture<?> bwMonitorHandle;
+  // This task's share of the job bandwidth limit. Null if not enabled.
+  public BandwidthBudget bwBudget;
+  // Backs the task off when the host network is busy. Null if not enabled.
+  public HostNetworkThrottle hostNetworkThrottle;
+
+  // Memory buffers for multipart chunks, shared by all workers. Null if not enabled.
+  public PartBufferPool partBufferPool;
+  // Runs the multipart transfers of all workers, within a task-wide in-flight parts budget.
+  public PartTransferScheduler partTransferScheduler;
+  // Places the interim files of all workers over the interim dirs, within per-dir quotas.
+  public InterimDirAllocator interimDirAllocator;
+  // Gets the metadata of queued objects ahead of their downloads. Null if not enabled.
+  public ObjectMetadataPrefetcher metadataPrefetcher;
+  // Known md5s of source files, shared by all workers. Null if not enabled.
+  public ChecksumCache checksumCache;
+  // Packed source files to restore at close(), by their containers.
+  protected Map<String, List<FilePair>> packedFiles = new HashMap<String, List<FilePair>>();
 
   @Override
   public void close() throws IOException {
     log.info(String.format("have posted %d files %d bytes, wait for completion...",
                               this.fileCount, this.bytesToCopy));
+    for (Map.Entry<String, List<FilePair>> e : this.packedFiles.entrySet()) {
+      this.executor.execute(new S3GetPackRunnable(e.getKey(), e.getValue(), this,
+                                                  this.options));
+    }
+    this.packedFiles.clear();
     this.executor.close();
     log.info("has processed " + this.fileCount + " file pairs");
+    this.partTransferScheduler.close();
+    if (this.metadataPrefetcher != null) {
+      this.metadataPrefetcher.close();
+    }
+    if (this.checksumCache != null) {
+      this.checksumCache.flush();
+    }
 
     // Stop the bandwidth monitor.
     log.info("stop bandwidth monitor...");
     this.bwMonitorHandle.cancel(true);
     this.bwMonitorScheduler.shutdown();
+    if (this.bwBudget != null) {
+      this.bwBudget.release();
+    }
 
     // Check if there are unfinished files (failures).
     synchronized (this) {
@@ -82,6 +128,17 @@ public class S3GetMapper implements Mapper<LongWritable, FilePair, Text, FilePai
     this.options.populateFromConfiguration(conf);
     this.options.showCopyOptions();
     unfinishedFiles = new HashSet<FilePair>();
+    this.partBufferPool = this.options.createPartBufferPool();
+    this.partTransferScheduler = this.options.createPartTransferScheduler();
+    this.interimDirAllocator = this.options.createInterimDirAllocator();
+    this.checksumCache = this.options.createChecksumCache(conf);
+    if (this.options.headPrefetchAhead > 0) {
+      this.metadataPrefetcher =
+          new ObjectMetadataPrefetcher(S3ClientPool.getClient(conf),
+                                       Math.min(this.options.headPrefetchAhead,
+                                                this.options.workerThreads),
+                                       this.options.headPrefetchAhead);
+    }
 
     this.bwMonitor = new NetworkBandwidthMonitor(this.options.networkBandwidthMonitorInterval,
                                                  this.options.workerThreads,
@@ -92,6 +149,21 @@ public class S3GetMapper implements Mapper<LongWritable, FilePair, Text, FilePai
                                                     this.options.networkBandwidthMonitorInitDelay,
                                                     this.options.networkBandwidthMonitorInterval,
                                                     TimeUnit.MILLISECONDS);
+    this.bwBudget = this.options.createBandwidthBudget(conf, this.bwMonitor);
+    if (this.bwBudget != null) {
+      this.bwBudget.run();
+      this.bwMonitorScheduler.scheduleAtFixedRate(this.bwBudget,
+                                                  this.options.bandwidthBudgetInterval,
+                                                  this.options.bandwidthBudgetInterval,
+                                                  TimeUnit.MILLISECONDS);
+    }
+    this.hostNetworkThrottle = this.options.createHostNetworkThrottle(this.bwMonitor);
+    if (this.hostNetworkThrottle != null) {
+      this.bwMonitorScheduler.scheduleAtFixedRate(this.hostNetworkThrottle,
+                                                  0,
+                                                  this.options.networkBandwidthMonitorInterval,
+                                                  TimeUnit.MILLISECONDS);
+    }
     this.executor = new SimpleExecutor(this.options.queueSize,
                                        this.options.workerThreads,
                                        this.bwMonitor);
@@ -107,10 +179,36 @@ public class S3GetMapper implements Mapper<LongWritable, FilePair, Text, FilePai
     this.bytesToCopy += filePair.fileSize.get();
     FilePair pair = filePair.clone();
     addUnfinishedFile(pair);
-    this.executor.execute(new S3GetFileRunnable(pair, this, this.options));
+    PackIndex.Member member = PackIndex.Member.parse(pair.srcPackMember.toString());
+    if (member != null) {
+      // Packed files are restored by container, so that a container is read once.
+      List<FilePair> pairs = this.packedFiles.get(member.containerFilename);
+      if (pairs == null) {
+        pairs = new ArrayList<FilePair>();
+        this.packedFiles.put(member.containerFilename, pairs);
+      }
+      pairs.add(pair);
+    } else {
+      if (this.metadataPrefetcher != null && needsMetadataRequest(pair)) {
+        this.metadataPrefetcher.add(pair.srcFile.toString());
+      }
+      this.executor.execute(new S3GetFileRunnable(pair, this, this.options));
+    }
     this.fileCount++;
   }
 
+  /**
+   * @return  true if the file pair is downloaded as a plain object, and its metadata
+   *          cannot be taken from the listing.
+   */
+  public boolean needsMetadataRequest(FilePair pair) {
+    String srcFilename = pair.srcFile.toString();
+    return !srcFilename.endsWith("/") &&
+               !PackIndex.isPackIndex(srcFilename) &&
+               !PackIndex.isPackContainer(srcFilename) &&
+               !S3Downloader.canSkipMetadataRequest(pair, this.options);
+  }
+
   public boolean addUnfinishedFile(FilePair pair) {
     boolean ret;
     synchronized (this) {
@@ -0,0 +1,62 @@
+package com.pinterest.hdfsbackup.s3copy;
+
+import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.s3tools.S3Downloader;
+import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Restore a batch of files packed in the same container.
+ */
+public class S3GetPackRunnable implements Runnable {
+  private static final Log log = LogFactory.getLog(S3GetPackRunnable.class);
+  S3GetMapper s3GetMapper;
+  String containerFilename;
+  List<FilePair> members;
+  S3CopyOptions options;
+
+  public S3GetPackRunnable(String containerFilename,
+                           List<FilePair> members,
+                           S3GetMapper mapper,
+                           S3CopyOptions options) {
+    this.s3GetMapper = mapper;
+    this.containerFilename = containerFilename;
+    this.members = members;
+    this.options = options;
+  }
+
+  @Override
+  public void run() {
+    log.info(String.format("Runnable start restoring %d files from pack %s",
+                              this.members.size(), this.containerFilename));
+    S3Downloader s3Downloader = new S3Downloader(this.s3GetMapper.getConf(),
+                                                 this.options,
+                                                 this.s3GetMapper.reporter,
+                                                 this.s3GetMapper.partTransferScheduler,
+                                                 this.s3GetMapper.interimDirAllocator,
+                                                 this.s3GetMapper.partBufferPool,
+                                                 this.s3GetMapper.bwMonitor);
+    Map<String, String> destFilenames = new HashMap<String, String>();
+    for (FilePair pair : this.members) {
+      PackIndex.Member member = PackIndex.Member.parse(pair.srcPackMember.toString());
+      String destFilename = pair.destFile.toString();
+      destFilenames.put(member.entry.name, destFilename.equals("") ? null : destFilename);
+    }
+    boolean ret = s3Downloader.DownloadPackMembers(this.containerFilename, destFilenames,
+                                                   this.options.verifyChecksum);
+    s3Downloader.close();
+    log.info(String.format("finish pack %s, %d files, res = %s",
+                              this.containerFilename, this.members.size(), ret));
+    if (ret) {
+      for (FilePair pair : this.members) {
+        this.s3GetMapper.removeUnfinishedFile(pair);
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.pinterest.hdfsbackup.s3copy;
+
+import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
+import com.pinterest.hdfsbackup.s3tools.S3Uploader;
+import com.pinterest.hdfsbackup.utils.FilePair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.List;
+
+/**
+ * Upload a batch of small files as one pack container.
+ */
+public class S3PackFilesRunnable implements Runnable {
+  private static final Log log = LogFactory.getLog(S3PackFilesRunnable.class);
+  S3PutMapper s3PutMapper;
+  List<FilePair> members;
+  String containerFilename;
+  S3CopyOptions options;
+
+  public S3PackFilesRunnable(List<FilePair> members,
+                             String containerFilename,
+                             S3PutMapper mapper,
+                             S3CopyOptions options) {
+    this.s3PutMapper = mapper;
+    this.members = members;
+    this.containerFilename = containerFilename;
+    this.options = options;
+  }
+
+  @Override
+  public void run() {
+    log.info(String.format("Runnable start packing %d files to %s",
+                              this.members.size(), this.containerFilename));
+    S3Uploader s3Uploader = new S3Uploader(this.s3PutMapper.getConf(),
+                                           this.options,
+                                           this.s3PutMapper.reporter,
+                                           this.s3PutMapper.bwMonitor,
+                                           this.s3PutMapper.partBufferPool,
+                                           this.s3PutMapper.partTransferScheduler,
+                                           this.s3PutMapper.interimDirAllocator);
+    boolean ret = s3Uploader.uploadPack(this.members, this.containerFilename);
+    s3Uploader.close();
+    log.info(String.format("finish pack %s, %d files, res = %s",
+                              this.containerFilename, this.members.size(), ret));
+    if (ret) {
+      for (FilePair pair : this.members) {
+        this.s3PutMapper.removeUnfinishedFile(pair);
+      }
+    }
+  }
+}
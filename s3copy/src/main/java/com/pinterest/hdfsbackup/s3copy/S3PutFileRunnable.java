@@ -3,7 +3,6 @@ package com.pinterest.hdfsbackup.s3copy;
 import com.pinterest.hdfsbackup.s3tools.S3CopyOptions;
 import com.pinterest.hdfsbackup.s3tools.S3Uploader;
 import com.pinterest.hdfsbackup.utils.FilePair;
-import com.pinterest.hdfsbackup.utils.S3Utils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -30,7 +29,11 @@ public class S3PutFileRunnable implements Runnable {
     S3Uploader s3Uploader = new S3Uploader(this.s3PutMapper.getConf(),
                                            this.options,
                                            this.s3PutMapper.reporter,
-                                           this.s3PutMapper.bwMonitor);
+                                           this.s3PutMapper.bwMonitor,
+                                           this.s3PutMapper.partBufferPool,
+                                           this.s3PutMapper.partTransferScheduler,
+                                           this.s3PutMapper.interimDirAllocator,
+                                           this.s3PutMapper.checksumCache);
     String destFilename = this.filePair.destFile.toString();
     String srcFilename = this.filePair.srcFile.toString();
     boolean ret = false;
@@ -40,12 +43,11 @@ public class S3PutFileRunnable implements Runnable {
         ret = true;
       } else {
         // Create a S3 empty object with "/" at the end of name to emulate an empty dir.
-        // For now, reuse the hadoop FS API to create an S3 object.
         if (!destFilename.endsWith("/")) {
           destFilename = destFilename + "/";
         }
         log.info("will create S3 object: " + destFilename);
-        if (S3Utils.createS3Object(destFilename, this.s3PutMapper.conf)) {
+        if (s3Uploader.putEmptyObject(destFilename)) {
           ret = true;
         } else {
           log.info("failed to create dest dir, filepair = " + this.filePair.toString());
@@ -57,7 +59,7 @@ public class S3PutFileRunnable implements Runnable {
         ret = true;
       }
       else {
-        if (S3Utils.createS3Object(destFilename, this.s3PutMapper.conf)) {
+        if (s3Uploader.putEmptyObject(destFilename)) {
           ret = true;
         } else {
           log.info("failed to create dest object, filepair = " + this.filePair.toString());
@@ -67,6 +69,7 @@ public class S3PutFileRunnable implements Runnable {
     } else {
       ret = s3Uploader.uploadFile(this.filePair.srcFile.toString(), destFilename);
     }
+    s3Uploader.close();
     log.info("finish file pair: " + this.filePair.toString() + ", res = " + ret);
     if (ret) {
       this.s3PutMapper.removeUnfinishedFile(this.filePair);
@@ -1,6 +1,7 @@
 package com.pinterest.hdfsbackup.s3copy;
 
 import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.PackIndex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.LongWritable;
@@ -9,6 +10,8 @@ import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by shawn on 9/2/14.
@@ -16,6 +19,10 @@ import java.io.IOException;
 public class S3PutMapper extends S3GetMapper {
   private static final Log log = LogFactory.getLog(S3GetMapper.class);
 
+  // Small files waiting to be packed into the next container.
+  protected List<FilePair> packMembers = new ArrayList<FilePair>();
+  protected long packBytes = 0;
+
   @Override
   public void map(LongWritable key, FilePair filePair,
                   OutputCollector<Text, FilePair> collector,
@@ -26,8 +33,82 @@ public class S3PutMapper extends S3GetMapper {
     this.bytesToCopy += filePair.fileSize.get();
     FilePair pair = filePair.clone();
     addUnfinishedFile(pair);
-    this.executor.execute(new S3PutFileRunnable(pair, this, this.options));
+    if (shouldPack(pair)) {
+      addToPack(pair);
+    } else {
+      this.executor.execute(new S3PutFileRunnable(pair, this, this.options));
+    }
     this.fileCount++;
   }
 
-}
\ No newline at end of file
+  @Override
+  public void close() throws IOException {
+    flushPack();
+    super.close();
+  }
+
+  private boolean shouldPack(FilePair pair) {
+    String destFilename = pair.destFile.toString();
+    return this.options.packSmallFiles &&
+               pair.fileSize.get() < this.options.packFileThreshold &&
+               !pair.srcFile.toString().endsWith("/") &&
+               destFilename.startsWith("s3") &&
+               !PackIndex.isPackContainer(destFilename);
+  }
+
+  private void addToPack(FilePair pair) {
+    String bucket = getBucketRoot(pair.destFile.toString());
+    if (!this.packMembers.isEmpty() &&
+            !bucket.equals(getBucketRoot(this.packMembers.get(0).destFile.toString()))) {
+      flushPack();
+    }
+    this.packMembers.add(pair);
+    this.packBytes += pair.fileSize.get();
+    if (this.packBytes >= this.options.packSize) {
+      flushPack();
+    }
+  }
+
+  /**
+   * Upload the small files collected so far as one container.  The container is put
+   * at the deepest dir that holds all its members, and is named after its members, so
+   * a re-run doesn't pack the same files into another container.
+   */
+  private void flushPack() {
+    if (this.packMembers.isEmpty()) {
+      return;
+    }
+    String packRoot = null;
+    for (FilePair pair : this.packMembers) {
+      String destFilename = pair.destFile.toString();
+      String dir = destFilename.substring(0, destFilename.lastIndexOf('/'));
+      packRoot = packRoot == null ? dir : getCommonDir(packRoot, dir);
+    }
+    List<String> names = new ArrayList<String>();
+    List<Long> sizes = new ArrayList<Long>();
+    for (FilePair pair : this.packMembers) {
+      names.add(pair.destFile.toString().substring(packRoot.length() + 1));
+      sizes.add(pair.fileSize.get());
+    }
+    String containerFilename = PackIndex.getContainerName(packRoot, names, sizes);
+    log.info(String.format("will pack %d files of %d bytes into %s",
+                              this.packMembers.size(), this.packBytes, containerFilename));
+    this.executor.execute(new S3PackFilesRunnable(this.packMembers, containerFilename,
+                                                     this, this.options));
+    this.packMembers = new ArrayList<FilePair>();
+    this.packBytes = 0;
+  }
+
+  // "s3://bucket/a/b" => "s3://bucket"
+  private static String getBucketRoot(String filename) {
+    int idx = filename.indexOf('/', filename.indexOf("://") + 3);
+    return idx < 0 ? filename : filename.substring(0, idx);
+  }
+
+  private static String getCommonDir(String dir1, String dir2) {
+    while (!(dir2 + "/").startsWith(dir1 + "/")) {
+      dir1 = dir1.substring(0, dir1.lastIndexOf('/'));
+    }
+    return dir1;
+  }
+}
@@ -3,9 +3,14 @@ package com.pinterest.hdfsbackup.s3tools;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
 import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
+import com.pinterest.hdfsbackup.utils.MultiDigest;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.ProgressableByteBufferInputStream;
 import com.pinterest.hdfsbackup.utils.ProgressableResettableBufferedFileInputStream;
-import com.pinterest.hdfsbackup.utils.Utils;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -15,17 +20,20 @@ import org.apache.hadoop.io.retry.RetryProxy;
 import org.apache.hadoop.util.Progressable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -34,25 +42,64 @@ import java.util.concurrent.TimeUnit;
  * The source is a HDFS file, and the dest is a S3 object.
  * The source is first read as smaller chunks and saved to local temp dir. Each chunk
  * is uploaded as a separate part via multi-part upload.
+ * If an interim dir allocator is given, the temp files are spread over its dirs instead
+ * of being kept in "tempDirname".
+ * If a part buffer pool is given, the chunks are kept in pooled memory buffers instead
+ * of local temp files, and uploaded straight from memory.
+ * The parts are uploaded by a part transfer scheduler, which may be shared with other
+ * transfers in the same task.
+ * If an upload journal is given, the upload is resumable: the uploadId and uploaded parts
+ * are recorded in the journal, and a failed upload is left open instead of aborted.
+ * The next attempt with the same journal continues the upload, and skips the parts that
+ * S3 already has with the same content.
+ * The md5 of each part and of the whole content are computed in one pass as the content
+ * is written, see getContentMD5().  If the part md5s are known before the upload, they
+ * can be given with setPartMD5s() instead, and the content is not hashed at all.
  *
  * Created by shawn on 9/1/14.
  */
 public class MultipartUploadOutputStream extends OutputStream {
   public static final Log log = LogFactory.getLog(MultipartUploadOutputStream.class);
+  // Report progress at this interval (in ms) while waiting for parts to complete.
+  static final long PROGRESS_INTERVAL = 1000L;
   final AmazonS3 s3;
   final Configuration conf;
-  final ThreadPoolExecutor threadPool;
+  // The scheduler created by this stream if the caller doesn't provide one.
+  final PartTransferScheduler ownScheduler;
+  final PartTransferScheduler.Session session;
   final Progressable progressable;
   final List<Future<PartETag>> futures;
+  // Futures of the parts that have finished, in the order they finish.
+  final BlockingQueue<Future<PartETag>> finishedParts;
+  int finishedPartCount = 0;
+  boolean closed = false;
+  final List<MultipartUploadCallable> parts;
   final String tempDirname;
+  final InterimDirAllocator interimDirs;
+  final PartBufferPool bufferPool;
   final String bucketName;
   final String key;
   final String uploadId;
+  final UploadJournal journal;
+  // Parts uploaded by a previous attempt, by part number.
+  final Map<Integer, PartSummary> uploadedParts;
+  // Parts of previous attempts that are reused by this upload.
+  final List<PartETag> reusedParts;
+  // Etags of all parts in part order, once the upload is completed.
+  List<PartETag> partETags = null;
   final long partSize; // multipart upload chunk size.
   int partCount = 0;
   long currentPartSize = 0L;
   File currentTemp;
-  DigestOutputStream currentOutput;
+  InterimDirAllocator.Reservation currentReservation;
+  OutputStream currentOutput;
+  ByteBuffer currentBuffer;
+  // md5 of the whole content and of each part, computed in one pass.
+  final MultiDigest contentDigest;
+  // Base64 md5 of the whole content, once the upload is completed.
+  String contentMD5 = null;
+  // md5 of each part computed before the upload, or null.
+  List<byte[]> partMD5s = null;
 
 
   public MultipartUploadOutputStream(AmazonS3 s3,
@@ -63,6 +110,37 @@ public class MultipartUploadOutputStream extends OutputStream {
                                      Configuration conf,
                                      Progressable progressable,
                                      String tempDirname) {
+    this(s3, bucketName, key, metadata, options, conf, progressable, tempDirname, null, null,
+         null);
+  }
+
+  public MultipartUploadOutputStream(AmazonS3 s3,
+                                     String bucketName,
+                                     String key,
+                                     ObjectMetadata metadata,
+                                     S3CopyOptions options,
+                                     Configuration conf,
+                                     Progressable progressable,
+                                     String tempDirname,
+                                     PartBufferPool bufferPool,
+                                     PartTransferScheduler scheduler,
+                                     UploadJournal journal) {
+    this(s3, bucketName, key, metadata, options, conf, progressable, tempDirname, bufferPool,
+         scheduler, journal, null);
+  }
+
+  public MultipartUploadOutputStream(AmazonS3 s3,
+                                     String bucketName,
+                                     String key,
+                                     ObjectMetadata metadata,
+                                     S3CopyOptions options,
+                                     Configuration conf,
+                                     Progressable progressable,
+                                     String tempDirname,
+                                     PartBufferPool bufferPool,
+                                     PartTransferScheduler scheduler,
+                                     UploadJournal journal,
+                                     InterimDirAllocator interimDirs) {
     this.conf = conf;
     RetryPolicy basePolicy =
         RetryPolicies.retryUpToMaximumCountWithFixedSleep(4, 10L, TimeUnit.SECONDS);
@@ -82,42 +160,149 @@ public class MultipartUploadOutputStream extends OutputStream {
     //metadata.addUserMetadata("contentmd5", metadata.getContentMD5());
     //metadata.addUserMetadata("contentlength", String.valueOf(metadata.getContentLength()));
 
-    InitiateMultipartUploadResult result =
-        this.s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)
-                                            .withObjectMetadata(metadata));
-    this.threadPool = Utils.createDefaultExecutorService();
+    this.journal = journal;
+    this.reusedParts = new ArrayList<PartETag>();
+    Map<Integer, PartSummary> uploadedParts = null;
+    if (journal != null && journal.getUploadId() != null) {
+      uploadedParts = listUploadedParts(this.s3, bucketName, key, journal.getUploadId());
+    }
+    if (uploadedParts != null) {
+      this.uploadId = journal.getUploadId();
+      this.uploadedParts = uploadedParts;
+      log.info(String.format("resume multipart upload %s/%s, S3 has %d parts",
+                                bucketName, key, uploadedParts.size()));
+    } else {
+      InitiateMultipartUploadResult result =
+          this.s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)
+                                              .withObjectMetadata(metadata));
+      this.uploadId = result.getUploadId();
+      this.uploadedParts = new HashMap<Integer, PartSummary>();
+      if (journal != null) {
+        journal.setUploadId(this.uploadId);
+      }
+    }
+    if (scheduler == null) {
+      this.ownScheduler = options.createPartTransferScheduler();
+      scheduler = this.ownScheduler;
+    } else {
+      this.ownScheduler = null;
+    }
+    this.session = scheduler.newSession(bucketName + "/" + key);
     this.progressable = progressable;
     this.futures = new ArrayList<Future<PartETag>>();
+    this.finishedParts = new LinkedBlockingQueue<Future<PartETag>>();
+    this.parts = new ArrayList<MultipartUploadCallable>();
     this.bucketName = bucketName;
     this.key = key;
-    this.uploadId = result.getUploadId();
-    this.partSize = options.chunkSize;
+    this.partSize = options.getPartSize(metadata.getContentLength());
     this.currentPartSize = 0;
 
     this.tempDirname = tempDirname;
-    prepareTempFileToWriteTo();
+    this.interimDirs = interimDirs;
+    this.bufferPool = bufferPool;
+    try {
+      this.contentDigest = new MultiDigest(0, false);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Error creating MessageDigest", e);
+    }
+    preparePartToWriteTo();
+  }
+
+  /**
+   * Use the part md5s computed before the upload, instead of hashing the content.  S3
+   * checks each part against its md5, so the uploaded content still matches them.
+   * Must be set before anything is written.
+   *
+   * @param partMD5s  md5 of each part in part order, at the part size of this stream.
+   */
+  public void setPartMD5s(List<byte[]> partMD5s) {
+    this.partMD5s = partMD5s;
+  }
+
+  /**
+   * @return  base64 encoded md5 of the whole content once the upload is completed,
+   *          or null if part md5s were given with setPartMD5s().
+   */
+  public String getContentMD5() {
+    return this.contentMD5;
+  }
+
+  /**
+   * List the parts S3 has for an upload.
+   * @return  the parts by part number, or null if the upload doesn't exist any more.
+   */
+  static Map<Integer, PartSummary> listUploadedParts(AmazonS3 s3,
+                                                     String bucketName,
+                                                     String key,
+                                                     String uploadId) {
+    Map<Integer, PartSummary> uploadedParts = new HashMap<Integer, PartSummary>();
+    try {
+      ListPartsRequest request = new ListPartsRequest(bucketName, key, uploadId);
+      PartListing listing;
+      do {
+        listing = s3.listParts(request);
+        for (PartSummary part : listing.getParts()) {
+          uploadedParts.put(part.getPartNumber(), part);
+        }
+        request.setPartNumberMarker(listing.getNextPartNumberMarker());
+      } while (listing.isTruncated());
+    } catch (Exception e) {
+      log.info(String.format("cannot resume upload %s of %s/%s: %s",
+                                uploadId, bucketName, key, e.toString()));
+      return null;
+    }
+    return uploadedParts;
+  }
+
+  private void preparePartToWriteTo() {
+    if (this.bufferPool != null) {
+      prepareBufferToWriteTo();
+    } else {
+      prepareTempFileToWriteTo();
+    }
+  }
+
+  /**
+   * Get a memory buffer from the pool for each chunk of the input file.
+   * This blocks if the pool's memory budget is used up by other in-flight parts.
+   */
+  private void prepareBufferToWriteTo() {
+    try {
+      this.currentPartSize = 0L;
+      this.partCount++;
+      this.currentBuffer = this.bufferPool.acquire((int) this.partSize);
+      log.debug(String.format("use memory buffer for chunk %d", this.partCount));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted when waiting for part buffer.", e);
+    }
   }
 
   /**
    * Open a temp file (at local disk) for each chunk of the input file.
    * This chunk is read from the input file, saved to this temp file.
    * Later on the temp file is used as input for a multipart upload request.
+   * With an interim dir allocator, this blocks if the interim dirs are full.
    */
   private void prepareTempFileToWriteTo() {
     try {
       this.currentPartSize = 0L;
       this.partCount++;
-      String tempFilename = "multipart-" + this.partCount;
-      this.currentTemp = new File(this.tempDirname, tempFilename);
-      this.currentOutput =
-          new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(this.currentTemp)),
-                                    MessageDigest.getInstance("MD5"));
+      if (this.interimDirs != null) {
+        this.currentReservation = this.interimDirs.reserve("multipart-up", this.partSize, 1);
+        this.currentTemp = this.currentReservation.getFile(0);
+      } else {
+        String tempFilename = "multipart-" + this.partCount;
+        this.currentTemp = new File(this.tempDirname, tempFilename);
+      }
+      this.currentOutput = new BufferedOutputStream(new FileOutputStream(this.currentTemp));
       log.debug(String.format("use temp file %s for chunk %d",
                                 this.currentTemp.getName(), this.partCount));
     } catch (IOException e) {
       throw new RuntimeException("Error creating temporary output stream.", e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("Error creating DigestOutputStream", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted when waiting for interim dir space.", e);
     }
   }
 
@@ -130,16 +315,115 @@ public class MultipartUploadOutputStream extends OutputStream {
    * @throws IOException
    */
   private void kickOffUpload(boolean isLastChunk) throws IOException {
-    this.currentOutput.close();
-    byte[] digest = this.currentOutput.getMessageDigest().digest();
-    String md5sum = new String(Base64.encodeBase64(digest), Charset.forName("UTF-8"));
-    log.info(String.format("issue multipart upload for chunk %d, size %d",
-                              this.partCount, this.currentTemp.length()));
-    Future<PartETag> tag = this.threadPool.submit(
-                                                     new MultipartUploadCallable(this.partCount, this.currentTemp, md5sum));
-    this.futures.add(tag);
+    // Stop reading the source as soon as any part fails.
+    checkFinishedParts();
+    MultipartUploadCallable part;
+    byte[] digest = getCurrentPartMD5();
+    if (this.currentBuffer != null) {
+      String md5sum = new String(Base64.encodeBase64(digest), Charset.forName("UTF-8"));
+      this.currentBuffer.flip();
+      log.info(String.format("issue multipart upload for chunk %d, size %d from memory",
+                                this.partCount, this.currentBuffer.remaining()));
+      part = new MultipartUploadCallable(this.partCount, this.currentBuffer, md5sum);
+      this.currentBuffer = null;
+    } else {
+      this.currentOutput.close();
+      String md5sum = new String(Base64.encodeBase64(digest), Charset.forName("UTF-8"));
+      log.info(String.format("issue multipart upload for chunk %d, size %d",
+                                this.partCount, this.currentTemp.length()));
+      part = new MultipartUploadCallable(this.partCount, this.currentTemp,
+                                         this.currentReservation, md5sum);
+      this.currentReservation = null;
+    }
+    PartSummary uploaded = this.uploadedParts.get(this.partCount);
+    if (uploaded != null && uploaded.getSize() == part.partLength &&
+            uploaded.getETag().replace("\"", "").equalsIgnoreCase(Hex.encodeHexString(digest))) {
+      log.info(String.format("part %d of %s/%s is already uploaded, skip it",
+                                this.partCount, this.bucketName, this.key));
+      part.discard();
+      this.reusedParts.add(new PartETag(this.partCount, uploaded.getETag()));
+    } else {
+      this.parts.add(part);
+      try {
+        this.futures.add(this.session.submit(part, this.finishedParts));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(String.format("upload of %s/%s is interrupted",
+                                                          this.bucketName, this.key));
+      }
+    }
     if (!isLastChunk) {
-      prepareTempFileToWriteTo();
+      preparePartToWriteTo();
+    }
+  }
+
+  /**
+   * @return  md5 of the part being kicked off.
+   */
+  private byte[] getCurrentPartMD5() throws IOException {
+    if (this.partMD5s == null) {
+      return this.contentDigest.endPart();
+    }
+    if (this.partCount > this.partMD5s.size()) {
+      throw new IOException(String.format("%s/%s: part %d is beyond the %d given part md5s",
+                                             this.bucketName, this.key, this.partCount,
+                                             this.partMD5s.size()));
+    }
+    return this.partMD5s.get(this.partCount - 1);
+  }
+
+  /**
+   * Check the parts that have finished so far, without blocking.
+   * @throws IOException  if any part has failed.
+   */
+  private void checkFinishedParts() throws IOException {
+    Future<PartETag> part;
+    while ((part = this.finishedParts.poll()) != null) {
+      checkFinishedPart(part);
+    }
+  }
+
+  private void checkFinishedPart(Future<PartETag> part) throws IOException {
+    this.finishedPartCount++;
+    try {
+      PartETag etag = part.get();
+      if (this.journal != null) {
+        this.journal.addPart(etag.getPartNumber(), etag.getETag());
+      }
+    } catch (ExecutionException e) {
+      throw new IOException(String.format("multipart upload failed for %s/%s",
+                                             this.bucketName, this.key), e.getCause());
+    } catch (Exception e) {
+      throw new IOException(String.format("multipart upload failed for %s/%s",
+                                             this.bucketName, this.key), e);
+    }
+  }
+
+  /**
+   * Wait for all parts to finish. Return as soon as any part fails.
+   * @throws IOException  if any part has failed.
+   * @throws InterruptedException
+   */
+  private void waitForAllParts() throws IOException, InterruptedException {
+    while (this.finishedPartCount < this.futures.size()) {
+      Future<PartETag> part = this.finishedParts.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+      if (this.progressable != null) {
+        this.progressable.progress();
+      }
+      if (part != null) {
+        checkFinishedPart(part);
+      }
+    }
+  }
+
+  private void writeToCurrentPart(byte[] b, int off, int len) throws IOException {
+    if (this.currentBuffer != null) {
+      this.currentBuffer.put(b, off, len);
+    } else {
+      this.currentOutput.write(b, off, len);
+    }
+    if (this.partMD5s == null) {
+      this.contentDigest.update(b, off, len);
     }
   }
 
@@ -157,13 +441,13 @@ public class MultipartUploadOutputStream extends OutputStream {
     int length = len;
     while (capacityLeft < length) {
       int capacityLeftInt = (int)capacityLeft;
-      this.currentOutput.write(b, offset, capacityLeftInt);
+      writeToCurrentPart(b, offset, capacityLeftInt);
       kickOffUpload(false);
       offset += capacityLeftInt;
       length -= capacityLeftInt;
       capacityLeft = capacityLeft();
     }
-    this.currentOutput.write(b, offset, length);
+    writeToCurrentPart(b, offset, length);
     this.currentPartSize += length;
   }
 
@@ -171,33 +455,38 @@ public class MultipartUploadOutputStream extends OutputStream {
     if (capacityLeft() < 1L) {
       kickOffUpload(false);
     }
-    this.currentOutput.write(b);
+    writeToCurrentPart(new byte[] {(byte) b}, 0, 1);
     this.currentPartSize += 1L;
   }
 
   public void flush() {}
 
-  public void close() {
+  /**
+   * Upload the last chunk, wait for all parts and complete the multipart upload.
+   * The upload is aborted if any part fails.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
     try {
       kickOffUpload(true);
       log.info(String.format("close() : now wait for multipart %s/%s to complete...",
                                 this.bucketName, this.key));
-      boolean allDone = false;
-      while (!allDone) {
-        allDone = true;
-        for (Future future : this.futures) {
-          allDone &= future.isDone();
-        }
-        if (this.progressable != null) {
-          this.progressable.progress();
-        }
-        Thread.sleep(500L);
-      }
+      waitForAllParts();
 
-      List etags = new ArrayList();
-      for (Future future : this.futures) {
+      List<PartETag> etags = new ArrayList<PartETag>(this.reusedParts);
+      for (Future<PartETag> future : this.futures) {
         etags.add(future.get());
       }
+      Collections.sort(etags, new Comparator<PartETag>() {
+        public int compare(PartETag etag1, PartETag etag2) {
+          return etag1.getPartNumber() - etag2.getPartNumber();
+        }
+      });
       log.debug(String.format("Will close multipart upload: %s/%s, with %d etags",
                                 this.bucketName, this.key, etags.size()));
       this.s3.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucketName,
@@ -205,22 +494,55 @@ public class MultipartUploadOutputStream extends OutputStream {
                                                                          this.uploadId,
                                                                          etags));
       log.info(String.format("have closed multipart upload %s/%s", this.bucketName, this.key));
+      this.partETags = etags;
+      if (this.partMD5s == null) {
+        this.contentMD5 = new String(Base64.encodeBase64(this.contentDigest.digest()),
+                                     Charset.forName("UTF-8"));
+      }
+      if (this.journal != null) {
+        this.journal.delete();
+      }
     } catch (Exception e) {
       log.info(String.format("Will abort multipart upload: %s/%s", this.bucketName,
                                 this.key));
-      this.s3.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucketName,
-                                                                   this.key,
-                                                                   this.uploadId));
-      throw new RuntimeException(String.format("Error closing multipart upload for %s/%s",
-                                                   this.bucketName, this.key), e);
+      cancelParts();
+      abortUpload();
+      throw new IOException(String.format("Error closing multipart upload for %s/%s",
+                                              this.bucketName, this.key), e);
     } finally {
-      FileUtils.deleteLocalDir(this.tempDirname);
+      closeSession();
+      if (this.tempDirname != null) {
+        FileUtils.deleteLocalDir(this.tempDirname);
+      }
     }
   }
 
+  /**
+   * @return  etags of all parts in part order, or null if the upload isn't completed.
+   */
+  public List<PartETag> getPartETags() {
+    return this.partETags;
+  }
+
   public void abort() {
-    for (Future future : this.futures) {
-      future.cancel(true);
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    cancelParts();
+    closeSession();
+    abortUpload();
+  }
+
+  /**
+   * Abort the multipart upload at S3.  A resumable upload is kept open instead,
+   * such that the next attempt can reuse its parts.
+   */
+  private void abortUpload() {
+    if (this.journal != null) {
+      log.info(String.format("keep multipart upload %s of %s/%s open to resume later",
+                                this.uploadId, this.bucketName, this.key));
+      return;
     }
     log.info(String.format("abort multipart upload %s/%s", this.bucketName, this.key));
     this.s3.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucketName,
@@ -228,6 +550,35 @@ public class MultipartUploadOutputStream extends OutputStream {
                                                                  this.uploadId));
   }
 
+  private void cancelParts() {
+    // Don't interrupt the workers, they're shared with the other transfers.
+    for (Future future : this.futures) {
+      future.cancel(false);
+    }
+    // Parts that never started still hold their data, and running parts stop retrying.
+    for (MultipartUploadCallable part : this.parts) {
+      part.discard();
+    }
+    if (this.currentBuffer != null) {
+      this.bufferPool.release(this.currentBuffer);
+      this.currentBuffer = null;
+    }
+    if (this.currentReservation != null) {
+      try {
+        this.currentOutput.close();
+      } catch (IOException e) {}
+      this.currentReservation.release();
+      this.currentReservation = null;
+    }
+  }
+
+  private void closeSession() {
+    this.session.close();
+    if (this.ownScheduler != null) {
+      this.ownScheduler.close();
+    }
+  }
+
   /**
    * This class represent an chunk to be uploaded using multi-part upload.
    */
@@ -236,16 +587,90 @@ public class MultipartUploadOutputStream extends OutputStream {
     private final int partNumber;
     // A local temp file that stores the chunk to be uploaded.
     private final File partFile;
-    // checksum of the partFile.
+    // The interim dir space of the temp file, if it's from an interim dir allocator.
+    private final InterimDirAllocator.Reservation partReservation;
+    // Or, a pooled memory buffer that stores the chunk.
+    private final ByteBuffer partBuffer;
+    private final long partLength;
+    // checksum of the part.
     private final String md5sum;
+    private boolean started = false;
+    private boolean discarded = false;
 
-    public MultipartUploadCallable(int partNumber, File partFile, String md5sum) {
+    public MultipartUploadCallable(int partNumber,
+                                   File partFile,
+                                   InterimDirAllocator.Reservation partReservation,
+                                   String md5sum) {
       this.partNumber = partNumber;
       this.partFile = partFile;
+      this.partReservation = partReservation;
+      this.partBuffer = null;
+      this.partLength = partFile.length();
       this.md5sum = md5sum;
     }
 
+    public MultipartUploadCallable(int partNumber, ByteBuffer partBuffer, String md5sum) {
+      this.partNumber = partNumber;
+      this.partFile = null;
+      this.partReservation = null;
+      this.partBuffer = partBuffer;
+      this.partLength = partBuffer.remaining();
+      this.md5sum = md5sum;
+    }
+
+    private InputStream openPartInputStream() throws IOException {
+      if (this.partBuffer != null) {
+        return new ProgressableByteBufferInputStream(
+                      this.partBuffer,
+                      MultipartUploadOutputStream.this.progressable);
+      }
+      return new ProgressableResettableBufferedFileInputStream(
+                    this.partFile,
+                    MultipartUploadOutputStream.this.progressable);
+    }
+
+    private void releasePartData() {
+      if (this.partBuffer != null) {
+        MultipartUploadOutputStream.this.bufferPool.release(this.partBuffer);
+      } else if (this.partReservation != null) {
+        log.debug("***** release multipart file: " + this.partFile.getPath());
+        this.partReservation.release();
+      } else {
+        log.debug("***** delete multipart file: " + this.partFile.getName());
+        this.partFile.delete();
+      }
+    }
+
+    private synchronized boolean begin() {
+      if (this.discarded) {
+        return false;
+      }
+      this.started = true;
+      return true;
+    }
+
+    private synchronized boolean isDiscarded() {
+      return this.discarded;
+    }
+
+    /**
+     * The uploader gives up this part.  Release the part data if the part has not
+     * started, or a running part makes no more attempts.
+     */
+    public synchronized void discard() {
+      if (this.discarded) {
+        return;
+      }
+      this.discarded = true;
+      if (!this.started) {
+        releasePartData();
+      }
+    }
+
     public PartETag call() throws Exception {
+      if (!begin()) {
+        throw new IOException("part " + this.partNumber + " is discarded");
+      }
       int maxRetry = 5;
       int retry = 0;
       boolean uploadSuccess = true;
@@ -253,27 +678,25 @@ public class MultipartUploadOutputStream extends OutputStream {
       UploadPartRequest request = null;
       UploadPartResult result = null;
       try {
-        while (retry < maxRetry) {
+        while (retry < maxRetry && (retry == 0 || !isDiscarded())) {
           retry++;
           try {
             uploadSuccess = false;
-            is = new ProgressableResettableBufferedFileInputStream(
-                        this.partFile,
-                        MultipartUploadOutputStream.this.progressable);
+            is = openPartInputStream();
             request = new UploadPartRequest()
                           .withBucketName(MultipartUploadOutputStream.this.bucketName)
                           .withKey(MultipartUploadOutputStream.this.key)
                           .withUploadId(MultipartUploadOutputStream.this.uploadId)
                           .withInputStream(is)
                           .withPartNumber(this.partNumber)
-                          .withPartSize(this.partFile.length())
+                          .withPartSize(this.partLength)
                           .withMD5Digest(this.md5sum);
             log.info(String.format("S3 uploadPart %s/%s, part:%d attempt:%d size:%d",
                                       MultipartUploadOutputStream.this.bucketName,
                                       MultipartUploadOutputStream.this.key,
                                       this.partNumber,
                                       retry,
-                                      this.partFile.length()));
+                                      this.partLength));
             result = MultipartUploadOutputStream.this.s3.uploadPart(request);
             uploadSuccess = true;
             break;
@@ -296,14 +719,15 @@ public class MultipartUploadOutputStream extends OutputStream {
             is.close();
           }
         } finally {
-          log.debug("***** delete multipart file: " + this.partFile.getName());
-          this.partFile.delete();
+          releasePartData();
         }
       }
       if (!uploadSuccess) {
         log.info(String.format("multipart upload failed for %s/%s",
                                   MultipartUploadOutputStream.this.bucketName,
                                   MultipartUploadOutputStream.this.key));
+        throw new IOException(String.format("failed to upload part %d after %d attempts",
+                                               this.partNumber, retry));
       }
       return result.getPartETag();
     }
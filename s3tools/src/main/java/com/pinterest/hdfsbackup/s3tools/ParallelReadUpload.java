@@ -0,0 +1,601 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.pinterest.hdfsbackup.utils.FSType;
+import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.ProgressableByteBufferInputStream;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A multipart upload of one large HDFS file, whose parts are read concurrently.
+ *
+ * Each part reads its own byte range of the source file with positional reads and is
+ * uploaded by the part transfer scheduler, such that a large file is read from several
+ * DataNodes at once instead of through one sequential stream.  The part size is aligned
+ * with the HDFS block size, so that most parts read from a single block.
+ *
+ * Part buffers are taken in part order, and the whole-file checksum is computed from
+ * each buffer in part order after its part is uploaded.  At most "parallelReadParts"
+ * buffers are held at a time.  If a part buffer pool is given the buffers come from the
+ * pool, otherwise they are allocated on the heap and reused across parts.  The upload
+ * only waits for the pool when it holds no buffer, and otherwise reads ahead only as
+ * far as the pool has room, so uploads sharing the pool never wait for each other's
+ * buffers while holding their own.
+ *
+ * A local "file://" source is not read into buffers: each part is a memory-mapped region
+ * of the file, which is digested and uploaded straight from the page cache.
+ */
+public class ParallelReadUpload {
+  private static final Log log = LogFactory.getLog(ParallelReadUpload.class);
+  // Positional reads are issued in chunks of this size, to report progress and throttle.
+  private static final int READ_CHUNK_SIZE = 1024 * 1024;
+
+  final AmazonS3 s3;
+  final Configuration conf;
+  final S3CopyOptions options;
+  final Progressable progressable;
+  final NetworkBandwidthMonitor bwMonitor;
+  final PartBufferPool bufferPool;
+  final PartTransferScheduler scheduler;
+  final UploadJournal journal;
+  final String srcFilename;
+  final String bucketName;
+  final String key;
+  final ObjectMetadata metadata;
+  final long fileSize;
+  final long partSize;
+  String uploadId;
+  // Channel of a local source file, whose parts are mapped instead of read.
+  FileChannel localChannel = null;
+  // Etags of all parts in part order, once the upload is completed.
+  List<PartETag> partETags = null;
+  // Heap buffers of finished parts to reuse, if there is no buffer pool.  Only used by
+  // the thread that runs upload().
+  private final LinkedList<ByteBuffer> spareBuffers = new LinkedList<ByteBuffer>();
+
+  public ParallelReadUpload(AmazonS3 s3,
+                            Configuration conf,
+                            S3CopyOptions options,
+                            Progressable progressable,
+                            NetworkBandwidthMonitor bwMonitor,
+                            PartBufferPool bufferPool,
+                            PartTransferScheduler scheduler,
+                            UploadJournal journal,
+                            String srcFilename,
+                            String bucketName,
+                            String key,
+                            ObjectMetadata metadata,
+                            long partSize) {
+    this.s3 = s3;
+    this.conf = conf;
+    this.options = options;
+    this.progressable = progressable;
+    this.bwMonitor = bwMonitor;
+    this.bufferPool = bufferPool;
+    this.scheduler = scheduler;
+    this.journal = journal;
+    this.srcFilename = srcFilename;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.metadata = metadata;
+    this.fileSize = metadata.getContentLength();
+    this.partSize = partSize;
+  }
+
+  /**
+   * Align a part size with the HDFS block size: a part smaller than a block is shrunk
+   * to an even fraction of the block, and a larger part is grown to a whole number
+   * of blocks.
+   *
+   * @param partSize  the part size from S3CopyOptions.getPartSize().
+   * @param blockSize HDFS block size of the source file.
+   * @return
+   */
+  public static long alignPartSize(long partSize, long blockSize) {
+    if (blockSize <= 0) {
+      return partSize;
+    }
+    long aligned;
+    if (partSize >= blockSize) {
+      aligned = (partSize + blockSize - 1) / blockSize * blockSize;
+    } else {
+      long partsPerBlock = blockSize / partSize;
+      aligned = (blockSize + partsPerBlock - 1) / partsPerBlock;
+    }
+    // Growing a part never makes more parts, so the part count limit still holds.
+    return Math.max(aligned, S3CopyOptions.MIN_PART_SIZE);
+  }
+
+  /**
+   * @return  etags of all parts in part order, or null if the upload isn't completed.
+   */
+  public List<PartETag> getPartETags() {
+    return this.partETags;
+  }
+
+  /**
+   * Upload the file.  The upload is aborted if any part fails, unless it's resumable
+   * with a journal.
+   *
+   * @return  base64 encoded md5 of the whole file.
+   * @throws IOException
+   */
+  public String upload() throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("failed to get md5 digest instance", e);
+    }
+    Map<Integer, PartSummary> uploadedParts = null;
+    if (this.journal != null && this.journal.getUploadId() != null) {
+      uploadedParts = MultipartUploadOutputStream.listUploadedParts(this.s3, this.bucketName,
+                                                                    this.key,
+                                                                    this.journal.getUploadId());
+    }
+    if (uploadedParts != null) {
+      this.uploadId = this.journal.getUploadId();
+      log.info(String.format("resume parallel-read upload %s/%s, S3 has %d parts",
+                                this.bucketName, this.key, uploadedParts.size()));
+    } else {
+      InitiateMultipartUploadResult result =
+          this.s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(this.bucketName,
+                                                                             this.key)
+                                              .withObjectMetadata(this.metadata));
+      this.uploadId = result.getUploadId();
+      uploadedParts = new HashMap<Integer, PartSummary>();
+      if (this.journal != null) {
+        this.journal.setUploadId(this.uploadId);
+      }
+    }
+
+    int partCount = (int) ((this.fileSize + this.partSize - 1) / this.partSize);
+    int window = Math.max(1, this.options.parallelReadParts);
+    PartTransferScheduler scheduler = this.scheduler;
+    if (scheduler == null) {
+      scheduler = this.options.createPartTransferScheduler();
+    }
+    PartTransferScheduler.Session session =
+        scheduler.newSession(this.bucketName + "/" + this.key, window);
+    LinkedList<PartReader> parts = new LinkedList<PartReader>();
+    List<PartETag> etags = new ArrayList<PartETag>();
+    boolean success = false;
+    RandomAccessFile localFile = null;
+    log.info(String.format("will upload %s to %s/%s with parallel reads: %d parts of %d bytes",
+                              this.srcFilename, this.bucketName, this.key, partCount,
+                              this.partSize));
+    try {
+      if (FileUtils.getFSType(this.srcFilename) == FSType.LOCAL) {
+        localFile = new RandomAccessFile(FileUtils.getLocalFilename(this.srcFilename), "r");
+        this.localChannel = localFile.getChannel();
+      }
+      int nextPart = 1;
+      for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+        while (nextPart <= partCount && parts.size() < window) {
+          // Holding no buffer, it's safe to wait for the pool.
+          ByteBuffer buffer = acquireBuffer(nextPart, parts.isEmpty());
+          if (buffer == null) {
+            break;
+          }
+          PartReader part = new PartReader(nextPart, buffer, uploadedParts.get(nextPart));
+          parts.addLast(part);
+          part.future = session.submit(part);
+          nextPart++;
+        }
+        PartReader part = parts.removeFirst();
+        try {
+          PartETag etag = waitForPart(part);
+          // The buffer is flipped to the part's content by the reader.
+          ByteBuffer content = part.buffer.duplicate();
+          if (content.hasArray()) {
+            md.update(content.array(), content.arrayOffset() + content.position(),
+                      content.remaining());
+          } else {
+            md.update(content);
+          }
+          etags.add(etag);
+          if (this.journal != null && !part.reused) {
+            this.journal.addPart(etag.getPartNumber(), etag.getETag());
+          }
+        } finally {
+          part.release();
+        }
+      }
+      log.debug(String.format("Will close multipart upload: %s/%s, with %d etags",
+                                this.bucketName, this.key, etags.size()));
+      this.s3.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucketName,
+                                                                         this.key,
+                                                                         this.uploadId,
+                                                                         etags));
+      log.info(String.format("have closed multipart upload %s/%s", this.bucketName, this.key));
+      this.partETags = etags;
+      if (this.journal != null) {
+        this.journal.delete();
+      }
+      success = true;
+      return new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+    } catch (IOException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(String.format("parallel-read upload of %s/%s is " +
+                                                        "interrupted", this.bucketName,
+                                                        this.key));
+    } catch (Exception e) {
+      throw new IOException(String.format("parallel-read upload failed for %s/%s",
+                                             this.bucketName, this.key), e);
+    } finally {
+      for (PartReader part : parts) {
+        part.release();
+      }
+      session.close();
+      if (localFile != null) {
+        // Mapped parts stay valid after the channel is closed.
+        this.localChannel = null;
+        try {
+          localFile.close();
+        } catch (IOException e) {}
+      }
+      if (scheduler != this.scheduler) {
+        scheduler.close();
+      }
+      if (!success) {
+        abortUpload();
+      }
+    }
+  }
+
+  private long getPartOffset(int partNumber) {
+    return (partNumber - 1) * this.partSize;
+  }
+
+  private int getPartLength(int partNumber) {
+    return (int) Math.min(this.partSize, this.fileSize - getPartOffset(partNumber));
+  }
+
+  /**
+   * @param partNumber
+   * @param block  wait for the buffer pool if it's used up.
+   * @return  the buffer of the part, or null if the pool is used up and "block" is false.
+   */
+  private ByteBuffer acquireBuffer(int partNumber, boolean block)
+      throws InterruptedException, IOException {
+    int length = getPartLength(partNumber);
+    if (this.localChannel != null) {
+      return this.localChannel.map(FileChannel.MapMode.READ_ONLY, getPartOffset(partNumber),
+                                   length);
+    }
+    if (this.bufferPool != null) {
+      return block ? this.bufferPool.acquire(length) : this.bufferPool.tryAcquire(length);
+    }
+    ByteBuffer buffer = this.spareBuffers.poll();
+    if (buffer == null || buffer.capacity() < length) {
+      return ByteBuffer.allocate(length);
+    }
+    buffer.clear();
+    buffer.limit(length);
+    return buffer;
+  }
+
+  private void releaseBuffer(PartReader part) {
+    if (part.mapped) {
+      // A mapped part of a local file, not from the pool.
+      return;
+    }
+    if (this.bufferPool != null) {
+      this.bufferPool.release(part.buffer);
+    } else {
+      this.spareBuffers.add(part.buffer);
+    }
+  }
+
+  /**
+   * Wait for a part to finish, and report progress while waiting.
+   * @throws IOException  if the part has failed.
+   */
+  private PartETag waitForPart(PartReader part) throws IOException, InterruptedException {
+    while (true) {
+      try {
+        return part.future.get(MultipartUploadOutputStream.PROGRESS_INTERVAL,
+                               TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        if (this.progressable != null) {
+          this.progressable.progress();
+        }
+      } catch (ExecutionException e) {
+        throw new IOException(String.format("part %d of %s/%s failed", part.partNumber,
+                                               this.bucketName, this.key), e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Abort the multipart upload at S3.  A resumable upload is kept open instead,
+   * such that the next attempt can reuse its parts.
+   */
+  private void abortUpload() {
+    if (this.uploadId == null) {
+      return;
+    }
+    if (this.journal != null) {
+      log.info(String.format("keep multipart upload %s of %s/%s open to resume later",
+                                this.uploadId, this.bucketName, this.key));
+      return;
+    }
+    log.info(String.format("abort multipart upload %s/%s", this.bucketName, this.key));
+    try {
+      this.s3.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucketName,
+                                                                   this.key,
+                                                                   this.uploadId));
+    } catch (Exception e) {
+      log.info(String.format("failed to abort multipart upload %s/%s: %s",
+                                this.bucketName, this.key, e.toString()));
+    }
+  }
+
+  /**
+   * Read one part of the source file with positional reads, and upload it.
+   *
+   * The buffer is owned by the uploader, which releases it with release() once it is
+   * done with the part.  release() stops the part if it is still running and waits for
+   * it, so a buffer is never released while the reader may still use it.
+   */
+  private class PartReader implements Callable<PartETag> {
+    private final int partNumber;
+    private final long offset;
+    private final int length;
+    private final ByteBuffer buffer;
+    // The buffer is mapped from a local file.  A direct buffer from the pool is not.
+    private final boolean mapped;
+    // The part uploaded by a previous attempt, if any.
+    private final PartSummary uploaded;
+    Future<PartETag> future;
+    boolean reused = false;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean discarded = false;
+    private boolean released = false;
+
+    PartReader(int partNumber, ByteBuffer buffer, PartSummary uploaded) {
+      this.partNumber = partNumber;
+      this.offset = getPartOffset(partNumber);
+      this.length = getPartLength(partNumber);
+      this.buffer = buffer;
+      this.mapped = localChannel != null;
+      this.uploaded = uploaded;
+    }
+
+    private synchronized boolean begin() {
+      if (this.discarded) {
+        return false;
+      }
+      this.started = true;
+      return true;
+    }
+
+    private synchronized void end() {
+      this.finished = true;
+      notifyAll();
+    }
+
+    private synchronized boolean isDiscarded() {
+      return this.discarded;
+    }
+
+    /**
+     * The uploader is done with this part.  A part that hasn't finished is discarded:
+     * it won't start, or stops at its next chunk.  The buffer is released once the part
+     * is not running.
+     */
+    public void release() {
+      synchronized (this) {
+        if (this.released) {
+          return;
+        }
+        this.released = true;
+        this.discarded = true;
+      }
+      if (this.future != null) {
+        // Don't interrupt the worker, it's shared with the other transfers.
+        this.future.cancel(false);
+      }
+      boolean interrupted = false;
+      synchronized (this) {
+        while (this.started && !this.finished) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // The buffer can only be released once the part stops.
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      releaseBuffer(this);
+    }
+
+    public PartETag call() throws Exception {
+      if (!begin()) {
+        throw new IOException("part " + this.partNumber + " is discarded");
+      }
+      try {
+        byte[] digest = readPart();
+        PartETag etag;
+        if (this.uploaded != null && this.uploaded.getSize() == this.length &&
+                this.uploaded.getETag().replace("\"", "")
+                    .equalsIgnoreCase(Hex.encodeHexString(digest))) {
+          log.info(String.format("part %d of %s/%s is already uploaded, skip it",
+                                    this.partNumber, bucketName, key));
+          this.reused = true;
+          etag = new PartETag(this.partNumber, this.uploaded.getETag());
+        } else {
+          etag = uploadPart(new String(Base64.encodeBase64(digest), Charset.forName("UTF-8")));
+        }
+        return etag;
+      } finally {
+        end();
+      }
+    }
+
+    /**
+     * Read the part into the buffer.  The buffer is flipped to the part content.
+     * @return  md5 of the part.
+     */
+    private byte[] readPart() throws IOException, NoSuchAlgorithmException {
+      if (this.mapped) {
+        return digestMappedPart();
+      }
+      int maxRetry = 3;
+      int retry = 0;
+      Path srcPath = new Path(srcFilename);
+      FileSystem fs = srcPath.getFileSystem(conf);
+      byte[] chunk = this.buffer.hasArray() ? null : new byte[READ_CHUNK_SIZE];
+      while (true) {
+        retry++;
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        this.buffer.clear();
+        this.buffer.limit(this.length);
+        FSDataInputStream ins = null;
+        try {
+          ins = fs.open(srcPath);
+          long position = this.offset;
+          while (this.buffer.hasRemaining()) {
+            if (isDiscarded()) {
+              throw new IOException("part " + this.partNumber + " is discarded");
+            }
+            int len = Math.min(READ_CHUNK_SIZE, this.buffer.remaining());
+            int bytesRead;
+            if (chunk == null) {
+              int bufferOffset = this.buffer.arrayOffset() + this.buffer.position();
+              bytesRead = ins.read(position, this.buffer.array(), bufferOffset, len);
+              if (bytesRead > 0) {
+                md.update(this.buffer.array(), bufferOffset, bytesRead);
+                this.buffer.position(this.buffer.position() + bytesRead);
+              }
+            } else {
+              bytesRead = ins.read(position, chunk, 0, len);
+              if (bytesRead > 0) {
+                md.update(chunk, 0, bytesRead);
+                this.buffer.put(chunk, 0, bytesRead);
+              }
+            }
+            if (bytesRead < 0) {
+              throw new EOFException(String.format("%s ended at %d before part %d is read",
+                                                      srcFilename, position, this.partNumber));
+            }
+            position += bytesRead;
+            throttle(bytesRead);
+          }
+          this.buffer.flip();
+          return md.digest();
+        } catch (IOException e) {
+          log.info(String.format("failed to read part %d of %s, attempt %d: %s",
+                                    this.partNumber, srcFilename, retry, e.toString()));
+          if (retry >= maxRetry || isDiscarded()) {
+            throw e;
+          }
+        } finally {
+          if (ins != null) {
+            try {
+              ins.close();
+            } catch (IOException e) {}
+          }
+        }
+      }
+    }
+
+    /**
+     * Digest a part mapped from a local file.  The mapped buffer already holds the
+     * part's content, and is left as is.
+     * @return  md5 of the part.
+     */
+    private byte[] digestMappedPart() throws NoSuchAlgorithmException {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      ByteBuffer content = this.buffer.duplicate();
+      while (content.hasRemaining()) {
+        int len = Math.min(READ_CHUNK_SIZE, content.remaining());
+        ByteBuffer chunk = content.slice();
+        chunk.limit(len);
+        md.update(chunk);
+        content.position(content.position() + len);
+        throttle(len);
+      }
+      return md.digest();
+    }
+
+    private void throttle(int bytesRead) {
+      if (progressable != null) {
+        progressable.progress();
+      }
+      if (bwMonitor != null) {
+        bwMonitor.throttle(bytesRead);
+      }
+    }
+
+    private PartETag uploadPart(String md5sum) throws IOException {
+      int maxRetry = 5;
+      int retry = 0;
+      while (retry < maxRetry && !isDiscarded()) {
+        retry++;
+        InputStream is = new ProgressableByteBufferInputStream(this.buffer.duplicate(),
+                                                               progressable);
+        try {
+          UploadPartRequest request = new UploadPartRequest()
+                                          .withBucketName(bucketName)
+                                          .withKey(key)
+                                          .withUploadId(uploadId)
+                                          .withInputStream(is)
+                                          .withPartNumber(this.partNumber)
+                                          .withPartSize(this.length)
+                                          .withMD5Digest(md5sum);
+          log.info(String.format("S3 uploadPart %s/%s, part:%d attempt:%d size:%d",
+                                    bucketName, key, this.partNumber, retry, this.length));
+          return s3.uploadPart(request).getPartETag();
+        } catch (Exception e) {
+          log.info(String.format("***** exception when uploadPart() part %d attempt " +
+                                     "%d for %s/%s\nexception: %s",
+                                    this.partNumber, retry, bucketName, key, e.toString()));
+        } finally {
+          is.close();
+        }
+      }
+      throw new IOException(String.format("failed to upload part %d after %d attempts",
+                                             this.partNumber, retry));
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Reads a byte range of an S3 object, and resumes from the last byte received when
+ * the connection drops.
+ *
+ * Each resume issues a new range-get of the remaining bytes, after an exponential
+ * backoff.  The resumed range-get requires the etag of the first response, so bytes
+ * of a changed object are never mixed with the bytes already read.  Once
+ * "maxResumes" resumes have failed, read() throws the IOException.
+ */
+public class ResumableRangeInputStream extends InputStream {
+  private static final Log log = LogFactory.getLog(ResumableRangeInputStream.class);
+  private static final Random random = new Random();
+  // Backoff before retry n is about BASE * 2^n milli-sec, at most MAX.
+  private static final long BACKOFF_BASE_MS = 200L;
+  private static final long BACKOFF_MAX_MS = 20 * 1000L;
+
+  private final AmazonS3Client s3client;
+  private final String bucket;
+  private final String key;
+  private final long end;
+  private final int maxResumes;
+  // Offset of the next byte to read.
+  private long position;
+  private int resumes = 0;
+  private String etag = null;
+  private ObjectMetadata metadata = null;
+  private InputStream current = null;
+  private boolean closed = false;
+
+  /**
+   * @param s3client
+   * @param bucket
+   * @param key
+   * @param begin  begin offset (inclusive).
+   * @param end    end offset (inclusive).
+   * @param maxResumes
+   */
+  public ResumableRangeInputStream(AmazonS3Client s3client,
+                                   String bucket,
+                                   String key,
+                                   long begin,
+                                   long end,
+                                   int maxResumes) {
+    this.s3client = s3client;
+    this.bucket = bucket;
+    this.key = key;
+    this.position = begin;
+    this.end = end;
+    this.maxResumes = maxResumes;
+  }
+
+  /**
+   * Issue the first range-get.
+   *
+   * @return  false if the object cannot be read.
+   */
+  public boolean open() {
+    GetObjectRequest request = new GetObjectRequest(this.bucket, this.key);
+    request.setRange(this.position, this.end);
+    S3Object object = getObject(this.s3client, request, 10);
+    if (object == null) {
+      return false;
+    }
+    this.metadata = object.getObjectMetadata();
+    this.etag = this.metadata.getETag();
+    this.current = object.getObjectContent();
+    return true;
+  }
+
+  /**
+   * @return  metadata of the first response, including the object's user metadata.
+   *          Its content length is the length of the range.
+   */
+  public ObjectMetadata getObjectMetadata() {
+    return this.metadata;
+  }
+
+  /**
+   * @return  offset of the next byte to read.
+   */
+  public long getPosition() {
+    return this.position;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int len = read(b, 0, 1);
+    return len < 0 ? -1 : (b[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (this.closed) {
+      throw new IOException("stream is closed");
+    }
+    if (this.position > this.end) {
+      return -1;
+    }
+    len = (int) Math.min(len, this.end - this.position + 1);
+    while (true) {
+      String error;
+      try {
+        if (this.current == null) {
+          error = "not open";
+        } else {
+          int n = this.current.read(b, off, len);
+          if (n > 0) {
+            this.position += n;
+            return n;
+          }
+          error = "premature end of range";
+        }
+      } catch (IOException e) {
+        error = e.toString();
+      }
+      resume(error);
+    }
+  }
+
+  /**
+   * Re-issue the range-get from the current position.
+   */
+  private void resume(String error) throws IOException {
+    closeCurrent();
+    if (this.resumes >= this.maxResumes) {
+      throw new IOException(String.format("%s/%s: failed at offset %d after %d resumes: %s",
+                                             this.bucket, this.key, this.position,
+                                             this.resumes, error));
+    }
+    this.resumes++;
+    log.info(String.format("%s/%s: resume range [%d - %d] (%d of %d) after: %s",
+                              this.bucket, this.key, this.position, this.end, this.resumes,
+                              this.maxResumes, error));
+    backoff(this.resumes);
+    GetObjectRequest request = new GetObjectRequest(this.bucket, this.key);
+    request.setRange(this.position, this.end);
+    if (this.etag != null) {
+      request.withMatchingETagConstraint(this.etag);
+    }
+    S3Object object = getObject(this.s3client, request, 10);
+    if (object == null) {
+      throw new IOException(String.format("%s/%s: cannot resume at offset %d, the object " +
+                                             "is gone or changed", this.bucket, this.key,
+                                             this.position));
+    }
+    this.current = object.getObjectContent();
+  }
+
+  private void closeCurrent() {
+    if (this.current != null) {
+      try {
+        this.current.close();
+      } catch (IOException e) {}
+      this.current = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    this.closed = true;
+    closeCurrent();
+  }
+
+  /**
+   * Get an S3 object, retrying with exponential backoff.  Errors that won't go away
+   * by retrying (no such object, access denied, bad range) are not retried.
+   *
+   * @param s3client
+   * @param request
+   * @param maxRetry
+   * @return  the object, or null if it cannot be got, or its etag doesn't match
+   *          the constraint of the request.
+   */
+  public static S3Object getObject(AmazonS3Client s3client,
+                                   GetObjectRequest request,
+                                   int maxRetry) {
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      try {
+        return s3client.getObject(request);
+      } catch (AmazonServiceException ase) {
+        log.error("Server error when download S3 object:\nServiceException: "
+                     + S3Utils.AWSServiceExceptionToString(ase));
+        int status = ase.getStatusCode();
+        if (status == 403 || status == 404 || status == 416) {
+          break;
+        }
+      } catch (AmazonClientException ace) {
+        log.error("Client error when downloading S3 object:\nClientException: "
+                     + ace.getMessage());
+      }
+      if (retry < maxRetry) {
+        backoff(retry);
+      }
+    }
+    log.error(String.format("Error: failed to download S3 file %s/%s",
+                                request.getBucketName(), request.getKey()));
+    return null;
+  }
+
+  /**
+   * Sleep before retry "attempt" (from 1), for an exponential time with jitter.
+   */
+  static void backoff(int attempt) {
+    long delay = Math.min(BACKOFF_BASE_MS << Math.min(attempt - 1, 16), BACKOFF_MAX_MS);
+    delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -3,6 +3,13 @@ package com.pinterest.hdfsbackup.s3tools;
 import com.pinterest.hdfsbackup.options.OptionWithArg;
 import com.pinterest.hdfsbackup.options.Options;
 import com.pinterest.hdfsbackup.options.SimpleOption;
+import com.pinterest.hdfsbackup.utils.BandwidthBudget;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
+import com.pinterest.hdfsbackup.utils.HostNetworkThrottle;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
+import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -15,6 +22,9 @@ import org.apache.hadoop.conf.Configuration;
  */
 public class S3CopyOptions {
   private static final Log log = LogFactory.getLog(S3CopyOptions.class);
+  // S3 limits of multipart upload.
+  public static final int MAX_PART_COUNT = 10000;
+  public static final long MIN_PART_SIZE = 1024L * 1024 * 5;
   // Below options are provided at cmd line through "--opt=value"
   public String srcPath = null;
   public String destPath = null;
@@ -28,14 +38,62 @@ public class S3CopyOptions {
   public boolean useMultipart = true;
   public int queueSize = 2000;
   public int workerThreads = 10;
+  // Max in-flight parts of one file.
   public int maxInflightParts = 2;
+  // Max in-flight parts of all files in a task.
+  public int taskInflightParts = 20;
   public long chunkSize = 1024L * 1024 * 30;
+  // If > 0, split each object into about this many parts, instead of "chunkSize" parts.
+  public int targetPartCount = 0;
+  public long minPartSize = 1024L * 1024 * 8;
+  public long maxPartSize = 1024L * 1024 * 512;
+  // Files smaller than this are uploaded with a single PutObject from memory.
+  public long singlePutThreshold = 1024L * 1024 * 8;
+  // At S3 to S3 copy, objects of at least this size are copied by multipart copy.
+  public long multipartCopyThreshold = 1024L * 1024 * 1024;
+  // Pack files smaller than "packFileThreshold" into container objects of about "packSize".
+  public boolean packSmallFiles = false;
+  public long packFileThreshold = 1024L * 1024;
+  public long packSize = 1024L * 1024 * 128;
   public boolean useInterimFiles = false;
+  // Times a range-get resumes from the last byte received after its connection drops.
+  public int downloadResumes = 5;
+  // Download small objects with the size and etag of their listing, without a HEAD.
+  public boolean useListingMetadata = true;
+  // Max objects whose metadata is prefetched ahead of their downloads. 0 to disable.
+  public int headPrefetchAhead = 8;
+  // Read single-request downloads into a buffer and verify them before writing the dest.
+  public boolean bufferSingleGetDownloads = false;
+  // Max parts of a multipart download that are downloading or waiting to be written.
+  public int downloadWindowParts = 4;
+  // Upload files of at least "parallelReadThreshold" by reading "parallelReadParts"
+  // parts of the file concurrently.
+  public boolean parallelReadUpload = false;
+  public long parallelReadThreshold = 1024L * 1024 * 1024;
+  public int parallelReadParts = 8;
+  // Upload without the checksum pre-pass. The checksum is saved to a sidecar object.
+  public boolean singlePassUpload = false;
+  // Keep multipart chunks in pooled memory buffers instead of local temp files.
+  public boolean useMemoryPartBuffers = false;
+  // Memory budget of the part buffer pool per task, in bytes.
+  public long partBufferMemory = 1024L * 1024 * 256;
+  public boolean offHeapPartBuffers = false;
+  // HDFS dir to keep the journals of multipart uploads, to make them resumable.
+  public String uploadJournalDir = "";
+  // HDFS dir to keep the checksums of files and objects across jobs. Empty to disable.
+  public String checksumCacheDir = "";
   // a ',' separated list of dirs to use as interim stage area for multi-part ops.
   public String interimDirs = "";
+  // Byte quota of each interim dir. 0 means no quota.
+  public long interimDirQuota = 0;
+  // Verify large objects by hashing "parallelVerifyParts" parts at a time.
+  public boolean parallelVerify = true;
+  public int parallelVerifyParts = 8;
   public String manifestFilename = null;
   // "compareChecksum" is used only by compare-dir tool.
   public boolean compareChecksum = false;
+  // Compare HDFS files by their native checksums when possible.
+  public boolean useHDFSChecksum = true;
 
   // Bandwidth limit in MB/s
   public double networkBandwidthLimit = 15;
@@ -43,9 +101,135 @@ public class S3CopyOptions {
   public long networkBandwidthMonitorInterval = 1000L;
   // Initial delay of the monitor, in milli-sec.
   public long networkBandwidthMonitorInitDelay = 1000L;
+  // Bandwidth limit of the whole job in MB/s, split across running tasks. 0 to disable.
+  public double jobBandwidthLimit = 0;
+  // HDFS dir of the task heartbeats that split the job bandwidth limit.
+  public String bandwidthBudgetDir = "";
+  // Interval of the task heartbeats, in milli-sec.
+  public long bandwidthBudgetInterval = 10000L;
+  // Back off when the host receives or transmits more than this many MB/s. 0 to disable.
+  public double hostBandwidthLimit = 0;
+  // A task is never backed off below this many MB/s.
+  public double hostBandwidthMinLimit = 1;
+  // ',' separated network interfaces to watch. Empty to watch the default route's ones.
+  public String hostNetInterfaces = "";
 
   public S3CopyOptions() { }
 
+  /**
+   * Create the part buffer pool shared by all transfers in a task.
+   * @return  the pool, or null if memory part buffers are not enabled.
+   */
+  public PartBufferPool createPartBufferPool() {
+    if (!this.useMemoryPartBuffers) {
+      return null;
+    }
+    return new PartBufferPool(this.partBufferMemory, this.offHeapPartBuffers);
+  }
+
+  /**
+   * Create the checksum cache shared by all transfers and compares in a task.
+   * @param conf
+   * @return  the cache, or null if "checksumCacheDir" is not set.
+   */
+  public ChecksumCache createChecksumCache(Configuration conf) {
+    if (this.checksumCacheDir == null || this.checksumCacheDir.isEmpty()) {
+      return null;
+    }
+    return new ChecksumCache(conf, this.checksumCacheDir);
+  }
+
+  /**
+   * Create the share of the job bandwidth limit of a task.
+   * @param conf
+   * @param bwMonitor  the bandwidth limiter of the task.
+   * @return  the budget, or null if the job bandwidth limit is not set.
+   */
+  public BandwidthBudget createBandwidthBudget(Configuration conf,
+                                               NetworkBandwidthMonitor bwMonitor) {
+    if (this.jobBandwidthLimit <= 0 || this.bandwidthBudgetDir.isEmpty()) {
+      return null;
+    }
+    return new BandwidthBudget(conf, this.bandwidthBudgetDir, this.jobBandwidthLimit,
+                               this.bandwidthBudgetInterval, bwMonitor);
+  }
+
+  /**
+   * Create the throttle of a task by the host network usage.
+   * @param bwMonitor  the bandwidth limiter of the task.
+   * @return  the throttle, or null if the host bandwidth limit is not set.
+   */
+  public HostNetworkThrottle createHostNetworkThrottle(NetworkBandwidthMonitor bwMonitor) {
+    if (this.hostBandwidthLimit <= 0) {
+      return null;
+    }
+    return new HostNetworkThrottle(bwMonitor, this.hostBandwidthLimit,
+                                   this.hostBandwidthMinLimit, this.hostNetInterfaces);
+  }
+
+  /**
+   * Create the allocator of interim files shared by all transfers in a task.
+   * @return  the allocator over "interimDirs", or over "/tmp" if not set.
+   */
+  public InterimDirAllocator createInterimDirAllocator() {
+    return InterimDirAllocator.create(this.interimDirs, this.interimDirQuota);
+  }
+
+  /**
+   * Get the multipart part size of an object.
+   *
+   * With "targetPartCount" the part size scales with the object size within
+   * [minPartSize, maxPartSize], such that small objects still get enough parts to
+   * transfer in parallel, and large objects don't get too many parts.
+   * Otherwise the part size is "chunkSize".
+   * The part size is a multiple of 1MB, and never makes more than 10000 parts.
+   *
+   * @param objectSize
+   * @return
+   */
+  public long getPartSize(long objectSize) {
+    long mb = 1024L * 1024;
+    long partSize = this.chunkSize;
+    if (this.targetPartCount > 0) {
+      partSize = (objectSize + this.targetPartCount - 1) / this.targetPartCount;
+      partSize = Math.min(Math.max(partSize, this.minPartSize), this.maxPartSize);
+    }
+    partSize = Math.max(partSize, (objectSize + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+    partSize = Math.max(partSize, MIN_PART_SIZE);
+    return (partSize + mb - 1) / mb * mb;
+  }
+
+  /**
+   * Get the part size to transfer an existing object in: the part size the object was
+   * uploaded with if it's known and valid, otherwise getPartSize(objectSize).
+   *
+   * @param objectSize
+   * @param uploadPartSize  the "partsize" user metadata of the object, may be null.
+   * @return
+   */
+  public long getPartSize(long objectSize, String uploadPartSize) {
+    if (uploadPartSize != null) {
+      try {
+        long partSize = Long.parseLong(uploadPartSize);
+        if (partSize >= MIN_PART_SIZE &&
+                (objectSize + partSize - 1) / partSize <= MAX_PART_COUNT) {
+          return partSize;
+        }
+      } catch (NumberFormatException e) {
+        log.info("invalid part size in object metadata: " + uploadPartSize);
+      }
+    }
+    return getPartSize(objectSize);
+  }
+
+  /**
+   * Create the scheduler to run multipart uploads and downloads of all transfers in a task.
+   * @return
+   */
+  public PartTransferScheduler createPartTransferScheduler() {
+    return new PartTransferScheduler(this.taskInflightParts, this.maxInflightParts);
+  }
+
   /**
    * Some options are specified through command line config "-Dproperty=value"
    * @param conf
@@ -60,8 +244,31 @@ public class S3CopyOptions {
     // Multipart chunk size. This size should match with the multi-part upload
     // chunk size for better performance.
     this.chunkSize = conf.getInt("s3copy.chunkSizeMB", 30) * 1024L * 1024;
+    // Choose the part size per object such that it's split into about this many parts,
+    // bounded by the min / max part size.  Set it to a few times "maxInflightParts"
+    // to keep all in-flight parts busy.  If 0, always use "chunkSize".
+    this.targetPartCount = conf.getInt("s3copy.targetPartCount", 0);
+    this.minPartSize = conf.getInt("s3copy.minPartSizeMB", 8) * 1024L * 1024;
+    this.maxPartSize = conf.getInt("s3copy.maxPartSizeMB", 512) * 1024L * 1024;
+    // Upload files smaller than this with one PutObject request from memory, instead of
+    // a multipart upload.  Each worker holds up to this many bytes in memory.
+    this.singlePutThreshold = conf.getInt("s3copy.singlePutThresholdKB", 8192) * 1024L;
+    // At S3 to S3 copy, copy objects smaller than this with one CopyObject request, and
+    // larger ones with parallel part copies.  Objects over 5GB always use part copies.
+    this.multipartCopyThreshold =
+        conf.getInt("s3copy.multipartCopyThresholdMB", 1024) * 1024L * 1024;
+    // At upload, pack small files into large container objects under "_hdfsbackup_packs",
+    // each with an index of its members.  This saves one S3 request per small file at
+    // both upload and restore.  Restore and compare-dir of any dir under the upload
+    // list the packed files through the indexes.
+    this.packSmallFiles = conf.getBoolean("s3copy.packSmallFiles", false);
+    this.packFileThreshold = conf.getInt("s3copy.packFileThresholdKB", 1024) * 1024L;
+    this.packSize = conf.getInt("s3copy.packSizeMB", 128) * 1024L * 1024;
     // Issue this many multi-part request on the wire.
     this.maxInflightParts = conf.getInt("s3copy.maxInflightParts", 2);
+    // All workers of a task share this many in-flight multi-part requests, such that
+    // a task has a fixed number of part transfer threads and connections.
+    this.taskInflightParts = conf.getInt("s3copy.taskInflightParts", 20);
     // Whether to verify checksum during transmit.
     this.verifyChecksum = conf.getBoolean("s3copy.checksum", true);
     // During multi-part download, you can choose to put intermediate chunks
@@ -69,12 +276,97 @@ public class S3CopyOptions {
     // in-flight parts can complete out of order.
     // This is usually faster than waiting for parts to complete in order.
     this.useInterimFiles = conf.getBoolean("s3copy.useInterimFiles", false);
+    // When the connection of a download drops, re-issue the range-get of the remaining
+    // bytes (with exponential backoff) up to this many times, before failing the part.
+    // The whole file is downloaded again only if a part still fails.
+    this.downloadResumes = conf.getInt("s3copy.downloadResumes", 5);
+    // The listing has the size and etag of each object.  An object smaller than the
+    // multipart download threshold is got in one GET without a HEAD first, and its etag
+    // in the GET response is checked against the listing.
+    this.useListingMetadata = conf.getBoolean("s3copy.useListingMetadata", true);
+    // Objects that still need a HEAD (large objects, or objects listed without an etag)
+    // have their HEAD requests issued ahead of their downloads, for up to this many
+    // objects queued in a task.
+    this.headPrefetchAhead = conf.getInt("s3copy.headPrefetchAhead", 8);
+    // Objects downloaded in one request are streamed to the dest while being verified,
+    // and the dest is deleted if the checksum mismatches.  Set this to read each such
+    // object into a buffer first, such that a bad download never touches the dest,
+    // and a failed dest write is retried from the buffer.
+    this.bufferSingleGetDownloads = conf.getBoolean("s3copy.bufferSingleGetDownloads", false);
+    // Without interim files, a multipart download keeps up to this many parts in memory
+    // buffers: the in-flight range-gets, and the parts that complete out of order and wait
+    // for the parts before them to be written.  At least "maxInflightParts".  The buffers
+    // come from the part buffer pool with "memoryPartBuffers", otherwise from the heap.
+    this.downloadWindowParts = conf.getInt("s3copy.downloadWindowParts", 4);
+    // Upload large files by reading their parts concurrently with positional reads,
+    // each part from its own byte range of the file, instead of one sequential stream.
+    // The part size is aligned with the HDFS block size.  Each such file has up to
+    // "parallelReadParts" parts in flight, each holding a part buffer, and its checksum
+    // is saved to a sidecar object like "singlePassUpload".
+    this.parallelReadUpload = conf.getBoolean("s3copy.parallelReadUpload", false);
+    this.parallelReadThreshold =
+        conf.getInt("s3copy.parallelReadThresholdMB", 1024) * 1024L * 1024;
+    this.parallelReadParts = conf.getInt("s3copy.parallelReadParts", 8);
+    // Read each source file only once at upload: hash the parts while uploading them,
+    // and save the whole-file checksum to a sidecar object afterwards.
+    // Otherwise the source file is read twice: once for checksum, once for upload.
+    this.singlePassUpload = conf.getBoolean("s3copy.singlePassUpload", false);
+    // At multipart upload, keep the chunks in memory buffers shared by all workers
+    // of a task, instead of writing them to local temp files and reading them back.
+    // Workers block when the task's memory budget is used up.
+    this.useMemoryPartBuffers = conf.getBoolean("s3copy.memoryPartBuffers", false);
+    this.partBufferMemory = conf.getInt("s3copy.partBufferMemoryMB", 256) * 1024L * 1024;
+    this.offHeapPartBuffers = conf.getBoolean("s3copy.offHeapPartBuffers", false);
+    // Local dirs to keep the interim files of multipart uploads and downloads, as a ','
+    // separated list, usually one dir per disk.  The parts are placed at the dir with
+    // the most free space, and transfers wait when every dir has used up its quota.
+    this.interimDirs = conf.get("s3copy.interimDirs", "");
+    this.interimDirQuota = conf.getInt("s3copy.interimDirQuotaMB", 0) * 1024L * 1024;
+    // Keep a journal of each multipart upload (uploadId and uploaded parts) in this HDFS
+    // dir.  A retry, or a re-run of the job with the same dir, resumes the upload and only
+    // sends the missing parts.  Failed uploads are left open to be resumed, so run
+    // cleanup-multipart-uploads to remove the ones that are never resumed.
+    // S3Copy uses a dir under the job's temp dir if it's not set.
+    this.uploadJournalDir = conf.get("s3copy.uploadJournalDir", "");
+    // Keep the md5 of each file and object that is uploaded or compared in this HDFS dir,
+    // by the file's length and modification time, or the object's etag.  Uploads and
+    // compares of files that haven't changed since use the saved md5 instead of reading
+    // the files again.
+    this.checksumCacheDir = conf.get("s3copy.checksumCacheDir", "");
+    // When only verifying the checksum of a large object (no dest to save it), range-get
+    // and hash its parts in parallel, and compare them against the part md5s saved to
+    // the checksum sidecar, or against the multipart etag (md5 of the part md5s).
+    // Objects without either are verified with one md5 over the whole object.
+    this.parallelVerify = conf.getBoolean("s3copy.parallelVerify", true);
+    this.parallelVerifyParts = conf.getInt("s3copy.parallelVerifyParts", 8);
     // When comparing dir, also compare file checksums.
     this.compareChecksum = conf.getBoolean("s3copy.compareChecksum", false);
+    // When both files are in HDFS, compare their native checksums (MD5-of-MD5-of-CRC32),
+    // which HDFS computes from the block checksums without reading the data.  The files
+    // are digested byte by byte only if their block size or CRC settings differ.
+    this.useHDFSChecksum = conf.getBoolean("s3copy.useHDFSChecksum", true);
 
     this.networkBandwidthLimit = conf.getFloat("s3copy.bwLimit", 20);
     this.networkBandwidthMonitorInterval = conf.getLong("s3copy.bwMonitorInterval", 1000L);
     this.networkBandwidthMonitorInitDelay = conf.getLong("s3copy.bwMonitorInitDelay", 1000L);
+    // Bandwidth limit of the whole job in MB/s.  If set, it replaces "s3copy.bwLimit": each
+    // task writes a heartbeat file to "s3copy.bwBudgetDir" every "s3copy.bwBudgetInterval"
+    // ms, and limits itself to the job limit divided by the tasks with a recent heartbeat.
+    // Tasks that finish give their share to the running ones.  S3Copy and CompareDir use a
+    // dir under the job's temp dir if "s3copy.bwBudgetDir" is not set.
+    this.jobBandwidthLimit = conf.getFloat("s3copy.jobBwLimit", 0);
+    this.bandwidthBudgetDir = conf.get("s3copy.bwBudgetDir", "");
+    this.bandwidthBudgetInterval = conf.getLong("s3copy.bwBudgetInterval", 10000L);
+    // Watch the bytes received and transmitted by the host's network interfaces (from
+    // /proc/net/dev) every "s3copy.bwMonitorInterval" ms.  When either goes over
+    // "s3copy.hostBwLimit" MB/s, e.g. on a spike of HBase traffic on the same node, the
+    // task halves its bandwidth, down to "s3copy.hostBwMinLimit" MB/s.  When the host has
+    // headroom, the task takes half of it, up to "s3copy.hostBwLimit".  The other limits
+    // still apply.  "s3copy.hostNetInterfaces" lists the interfaces to watch, by default
+    // the interfaces of the default route.
+    this.hostBandwidthLimit = conf.getFloat("s3copy.hostBwLimit", 0);
+    this.hostBandwidthMinLimit = conf.getFloat("s3copy.hostBwMinLimit", 1);
+    this.hostNetInterfaces = conf.get("s3copy.hostNetInterfaces", "");
   }
 
   public void showCopyOptions() {
@@ -85,14 +377,49 @@ public class S3CopyOptions {
       .append(String.format("\tuse multipart:           %s\n", this.useMultipart))
       .append(String.format("\tverify checksum:         %s\n", this.verifyChecksum))
       .append(String.format("\tmultipart chunk size:    %d\n", this.chunkSize))
+      .append(String.format("\ttarget part count:       %d\n", this.targetPartCount))
+      .append(String.format("\tmin part size:           %d\n", this.minPartSize))
+      .append(String.format("\tmax part size:           %d\n", this.maxPartSize))
+      .append(String.format("\tsingle put threshold:    %d\n", this.singlePutThreshold))
+      .append(String.format("\tmultipart copy threshold: %d\n", this.multipartCopyThreshold))
+      .append(String.format("\tpack small files:        %s\n", this.packSmallFiles))
+      .append(String.format("\tpack file threshold:     %d\n", this.packFileThreshold))
+      .append(String.format("\tpack size:               %d\n", this.packSize))
       .append(String.format("\tqueue size:              %d\n", this.queueSize))
       .append(String.format("\tworker threads per task: %d\n", this.workerThreads))
       .append(String.format("\tmax inflight parts:      %d\n", this.maxInflightParts))
+      .append(String.format("\ttask inflight parts:     %d\n", this.taskInflightParts))
       .append(String.format("\tuse interim files:       %s\n", this.useInterimFiles))
+      .append(String.format("\tdownload window parts:   %d\n", this.downloadWindowParts))
+      .append(String.format("\tdownload resumes:        %d\n", this.downloadResumes))
+      .append(String.format("\tuse listing metadata:    %s\n", this.useListingMetadata))
+      .append(String.format("\tHEAD prefetch ahead:     %d\n", this.headPrefetchAhead))
+      .append(String.format("\tbuffer single-get downloads: %s\n",
+                               this.bufferSingleGetDownloads))
+      .append(String.format("\tparallel read upload:    %s\n", this.parallelReadUpload))
+      .append(String.format("\tparallel read threshold: %d\n", this.parallelReadThreshold))
+      .append(String.format("\tparallel read parts:     %d\n", this.parallelReadParts))
+      .append(String.format("\tinterim dirs:            %s\n", this.interimDirs))
+      .append(String.format("\tinterim dir quota:       %d\n", this.interimDirQuota))
+      .append(String.format("\tsingle pass upload:      %s\n", this.singlePassUpload))
+      .append(String.format("\tmemory part buffers:     %s\n", this.useMemoryPartBuffers))
+      .append(String.format("\tpart buffer memory:      %d\n", this.partBufferMemory))
+      .append(String.format("\toff-heap part buffers:   %s\n", this.offHeapPartBuffers))
+      .append(String.format("\tupload journal dir:      %s\n", this.uploadJournalDir))
+      .append(String.format("\tchecksum cache dir:      %s\n", this.checksumCacheDir))
+      .append(String.format("\tparallel verify:         %s\n", this.parallelVerify))
+      .append(String.format("\tparallel verify parts:   %d\n", this.parallelVerifyParts))
       .append(String.format("\tcompare checksum:        %s\n", this.compareChecksum))
+      .append(String.format("\tuse HDFS checksum:       %s\n", this.useHDFSChecksum))
       .append(String.format("\tnetwork bw limit(MB/s):  %s\n", this.networkBandwidthLimit))
       .append(String.format("\tnetwork bw monitor interval (ms): %s\n",
-                               this.networkBandwidthMonitorInterval));
+                               this.networkBandwidthMonitorInterval))
+      .append(String.format("\tjob bw limit(MB/s):      %s\n", this.jobBandwidthLimit))
+      .append(String.format("\tbw budget dir:           %s\n", this.bandwidthBudgetDir))
+      .append(String.format("\tbw budget interval (ms): %d\n", this.bandwidthBudgetInterval))
+      .append(String.format("\thost bw limit(MB/s):     %s\n", this.hostBandwidthLimit))
+      .append(String.format("\thost bw min limit(MB/s): %s\n", this.hostBandwidthMinLimit))
+      .append(String.format("\thost net interfaces:     %s\n", this.hostNetInterfaces));
     log.info(sb.toString());
   }
 
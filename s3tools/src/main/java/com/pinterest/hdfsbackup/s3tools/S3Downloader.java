@@ -1,17 +1,23 @@
 package com.pinterest.hdfsbackup.s3tools;
 
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.pinterest.hdfsbackup.utils.DirEntry;
+import com.pinterest.hdfsbackup.utils.FSType;
+import com.pinterest.hdfsbackup.utils.FilePair;
 import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
+import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3ClientPool;
 import com.pinterest.hdfsbackup.utils.S3Utils;
-import com.pinterest.hdfsbackup.utils.Utils;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
@@ -21,39 +27,149 @@ import org.apache.hadoop.util.Progressable;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by shawn on 8/22/14.
  */
 public class S3Downloader {
   static final Log log = LogFactory.getLog(S3Downloader.class);
+  // Report progress at this interval (in ms) while waiting for parts to complete.
+  static final long PROGRESS_INTERVAL = 1000L;
+  // Attempts of a part of a multipart download, before the whole file is retried.
+  static final int MAX_PART_ATTEMPTS = 3;
+  // Objects of at least this size are downloaded by multipart download.
+  static final long MULTIPART_DOWNLOAD_THRESHOLD = 1024L * 1024 * 4;
+  // Set on objects encrypted with a customer key, whose etags are not md5s.
+  static final String SSE_CUSTOMER_ALGORITHM_HEADER =
+      "x-amz-server-side-encryption-customer-algorithm";
   Configuration conf;
+  // Shared client from S3ClientPool.  It is not shut down by close().
   AmazonS3Client s3client;
-  ThreadPoolExecutor threadPool;
+  // Runs the range-gets of multipart downloads.
+  PartTransferScheduler scheduler;
+  // True if the scheduler is created by, and only used by, this downloader.
+  boolean ownScheduler;
+  // Places the interim files of multipart downloads.
+  InterimDirAllocator interimDirs;
+  // Memory buffers of the parts of multipart downloads.  Null to use heap buffers.
+  PartBufferPool bufferPool;
+  // Limits the bandwidth of the downloads.  Null for no limit.
+  NetworkBandwidthMonitor bwMonitor;
   S3CopyOptions options;
   Progressable progress;
   // md5 checksum of the last downloaded file.
   String lastMD5Checksum = "";
 
   public S3Downloader(Configuration conf, S3CopyOptions options, Progressable progress) {
+    this(conf, options, progress, null);
+  }
+
+  /**
+   * @param conf
+   * @param options
+   * @param progress
+   * @param scheduler  the part transfer scheduler shared by the task.  If null, the downloader
+   *                   creates its own scheduler.
+   */
+  public S3Downloader(Configuration conf,
+                      S3CopyOptions options,
+                      Progressable progress,
+                      PartTransferScheduler scheduler) {
+    this(conf, options, progress, scheduler, null);
+  }
+
+  /**
+   * @param conf
+   * @param options
+   * @param progress
+   * @param scheduler  the part transfer scheduler shared by the task.  If null, the downloader
+   *                   creates its own scheduler.
+   * @param interimDirs  the interim dir allocator shared by the task.  If null, the downloader
+   *                     creates its own allocator.
+   */
+  public S3Downloader(Configuration conf,
+                      S3CopyOptions options,
+                      Progressable progress,
+                      PartTransferScheduler scheduler,
+                      InterimDirAllocator interimDirs) {
+    this(conf, options, progress, scheduler, interimDirs, null);
+  }
+
+  /**
+   * @param conf
+   * @param options
+   * @param progress
+   * @param scheduler  the part transfer scheduler shared by the task.  If null, the downloader
+   *                   creates its own scheduler.
+   * @param interimDirs  the interim dir allocator shared by the task.  If null, the downloader
+   *                     creates its own allocator.
+   * @param bufferPool  the part buffer pool shared by the task.  If null, the parts of
+   *                    multipart downloads are kept in heap buffers.
+   */
+  public S3Downloader(Configuration conf,
+                      S3CopyOptions options,
+                      Progressable progress,
+                      PartTransferScheduler scheduler,
+                      InterimDirAllocator interimDirs,
+                      PartBufferPool bufferPool) {
+    this(conf, options, progress, scheduler, interimDirs, bufferPool, null);
+  }
+
+  /**
+   * @param conf
+   * @param options
+   * @param progress
+   * @param scheduler  the part transfer scheduler shared by the task.  If null, the downloader
+   *                   creates its own scheduler.
+   * @param interimDirs  the interim dir allocator shared by the task.  If null, the downloader
+   *                     creates its own allocator.
+   * @param bufferPool  the part buffer pool shared by the task.  If null, the parts of
+   *                    multipart downloads are kept in heap buffers.
+   * @param bwMonitor  the bandwidth limiter shared by the task.  If null, downloads are not
+   *                   throttled.
+   */
+  public S3Downloader(Configuration conf,
+                      S3CopyOptions options,
+                      Progressable progress,
+                      PartTransferScheduler scheduler,
+                      InterimDirAllocator interimDirs,
+                      PartBufferPool bufferPool,
+                      NetworkBandwidthMonitor bwMonitor) {
     this.conf = conf;
-    this.s3client = S3Utils.createAmazonS3Client(conf);
-    this.threadPool = Utils.createDefaultExecutorService();
+    this.s3client = S3ClientPool.getClient(conf);
     this.options = options;
     this.progress = progress;
+    if (scheduler == null) {
+      this.scheduler = options.createPartTransferScheduler();
+      this.ownScheduler = true;
+    } else {
+      this.scheduler = scheduler;
+      this.ownScheduler = false;
+    }
+    if (interimDirs == null && options.useInterimFiles) {
+      interimDirs = options.createInterimDirAllocator();
+    }
+    this.interimDirs = interimDirs;
+    this.bufferPool = bufferPool;
+    this.bwMonitor = bwMonitor;
   }
 
   public void close() {
-    for (Runnable runnable : this.threadPool.shutdownNow()) {
+    if (this.ownScheduler) {
+      this.scheduler.close();
     }
-    this.s3client.shutdown();
   }
 
   public String getLastMD5Checksum() {
@@ -78,6 +194,9 @@ public class S3Downloader {
         destFilename = destDirname + "/" + srcEntry.entryName;
       }
     }
+    if (srcEntry.packMember != null) {
+      return DownloadPackMember(srcEntry.packMember, destFilename, verifyChecksum);
+    }
     // get bucket and key of the object.
     Path srcPath = new Path(srcFilename);
     URI srcUri = srcPath.toUri();
@@ -89,6 +208,98 @@ public class S3Downloader {
     return DownloadFile(bucket, key, destFilename, verifyChecksum);
   }
 
+  /**
+   * Download the S3 object of a work unit.
+   *
+   * A small object whose etag is in the listing is got without asking for its metadata
+   * first, since the GET response carries the metadata.  If the object has changed since
+   * the listing, or that GET fails, it's downloaded the regular way.
+   *
+   * @param filePair
+   * @param destFilename
+   * @param verifyChecksum
+   * @param metadata  the object's metadata prefetched by the caller, or null.
+   * @return
+   */
+  public boolean DownloadFile(FilePair filePair,
+                              String destFilename,
+                              boolean verifyChecksum,
+                              ObjectMetadata metadata) {
+    Path srcPath = new Path(filePair.srcFile.toString());
+    URI srcUri = srcPath.toUri();
+    String bucket = srcUri.getHost();
+    String key = srcUri.getPath();
+    if (key.startsWith("/")) {
+      key = key.substring(1);
+    }
+    if (metadata == null && canSkipMetadataRequest(filePair, this.options) &&
+            DownloadListedObject(bucket, key, filePair.etag.toString(),
+                                 filePair.fileSize.get(), destFilename, verifyChecksum)) {
+      return true;
+    }
+    return DownloadFile(bucket, key, destFilename, verifyChecksum, metadata);
+  }
+
+  /**
+   * @return  true if the object of a work unit can be downloaded without a metadata
+   *          request, with the size and etag in its listing.
+   */
+  public static boolean canSkipMetadataRequest(FilePair filePair, S3CopyOptions options) {
+    return options.useListingMetadata &&
+               filePair.etag.getLength() > 0 &&
+               filePair.fileSize.get() > 0 &&
+               filePair.fileSize.get() < MULTIPART_DOWNLOAD_THRESHOLD;
+  }
+
+  /**
+   * Download a small object in one GET, using the metadata in the GET response.
+   *
+   * @return  false if the object fails to download, or has changed since listing.
+   */
+  private boolean DownloadListedObject(String bucket,
+                                       String key,
+                                       String listedETag,
+                                       long listedSize,
+                                       String destFilename,
+                                       boolean verifyChecksum) {
+    ResumableRangeInputStream s3ins =
+        new ResumableRangeInputStream(this.s3client, bucket, key, 0, listedSize - 1,
+                                      this.options.downloadResumes);
+    if (!s3ins.open()) {
+      return false;
+    }
+    ObjectMetadata metadata = s3ins.getObjectMetadata();
+    if (!listedETag.equals(S3Utils.stripETagQuotes(metadata.getETag())) ||
+            !hasValidUserContentLength(metadata)) {
+      log.info(String.format("S3 obj %s/%s has changed since listing", bucket, key));
+      s3ins.close();
+      return false;
+    }
+    if (destFilename != null) {
+      try {
+        Path destFilePath = new Path(destFilename);
+        destFilePath.getFileSystem(this.conf).mkdirs(destFilePath.getParent());
+      } catch (Exception e) {
+        log.info("failed to get filesystem for: " + destFilename);
+        s3ins.close();
+        return false;
+      }
+    }
+    log.info(String.format("object %s/%s size = %d, downloaded in one object with " +
+                               "listing metadata", bucket, key, listedSize));
+    if (DownloadAsOneObject(this.s3client, bucket, key, metadata, s3ins, destFilename,
+                            verifyChecksum)
+        &&
+        (destFilename == null ||
+             FileUtils.getHDFSFileSize(destFilename, this.conf) == listedSize)) {
+      return true;
+    }
+    if (destFilename != null) {
+      FileUtils.deleteHDFSDir(destFilename, this.conf);
+    }
+    return false;
+  }
+
   /**
    * NOTE: caller should make sure the src filename is not a directory.
    *
@@ -109,6 +320,324 @@ public class S3Downloader {
     return DownloadFile(bucket, key, destFilename, verifyChecksum);
   }
 
+  /**
+   * Restore the files packed in a container object.
+   * The container is read with one streaming GET, and its md5 is checked against the
+   * index.  Members that fail in the stream, or fail checksum, are retried with a range
+   * GET each.
+   *
+   * @param containerFilename  full S3 path of the container.
+   * @param destRoot  members are restored relative to this dir.  If null, the members
+   *                  are only read and verified.
+   * @param verifyChecksum
+   * @return  true if all members are restored.
+   */
+  public boolean DownloadPack(String containerFilename, String destRoot, boolean verifyChecksum) {
+    return DownloadPack(containerFilename, null, destRoot, verifyChecksum);
+  }
+
+  /**
+   * Restore some of the files packed in a container object.  If not all the members are
+   * restored, only the range of the container that holds them is read, and the md5 of
+   * each member is checked instead of the container's.
+   *
+   * @param containerFilename  full S3 path of the container.
+   * @param destFilenames  entry name => dest filename of the members to restore.  A null
+   *                       dest filename only reads and verifies the member.
+   * @param verifyChecksum
+   * @return  true if all the given members are restored.
+   */
+  public boolean DownloadPackMembers(String containerFilename,
+                                     Map<String, String> destFilenames,
+                                     boolean verifyChecksum) {
+    return DownloadPack(containerFilename, destFilenames, null, verifyChecksum);
+  }
+
+  private boolean DownloadPack(String containerFilename,
+                               Map<String, String> destFilenames,
+                               String destRoot,
+                               boolean verifyChecksum) {
+    Path srcPath = new Path(containerFilename);
+    URI srcUri = srcPath.toUri();
+    String bucket = srcUri.getHost();
+    String key = srcUri.getPath();
+    if (key.startsWith("/")) {
+      key = key.substring(1);
+    }
+    PackIndex index = PackIndex.read(this.s3client, bucket, key);
+    if (index == null) {
+      log.info("failed to read index of pack " + containerFilename);
+      return false;
+    }
+    // The members to restore, in the order of their offsets, and their dest files.
+    List<PackIndex.Entry> members = new ArrayList<PackIndex.Entry>();
+    List<String> memberDestFilenames = new ArrayList<String>();
+    for (PackIndex.Entry entry : index.getEntries()) {
+      if (destFilenames == null) {
+        members.add(entry);
+        memberDestFilenames.add(getPackMemberFilename(destRoot, entry));
+      } else if (destFilenames.containsKey(entry.name)) {
+        members.add(entry);
+        memberDestFilenames.add(destFilenames.get(entry.name));
+      }
+    }
+    if (destFilenames != null && members.size() < destFilenames.size()) {
+      log.info(String.format("pack %s doesn't hold %d of the files to restore",
+                                containerFilename, destFilenames.size() - members.size()));
+      return false;
+    }
+    if (members.isEmpty()) {
+      return true;
+    }
+    boolean wholeContainer = members.size() == index.getEntries().size();
+    boolean verifyContainer = wholeContainer && !index.containerMD5.isEmpty();
+    // Without the container's md5, every member is checked by its own md5.
+    boolean verifyMembers = verifyChecksum || !verifyContainer;
+    log.info(String.format("will restore %d of %d files from pack %s",
+                              members.size(), index.getEntries().size(), containerFilename));
+
+    MessageDigest containerMd;
+    try {
+      containerMd = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      log.info("failed to get md5 digest instance");
+      return false;
+    }
+    long begin = members.get(0).offset;
+    PackIndex.Entry lastMember = members.get(members.size() - 1);
+    long end = wholeContainer ? index.containerLength : lastMember.offset + lastMember.length;
+    InputStream ins;
+    if (end > begin) {
+      S3Object object = downloadS3Object(this.s3client,
+                                         new GetObjectRequest(bucket, key)
+                                             .withRange(begin, end - 1));
+      ins = object == null ? null : object.getObjectContent();
+    } else {
+      ins = new ByteArrayInputStream(new byte[0]);
+    }
+    if (ins != null && verifyContainer) {
+      ins = new DigestInputStream(ins, containerMd);
+    }
+    List<Integer> failedMembers = new ArrayList<Integer>();
+    long position = begin;
+    for (int i = 0; i < members.size(); i++) {
+      PackIndex.Entry entry = members.get(i);
+      if (ins != null) {
+        try {
+          // Read through the gaps, so the container's md5 covers them.
+          skipFully(ins, entry.offset - position);
+          position = entry.offset;
+          boolean success = copyPackMember(ins, entry, memberDestFilenames.get(i),
+                                           verifyMembers);
+          position += entry.length;
+          if (success) {
+            continue;
+          }
+        } catch (IOException e) {
+          log.info(String.format("error reading pack %s at offset %d: %s",
+                                    containerFilename, position, e.toString()));
+          // The stream position is unknown, fall back to range GETs for the rest.
+          closeQuietly(ins);
+          ins = null;
+        }
+      }
+      failedMembers.add(i);
+    }
+    if (ins != null && verifyContainer) {
+      String actualMD5 = null;
+      try {
+        skipFully(ins, end - position);
+        actualMD5 = new String(Base64.encodeBase64(containerMd.digest()),
+                               Charset.forName("UTF-8"));
+      } catch (IOException e) {
+        log.info(String.format("error reading pack %s at offset %d: %s",
+                                  containerFilename, position, e.toString()));
+      }
+      if (!index.containerMD5.equals(actualMD5)) {
+        // The members from the stream may be bad, restore them again with their md5s.
+        log.info(String.format("pack %s: container md5 %s != %s in index",
+                                  containerFilename, actualMD5, index.containerMD5));
+        verifyMembers = true;
+        failedMembers.clear();
+        for (int i = 0; i < members.size(); i++) {
+          failedMembers.add(i);
+        }
+      }
+    }
+    closeQuietly(ins);
+
+    for (int i : failedMembers) {
+      PackIndex.Entry entry = members.get(i);
+      if (!DownloadPackMember(bucket, key, entry, memberDestFilenames.get(i), verifyMembers)) {
+        log.info(String.format("failed to restore %s from pack %s",
+                                  entry.name, containerFilename));
+        return false;
+      }
+    }
+    log.info(String.format("have restored %d files from pack %s, %d by range get",
+                              members.size(), containerFilename, failedMembers.size()));
+    return true;
+  }
+
+  /**
+   * Restore one packed file with a range GET of its container.
+   *
+   * @param member
+   * @param destFilename  if null, only read and verify the member.
+   * @param verifyChecksum
+   * @return
+   */
+  public boolean DownloadPackMember(PackIndex.Member member,
+                                    String destFilename,
+                                    boolean verifyChecksum) {
+    URI srcUri = new Path(member.containerFilename).toUri();
+    String key = srcUri.getPath();
+    if (key.startsWith("/")) {
+      key = key.substring(1);
+    }
+    return DownloadPackMember(srcUri.getHost(), key, member.entry, destFilename,
+                              verifyChecksum);
+  }
+
+  /**
+   * Restore one member of a container with a range GET.
+   *
+   * @param bucket
+   * @param key   key of the container.
+   * @param entry
+   * @param destFilename  if null, only read and verify the member.
+   * @param verifyChecksum
+   * @return
+   */
+  public boolean DownloadPackMember(String bucket,
+                                    String key,
+                                    PackIndex.Entry entry,
+                                    String destFilename,
+                                    boolean verifyChecksum) {
+    int maxRetry = 3;
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      InputStream ins = null;
+      try {
+        if (entry.length == 0) {
+          ins = new ByteArrayInputStream(new byte[0]);
+        } else {
+          GetObjectRequest request = new GetObjectRequest(bucket, key)
+                                         .withRange(entry.offset, entry.offset + entry.length - 1);
+          S3Object object = downloadS3Object(this.s3client, request);
+          if (object == null) {
+            continue;
+          }
+          ins = object.getObjectContent();
+        }
+        if (copyPackMember(ins, entry, destFilename, verifyChecksum)) {
+          return true;
+        }
+      } catch (IOException e) {
+        log.info(String.format("error reading %s from pack %s/%s, attempt %d: %s",
+                                  entry.name, bucket, key, retry, e.toString()));
+      } finally {
+        closeQuietly(ins);
+      }
+    }
+    return false;
+  }
+
+  private static String getPackMemberFilename(String destRoot, PackIndex.Entry entry) {
+    return destRoot == null ? null : destRoot + "/" + entry.name;
+  }
+
+  /**
+   * Copy a pack member from the stream to its dest file.  Exactly "entry.length"
+   * bytes are consumed from the stream, unless it throws.
+   *
+   * @return  false if the dest file cannot be written, or the checksum mismatches.
+   * @throws IOException  if the stream fails.
+   */
+  private boolean copyPackMember(InputStream ins,
+                                 PackIndex.Entry entry,
+                                 String destFilename,
+                                 boolean verifyChecksum) throws IOException {
+    OutputStream outs = null;
+    if (destFilename != null) {
+      outs = FileUtils.openHDFSOutputStream(destFilename, this.conf);
+      if (outs == null) {
+        log.info("Unable to open dest file: " + destFilename);
+      }
+    }
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    boolean destFailed = destFilename != null && outs == null;
+    byte[] buffer = new byte[1024 * 1024];
+    long remaining = entry.length;
+    try {
+      while (remaining > 0) {
+        int len = ins.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (len < 0) {
+          throw new IOException(String.format("pack member %s: missing %d bytes",
+                                                 entry.name, remaining));
+        }
+        if (outs != null && !destFailed) {
+          try {
+            outs.write(buffer, 0, len);
+          } catch (IOException e) {
+            log.info(String.format("failed to write %s: %s", destFilename, e.toString()));
+            destFailed = true;
+          }
+        }
+        md.update(buffer, 0, len);
+        remaining -= len;
+        this.progress.progress();
+        if (this.bwMonitor != null) {
+          this.bwMonitor.throttle(len);
+        }
+      }
+    } finally {
+      if (outs != null) {
+        try {
+          outs.close();
+        } catch (IOException e) {
+          destFailed = true;
+        }
+      }
+    }
+    String actualDigest = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+    this.lastMD5Checksum = actualDigest;
+    boolean ret = !destFailed;
+    if (verifyChecksum && !actualDigest.equals(entry.md5)) {
+      log.info(String.format("pack member %s: checksum mismatch", entry.name));
+      ret = false;
+    }
+    if (!ret && destFilename != null) {
+      FileUtils.deleteHDFSDir(destFilename, this.conf);
+    }
+    return ret;
+  }
+
+  private static void skipFully(InputStream ins, long len) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(len, 1))];
+    while (len > 0) {
+      int count = ins.read(buffer, 0, (int) Math.min(buffer.length, len));
+      if (count < 0) {
+        throw new IOException(String.format("unexpected end of pack, %d bytes missing", len));
+      }
+      len -= count;
+    }
+  }
+
+  private static void closeQuietly(InputStream ins) {
+    if (ins != null) {
+      try {
+        ins.close();
+      } catch (IOException e) {}
+    }
+  }
+
   /**
    * Download a S3 object identified by "bucket/key".
    *
@@ -122,23 +651,30 @@ public class S3Downloader {
                               String key,
                               String destFilename,
                               boolean verifyChecksum) {
+    return DownloadFile(bucket, key, destFilename, verifyChecksum, null);
+  }
+
+  /**
+   * @param metadata  the object's metadata got by the caller.  If null, it's got here.
+   */
+  public boolean DownloadFile(String bucket,
+                              String key,
+                              String destFilename,
+                              boolean verifyChecksum,
+                              ObjectMetadata metadata) {
     if (this.s3client == null) {
       log.info("Error: S3Client not initialized");
       return false;
     }
-    ObjectMetadata metadata = S3Utils.getObjectMetadata(this.s3client, bucket, key);
+    if (metadata == null) {
+      metadata = S3Utils.getObjectMetadata(this.s3client, bucket, key);
+    }
     if (metadata == null) {
       log.error("fail to get object metadat : " + bucket + "/" + key);
       return false;
     }
-    Map<String, String> userMetadata = metadata.getUserMetadata();
-    if (userMetadata.containsKey("ContentLength".toLowerCase())) {
-      long userProvidedLen = Long.valueOf(userMetadata.get("ContentLength".toLowerCase()));
-      if (metadata.getContentLength() != userProvidedLen) {
-        log.info(String.format("user-provided size %d != system size %d",
-                                  userProvidedLen, metadata.getContentLength()));
-        return false;
-      }
+    if (!hasValidUserContentLength(metadata)) {
+      return false;
     }
     long startTimeMs = System.currentTimeMillis();
     boolean ret = DownloadFile(this.s3client, bucket, key, metadata, destFilename, verifyChecksum);
@@ -185,6 +721,14 @@ public class S3Downloader {
     long expectedBytes = metadata.getContentLength();
     while (retry < maxRetry) {
       retry++;
+      if (retry > 1) {
+        // Parts have been retried on their own, so back off before restarting the file.
+        ResumableRangeInputStream.backoff(retry - 1);
+        if (Thread.currentThread().isInterrupted()) {
+          log.info(String.format("interrupted, stop downloading %s/%s", bucket, key));
+          return false;
+        }
+      }
       if (metadata.getContentLength() == 0) {
         // the object is zero size.
         log.info(String.format("object %s/%s is zero size.", bucket, key));
@@ -198,18 +742,42 @@ public class S3Downloader {
         }
       }
       // The object reaches certain size, use multi-part download.
-      else if (metadata.getContentLength() >= 1024 * 1024 * 4) {
+      else if (metadata.getContentLength() >= MULTIPART_DOWNLOAD_THRESHOLD) {
         log.info(String.format("object %s/%s size = %d, use multi-part download",
                                   bucket, key, metadata.getContentLength()));
-        if (this.options.useInterimFiles) {
-          // via interim files
-          String interimDirname = "/tmp/" + UUID.randomUUID();
-          try {
-            if (!FileUtils.createLocalDir(interimDirname)) {
-              log.info("failed to create interim dir: " + interimDirname);
-            } else {
-              if (multipartDownloadViaInterimFiles(s3client, bucket, key, metadata,
-                                                   destFilename, verifyChecksum, interimDirname)
+        if (destFilename == null && verifyChecksum && this.options.parallelVerify) {
+          // Only verify the object.  Hash its parts in parallel if the part md5s are known.
+          long partSize = getPartSize(metadata);
+          List<String> partMD5s = getExpectedPartMD5s(s3client, bucket, key, metadata,
+                                                      partSize);
+          String multipartETag = getExpectedMultipartETag(metadata, partSize);
+          if (partMD5s != null || multipartETag != null) {
+            return verifyByParts(s3client, bucket, key, metadata, partSize, partMD5s,
+                                 multipartETag);
+          }
+        }
+        PartTransferScheduler.Session session = this.scheduler.newSession(bucket + "/" + key);
+        try {
+          // A local dest is written from the part buffers directly, interim files would
+          // only add a second local copy.
+          if (this.options.useInterimFiles &&
+                  FileUtils.getFSType(destFilename) != FSType.LOCAL) {
+            // via interim files
+            long partSize = getPartSize(metadata);
+            InterimDirAllocator.Reservation interimFiles;
+            try {
+              interimFiles = this.interimDirs.reserve(
+                  "multipart-down", partSize,
+                  (int) ((metadata.getContentLength() + partSize - 1) / partSize));
+            } catch (InterruptedException e) {
+              log.info("interrupted when waiting for interim dir space: " + key);
+              // Keep the interrupt, so the caller stops too.
+              Thread.currentThread().interrupt();
+              return false;
+            }
+            try {
+              if (multipartDownloadViaInterimFiles(s3client, bucket, key, metadata, destFilename,
+                                                   verifyChecksum, interimFiles, session)
                   &&
                   (destFilename == null ||
                        FileUtils.getHDFSFileSize(destFilename,this.conf) == expectedBytes)) {
@@ -218,21 +786,24 @@ public class S3Downloader {
               if (destFilename != null) {
                 FileUtils.deleteHDFSDir(destFilename, this.conf);
               }
+            } finally {
+              interimFiles.release();
+            }
+          } else {
+            //// Not use interim files
+            if (multipartDownload(s3client, bucket, key, metadata, destFilename, verifyChecksum,
+                                  session)
+                &&
+                (destFilename == null ||
+                     FileUtils.getHDFSFileSize(destFilename,this.conf) == expectedBytes)) {
+              return true;
+            }
+            if (destFilename != null) {
+              FileUtils.deleteHDFSDir(destFilename, this.conf);
             }
-          } finally {
-            FileUtils.deleteLocalDir(interimDirname);
-          }
-        } else {
-          //// Not use interim files
-          if (multipartDownload(s3client, bucket, key, metadata, destFilename, verifyChecksum)
-              &&
-              (destFilename == null ||
-                   FileUtils.getHDFSFileSize(destFilename,this.conf) == expectedBytes)) {
-            return true;
-          }
-          if (destFilename != null) {
-            FileUtils.deleteHDFSDir(destFilename, this.conf);
           }
+        } finally {
+          session.close();
         }
       }
       // A regular-sized object.  Can download in one request.
@@ -255,6 +826,221 @@ public class S3Downloader {
     return false;
   }
 
+  /**
+   * Get the md5 of each part of an object, saved to its checksum sidecar at upload.
+   *
+   * @return  hex md5 of each part, or null if not known for parts of "partSize".
+   */
+  private List<String> getExpectedPartMD5s(AmazonS3Client s3client,
+                                           String bucket,
+                                           String key,
+                                           ObjectMetadata metadata,
+                                           long partSize) {
+    if (!S3Utils.hasChecksumSidecar(metadata)) {
+      return null;
+    }
+    Map<String, String> sidecar = S3Utils.getChecksumSidecar(s3client, bucket, key);
+    if (sidecar == null) {
+      return null;
+    }
+    List<String> partMD5s = S3Utils.splitPartMD5s(sidecar.get(S3Utils.PART_MD5S_SIDECAR_ENTRY));
+    long numberOfParts = (metadata.getContentLength() + partSize - 1) / partSize;
+    if (partMD5s == null || partMD5s.size() != numberOfParts) {
+      return null;
+    }
+    return partMD5s;
+  }
+
+  /**
+   * Get the etag of a multipart-uploaded object, if it was uploaded with parts
+   * of "partSize".
+   *
+   * Only objects that saved their part size at upload qualify, since the part size of
+   * other objects is a guess.  The etag of an object encrypted with SSE-KMS or a customer
+   * key is not an md5, so such objects don't qualify either.
+   *
+   * @return  the etag without quotes, or null if it's not a multipart etag of this part size.
+   */
+  private String getExpectedMultipartETag(ObjectMetadata metadata, long partSize) {
+    String etag = metadata.getETag();
+    if (etag == null || metadata.getUserMetadata().get(S3Utils.PART_SIZE_METADATA) == null) {
+      return null;
+    }
+    String sseAlgorithm = metadata.getServerSideEncryption();
+    if ((sseAlgorithm != null &&
+             !sseAlgorithm.equals(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION)) ||
+            metadata.getRawMetadata().containsKey(SSE_CUSTOMER_ALGORITHM_HEADER)) {
+      return null;
+    }
+    etag = etag.replace("\"", "").toLowerCase();
+    int idx = etag.indexOf('-');
+    long numberOfParts = (metadata.getContentLength() + partSize - 1) / partSize;
+    if (idx <= 0 || !etag.substring(idx + 1).equals(String.valueOf(numberOfParts))) {
+      return null;
+    }
+    return etag;
+  }
+
+  /**
+   * Verify an object by hashing its parts concurrently, without saving it anywhere.
+   *
+   * Each part is range-get and hashed by its own task, so the verify isn't bound by the
+   * speed of one md5 over the whole object.  The parts are compared against the part
+   * md5s from the checksum sidecar if known, which tells the corrupt parts.
+   * A corrupt part is fetched once more before the verify fails, in case the corruption
+   * happened on the wire.  Otherwise the parts are compared against the object's
+   * multipart etag, which is the md5 of the part md5s.
+   *
+   * @param s3client
+   * @param bucket
+   * @param key
+   * @param metadata
+   * @param partSize  part size the object was uploaded with.
+   * @param partMD5s  expected hex md5 of each part, or null.
+   * @param multipartETag  expected multipart etag, used if "partMD5s" is null.
+   * @return  true if all parts are downloaded and match.
+   */
+  private boolean verifyByParts(AmazonS3Client s3client,
+                                String bucket,
+                                String key,
+                                ObjectMetadata metadata,
+                                long partSize,
+                                List<String> partMD5s,
+                                String multipartETag) {
+    long objectSize = metadata.getContentLength();
+    int numberOfParts = (int) ((objectSize + partSize - 1) / partSize);
+    int window = Math.max(1, this.options.parallelVerifyParts);
+    log.info(String.format("will verify %s/%s by %d parts of %d bytes, %d parts at a time, " +
+                               "against %s",
+                              bucket, key, numberOfParts, partSize, window,
+                              partMD5s != null ? "part md5s" : "etag " + multipartETag));
+    this.lastMD5Checksum = "";
+    PartTransferScheduler.Session session =
+        this.scheduler.newSession(bucket + "/" + key + " verify", window);
+    BlockingQueue<Future<PartDigest>> doneParts = new LinkedBlockingQueue<Future<PartDigest>>();
+    List<byte[]> digests = new ArrayList<byte[]>(numberOfParts);
+    for (int i = 0; i < numberOfParts; i++) {
+      digests.add(null);
+    }
+    try {
+      int submitted = 0;
+      int finished = 0;
+      while (finished < numberOfParts) {
+        while (submitted < numberOfParts && submitted - finished < window) {
+          session.submit(new PartDigestCallable(s3client, bucket, key, submitted, partSize,
+                                                objectSize),
+                         doneParts);
+          submitted++;
+        }
+        Future<PartDigest> done = waitForDonePart(doneParts);
+        if (done == null) {
+          continue;
+        }
+        finished++;
+        PartDigest part = done.get();
+        if (part.digest == null) {
+          log.info(String.format("verify %s/%s: failed to get part %d", bucket, key, part.part));
+          return false;
+        }
+        digests.set(part.part, part.digest);
+      }
+    } catch (InterruptedException e) {
+      log.info(String.format("verify %s/%s: interrupted", bucket, key));
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      log.info(String.format("verify %s/%s: error: %s", bucket, key, e.toString()));
+      return false;
+    } finally {
+      session.close();
+    }
+
+    if (partMD5s == null) {
+      String actualETag = S3Utils.getMultipartETag(digests);
+      if (!multipartETag.equals(actualETag)) {
+        log.info(String.format("verify %s/%s: etag mismatch: %s : %s",
+                                  bucket, key, multipartETag, actualETag));
+        return false;
+      }
+      log.info(String.format("verify %s/%s success and etag matched: %s",
+                                bucket, key, multipartETag));
+      return true;
+    }
+    boolean ret = true;
+    for (int i = 0; i < numberOfParts; i++) {
+      if (partMD5s.get(i).equals(Hex.encodeHexString(digests.get(i)))) {
+        continue;
+      }
+      long begin = i * partSize;
+      long end = Math.min(begin + partSize, objectSize) - 1;
+      log.info(String.format("verify %s/%s: part %d range [%d - %d] mismatch, fetch it again",
+                                bucket, key, i, begin, end));
+      PartDigest part = new PartDigestCallable(s3client, bucket, key, i, partSize,
+                                               objectSize).call();
+      if (part.digest == null || !partMD5s.get(i).equals(Hex.encodeHexString(part.digest))) {
+        log.info(String.format("verify %s/%s: part %d range [%d - %d] is corrupt",
+                                  bucket, key, i, begin, end));
+        ret = false;
+      }
+    }
+    if (ret) {
+      log.info(String.format("verify %s/%s success and all %d part md5s matched",
+                                bucket, key, numberOfParts));
+    }
+    return ret;
+  }
+
+  /**
+   * @return  false if the user-provided size in the metadata differs from the object size.
+   */
+  private boolean hasValidUserContentLength(ObjectMetadata metadata) {
+    Map<String, String> userMetadata = metadata.getUserMetadata();
+    if (userMetadata.containsKey("ContentLength".toLowerCase())) {
+      long userProvidedLen = Long.valueOf(userMetadata.get("ContentLength".toLowerCase()));
+      if (metadata.getContentLength() != userProvidedLen) {
+        log.info(String.format("user-provided size %d != system size %d",
+                                  userProvidedLen, metadata.getContentLength()));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the md5 checksum an S3 object is expected to have.  It's looked up in order at:
+   * the user-provided checksum in object metadata, the object's checksum sidecar
+   * (written by single-pass uploads), and the system md5.
+   *
+   * @param s3client
+   * @param bucket
+   * @param key
+   * @param metadata
+   * @return  base64 encoded md5 checksum, or null if the object has no checksum.
+   */
+  private String getExpectedDigest(AmazonS3Client s3client,
+                                   String bucket,
+                                   String key,
+                                   ObjectMetadata metadata) {
+    Map<String, String> userMetadata = metadata.getUserMetadata();
+    String expectedDigest = null;
+    if (userMetadata.containsKey("ContentMD5".toLowerCase())) {
+      expectedDigest = userMetadata.get("ContentMD5".toLowerCase());
+      log.info(String.format("S3 obj %s/%s user-provide md5 = %s", bucket, key, expectedDigest));
+    } else if (S3Utils.hasChecksumSidecar(metadata)) {
+      Map<String, String> sidecar = S3Utils.getChecksumSidecar(s3client, bucket, key);
+      if (sidecar != null) {
+        expectedDigest = sidecar.get("ContentMD5".toLowerCase());
+      }
+      log.info(String.format("S3 obj %s/%s sidecar md5 = %s", bucket, key, expectedDigest));
+    } else if (metadata.getContentMD5() != null) {
+      expectedDigest = metadata.getContentMD5();
+      log.info(String.format("S3 obj %s/%s system md5 = %s", bucket, key, expectedDigest));
+    } else {
+      log.info(String.format("S3 obj %s/%s has no existing MD5 checksum", bucket, key));
+    }
+    return expectedDigest;
+  }
+
   /**
    * Download S3 object range given in the request.
    * @param s3client
@@ -263,29 +1049,19 @@ public class S3Downloader {
    */
   private S3Object downloadS3Object(AmazonS3Client s3client,
                                     GetObjectRequest request) {
-    int retry = 0;
-    int maxRetry = 10;
-    while (retry < maxRetry) {
-      retry++;
-      try {
-        S3Object s3Object = s3client.getObject(request);
-        return s3Object;
-      } catch (AmazonServiceException ase) {
-        log.error("Server error when download S3 object:\nServiceException: "
-                     + S3Utils.AWSServiceExceptionToString(ase));
-      } catch (AmazonClientException ace) {
-        log.error("Client error when downloading S3 object:\nClientException: "
-                     + ace.getMessage());
-      }
-    }
-    log.error(String.format("Error: failed to download S3 file %s/%s",
-                                request.getBucketName(), request.getKey()));
-    return null;
+    return ResumableRangeInputStream.getObject(s3client, request, 10);
   }
 
+
   /**
    * Download an S3 object in a single request, without multi-part ops.
    *
+   * The object is streamed to the destination while its checksum is computed, and the
+   * destination is deleted if the size or checksum doesn't match.  With
+   * "bufferSingleGetDownloads", the object is first read into a buffer and verified,
+   * and is written to the destination only if it's good.  The write is then retried
+   * from the buffer, without downloading the object again.
+   *
    * @param s3client
    * @param bucket
    * @param key
@@ -300,118 +1076,166 @@ public class S3Downloader {
                                       ObjectMetadata metadata,
                                       String destFilename,
                                       boolean verifyChecksum) {
+    return DownloadAsOneObject(s3client, bucket, key, metadata, null, destFilename,
+                               verifyChecksum);
+  }
+
+  /**
+   * @param s3ins  the object's content already opened by the caller, or null.
+   */
+  private boolean DownloadAsOneObject(AmazonS3Client s3client,
+                                      String bucket,
+                                      String key,
+                                      ObjectMetadata metadata,
+                                      ResumableRangeInputStream s3ins,
+                                      String destFilename,
+                                      boolean verifyChecksum) {
     // Exam if checksum exists.
-    Map<String, String> userMetadata = metadata.getUserMetadata();
     boolean hasChecksum = true;
-    String expectedDigest = "";
+    String expectedDigest = getExpectedDigest(s3client, bucket, key, metadata);
     String actualDigest = "";
-    if (userMetadata.containsKey("ContentMD5".toLowerCase())) {
-      expectedDigest = userMetadata.get("ContentMD5".toLowerCase());
-      log.info(String.format("S3 obj %s/%s user-provide md5 = %s", bucket, key, expectedDigest));
-    } else if (metadata.getContentMD5() != null) {
-      expectedDigest = metadata.getContentMD5();
-      log.info(String.format("S3 obj %s/%s uses system-md5 = %s", bucket, key, expectedDigest));
-    } else {
+    if (expectedDigest == null) {
       hasChecksum = false;
-      log.info(String.format("S3 obj %s/%s has no existing MD5 checksum", bucket, key));
+      expectedDigest = "";
       if (verifyChecksum) {
         log.info(String.format("need checksum but S3 obj %s/%s has no checksum", bucket, key));
+        if (s3ins != null) {
+          s3ins.close();
+        }
         return false;
       }
     }
-
-    S3Object s3Object;
-    int maxRetry = 5;
-    int retry = 0;
-    long bytesCopied = 0;
+    MessageDigest md = null;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      e.printStackTrace();
+      if (s3ins != null) {
+        s3ins.close();
+      }
+      return false;
+    }
 
     // Step 1:  download the s3 object
-    s3Object = downloadS3Object(s3client, new GetObjectRequest(bucket, key));
-    if (s3Object == null) {
-      return false;
+    if (s3ins == null) {
+      s3ins = new ResumableRangeInputStream(s3client, bucket, key,
+                                            0, metadata.getContentLength() - 1,
+                                            this.options.downloadResumes);
+      if (!s3ins.open()) {
+        return false;
+      }
     }
-    // Step 2:  copy the S3 object to buffer, and verify checksum
-    //DigestInputStream s3DigestInput = null;
-    InputStream s3ins = s3Object.getObjectContent();
-    ByteArrayOutputStream bOutput = new ByteArrayOutputStream((int)(metadata.getContentLength()));
-    MessageDigest md = null;
-    bytesCopied = 0;
+    // Step 2:  copy the S3 object to the destination, or to a buffer to replay later.
+    OutputStream outs = null;
+    byte[] buffer = null;
+    long bytesCopied = 0;
     try {
-      //s3DigestInput = new DigestInputStream(s3Object.getObjectContent(),
-      //                                         MessageDigest.getInstance("MD5"));
-      md = MessageDigest.getInstance("MD5");
-      bytesCopied = FileUtils.copyStream(s3ins, bOutput,md);
+      if (this.options.bufferSingleGetDownloads && destFilename != null) {
+        buffer = new byte[(int) metadata.getContentLength()];
+        // Write to the buffer in place.  Overflows if the object is larger than expected.
+        final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+        outs = new OutputStream() {
+          @Override
+          public void write(int b) {
+            bufferView.put((byte) b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            bufferView.put(b, off, len);
+          }
+        };
+      } else if (destFilename != null) {
+        outs = FileUtils.openHDFSOutputStreamWithProgress(destFilename, this.conf, this.progress);
+        if (outs == null) {
+          log.info("Unable to open dest file: " + destFilename);
+          return false;
+        }
+      }
+      bytesCopied = FileUtils.copyStream(s3ins, outs, md, null, this.bwMonitor);
     } catch (Exception e) {
-      e.printStackTrace();
+      log.info(String.format("download s3obj %s/%s: error copy byte %d: %s",
+                                bucket, key, bytesCopied, e.toString()));
     } finally {
+      closeQuietly(s3ins);
       try {
-        if (bOutput != null) bOutput.close();
-        if (s3ins != null) s3ins.close();
-      } catch (Exception e) {
+        if (outs != null) outs.close();
+      } catch (IOException e) {
+        log.info(String.format("download s3obj %s/%s: failed to close dest %s: %s",
+                                  bucket, key, destFilename, e.toString()));
+        bytesCopied = -1;
       }
     }
     // Make sure we get expected number of bytes, and checksum matches.
+    boolean ret = true;
     if (bytesCopied != metadata.getContentLength()) {
       log.info(String.format("download S3 obj %s/%s size %d != expected_size %d",
                                 bucket, key, bytesCopied, metadata.getContentLength()));
+      ret = false;
+    } else {
+      actualDigest = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+      this.lastMD5Checksum = actualDigest;
+      if (verifyChecksum && hasChecksum) {
+        if (expectedDigest.equals(actualDigest)) {
+          log.info(String.format("download s3obj %s/%s checksum matched: %s",
+                                    bucket, key, expectedDigest));
+        } else {
+          log.info(String.format("download s3obj %s/%s checksum mismatch: %s : %s",
+                                    bucket, key, expectedDigest, actualDigest));
+          ret = false;
+        }
+      }
+    }
+    if (!ret) {
+      if (destFilename != null && buffer == null) {
+        FileUtils.deleteHDFSDir(destFilename, this.conf);
+      }
       return false;
     }
-    actualDigest = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
-    this.lastMD5Checksum = actualDigest;
-    if (verifyChecksum && hasChecksum) {
-      if (expectedDigest.equals(actualDigest)) {
-        log.info(String.format("download s3obj %s/%s checksum matched: %s",
-                                  bucket, key, expectedDigest));
-      } else {
-        log.info(String.format("download s3obj %s/%s checksum mismatch: %s : %s",
-                                  bucket, key, expectedDigest, actualDigest));
-        return false;
+    if (buffer == null) {
+      if (destFilename != null) {
+        log.info(String.format("download  %s/%s size %d: save to dest %s with success",
+                                  bucket, key, bytesCopied, destFilename));
       }
+      return true;
     }
 
     // Step 3: copy from buffer to destination file.
-    if (destFilename == null) {
-      return true;
-    }
-    retry = 0;
-    ByteArrayInputStream bInput = null;
-    OutputStream fileOutStream = null;
+    return saveBufferToHDFSFile(buffer, destFilename, bucket, key);
+  }
+
+  /**
+   * Write a downloaded object from its buffer to the destination, with retries.
+   */
+  private boolean saveBufferToHDFSFile(byte[] buffer,
+                                       String destFilename,
+                                       String bucket,
+                                       String key) {
+    int maxRetry = 5;
+    int retry = 0;
     while (retry < maxRetry) {
       retry++;
-      bytesCopied = 0;
+      OutputStream fileOutStream = FileUtils.openHDFSOutputStream(destFilename, this.conf);
+      if (fileOutStream == null) {
+        continue;
+      }
       try {
-        bytesCopied = 0;
-        if (bInput == null) {
-          bInput = new ByteArrayInputStream(bOutput.toByteArray());
-        }
-        if (fileOutStream == null) {
-          fileOutStream = FileUtils.openHDFSOutputStream(destFilename, this.conf);
-        }
-        if (fileOutStream == null || bInput == null) {
-          continue;
-        }
-        bytesCopied = FileUtils.copyStream(bInput, fileOutStream, null);
-        if (bytesCopied == metadata.getContentLength()) {
-          log.info(String.format("download  %s/%s size %d: save to dest %s with success",
-                           bucket, key, bytesCopied, destFilename));
-          return true;
-        } else {
-          log.info(String.format("Error: download %s/%s size %d: " +
-                                    "only saved %d bytes to dest %s ",
-                           bucket, key, metadata.getContentLength(), bytesCopied, destFilename));
-          // falls through, will retry multiple times.
-        }
-      } catch (Exception e) {
-        log.info(String.format("download s3obj attempt %d: %s/%s: error copy byte %d",
-                                  retry, bucket, key, bytesCopied));
+        fileOutStream.write(buffer);
+        fileOutStream.close();
+        fileOutStream = null;
+        log.info(String.format("download  %s/%s size %d: save to dest %s with success",
+                                  bucket, key, buffer.length, destFilename));
+        return true;
+      } catch (IOException e) {
+        log.info(String.format("download s3obj attempt %d: %s/%s: error saving to %s: %s",
+                                  retry, bucket, key, destFilename, e.toString()));
       } finally {
         try {
-          log.info("close output stream: " + destFilename + ", copied bytes = " + bytesCopied);
-          if (bInput != null) bInput.close();
           if (fileOutStream != null) fileOutStream.close();
         } catch (IOException excp) {}
       }
     }
+    FileUtils.deleteHDFSDir(destFilename, this.conf);
     return false;
   }
 
@@ -422,6 +1246,16 @@ public class S3Downloader {
    * Otherwise, the object is downloaded but not saved anywhere.
    * This is useful to verify checksum.
    *
+   * Up to "downloadWindowParts" parts are downloaded or waiting to be written at a time.
+   * Each range-get reads its part into a memory buffer, and parts that complete out of
+   * order wait in a reorder buffer.  The buffers come from the task's part buffer pool,
+   * or from a pool of "window" parts of this download if there is none, so the buffers
+   * of written parts are reused.  The downloader only waits for the pool when it holds
+   * no part, and otherwise range-gets ahead only as far as the pool has room, so it never
+   * waits for buffers that only it can release.  A writer thread writes the contiguous parts to the
+   * destination, so a slow range-get doesn't block the other range-gets, and a slow
+   * destination doesn't block the range-gets that fit in the window.
+   *
    * @param s3client
    * @param bucket
    * @param key
@@ -436,48 +1270,35 @@ public class S3Downloader {
                                     String key,
                                     ObjectMetadata metadata,
                                     String destFilename,
-                                    boolean verifyChecksum) {
+                                    boolean verifyChecksum,
+                                    PartTransferScheduler.Session session) {
     // 1. Get the object's checksum.
-    Map<String, String> userMetadata = metadata.getUserMetadata();
-    String expectedDigest = "";
+    String expectedDigest = getExpectedDigest(s3client, bucket, key, metadata);
     String actualDigest = "";
-    if (userMetadata.containsKey("ContentMD5".toLowerCase())) {
-      expectedDigest = userMetadata.get("ContentMD5".toLowerCase());
-      log.info(String.format("S3 obj %s/%s uses user-provide md5 = %s",
-                                bucket, key, expectedDigest));
-    } else if (metadata.getContentMD5() != null) {
-      expectedDigest = metadata.getContentMD5();
-      log.info(String.format("S3 obj %s/%s uses system md5 = %s", bucket, key, expectedDigest));
-    } else {
-      log.info(String.format("S3 obj %s/%s has no existing MD5 checksum", bucket, key));
+    if (expectedDigest == null) {
+      expectedDigest = "";
       if (verifyChecksum) {
         log.info(String.format("need checksum but S3 obj %s/%s has no checksum", bucket, key));
         return false;
       }
     }
-     // 2. submit download part requests.
-    List<Future<RangeGetResult>> inflightParts = new LinkedList<Future<RangeGetResult>>();
-    List<RangeGetResult> partResults = new LinkedList<RangeGetResult>();
-    long currentOffset = 0;
-    long endOffset;
-    long finishedParts = 0;
-    long partNumber = 0;
-    long partSize = this.options.chunkSize; //1024L * 1024 * 32;
+    long partSize = getPartSize(metadata);
     long objectSize = metadata.getContentLength();
     long numberOfParts = (objectSize + partSize - 1) / partSize;
-    long maxInflightParts = this.options.maxInflightParts;
+    long window = Math.min(Math.max(this.options.downloadWindowParts,
+                                    this.options.maxInflightParts),
+                           numberOfParts);
     MessageDigest md = null;
     log.info(String.format("will multipart download %s/%s at chunk size %d, total %d bytes" +
-                               " in %d parts to dest : %s",
-                              bucket, key, partSize, objectSize, numberOfParts, destFilename));
+                               " in %d parts, window %d parts, to dest : %s",
+                              bucket, key, partSize, objectSize, numberOfParts, window,
+                              destFilename));
     try {
       md = MessageDigest.getInstance("MD5");
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
       return false;
-    }
-    boolean partFailed = false;
-    long bytesCopied = 0;
+    }
     OutputStream destOutStream = null;
     if (destFilename != null) {
       destOutStream = FileUtils.openHDFSOutputStreamWithProgress(destFilename, this.conf,
@@ -489,67 +1310,98 @@ public class S3Downloader {
     } else {
       log.info(String.format("will read object %s/%s, but not save to anywhere", bucket, key));
     }
-    while (finishedParts < numberOfParts) {
-      if (currentOffset < objectSize && inflightParts.size() < maxInflightParts) {
-        endOffset = Math.min(currentOffset + partSize, objectSize) - 1;
-        log.info(String.format("have %d inflight-parts, rqst part %d range [%d - %d] / %d " +
-                                   "for %s, no interim file",
-                                  inflightParts.size(), partNumber,
-                                  currentOffset, endOffset, objectSize, key));
-        inflightParts.add(this.threadPool.submit(new MultipartDownloadCallable(s3client,
-                                                                                  bucket,
-                                                                                  key,
-                                                                                  currentOffset,
-                                                                                  endOffset,
-                                                                                  partNumber,
-                                                                                  null)));
-        partNumber++;
-        currentOffset = endOffset + 1;
-        continue;
-      }
-      Future<RangeGetResult> part = inflightParts.get(0);
-      if (part.isDone()) {
-        this.progress.progress();
-        inflightParts.remove(0);
-        finishedParts++;
-        RangeGetResult r = null;
-        try {
-          r = part.get();
-          partResults.add(r);
-          if (!r.success) {
-            partFailed = true;
+
+    // 2. Keep the window full of range-gets, and hand the parts to the writer in order.
+    PartBufferPool pool = this.bufferPool;
+    if (pool == null) {
+      pool = new PartBufferPool(window * partSize, false);
+    }
+    Map<Future<RangeBuffer>, RangeBuffer> inflightParts =
+        new LinkedHashMap<Future<RangeBuffer>, RangeBuffer>();
+    BlockingQueue<Future<RangeBuffer>> doneParts = new LinkedBlockingQueue<Future<RangeBuffer>>();
+    // Parts that are done but cannot be written yet, by part number.
+    Map<Long, RangeBuffer> reorderBuffer = new TreeMap<Long, RangeBuffer>();
+    PartWriter writer = new PartWriter(destOutStream, md);
+    Thread writerThread = new Thread(writer, "hdfsbackup-part-writer-" + key);
+    writerThread.setDaemon(true);
+    writerThread.start();
+    long nextPartToSubmit = 0;
+    long nextPartToWrite = 0;
+    boolean partFailed = false;
+    try {
+      while (nextPartToWrite < numberOfParts && !writer.hasFailed()) {
+        while (nextPartToSubmit < numberOfParts &&
+                   nextPartToSubmit - writer.getWrittenParts() < window) {
+          long begin = nextPartToSubmit * partSize;
+          long end = Math.min(begin + partSize, objectSize) - 1;
+          // Holding no part, it's safe to wait for the pool.
+          ByteBuffer buffer = inflightParts.isEmpty() && reorderBuffer.isEmpty()
+                                  ? pool.acquire((int) (end - begin + 1))
+                                  : pool.tryAcquire((int) (end - begin + 1));
+          if (buffer == null) {
             break;
-          } else {
-            long len = FileUtils.copyStream(r.object.getObjectContent(), destOutStream, md);
-            r.object.getObjectContent().close();
-            if (len == (r.end - r.begin + 1)) {
-              bytesCopied += len;
-              //log.info(String.format("got obj %s/%s: range [%d, %d]", bucket, key, r.begin,
-              //                           r.end));
-            } else {
-              log.info(String.format("fail to download obj %s/%s: range [%d, %d]",
-                                        bucket, key, r.begin, r.end));
-              partFailed = true;
-              break;
-            }
           }
-        } catch (Exception e) {
-          e.printStackTrace();
-          try {
-            if (r != null && r.object != null && r.object.getObjectContent() != null) {
-              r.object.getObjectContent().close();
-            }
-          } catch (IOException exp) {}
+          log.info(String.format("rqst part %d range [%d - %d] / %d for %s, to memory",
+                                    nextPartToSubmit, begin, end, objectSize, key));
+          RangeBuffer part = new RangeBuffer(begin, end, nextPartToSubmit, pool, buffer);
+          inflightParts.put(session.submit(new RangeGetCallable(s3client, bucket, key, part),
+                                           doneParts),
+                            part);
+          nextPartToSubmit++;
+        }
+        Future<RangeBuffer> done = waitForDonePart(doneParts);
+        if (done == null) {
+          continue;
+        }
+        RangeBuffer part = inflightParts.remove(done);
+        if (!part.success && part.attempt < MAX_PART_ATTEMPTS) {
+          // Retry the part on its own, in the same buffer.
+          log.info(String.format("download %s/%s: retry failed part: %s", bucket, key,
+                                    part.toString()));
+          RangeBuffer retry = new RangeBuffer(part.begin, part.end, part.partNumber, pool,
+                                              part.buffer);
+          retry.attempt = part.attempt + 1;
+          inflightParts.put(session.submit(new RangeGetCallable(s3client, bucket, key, retry),
+                                           doneParts),
+                            retry);
+          continue;
+        }
+        if (!part.success) {
+          log.info(String.format("download %s/%s: failed part: %s", bucket, key,
+                                    part.toString()));
+          pool.release(part.buffer);
           partFailed = true;
           break;
         }
-      } else {
-        try {
-          // wait for this many ms.
-          Thread.sleep(100L);
-        } catch (InterruptedException e) {}
+        reorderBuffer.put(part.partNumber, part);
+        while (reorderBuffer.containsKey(nextPartToWrite)) {
+          writer.write(reorderBuffer.remove(nextPartToWrite));
+          nextPartToWrite++;
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info(String.format("download %s/%s: interrupted", bucket, key));
+      Thread.currentThread().interrupt();
+      partFailed = true;
+    } catch (Exception e) {
+      log.info(String.format("download %s/%s: error: %s", bucket, key, e.toString()));
+      partFailed = true;
+    } finally {
+      writer.finish();
+      // The writer may still hold part buffers, so wait for it even if interrupted.
+      if (joinUninterruptibly(writerThread)) {
+        log.info("interrupted when waiting for part writer of " + key);
+        partFailed = true;
+      }
+      for (RangeBuffer part : reorderBuffer.values()) {
+        pool.release(part.buffer);
+      }
+      for (Map.Entry<Future<RangeBuffer>, RangeBuffer> part : inflightParts.entrySet()) {
+        part.getValue().discard();
+        part.getKey().cancel(false);
       }
     }
+    long bytesCopied = writer.getBytesWritten();
     try {
       if (destOutStream != null) {
         destOutStream.close();
@@ -560,8 +1412,7 @@ public class S3Downloader {
     boolean ret = true;
     actualDigest = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
     this.lastMD5Checksum = actualDigest;
-    if (partFailed || bytesCopied != objectSize) {
-      cancelMultipartRequest(inflightParts);
+    if (partFailed || writer.hasFailed() || bytesCopied != objectSize) {
       // TODO: add a counter about the failure.
       log.info(String.format("download %s/%s failed, got bytes %d of %d",
                                 bucket, key, bytesCopied, objectSize));
@@ -584,89 +1435,94 @@ public class S3Downloader {
     return ret;
   }
 
-
   private boolean multipartDownloadViaInterimFiles(AmazonS3Client s3client,
                                                    String bucket,
                                                    String key,
                                                    ObjectMetadata metadata,
                                                    String destFilename,
                                                    boolean verifyChecksum,
-                                                   String interimDirname) {
+                                                   InterimDirAllocator.Reservation interimFiles,
+                                                   PartTransferScheduler.Session session) {
     // 1. Get the object's checksum.
-    Map<String, String> userMetadata = metadata.getUserMetadata();
-    String expectedDigest = "";
+    String expectedDigest = getExpectedDigest(s3client, bucket, key, metadata);
     String actualDigest = "";
-    if (userMetadata.containsKey("ContentMD5".toLowerCase())) {
-      expectedDigest = userMetadata.get("ContentMD5".toLowerCase());
-      log.info(String.format("S3 obj %s/%s user-provide md5 = %s", bucket, key, expectedDigest));
-    } else if (metadata.getContentMD5() != null) {
-      expectedDigest = metadata.getContentMD5();
-      log.info(String.format("S3 obj %s/%s system md5 = %s", bucket, key, expectedDigest));
-    } else {
-      log.info(String.format("S3 obj %s/%s has no existing MD5 checksum", bucket, key));
+    if (expectedDigest == null) {
+      expectedDigest = "";
       if (verifyChecksum) {
         log.info(String.format("need checksum but S3 obj %s/%s has no checksum", bucket, key));
         return false;
       }
     }
-    log.info(String.format("will multipart download %s/%s to dest %s, via temp-dir %s",
-                              bucket, key, destFilename, interimDirname));
-    // 2. submit download part requests all upfront. The exec thread pool will queue
+    log.info(String.format("will multipart download %s/%s to dest %s, via interim files",
+                              bucket, key, destFilename));
+    // 2. submit download part requests all upfront. The part transfer scheduler will queue
     // them up if unable to handle them all at one.
-    List<Future<RangeGetResult>> inflightParts = new LinkedList<Future<RangeGetResult>>();
+    Map<Future<RangeGetResult>, MultipartDownloadCallable> inflightParts =
+        new LinkedHashMap<Future<RangeGetResult>, MultipartDownloadCallable>();
+    BlockingQueue<Future<RangeGetResult>> doneParts =
+        new LinkedBlockingQueue<Future<RangeGetResult>>();
     List<RangeGetResult> partResults = new LinkedList<RangeGetResult>();
     long currentOffset = 0;
     long endOffset;
     long finishedParts = 0;
     long partNumber = 0;
-    long partSize = 1024L * 1024 * 16;
+    long partSize = getPartSize(metadata);
     long objectSize = metadata.getContentLength();
     long numberOfParts = (objectSize + partSize - 1) / partSize;
 
-    while (currentOffset < objectSize) {
-      endOffset = Math.min(currentOffset + partSize, objectSize) - 1;
-      String tempfilename = interimDirname + "/" + String.format("multipart-down-%04d", partNumber);
-      inflightParts.add(this.threadPool.submit(new MultipartDownloadCallable(s3client,
-                                                                                bucket,
-                                                                                key,
-                                                                                currentOffset,
-                                                                                endOffset,
-                                                                                partNumber,
-                                                                                tempfilename)));
-      log.info(String.format("will get part %d range [%d - %d] / %d for %s, interim file %s",
-                                partNumber, currentOffset, endOffset,
-                                objectSize, key, tempfilename));
-      partNumber++;
-      currentOffset = endOffset + 1;
-    }
-    // 3. Wait for the parts to complete.
+    try {
+      while (currentOffset < objectSize) {
+        endOffset = Math.min(currentOffset + partSize, objectSize) - 1;
+        String tempfilename = interimFiles.getFile((int) partNumber).getPath();
+        MultipartDownloadCallable part = new MultipartDownloadCallable(s3client,
+                                                                       bucket,
+                                                                       key,
+                                                                       currentOffset,
+                                                                       endOffset,
+                                                                       partNumber,
+                                                                       tempfilename);
+        inflightParts.put(session.submit(part, doneParts), part);
+        log.info(String.format("will get part %d range [%d - %d] / %d for %s, interim file %s",
+                                  partNumber, currentOffset, endOffset,
+                                  objectSize, key, tempfilename));
+        partNumber++;
+        currentOffset = endOffset + 1;
+      }
+    } catch (InterruptedException e) {
+      log.info(String.format("download %s/%s: interrupted", bucket, key));
+      Thread.currentThread().interrupt();
+      cancelMultipartRequest(inflightParts);
+      return false;
+    }
+    // 3. Wait for the parts to complete, in whatever order they complete.
+    //    Stop at the first failed part.
     while (finishedParts < numberOfParts) {
-      boolean anyPartDone = false;
+      Future<RangeGetResult> part;
       try {
-        for (int i = 0; i < inflightParts.size(); i++) {
-          Future<RangeGetResult> part = inflightParts.get(i);
-          if (part.isDone()) {
-            this.progress.progress();
-            anyPartDone = true;
-            inflightParts.remove(i);
-            partResults.add(part.get());
-            finishedParts++;
-            break;
-          }
-        }
-        if (!anyPartDone) {
-          try {
-            // wait for this many ms.
-            Thread.sleep(100L);
-          } catch (InterruptedException e) {
-          }
-        }
-      } catch (Exception e) {
+        part = waitForDonePart(doneParts);
+      } catch (InterruptedException e) {
+        log.info(String.format("download %s/%s: interrupted", bucket, key));
+        Thread.currentThread().interrupt();
+        cancelMultipartRequest(inflightParts);
+        return false;
+      }
+      if (part == null) {
+        continue;
+      }
+      inflightParts.remove(part);
+      finishedParts++;
+      if (!isPartSuccessful(part)) {
         log.info(String.format("download %s/%s: error get part %d of %d",
                                   bucket, key, finishedParts, numberOfParts));
         cancelMultipartRequest(inflightParts);
         return false;
       }
+      try {
+        partResults.add(part.get());
+      } catch (Exception e) {
+        cancelMultipartRequest(inflightParts);
+        return false;
+      }
     }
 
     // 4. Write interim parts to destination, compute checksum in the flight.
@@ -754,9 +1610,72 @@ public class S3Downloader {
     return ret;
   }
 
-  private void cancelMultipartRequest(List<Future<RangeGetResult>> parts) {
-    for (Future f : parts) {
-      f.cancel(true);
+  /**
+   * Get the part size to download an object in.  Use the part size the object was
+   * uploaded with if it's known, so that each range-get maps to one uploaded part.
+   *
+   * @param metadata
+   * @return
+   */
+  private long getPartSize(ObjectMetadata metadata) {
+    return this.options.getPartSize(metadata.getContentLength(),
+                                    metadata.getUserMetadata().get(S3Utils.PART_SIZE_METADATA));
+  }
+
+
+  /**
+   * Wait for the next part to be done, and report progress while waiting.
+   *
+   * @param doneParts
+   * @return  the part that's done, or null if none is done within the progress interval.
+   * @throws InterruptedException
+   */
+  private <T> Future<T> waitForDonePart(BlockingQueue<Future<T>> doneParts)
+      throws InterruptedException {
+    Future<T> part = doneParts.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+    this.progress.progress();
+    return part;
+  }
+
+  /**
+   * Wait for a thread to die, even if interrupted.
+   *
+   * @return  true if interrupted while waiting.  The interrupt is restored.
+   */
+  private static boolean joinUninterruptibly(Thread thread) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return interrupted;
+  }
+
+  private boolean isPartSuccessful(Future<RangeGetResult> part) {
+    try {
+      return part.get().success;
+    } catch (Exception e) {
+      log.info("part failed: " + e.toString());
+      return false;
+    }
+  }
+
+  private void cancelMultipartRequest(Map<Future<RangeGetResult>,
+                                          MultipartDownloadCallable> parts) {
+    // Don't interrupt the workers, they're shared with the other transfers.
+    for (Map.Entry<Future<RangeGetResult>, MultipartDownloadCallable> part : parts.entrySet()) {
+      part.getKey().cancel(false);
+    }
+    // The interim files are released after this, so wait for the running parts to stop.
+    for (MultipartDownloadCallable part : parts.values()) {
+      part.discard();
     }
   }
 
@@ -785,7 +1704,6 @@ public class S3Downloader {
    * Result of a range-get.
    */
   private class RangeGetResult implements Comparable<RangeGetResult> {
-    S3Object object;  // the actual content of this part.
     boolean success;  // if the range-get succeeds.
     long begin; // begin offset (inclusive)
     long end;   // end offset (inclusive)
@@ -798,7 +1716,6 @@ public class S3Downloader {
       this.begin = begin;
       this.end = end;
       this.success = false;
-      this.object = null;
       this.partNumber = partNumber;
       this.interimFilename = interimFilename;
     }
@@ -831,6 +1748,9 @@ public class S3Downloader {
     private final long end;
     private final long partNumber;
     private final String interimFilename;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean discarded = false;
 
     public MultipartDownloadCallable(AmazonS3Client s3client,
                                       String s3bucket,
@@ -854,55 +1774,405 @@ public class S3Downloader {
                               this.partNumber, this.interimFilename);
     }
 
+    private synchronized boolean begin() {
+      if (this.discarded) {
+        return false;
+      }
+      this.started = true;
+      return true;
+    }
+
+    private synchronized void end() {
+      this.finished = true;
+      notifyAll();
+    }
+
+    private synchronized boolean isDiscarded() {
+      return this.discarded;
+    }
+
+    /**
+     * The downloader gives up this part.  A part that hasn't started won't start, and a
+     * running part stops at its next read.  Returns once the part is not running, such
+     * that its interim file can be released.
+     */
+    public void discard() {
+      boolean interrupted = false;
+      synchronized (this) {
+        this.discarded = true;
+        while (this.started && !this.finished) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     @Override
     public RangeGetResult call() {
       RangeGetResult result = new RangeGetResult(this.begin, this.end, this.partNumber,
                                                     this.interimFilename);
       result.success = false;
-      GetObjectRequest request = new GetObjectRequest(s3bucket, s3key);
-      request.setRange(this.begin, this.end);
-      S3Object s3Object = downloadS3Object(this.s3client, request);
-      if (s3Object == null) {
-        log.info("failed to get part: " + toString());
+      if (!begin()) {
         return result;
       }
-      if (this.interimFilename == null) {
-        result.object = s3Object;
-        result.success = true;
-        return result;
+      try {
+        getPart(result);
+      } finally {
+        end();
+      }
+      return result;
+    }
+
+    private void getPart(RangeGetResult result) {
+      ResumableRangeInputStream ins =
+          new ResumableRangeInputStream(this.s3client, this.s3bucket, this.s3key,
+                                        this.begin, this.end, options.downloadResumes);
+      if (!ins.open()) {
+        log.info("failed to get part: " + toString());
+        return;
+      }
+      // Stop at the next read once the part is discarded.
+      InputStream partIns = new FilterInputStream(ins) {
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (isDiscarded()) {
+            throw new IOException("part is discarded: " + MultipartDownloadCallable.this);
+          }
+          return super.read(b, off, len);
+        }
+      };
+      OutputStream outs = FileUtils.openLocalOutputStream(this.interimFilename);
+      try {
+        long bytes = outs == null ? -1 : FileUtils.copyStream(partIns, outs, null, null,
+                                                                bwMonitor);
+        result.success = bytes == this.end - this.begin + 1;
+        if (!result.success) {
+          log.info("error saving part to interim file: " + toString());
+        }
+      } finally {
+        ins.close();
+        try {
+          if (outs != null) outs.close();
+        } catch (IOException e) {
+          result.success = false;
+        }
+      }
+    }
+
+  }
+
+  /**
+   * A part of a multipart download, kept in a memory buffer.
+   *
+   * The buffer is owned by the downloader once the range-get is done, such that a failed
+   * part can be retried in the same buffer.  If the part is discarded by the downloader,
+   * the buffer is released by whichever comes last.
+   */
+  private class RangeBuffer {
+    boolean success;  // if the range-get succeeds.
+    long begin; // begin offset (inclusive)
+    long end;   // end offset (inclusive)
+    long partNumber;  // multi-part number inside the file.
+    PartBufferPool pool;  // where the buffer is from.
+    ByteBuffer buffer;  // content of this part, ready to be read after the range-get.
+    int attempt = 1;  // attempts of this part, including this one.
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean discarded = false;
+
+    public RangeBuffer(long begin,
+                       long end,
+                       long partNumber,
+                       PartBufferPool pool,
+                       ByteBuffer buffer) {
+      this.begin = begin;
+      this.end = end;
+      this.success = false;
+      this.partNumber = partNumber;
+      this.pool = pool;
+      this.buffer = buffer;
+    }
+
+    private synchronized boolean begin() {
+      if (this.discarded) {
+        return false;
+      }
+      this.started = true;
+      return true;
+    }
+
+    private synchronized void end(boolean success) {
+      this.finished = true;
+      this.success = success;
+      if (this.discarded) {
+        this.pool.release(this.buffer);
+      }
+    }
+
+    /**
+     * The downloader gives up this part.  Release the buffer unless the part is running.
+     */
+    public synchronized void discard() {
+      if (this.discarded) {
+        return;
+      }
+      this.discarded = true;
+      if (!this.started || this.finished) {
+        this.pool.release(this.buffer);
+      }
+    }
+
+    public String toString() {
+      return String.format("part %03d [%d, %d] res = %s, in memory",
+                              this.partNumber, this.begin, this.end,
+                              this.success ? "success" : "failed");
+    }
+  }
+
+  /**
+   * Range-get a part into its memory buffer.  A dropped connection resumes from the
+   * last byte received.
+   */
+  private class RangeGetCallable implements Callable<RangeBuffer> {
+    private final AmazonS3Client s3client;
+    private final String s3bucket;
+    private final String s3key;
+    private final RangeBuffer part;
+
+    public RangeGetCallable(AmazonS3Client s3client,
+                            String s3bucket,
+                            String s3key,
+                            RangeBuffer part) {
+      this.s3client = s3client;
+      this.s3bucket = s3bucket;
+      this.s3key = s3key;
+      this.part = part;
+    }
+
+    @Override
+    public RangeBuffer call() {
+      if (!this.part.begin()) {
+        return this.part;
+      }
+      boolean success = false;
+      try {
+        success = getPart();
+      } finally {
+        this.part.end(success);
+      }
+      return this.part;
+    }
+
+    private boolean getPart() {
+      int length = (int) (this.part.end - this.part.begin + 1);
+      byte[] chunk = new byte[Math.min(length, 1024 * 1024)];
+      ResumableRangeInputStream ins =
+          new ResumableRangeInputStream(this.s3client, this.s3bucket, this.s3key,
+                                        this.part.begin, this.part.end,
+                                        options.downloadResumes);
+      if (!ins.open()) {
+        log.info(String.format("failed to get %s/%s: %s",
+                                  this.s3bucket, this.s3key, this.part.toString()));
+        return false;
+      }
+      this.part.buffer.clear();
+      try {
+        int len;
+        while (this.part.buffer.position() < length &&
+                   (len = ins.read(chunk, 0,
+                                   Math.min(chunk.length, this.part.buffer.remaining()))) > 0) {
+          this.part.buffer.put(chunk, 0, len);
+          if (bwMonitor != null) {
+            bwMonitor.throttle(len);
+          }
+        }
+        if (this.part.buffer.position() == length) {
+          this.part.buffer.flip();
+          return true;
+        }
+        log.info(String.format("%s/%s: %s got only %d bytes",
+                                  this.s3bucket, this.s3key, this.part.toString(),
+                                  this.part.buffer.position()));
+      } catch (IOException e) {
+        log.info(String.format("%s/%s: error reading %s: %s",
+                                  this.s3bucket, this.s3key, this.part.toString(),
+                                  e.toString()));
+      } finally {
+        ins.close();
       }
-      int retry = 0;
-      int maxRetry = 3;
-      while (retry < maxRetry) {
-        retry++;
-        OutputStream outs = null;
-        InputStream ins = null;
+      return false;
+    }
+
+  }
+
+  /**
+   * Writes the parts of a multipart download to the destination in part order,
+   * and releases their buffers.  After a write error, the remaining parts are only
+   * released.
+   */
+  private class PartWriter implements Runnable {
+    // Marks the end of the parts.
+    private final RangeBuffer END = new RangeBuffer(-1, -1, -1, null, null);
+    private final BlockingQueue<RangeBuffer> parts = new LinkedBlockingQueue<RangeBuffer>();
+    private final OutputStream outs;
+    // Channel of a local dest file, which writes the part buffers without copying.
+    private final FileChannel channel;
+    private final MessageDigest md;
+    private volatile long writtenParts = 0;
+    private volatile long bytesWritten = 0;
+    private volatile boolean failed = false;
+
+    /**
+     * @param outs  the destination.  If null, parts are only digested.
+     * @param md
+     */
+    public PartWriter(OutputStream outs, MessageDigest md) {
+      this.outs = outs;
+      this.channel = (outs instanceof FileOutputStream)
+                         ? ((FileOutputStream) outs).getChannel() : null;
+      this.md = md;
+    }
+
+    /**
+     * Queue the next part to write.
+     */
+    public void write(RangeBuffer part) {
+      this.parts.add(part);
+    }
+
+    /**
+     * No more parts.  The writer thread exits after writing the queued parts.
+     */
+    public void finish() {
+      this.parts.add(END);
+    }
+
+    public long getWrittenParts() {
+      return this.writtenParts;
+    }
+
+    public long getBytesWritten() {
+      return this.bytesWritten;
+    }
+
+    public boolean hasFailed() {
+      return this.failed;
+    }
+
+    @Override
+    public void run() {
+      byte[] chunk = new byte[1024 * 1024];
+      while (true) {
+        RangeBuffer part;
         try {
-          outs = FileUtils.openLocalOutputStream(this.interimFilename);
-          ins = s3Object.getObjectContent();
-          byte[] buffer = new byte[1024 * 1024];
-          int len = 0;
-          while ((len = ins.read(buffer)) > 0) {
-            outs.write(buffer, 0, len);
+          part = this.parts.take();
+        } catch (InterruptedException e) {
+          log.info("part writer interrupted");
+          this.failed = true;
+          return;
+        }
+        if (part == END) {
+          return;
+        }
+        try {
+          if (!this.failed && this.channel != null) {
+            ByteBuffer content = part.buffer.duplicate();
+            this.md.update(part.buffer);
+            while (content.hasRemaining()) {
+              this.bytesWritten += this.channel.write(content);
+            }
+          } else if (!this.failed) {
+            ByteBuffer buffer = part.buffer;
+            while (buffer.hasRemaining()) {
+              int len = Math.min(chunk.length, buffer.remaining());
+              buffer.get(chunk, 0, len);
+              if (this.outs != null) {
+                this.outs.write(chunk, 0, len);
+              }
+              this.md.update(chunk, 0, len);
+              this.bytesWritten += len;
+            }
           }
-          result.success = true;
-          //log.info(String.format("saved %s/%s [%d, %d] to temp file %s in attempt %d",
-          //                          this.s3bucket, this.s3key, this.begin,
-          //                          this.end, this.interimFilename, retry));
-          return result;
         } catch (IOException e) {
-          log.info("error saving part to interim file: " + toString()
-                       + " :: " + this.interimFilename);
+          log.info(String.format("failed to write %s: %s", part.toString(), e.toString()));
+          this.failed = true;
         } finally {
-          try {
-            if (outs != null) outs.close();
-            if (ins != null) ins.close();
-          } catch (IOException e) {
-          }
+          part.pool.release(part.buffer);
+          this.writtenParts++;
         }
       }
-      return result;
     }
   }
 
-}
\ No newline at end of file
+  /**
+   * md5 of a part of an object.
+   */
+  private class PartDigest {
+    int part;  // part index, from 0.
+    byte[] digest;  // null if the part cannot be downloaded.
+
+    PartDigest(int part, byte[] digest) {
+      this.part = part;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * Range-get a part and compute its md5, without keeping the content.
+   * A dropped connection resumes from the last byte received.
+   */
+  private class PartDigestCallable implements Callable<PartDigest> {
+    private final AmazonS3Client s3client;
+    private final String s3bucket;
+    private final String s3key;
+    private final int part;
+    private final long begin;
+    private final long end;
+
+    PartDigestCallable(AmazonS3Client s3client,
+                       String s3bucket,
+                       String s3key,
+                       int part,
+                       long partSize,
+                       long objectSize) {
+      this.s3client = s3client;
+      this.s3bucket = s3bucket;
+      this.s3key = s3key;
+      this.part = part;
+      this.begin = part * partSize;
+      this.end = Math.min(this.begin + partSize, objectSize) - 1;
+    }
+
+    @Override
+    public PartDigest call() {
+      ResumableRangeInputStream ins =
+          new ResumableRangeInputStream(this.s3client, this.s3bucket, this.s3key,
+                                        this.begin, this.end, options.downloadResumes);
+      if (!ins.open()) {
+        return new PartDigest(this.part, null);
+      }
+      try {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        long len = FileUtils.copyStream(ins, null, md, null, bwMonitor);
+        if (len == this.end - this.begin + 1) {
+          return new PartDigest(this.part, md.digest());
+        }
+        log.info(String.format("%s/%s: part %d range [%d - %d] got %d bytes",
+                                  this.s3bucket, this.s3key, this.part, this.begin,
+                                  this.end, len));
+      } catch (NoSuchAlgorithmException e) {
+        log.info("failed to get md5 digest: " + e.toString());
+      } finally {
+        ins.close();
+      }
+      return new PartDigest(this.part, null);
+    }
+
+  }
+}
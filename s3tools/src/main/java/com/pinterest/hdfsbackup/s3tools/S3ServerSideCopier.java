@@ -0,0 +1,462 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3ClientPool;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy S3 objects to another S3 location within S3, without moving the data through
+ * the cluster.
+ *
+ * A small object is copied with one CopyObject request.  A large object is copied by a
+ * multipart upload of UploadPartCopy requests, run by the part transfer scheduler.
+ * The parts use the part size the source was uploaded with, so the copy keeps the
+ * same part boundaries.  The user metadata, including the checksum, is carried over,
+ * and so is the checksum sidecar of the source.
+ *
+ * A file packed in a container is copied out of the container's byte range the same way.
+ */
+public class S3ServerSideCopier {
+  static final Log log = LogFactory.getLog(S3ServerSideCopier.class);
+  // CopyObject cannot copy objects larger than 5GB.
+  static final long MAX_COPY_OBJECT_SIZE = 1024L * 1024 * 1024 * 5;
+  Configuration conf;
+  // Shared client from S3ClientPool.  It is not shut down by close().
+  AmazonS3Client s3client;
+  S3CopyOptions options;
+  Progressable progress;
+  // Runs the part copies of multipart copies.
+  PartTransferScheduler scheduler;
+  // True if the scheduler is created by, and only used by, this copier.
+  boolean ownScheduler;
+
+  public S3ServerSideCopier(Configuration conf, S3CopyOptions options, Progressable progress) {
+    this(conf, options, progress, null);
+  }
+
+  /**
+   * @param conf
+   * @param options
+   * @param progress
+   * @param scheduler  the part transfer scheduler shared by the task.  If null, the copier
+   *                   creates its own scheduler.
+   */
+  public S3ServerSideCopier(Configuration conf,
+                            S3CopyOptions options,
+                            Progressable progress,
+                            PartTransferScheduler scheduler) {
+    this.conf = conf;
+    this.s3client = S3ClientPool.getClient(conf);
+    this.options = options;
+    this.progress = progress;
+    if (scheduler == null) {
+      this.scheduler = options.createPartTransferScheduler();
+      this.ownScheduler = true;
+    } else {
+      this.scheduler = scheduler;
+      this.ownScheduler = false;
+    }
+  }
+
+  public void close() {
+    if (this.ownScheduler) {
+      this.scheduler.close();
+    }
+  }
+
+  /**
+   * Copy an S3 object to another S3 object.
+   *
+   * @param srcFilename  full S3 path of the source, like "s3://bucket/key".
+   * @param destFilename  full S3 path of the dest.
+   * @return
+   */
+  public boolean copyObject(String srcFilename, String destFilename) {
+    String srcBucket = getBucket(srcFilename);
+    String srcKey = getKey(srcFilename);
+    String destBucket = getBucket(destFilename);
+    String destKey = getKey(destFilename);
+    int maxRetry = 3;
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      if (retry > 1) {
+        // Parts have been retried on their own, so back off before restarting the copy.
+        ResumableRangeInputStream.backoff(retry - 1);
+        if (Thread.currentThread().isInterrupted()) {
+          log.info("interrupted when copying " + srcFilename);
+          return false;
+        }
+      }
+      // Get the metadata at each attempt, since the etag constraint and the metadata the
+      // copy is checked against are stale if the source is rewritten.
+      ObjectMetadata metadata = S3Utils.getObjectMetadata(this.s3client, srcBucket, srcKey);
+      if (metadata == null) {
+        log.info("failed to get metadata of " + srcFilename);
+        return false;
+      }
+      long objectSize = metadata.getContentLength();
+      boolean copied;
+      if (objectSize < Math.min(this.options.multipartCopyThreshold, MAX_COPY_OBJECT_SIZE)) {
+        copied = copyAsOneObject(srcBucket, srcKey, destBucket, destKey, metadata);
+      } else {
+        copied = multipartCopy(srcBucket, srcKey, destBucket, destKey, metadata);
+      }
+      if (copied && verifyCopy(destBucket, destKey, metadata) &&
+              copyChecksumSidecar(srcBucket, srcKey, destBucket, destKey, metadata)) {
+        log.info(String.format("copied %s to %s, %d bytes", srcFilename, destFilename,
+                                  objectSize));
+        return true;
+      }
+      log.info(String.format("failed to copy %s to %s, attempt %d",
+                                srcFilename, destFilename, retry));
+    }
+    return false;
+  }
+
+  /**
+   * Copy a file packed in a container, see PackIndex, to its own S3 object.  The file's
+   * range of the container is copied by part copies, and the copy gets the file's md5
+   * in the pack index as its checksum.
+   *
+   * @param member  the packed file.
+   * @param destFilename  full S3 path of the dest.
+   * @return
+   */
+  public boolean copyPackMember(PackIndex.Member member, String destFilename) {
+    String srcBucket = getBucket(member.containerFilename);
+    String srcKey = getKey(member.containerFilename);
+    String destBucket = getBucket(destFilename);
+    String destKey = getKey(destFilename);
+    PackIndex.Entry entry = member.entry;
+    if (entry.length == 0) {
+      // A part copy cannot copy an empty range.
+      return S3Utils.putS3Object(this.s3client, destBucket, destKey, new byte[0], 0,
+                                 new ObjectMetadata());
+    }
+    long partSize = this.options.getPartSize(entry.length);
+    ObjectMetadata destMetadata = new ObjectMetadata();
+    destMetadata.addUserMetadata("contentmd5", entry.md5);
+    destMetadata.addUserMetadata("contentlength", String.valueOf(entry.length));
+    destMetadata.addUserMetadata(S3Utils.PART_SIZE_METADATA, String.valueOf(partSize));
+    // What the copy is checked against.
+    ObjectMetadata expectedMetadata = new ObjectMetadata();
+    expectedMetadata.setContentLength(entry.length);
+    expectedMetadata.setUserMetadata(destMetadata.getUserMetadata());
+    int maxRetry = 3;
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      if (retry > 1) {
+        ResumableRangeInputStream.backoff(retry - 1);
+        if (Thread.currentThread().isInterrupted()) {
+          log.info("interrupted when copying " + member.getFilename());
+          return false;
+        }
+      }
+      // The copy is of the container as it is now, so a rewritten container is not mixed in.
+      ObjectMetadata containerMetadata = S3Utils.getObjectMetadata(this.s3client,
+                                                                   srcBucket, srcKey);
+      if (containerMetadata == null) {
+        log.info("failed to get metadata of pack " + member.containerFilename);
+        return false;
+      }
+      if (entry.offset + entry.length > containerMetadata.getContentLength()) {
+        log.info(String.format("pack %s has %d bytes, too short for %s",
+                                  member.containerFilename,
+                                  containerMetadata.getContentLength(), entry.toString()));
+        return false;
+      }
+      if (multipartCopyRange(srcBucket, srcKey, containerMetadata.getETag(), entry.offset,
+                             entry.length, destBucket, destKey, destMetadata, partSize) &&
+              verifyCopy(destBucket, destKey, expectedMetadata)) {
+        log.info(String.format("copied %s from pack %s to %s, %d bytes",
+                                  member.getFilename(), member.containerFilename,
+                                  destFilename, entry.length));
+        return true;
+      }
+      log.info(String.format("failed to copy %s from pack %s to %s, attempt %d",
+                                member.getFilename(), member.containerFilename,
+                                destFilename, retry));
+    }
+    return false;
+  }
+
+  private static String getBucket(String filename) {
+    return new Path(filename).toUri().getHost();
+  }
+
+  private static String getKey(String filename) {
+    URI uri = new Path(filename).toUri();
+    String key = uri.getPath();
+    if (key.startsWith("/")) {
+      key = key.substring(1);
+    }
+    return key;
+  }
+
+  private boolean copyAsOneObject(String srcBucket,
+                                  String srcKey,
+                                  String destBucket,
+                                  String destKey,
+                                  ObjectMetadata metadata) {
+    CopyObjectRequest request = new CopyObjectRequest(srcBucket, srcKey, destBucket, destKey)
+                                    .withMatchingETagConstraint(metadata.getETag());
+    try {
+      log.info(String.format("will copy %s/%s to %s/%s in one request, %d bytes",
+                                srcBucket, srcKey, destBucket, destKey,
+                                metadata.getContentLength()));
+      if (this.s3client.copyObject(request) == null) {
+        log.info(String.format("source %s/%s changed during copy", srcBucket, srcKey));
+        return false;
+      }
+      return true;
+    } catch (AmazonServiceException ase) {
+      log.info("Server error: " + S3Utils.AWSServiceExceptionToString(ase));
+    } catch (AmazonClientException ace) {
+      log.info("Client error: " + ace.toString());
+    }
+    return false;
+  }
+
+  /**
+   * Copy an object by a multipart upload of part copies.
+   */
+  private boolean multipartCopy(String srcBucket,
+                                String srcKey,
+                                String destBucket,
+                                String destKey,
+                                ObjectMetadata metadata) {
+    long objectSize = metadata.getContentLength();
+    long partSize = this.options.getPartSize(
+        objectSize, metadata.getUserMetadata().get(S3Utils.PART_SIZE_METADATA));
+    ObjectMetadata destMetadata = new ObjectMetadata();
+    for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+      destMetadata.addUserMetadata(entry.getKey(), entry.getValue());
+    }
+    if (metadata.getContentType() != null) {
+      destMetadata.setContentType(metadata.getContentType());
+    }
+    // Downloads of the copy use the same part boundaries.
+    destMetadata.addUserMetadata(S3Utils.PART_SIZE_METADATA, String.valueOf(partSize));
+    return multipartCopyRange(srcBucket, srcKey, metadata.getETag(), 0, objectSize,
+                              destBucket, destKey, destMetadata, partSize);
+  }
+
+  /**
+   * Copy a byte range of an object to a new object, by a multipart upload of part copies.
+   *
+   * @param srcETag  the etag the source must still have.
+   * @param srcOffset  offset of the range in the source.
+   * @param length  length of the range, > 0.
+   * @param destMetadata  metadata of the new object.
+   * @param partSize
+   * @return
+   */
+  private boolean multipartCopyRange(String srcBucket,
+                                     String srcKey,
+                                     String srcETag,
+                                     long srcOffset,
+                                     long length,
+                                     String destBucket,
+                                     String destKey,
+                                     ObjectMetadata destMetadata,
+                                     long partSize) {
+    int numberOfParts = (int) ((length + partSize - 1) / partSize);
+    String uploadId;
+    try {
+      uploadId = this.s3client.initiateMultipartUpload(
+          new InitiateMultipartUploadRequest(destBucket, destKey)
+              .withObjectMetadata(destMetadata)).getUploadId();
+    } catch (AmazonClientException e) {
+      log.info(String.format("failed to initiate multipart copy to %s/%s: %s",
+                                destBucket, destKey, e.toString()));
+      return false;
+    }
+    log.info(String.format("will copy %s/%s to %s/%s in %d parts of %d bytes",
+                              srcBucket, srcKey, destBucket, destKey, numberOfParts, partSize));
+
+    PartTransferScheduler.Session session = this.scheduler.newSession(destBucket + "/" + destKey);
+    List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+    BlockingQueue<Future<PartETag>> doneParts = new LinkedBlockingQueue<Future<PartETag>>();
+    boolean success = false;
+    try {
+      for (int partNumber = 1; partNumber <= numberOfParts; partNumber++) {
+        long firstByte = srcOffset + (partNumber - 1) * partSize;
+        long lastByte = Math.min(firstByte + partSize, srcOffset + length) - 1;
+        CopyPartRequest request = new CopyPartRequest()
+                                      .withSourceBucketName(srcBucket)
+                                      .withSourceKey(srcKey)
+                                      .withDestinationBucketName(destBucket)
+                                      .withDestinationKey(destKey)
+                                      .withUploadId(uploadId)
+                                      .withPartNumber(partNumber)
+                                      .withFirstByte(firstByte)
+                                      .withLastByte(lastByte)
+                                      .withMatchingETagConstraint(srcETag);
+        parts.add(session.submit(new CopyPartCallable(request), doneParts));
+      }
+      int finishedParts = 0;
+      while (finishedParts < numberOfParts) {
+        Future<PartETag> part = doneParts.poll(S3Downloader.PROGRESS_INTERVAL,
+                                               TimeUnit.MILLISECONDS);
+        this.progress.progress();
+        if (part == null) {
+          continue;
+        }
+        finishedParts++;
+        part.get();
+      }
+      List<PartETag> etags = new ArrayList<PartETag>();
+      for (Future<PartETag> part : parts) {
+        etags.add(part.get());
+      }
+      this.s3client.completeMultipartUpload(
+          new CompleteMultipartUploadRequest(destBucket, destKey, uploadId, etags));
+      success = true;
+      return true;
+    } catch (InterruptedException e) {
+      log.info(String.format("multipart copy to %s/%s interrupted", destBucket, destKey));
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      log.info(String.format("multipart copy to %s/%s failed: %s",
+                                destBucket, destKey, e.toString()));
+      return false;
+    } finally {
+      session.close();
+      if (!success) {
+        // Don't interrupt the workers, they're shared with the other transfers.  The
+        // parts not started are already dropped by the session.
+        for (Future<PartETag> part : parts) {
+          part.cancel(false);
+        }
+        try {
+          this.s3client.abortMultipartUpload(
+              new AbortMultipartUploadRequest(destBucket, destKey, uploadId));
+        } catch (AmazonClientException e) {
+          log.info(String.format("failed to abort multipart copy to %s/%s: %s",
+                                    destBucket, destKey, e.toString()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Check that the dest has the size and user metadata of the source.
+   */
+  private boolean verifyCopy(String destBucket, String destKey, ObjectMetadata metadata) {
+    ObjectMetadata destMetadata = S3Utils.getObjectMetadata(this.s3client, destBucket, destKey);
+    if (destMetadata == null) {
+      log.info(String.format("failed to get metadata of copied object %s/%s",
+                                destBucket, destKey));
+      return false;
+    }
+    if (destMetadata.getContentLength() != metadata.getContentLength()) {
+      log.info(String.format("copied object %s/%s has %d bytes != source %d bytes",
+                                destBucket, destKey, destMetadata.getContentLength(),
+                                metadata.getContentLength()));
+      return false;
+    }
+    for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+      if (!entry.getValue().equals(destMetadata.getUserMetadata().get(entry.getKey()))) {
+        log.info(String.format("copied object %s/%s lost user metadata %s",
+                                  destBucket, destKey, entry.getKey()));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copy the checksum sidecar of the source, if it has one.
+   */
+  private boolean copyChecksumSidecar(String srcBucket,
+                                      String srcKey,
+                                      String destBucket,
+                                      String destKey,
+                                      ObjectMetadata metadata) {
+    if (!S3Utils.hasChecksumSidecar(metadata)) {
+      return true;
+    }
+    Map<String, String> sidecar = S3Utils.getChecksumSidecar(this.s3client, srcBucket, srcKey);
+    if (sidecar == null) {
+      log.info(String.format("failed to read checksum sidecar of %s/%s", srcBucket, srcKey));
+      return false;
+    }
+    return S3Utils.putChecksumSidecar(this.s3client, destBucket, destKey, sidecar);
+  }
+
+  private class CopyPartCallable implements Callable<PartETag> {
+    private final CopyPartRequest request;
+
+    CopyPartCallable(CopyPartRequest request) {
+      this.request = request;
+    }
+
+    public PartETag call() throws Exception {
+      int maxRetry = 5;
+      int retry = 0;
+      while (true) {
+        retry++;
+        if (retry > 1) {
+          ResumableRangeInputStream.backoff(retry - 1);
+          if (Thread.interrupted()) {
+            throw new InterruptedException("copyPart interrupted");
+          }
+        }
+        try {
+          log.info(String.format("S3 copyPart %s/%s, part:%d attempt:%d range [%d - %d]",
+                                    this.request.getDestinationBucketName(),
+                                    this.request.getDestinationKey(),
+                                    this.request.getPartNumber(), retry,
+                                    this.request.getFirstByte(), this.request.getLastByte()));
+          CopyPartResult result = S3ServerSideCopier.this.s3client.copyPart(this.request);
+          if (result == null) {
+            // The source doesn't match the etag constraint any more.
+            throw new IOException(String.format("source %s/%s changed during copy",
+                                                   this.request.getSourceBucketName(),
+                                                   this.request.getSourceKey()));
+          }
+          return result.getPartETag();
+        } catch (AmazonServiceException e) {
+          log.info(String.format("***** exception when copyPart() part %d attempt %d: %s",
+                                    this.request.getPartNumber(), retry,
+                                    S3Utils.AWSServiceExceptionToString(e)));
+          // Errors that won't go away by retrying.
+          int status = e.getStatusCode();
+          if (retry >= maxRetry || status == 403 || status == 404) {
+            throw e;
+          }
+        } catch (AmazonClientException e) {
+          log.info(String.format("***** exception when copyPart() part %d attempt %d: %s",
+                                    this.request.getPartNumber(), retry, e.toString()));
+          if (retry >= maxRetry) {
+            throw e;
+          }
+        }
+      }
+    }
+  }
+}
@@ -1,29 +1,42 @@
 package com.pinterest.hdfsbackup.s3tools;
 
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
 import com.pinterest.hdfsbackup.utils.DirEntry;
+import com.pinterest.hdfsbackup.utils.FSType;
+import com.pinterest.hdfsbackup.utils.FilePair;
 import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.InterimDirAllocator;
+import com.pinterest.hdfsbackup.utils.MultiDigest;
 import com.pinterest.hdfsbackup.utils.NetworkBandwidthMonitor;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3ClientPool;
 import com.pinterest.hdfsbackup.utils.S3Utils;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.Progressable;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.UUID;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * Created by shawn on 9/1/14.
@@ -31,12 +44,20 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class S3Uploader {
   static final Log log = LogFactory.getLog(S3Uploader.class);
   Configuration conf;
+  // Shared client from S3ClientPool.  It is not shut down by close().
   AmazonS3Client s3client;
-  ThreadPoolExecutor threadPool;
   S3CopyOptions options;
   Progressable progress;
   NetworkBandwidthMonitor bwMonitor;
-  // md5 checksum of the last downloaded file.
+  // If not null, multipart chunks are kept in memory buffers from this pool.
+  PartBufferPool bufferPool;
+  // Runs the part uploads. If null, each multipart upload uses its own scheduler.
+  PartTransferScheduler scheduler;
+  // Places the temp files of multipart uploads that don't use memory buffers.
+  InterimDirAllocator interimDirs;
+  // If not null, known md5s of source files, to skip the checksum pre-pass.
+  ChecksumCache checksumCache;
+  // md5 checksum of the last uploaded file.
   String lastMD5Checksum = "";
 
   public S3Uploader(Configuration conf,
@@ -49,17 +70,60 @@ public class S3Uploader {
                     S3CopyOptions options,
                     Progressable progress,
                     NetworkBandwidthMonitor bwMonitor) {
+    this(conf, options, progress, bwMonitor, null);
+  }
+
+  public S3Uploader(Configuration conf,
+                    S3CopyOptions options,
+                    Progressable progress,
+                    NetworkBandwidthMonitor bwMonitor,
+                    PartBufferPool bufferPool) {
+    this(conf, options, progress, bwMonitor, bufferPool, null);
+  }
+
+  public S3Uploader(Configuration conf,
+                    S3CopyOptions options,
+                    Progressable progress,
+                    NetworkBandwidthMonitor bwMonitor,
+                    PartBufferPool bufferPool,
+                    PartTransferScheduler scheduler) {
+    this(conf, options, progress, bwMonitor, bufferPool, scheduler, null);
+  }
+
+  public S3Uploader(Configuration conf,
+                    S3CopyOptions options,
+                    Progressable progress,
+                    NetworkBandwidthMonitor bwMonitor,
+                    PartBufferPool bufferPool,
+                    PartTransferScheduler scheduler,
+                    InterimDirAllocator interimDirs) {
+    this(conf, options, progress, bwMonitor, bufferPool, scheduler, interimDirs, null);
+  }
+
+  public S3Uploader(Configuration conf,
+                    S3CopyOptions options,
+                    Progressable progress,
+                    NetworkBandwidthMonitor bwMonitor,
+                    PartBufferPool bufferPool,
+                    PartTransferScheduler scheduler,
+                    InterimDirAllocator interimDirs,
+                    ChecksumCache checksumCache) {
     this.conf = conf;
-    this.s3client = S3Utils.createAmazonS3Client(conf);
-    //this.threadPool = Utils.createDefaultExecutorService();
+    this.s3client = S3ClientPool.getClient(conf);
     this.options = options;
     this.progress = progress;
     this.bwMonitor = bwMonitor;
+    this.bufferPool = bufferPool;
+    this.scheduler = scheduler;
+    if (interimDirs == null && bufferPool == null) {
+      interimDirs = options.createInterimDirAllocator();
+    }
+    this.interimDirs = interimDirs;
+    this.checksumCache = checksumCache;
   }
 
   public void close() {
-
-    this.s3client.shutdown();
+    // Nothing to release.  The s3 client is shared by other transfers.
   }
 
   public String getLastMD5Checksum() {
@@ -97,6 +161,15 @@ public class S3Uploader {
    * 2. Create object metadata including the original checksum, and initiates multipart-upload
    *    to S3.
    *
+   * With "singlePassUpload" the source file is read only once: step 1 is skipped, the
+   * checksum is computed while the parts are uploaded, and then saved to a checksum sidecar
+   * object since the object metadata cannot be changed without a copyObject().
+   * A large file with "parallelReadUpload" is also read only once, by parallel reads of
+   * its parts, see ParallelReadUpload.
+   * If the checksum cache has the checksum of this version of the source file, step 1 is
+   * skipped, and the checksum computed during upload is checked against the cached one.
+   * Only the checksum of step 1 is added to the cache.
+   *
    * @param srcFilename
    * @param destFilename
    * @return
@@ -119,26 +192,53 @@ public class S3Uploader {
     if (key.startsWith("/")) {
       key = key.substring(1);
     }
+    if (srcFileSize < this.options.singlePutThreshold) {
+      return putSmallFile(srcFilename, srcFileSize, bucket, key);
+    }
+
+    long partSize = this.options.getPartSize(srcFileSize);
+    boolean parallelRead = false;
+    // Parts of a local file are mapped rather than read, so a local file of any multipart
+    // size is uploaded by parallel reads.
+    if (this.options.parallelReadUpload &&
+            (srcFileSize >= this.options.parallelReadThreshold ||
+                 FileUtils.getFSType(srcFilename) == FSType.LOCAL)) {
+      FileStatus srcStatus = FileUtils.getHDFSFileStatus(srcFilename, this.conf);
+      if (srcStatus != null) {
+        parallelRead = true;
+        partSize = ParallelReadUpload.alignPartSize(partSize, srcStatus.getBlockSize());
+      }
+    }
 
     // 2. We will compute the HDFS file original checksum before uploading. This checksum
     //    is piggybacked to the S3 object.
     int maxRetry = 5;
     int retry = 0;
     String srcDigest = null;
+    // md5 of each part from the pre-pass, so the upload doesn't hash the content again.
+    List<byte[]> srcPartDigests = null;
     boolean srcDigestSuccess = false;
-    boolean computeSourceChecksum = true;
+    String srcVersion = null;
+    if (this.checksumCache != null) {
+      srcVersion = this.checksumCache.getVersion(srcFilename);
+      srcDigest = this.checksumCache.get(srcFilename, srcVersion);
+    }
+    boolean cachedSourceChecksum = srcDigest != null;
+    boolean computeSourceChecksum =
+        !this.options.singlePassUpload && !parallelRead && !cachedSourceChecksum;
     if (computeSourceChecksum) {
       while (retry < maxRetry) {
         retry++;
-        MessageDigest md = null;
+        MultiDigest md = null;
         try {
-          md = MessageDigest.getInstance("MD5");
+          md = new MultiDigest(partSize, false);
         } catch (NoSuchAlgorithmException e) {
           e.printStackTrace();
           return false;
         }
         if (FileUtils.computeHDFSDigest(srcFilename, this.conf, md, this.bwMonitor)) {
           srcDigest = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+          srcPartDigests = md.getPartDigests();
           srcDigestSuccess = true;
           break;
         } else {
@@ -159,16 +259,310 @@ public class S3Uploader {
       metadata.addUserMetadata("contentmd5", srcDigest);
     }
     metadata.addUserMetadata("contentlength", String.valueOf(srcFileSize));
+    // Downloads use the same part boundaries.
+    metadata.addUserMetadata(S3Utils.PART_SIZE_METADATA, String.valueOf(partSize));
+    if (srcDigest == null) {
+      // Tell readers to find the checksum at the sidecar written after upload.
+      metadata.addUserMetadata(S3Utils.CHECKSUM_SIDECAR_METADATA, "true");
+    }
     retry = 0;
     log.info("Will multipart-upload " + srcFilename
                  + " with metadata:" + S3Utils.objectMetadataToString(metadata));
+    UploadJournal journal = openUploadJournal(srcFilename, bucket, key, partSize, metadata);
     while (retry < maxRetry) {
       retry++;
-      if (multipartUploadFile(srcFilename, bucket, key, metadata)) {
+      boolean success;
+      if (parallelRead) {
+        success = parallelReadUploadFile(srcFilename, bucket, key, metadata, partSize, journal);
+      } else {
+        success = multipartUploadFile(srcFilename, bucket, key, metadata, journal,
+                                      srcPartDigests);
+      }
+      if (success) {
+        // Only a checksum of the source read before upload is cached.  The one computed
+        // during upload would be checked against the object made from the same read.
+        if (this.checksumCache != null && srcDigestSuccess) {
+          this.checksumCache.put(srcFilename, srcVersion, srcDigest);
+        }
         return true;
       }
     }
     log.info(String.format("multipart-upload failed: %s/%s", bucket, key));
+    if (cachedSourceChecksum) {
+      // The cached checksum may be wrong, so the next upload computes it again.
+      log.info("drop cached checksum of " + srcFilename);
+      this.checksumCache.remove(srcFilename);
+    }
+    return false;
+  }
+
+  /**
+   * Open the journal to make an upload resumable.  If the journal has an upload of
+   * a different version of the source file, or one started with a different checksum
+   * metadata, that upload is aborted.
+   *
+   * @return  the journal, or null if upload journals are not enabled.
+   */
+  private UploadJournal openUploadJournal(String srcFilename,
+                                          String bucket,
+                                          String key,
+                                          long partSize,
+                                          ObjectMetadata metadata) {
+    if (this.options.uploadJournalDir == null || this.options.uploadJournalDir.isEmpty()) {
+      return null;
+    }
+    FileStatus srcStatus = FileUtils.getHDFSFileStatus(srcFilename, this.conf);
+    if (srcStatus == null) {
+      return null;
+    }
+    UploadJournal journal = UploadJournal.load(this.conf, this.options.uploadJournalDir,
+                                               bucket, key);
+    String checksumMode = UploadJournal.getChecksumMode(metadata);
+    if (!journal.matches(srcFilename, srcStatus.getLen(), srcStatus.getModificationTime(),
+                         partSize, checksumMode)) {
+      if (journal.getUploadId() != null) {
+        log.info("source file or checksum changed, drop previous upload: "
+                     + journal.toString());
+        try {
+          this.s3client.abortMultipartUpload(
+              new AbortMultipartUploadRequest(bucket, key, journal.getUploadId()));
+        } catch (Exception e) {
+          log.info("failed to abort previous upload: " + e.toString());
+        }
+      }
+      journal.reset(srcFilename, srcStatus.getLen(), srcStatus.getModificationTime(),
+                    partSize, checksumMode);
+    }
+    return journal;
+  }
+
+  /**
+   * Create an empty S3 object, or a dir marker if the name ends with "/".
+   * @param destFilename
+   * @return
+   */
+  public boolean putEmptyObject(String destFilename) {
+    return S3Utils.createS3Object(this.s3client, destFilename);
+  }
+
+  /**
+   * Pack HDFS files into one container object, and save the container's index.
+   *
+   * @param members  the files to pack.  Their dest files must be under the pack root
+   *                 of the container, see PackIndex.getPackRoot().
+   * @param containerFilename  full S3 path of the container.
+   * @return
+   */
+  public boolean uploadPack(List<FilePair> members, String containerFilename) {
+    Path destPath = new Path(containerFilename);
+    URI destUri = destPath.toUri();
+    String bucket = destUri.getHost();
+    String key = destUri.getPath();
+    if (key.startsWith("/")) {
+      key = key.substring(1);
+    }
+    String packRoot = PackIndex.getPackRoot(containerFilename) + "/";
+    long totalBytes = 0;
+    for (FilePair member : members) {
+      if (!member.destFile.toString().startsWith(packRoot)) {
+        log.info(String.format("pack member %s is not under %s", member.toString(), packRoot));
+        return false;
+      }
+      totalBytes += member.fileSize.get();
+    }
+    // A re-run packs the same files into the same container, see PackIndex.getContainerName().
+    PackIndex existingIndex = PackIndex.read(this.s3client, bucket, key);
+    if (existingIndex != null && isPacked(existingIndex, members, packRoot)) {
+      log.info(String.format("%s already holds the %d files, skip it",
+                                containerFilename, members.size()));
+      return true;
+    }
+    int maxRetry = 3;
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      log.info(String.format("will pack %d files, %d bytes, to %s, attempt %d",
+                                members.size(), totalBytes, containerFilename, retry));
+      PackIndex index = packFiles(members, packRoot, totalBytes, bucket, key);
+      if (index != null && index.write(this.s3client, bucket, key)) {
+        log.info(String.format("have packed %d files to %s", members.size(), containerFilename));
+        return true;
+      }
+    }
+    log.info("failed to pack files to " + containerFilename);
+    return false;
+  }
+
+  /**
+   * @return  true if the index lists the members in the same order, with the same
+   *          sizes and md5s.
+   */
+  private boolean isPacked(PackIndex index, List<FilePair> members, String packRoot) {
+    List<PackIndex.Entry> entries = index.getEntries();
+    if (entries.size() != members.size()) {
+      return false;
+    }
+    for (int i = 0; i < members.size(); i++) {
+      FilePair member = members.get(i);
+      PackIndex.Entry entry = entries.get(i);
+      if (!entry.name.equals(member.destFile.toString().substring(packRoot.length())) ||
+              entry.length != member.fileSize.get()) {
+        return false;
+      }
+    }
+    try {
+      for (int i = 0; i < members.size(); i++) {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        if (!FileUtils.computeHDFSDigest(members.get(i).srcFile.toString(), this.conf, md,
+                                         this.bwMonitor)) {
+          return false;
+        }
+        String md5 = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
+        if (!md5.equals(entries.get(i).md5)) {
+          return false;
+        }
+      }
+    } catch (NoSuchAlgorithmException e) {
+      log.info("failed to get md5 digest instance");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Write the members to a container object.  A small container is put from memory,
+   * a larger one is uploaded by multipart upload.
+   *
+   * @return  index of the container, or null if failed.
+   */
+  private PackIndex packFiles(List<FilePair> members,
+                              String packRoot,
+                              long totalBytes,
+                              String bucket,
+                              String key) {
+    ByteArrayOutputStream memoryContainer = null;
+    MultipartUploadOutputStream s3OutStream = null;
+    try {
+      MessageDigest containerMd = MessageDigest.getInstance("MD5");
+      OutputStream outs;
+      if (totalBytes < this.options.singlePutThreshold) {
+        memoryContainer = new ByteArrayOutputStream((int) totalBytes);
+        outs = memoryContainer;
+      } else {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(totalBytes);
+        metadata.addUserMetadata("contentlength", String.valueOf(totalBytes));
+        metadata.addUserMetadata(S3Utils.PART_SIZE_METADATA,
+                                 String.valueOf(this.options.getPartSize(totalBytes)));
+        s3OutStream = new MultipartUploadOutputStream(this.s3client, bucket, key, metadata,
+                                                         this.options, this.conf, this.progress,
+                                                         null, this.bufferPool,
+                                                         this.scheduler, null, this.interimDirs);
+        outs = s3OutStream;
+      }
+      // A multipart container hashes its content along with its parts.
+      OutputStream containerOuts = s3OutStream != null ? outs
+                                       : new DigestOutputStream(outs, containerMd);
+      PackIndex index = new PackIndex();
+      long offset = 0;
+      for (FilePair member : members) {
+        String srcFilename = member.srcFile.toString();
+        InputStream ins = FileUtils.openHDFSInputStream(srcFilename, this.conf);
+        if (ins == null) {
+          log.info("failed to open pack member: " + srcFilename);
+          return null;
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        long len;
+        try {
+          len = FileUtils.copyStream(ins, containerOuts, md, this.progress, this.bwMonitor);
+        } finally {
+          ins.close();
+        }
+        if (len != member.fileSize.get()) {
+          log.info(String.format("pack member %s: copied %d bytes != expected %d bytes",
+                                    srcFilename, len, member.fileSize.get()));
+          return null;
+        }
+        String name = member.destFile.toString().substring(packRoot.length());
+        index.addEntry(new PackIndex.Entry(name, offset, len,
+                           new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"))));
+        offset += len;
+      }
+      index.containerLength = offset;
+      if (memoryContainer != null) {
+        index.containerMD5 = new String(Base64.encodeBase64(containerMd.digest()),
+                                           Charset.forName("UTF-8"));
+        if (!S3Utils.putS3Object(this.s3client, bucket, key, memoryContainer.toByteArray(),
+                                    memoryContainer.size(), new ObjectMetadata())) {
+          return null;
+        }
+      } else {
+        s3OutStream.close();
+        index.containerMD5 = s3OutStream.getContentMD5();
+        s3OutStream = null;
+      }
+      return index;
+    } catch (NoSuchAlgorithmException e) {
+      log.info("failed to get md5 digest instance");
+      return null;
+    } catch (IOException e) {
+      log.info(String.format("Exception when packing files to %s/%s: %s",
+                                bucket, key, e.toString()));
+      return null;
+    } finally {
+      if (s3OutStream != null) {
+        s3OutStream.abort();
+      }
+    }
+  }
+
+  /**
+   * Upload a small HDFS file to S3 with a single PutObject request.
+   * The file is read into memory once, and its checksum is computed from memory.
+   *
+   * @param srcFilename
+   * @param srcFileSize
+   * @param destBucket
+   * @param destKey
+   * @return
+   */
+  private boolean putSmallFile(String srcFilename,
+                               long srcFileSize,
+                               String destBucket,
+                               String destKey) {
+    int maxRetry = 5;
+    int retry = 0;
+    while (retry < maxRetry) {
+      retry++;
+      InputStream inputStream = FileUtils.openHDFSInputStream(srcFilename, this.conf);
+      if (inputStream == null) {
+        log.info("failed to open src file: " + srcFilename);
+        continue;
+      }
+      ByteArrayOutputStream content = new ByteArrayOutputStream((int) srcFileSize);
+      long bytesRead;
+      try {
+        bytesRead = FileUtils.copyStream(inputStream, content, null, this.progress,
+                                            this.bwMonitor);
+      } finally {
+        try {
+          inputStream.close();
+        } catch (IOException e) {}
+      }
+      if (bytesRead != srcFileSize) {
+        log.info(String.format("read %d bytes != actual bytes %d, attempt %d: %s",
+                                  bytesRead, srcFileSize, retry, srcFilename));
+        continue;
+      }
+      log.info(String.format("will put %s to %s/%s in one request, %d bytes",
+                                srcFilename, destBucket, destKey, bytesRead));
+      if (S3Utils.putS3Object(this.s3client, destBucket, destKey, content.toByteArray(),
+                                 (int) bytesRead, new ObjectMetadata())) {
+        return true;
+      }
+    }
+    log.info(String.format("single put failed: %s/%s", destBucket, destKey));
     return false;
   }
 
@@ -181,22 +575,25 @@ public class S3Uploader {
    * @param destKey
    * @param metadata The object metadata to assign to this to-be created S3 object.
    *                 It should contain the correct md5 checksum.
+   * @param journal  if not null, resume the upload recorded in this journal.
+   * @param partMD5s  md5 of each part from the checksum pre-pass, or null.  With these
+   *                  the content is not hashed again: S3 checks each part against its md5.
    * @return
    */
   private boolean multipartUploadFile(String srcFilename,
                                       String destBucket,
                                       String destKey,
-                                      ObjectMetadata metadata) {
-    OutputStream s3OutStream = null;
+                                      ObjectMetadata metadata,
+                                      UploadJournal journal,
+                                      List<byte[]> partMD5s) {
+    MultipartUploadOutputStream s3OutStream = null;
     InputStream inputStream = null;
-    String tempDirname = "/tmp/" + UUID.randomUUID();
-    FileUtils.createLocalDir(tempDirname);
-    log.info(String.format("will multipart-upload %s to %s/%s: chunksize = %d, "
-                               + "expects %d bytes, use temp dir: %s",
+    log.info(String.format("will multipart-upload %s to %s/%s: part size = %d, "
+                               + "expects %d bytes, use %s",
                               srcFilename, destBucket, destKey,
-                              this.options.chunkSize,
+                              this.options.getPartSize(metadata.getContentLength()),
                               metadata.getContentLength(),
-                              tempDirname));
+                              this.bufferPool != null ? "memory buffers" : "interim files"));
     try {
       inputStream = FileUtils.openHDFSInputStream(srcFilename, this.conf);
       s3OutStream = new MultipartUploadOutputStream(this.s3client,
@@ -206,21 +603,22 @@ public class S3Uploader {
                                                        this.options,
                                                        this.conf,
                                                        this.progress,
-                                                       tempDirname);
+                                                       null,
+                                                       this.bufferPool,
+                                                       this.scheduler,
+                                                       journal,
+                                                       this.interimDirs);
       if (inputStream == null || s3OutStream == null) {
         log.info("multipart-upload: failed to open input/output streams.");
         return false;
       }
-      MessageDigest md;
-      try {
-        md = MessageDigest.getInstance("MD5");
-      } catch (NoSuchAlgorithmException e) {
-        log.info("multipart-upload: fail to get digest instance");
-        return false;
+      if (partMD5s != null) {
+        s3OutStream.setPartMD5s(partMD5s);
       }
+      // The stream hashes the content along with its parts.
       long bytesCopied = FileUtils.copyStream(inputStream,
                                                  s3OutStream,
-                                                 md,
+                                                 null,
                                                  this.progress,
                                                  this.bwMonitor);
       if (bytesCopied != metadata.getContentLength()) {
@@ -230,58 +628,133 @@ public class S3Uploader {
       }
       // Flush all buffered data to S3.
       s3OutStream.close();
+      List<PartETag> partETags = s3OutStream.getPartETags();
+      // With the pre-pass part md5s, the parts S3 accepted add up to the pre-pass checksum.
+      String currChecksum = partMD5s != null ? metadata.getUserMetadata().get("contentmd5")
+                                             : s3OutStream.getContentMD5();
       s3OutStream = null;
 
-      String currChecksum = new String(Base64.encodeBase64(md.digest()), Charset.forName("UTF-8"));
-
-      // double check the online checksum with user-provided checksum.
-      if (metadata.getUserMetadata().containsKey("contentmd5")) {
-        if (currChecksum.equals(metadata.getUserMetadata().get("contentmd5"))) {
-          log.info(String.format("multipart-upload success and checksum passed: %s/%s: " +
-                                     "copied %d bytes",
-                                    destBucket, destKey, bytesCopied));
-          return true;
-        } else {
-          log.info(String.format("multipart-upload ok checksum mismatch: %s/%s: ",
-                                    destBucket, destKey));
-          return false;
+      return checkOrSaveChecksum(destBucket, destKey, metadata, currChecksum, bytesCopied,
+                                 partETags);
+    } catch (IOException e) {
+      log.info(String.format("Exception when multipart upload: %s/%s", destBucket, destKey));
+      e.printStackTrace();
+      return false;
+    } finally {
+      try {
+        if (inputStream != null) {
+          inputStream.close();
         }
+      } catch (IOException e) {}
+      // The stream is not closed if the upload didn't go through.
+      if (s3OutStream != null) {
+        s3OutStream.abort();
       }
+    }
+
+  }
 
-      // Save the online-computed checksum to S3 if the metadata doesn't already have that.
-      // We use s3.copyObject(bucket, key) to copy the obj to the same location
-      // with metadata attached.
-      // However, "copy object" seems triggers real data momvement at S3, and is much slower
-      // than data move at HDFS.
-      Map<String, String> userMetadata = new TreeMap<String, String>();
-      userMetadata.put("contentmd5", currChecksum);
-      log.info(String.format("Will piggyback md5checksum to %s/%s", destBucket, destKey));
-      if (S3Utils.addS3ObjectUserMetadata(this.s3client, destBucket, destKey, userMetadata)) {
-        log.info(String.format("multipart-upload success and later checksum passed: %s/%s: " +
+  /**
+   * Check the checksum computed during upload against the one in the object metadata.
+   * If the metadata doesn't have a checksum, save the computed one to the checksum
+   * sidecar, or to the object metadata.  The sidecar also keeps the md5 of each part,
+   * such that a verify can hash the parts in parallel and tell which part is corrupt.
+   *
+   * @param destBucket
+   * @param destKey
+   * @param metadata  metadata the object is uploaded with.
+   * @param currChecksum  base64 encoded md5 computed during upload.
+   * @param bytesCopied
+   * @param partETags  etags of the parts in part order.
+   * @return
+   */
+  private boolean checkOrSaveChecksum(String destBucket,
+                                      String destKey,
+                                      ObjectMetadata metadata,
+                                      String currChecksum,
+                                      long bytesCopied,
+                                      List<PartETag> partETags) {
+    this.lastMD5Checksum = currChecksum;
+    // double check the online checksum with user-provided checksum.
+    if (metadata.getUserMetadata().containsKey("contentmd5")) {
+      if (currChecksum.equals(metadata.getUserMetadata().get("contentmd5"))) {
+        log.info(String.format("multipart-upload success and checksum passed: %s/%s: " +
                                    "copied %d bytes",
                                   destBucket, destKey, bytesCopied));
         return true;
       } else {
-        log.info(String.format("multipart-upload ok but later checksum failed: %s/%s: ",
+        log.info(String.format("multipart-upload ok checksum mismatch: %s/%s: ",
                                   destBucket, destKey));
         return false;
       }
+    }
 
-    } catch (IOException e) {
-      log.info(String.format("Exception when multipart upload: %s/%s", destBucket, destKey));
-      e.printStackTrace();
+    // Save the online-computed checksum to S3 if the metadata doesn't already have that.
+    Map<String, String> userMetadata = new TreeMap<String, String>();
+    userMetadata.put("contentmd5", currChecksum);
+    if (S3Utils.hasChecksumSidecar(metadata)) {
+      userMetadata.put("contentlength", String.valueOf(bytesCopied));
+      if (partETags != null) {
+        userMetadata.put(S3Utils.PART_MD5S_SIDECAR_ENTRY, S3Utils.joinPartMD5s(partETags));
+      }
+      if (S3Utils.putChecksumSidecar(this.s3client, destBucket, destKey, userMetadata)) {
+        log.info(String.format("multipart-upload success and checksum saved to sidecar: " +
+                                   "%s/%s: copied %d bytes",
+                                  destBucket, destKey, bytesCopied));
+        return true;
+      } else {
+        log.info(String.format("multipart-upload ok but failed to save checksum sidecar: %s/%s",
+                                  destBucket, destKey));
+        return false;
+      }
+    }
+    // Otherwise we use s3.copyObject(bucket, key) to copy the obj to the same location
+    // with metadata attached.
+    // However, "copy object" seems triggers real data momvement at S3, and is much slower
+    // than data move at HDFS.
+    log.info(String.format("Will piggyback md5checksum to %s/%s", destBucket, destKey));
+    if (S3Utils.addS3ObjectUserMetadata(this.s3client, destBucket, destKey, userMetadata)) {
+      log.info(String.format("multipart-upload success and later checksum passed: %s/%s: " +
+                                 "copied %d bytes",
+                                destBucket, destKey, bytesCopied));
+      return true;
+    } else {
+      log.info(String.format("multipart-upload ok but later checksum failed: %s/%s: ",
+                                destBucket, destKey));
       return false;
-    } finally {
-      try {
-        if (inputStream != null) {
-          inputStream.close();
-        }
-        if (s3OutStream != null) {
-          s3OutStream.close();
-        }
-      } catch (IOException e) {}
-      FileUtils.deleteLocalDir(tempDirname);
     }
+  }
 
+  /**
+   * Upload a large HDFS file to S3, reading its parts concurrently.
+   *
+   * @param srcFilename
+   * @param destBucket
+   * @param destKey
+   * @param metadata
+   * @param partSize  part size aligned with the HDFS block size.
+   * @param journal  if not null, resume the upload recorded in this journal.
+   * @return
+   */
+  private boolean parallelReadUploadFile(String srcFilename,
+                                         String destBucket,
+                                         String destKey,
+                                         ObjectMetadata metadata,
+                                         long partSize,
+                                         UploadJournal journal) {
+    ParallelReadUpload upload = new ParallelReadUpload(this.s3client, this.conf, this.options,
+                                                       this.progress, this.bwMonitor,
+                                                       this.bufferPool, this.scheduler,
+                                                       journal, srcFilename, destBucket,
+                                                       destKey, metadata, partSize);
+    try {
+      String currChecksum = upload.upload();
+      return checkOrSaveChecksum(destBucket, destKey, metadata, currChecksum,
+                                 metadata.getContentLength(), upload.getPartETags());
+    } catch (IOException e) {
+      log.info(String.format("Exception when parallel-read upload %s to %s/%s: %s",
+                                srcFilename, destBucket, destKey, e.toString()));
+      return false;
+    }
   }
 }
\ No newline at end of file
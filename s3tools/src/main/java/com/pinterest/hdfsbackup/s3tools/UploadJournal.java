@@ -0,0 +1,286 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.FileUtils;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A journal of a multipart upload, saved as a small file in HDFS.
+ *
+ * It records the uploadId and the parts that have been uploaded, such that a retry,
+ * or a re-run task, can resume the upload and only send the missing parts.
+ * The journal of "bucket/key" is at "<journalDir>/<md5 hex of bucket/key>".
+ * A journal is valid only for the same source file (same name, length and
+ * modification time), the same part size, and the same checksum of the object: an open
+ * upload keeps the metadata it was started with, which either has the source md5 or
+ * says the md5 is in a checksum sidecar.
+ *
+ * The journal is rewritten when the upload starts, and then at most once per
+ * SAVE_INTERVAL_MS as parts are added, rather than once per part.  A resumed upload
+ * lists the parts S3 has, so parts missing from the journal are not uploaded again.
+ */
+public class UploadJournal {
+  private static final Log log = LogFactory.getLog(UploadJournal.class);
+  static final long SAVE_INTERVAL_MS = 10 * 1000L;
+
+  private final Configuration conf;
+  private final String journalFilename;
+  String bucket;
+  String key;
+  String srcFilename = "";
+  long srcLength = -1;
+  long srcModificationTime = -1;
+  long partSize = -1;
+  // How the object's checksum is kept, see getChecksumMode().
+  String checksumMode = "";
+  String uploadId = null;
+  // part number => part etag, of the parts that have been uploaded.
+  final Map<Integer, String> partETags = new TreeMap<Integer, String>();
+  long saveIntervalMs = SAVE_INTERVAL_MS;
+  // System.currentTimeMillis() of the last save().
+  private long lastSaveTime = 0;
+
+  private UploadJournal(Configuration conf, String journalDir, String bucket, String key) {
+    this.conf = conf;
+    this.bucket = bucket;
+    this.key = key;
+    this.journalFilename = journalDir + "/" + DigestUtils.md5Hex(bucket + "/" + key);
+  }
+
+  private UploadJournal(Configuration conf, String journalFilename) {
+    this.conf = conf;
+    this.journalFilename = journalFilename;
+  }
+
+  /**
+   * Load the journal of "bucket/key".  An empty journal is returned if there isn't one.
+   *
+   * @param conf
+   * @param journalDir
+   * @param bucket
+   * @param key
+   * @return
+   */
+  public static UploadJournal load(Configuration conf,
+                                   String journalDir,
+                                   String bucket,
+                                   String key) {
+    UploadJournal journal = new UploadJournal(conf, journalDir, bucket, key);
+    if (FileUtils.getHDFSFileSize(journal.journalFilename, conf) > 0) {
+      journal.read();
+    }
+    return journal;
+  }
+
+  /**
+   * Abort the uploads left open in a journal dir, and remove their journals.
+   *
+   * @param conf
+   * @param journalDir
+   * @param s3client
+   * @return  number of uploads aborted.
+   */
+  public static int abortUploads(Configuration conf, String journalDir, AmazonS3Client s3client) {
+    int count = 0;
+    try {
+      Path dirPath = new Path(journalDir);
+      FileSystem fs = dirPath.getFileSystem(conf);
+      if (!fs.exists(dirPath)) {
+        return 0;
+      }
+      for (FileStatus status : fs.listStatus(dirPath)) {
+        UploadJournal journal = new UploadJournal(conf, status.getPath().toString());
+        journal.read();
+        if (journal.uploadId != null && journal.bucket != null) {
+          try {
+            s3client.abortMultipartUpload(new AbortMultipartUploadRequest(journal.bucket,
+                                                                          journal.key,
+                                                                          journal.uploadId));
+            log.info("aborted unfinished upload: " + journal.toString());
+            count++;
+          } catch (Exception e) {
+            log.info("failed to abort upload " + journal.toString() + ": " + e.toString());
+          }
+        }
+        journal.delete();
+      }
+    } catch (IOException e) {
+      log.info("failed to list upload journals at " + journalDir + ": " + e.toString());
+    }
+    return count;
+  }
+
+  private void read() {
+    InputStream ins = FileUtils.openHDFSInputStream(this.journalFilename, this.conf);
+    if (ins == null) {
+      return;
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(ins,
+                                                                     Charset.forName("UTF-8")));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields[0].equals("object") && fields.length == 3) {
+          this.bucket = fields[1];
+          this.key = fields[2];
+        } else if (fields[0].equals("source") && fields.length == 4) {
+          this.srcFilename = fields[1];
+          this.srcLength = Long.parseLong(fields[2]);
+          this.srcModificationTime = Long.parseLong(fields[3]);
+        } else if (fields[0].equals("partsize") && fields.length == 2) {
+          this.partSize = Long.parseLong(fields[1]);
+        } else if (fields[0].equals("checksum") && fields.length == 2) {
+          this.checksumMode = fields[1];
+        } else if (fields[0].equals("uploadid") && fields.length == 2) {
+          this.uploadId = fields[1];
+        } else if (fields[0].equals("part") && fields.length == 3) {
+          this.partETags.put(Integer.parseInt(fields[1]), fields[2]);
+        }
+      }
+      log.info("loaded upload journal: " + toString());
+    } catch (Exception e) {
+      log.info("ignore bad upload journal " + this.journalFilename + ": " + e.toString());
+      reset(this.srcFilename, -1, -1, -1, "");
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Get how the checksum of an object is kept: "sidecar" if the metadata says the md5 is
+   * in a checksum sidecar, or "md5:<contentmd5>" otherwise.
+   *
+   * @param metadata  metadata of the object to upload.
+   * @return
+   */
+  public static String getChecksumMode(ObjectMetadata metadata) {
+    if (S3Utils.hasChecksumSidecar(metadata)) {
+      return "sidecar";
+    }
+    return "md5:" + metadata.getUserMetadata().get("contentmd5");
+  }
+
+  /**
+   * @return  true if this journal is about an upload of the given source file, with the
+   *          same checksum mode.
+   */
+  public boolean matches(String srcFilename,
+                         long srcLength,
+                         long srcModificationTime,
+                         long partSize,
+                         String checksumMode) {
+    return this.uploadId != null &&
+               this.srcFilename.equals(srcFilename) &&
+               this.srcLength == srcLength &&
+               this.srcModificationTime == srcModificationTime &&
+               this.partSize == partSize &&
+               this.checksumMode.equals(checksumMode);
+  }
+
+  /**
+   * Forget the previous upload, and start to record a new upload of the source file.
+   */
+  public void reset(String srcFilename,
+                    long srcLength,
+                    long srcModificationTime,
+                    long partSize,
+                    String checksumMode) {
+    this.srcFilename = srcFilename;
+    this.srcLength = srcLength;
+    this.srcModificationTime = srcModificationTime;
+    this.partSize = partSize;
+    this.checksumMode = checksumMode;
+    this.uploadId = null;
+    this.partETags.clear();
+  }
+
+  public String getUploadId() {
+    return this.uploadId;
+  }
+
+  public boolean setUploadId(String uploadId) {
+    this.uploadId = uploadId;
+    this.partETags.clear();
+    return save();
+  }
+
+  /**
+   * Record an uploaded part.  The journal is saved if it has not been saved for
+   * "saveIntervalMs".
+   *
+   * @return  false if the journal failed to be saved.
+   */
+  public boolean addPart(int partNumber, String etag) {
+    this.partETags.put(partNumber, etag);
+    if (System.currentTimeMillis() - this.lastSaveTime < this.saveIntervalMs) {
+      return true;
+    }
+    return save();
+  }
+
+  /**
+   * Write the journal to HDFS, replacing the previous one.
+   * @return
+   */
+  public boolean save() {
+    this.lastSaveTime = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("object\t%s\t%s\n", this.bucket, this.key));
+    sb.append(String.format("source\t%s\t%d\t%d\n",
+                               this.srcFilename, this.srcLength, this.srcModificationTime));
+    sb.append(String.format("partsize\t%d\n", this.partSize));
+    sb.append(String.format("checksum\t%s\n", this.checksumMode));
+    if (this.uploadId != null) {
+      sb.append(String.format("uploadid\t%s\n", this.uploadId));
+    }
+    for (Map.Entry<Integer, String> part : this.partETags.entrySet()) {
+      sb.append(String.format("part\t%d\t%s\n", part.getKey(), part.getValue()));
+    }
+    OutputStream outs = FileUtils.openHDFSOutputStream(this.journalFilename, this.conf);
+    if (outs == null) {
+      log.info("failed to save upload journal " + this.journalFilename);
+      return false;
+    }
+    try {
+      outs.write(sb.toString().getBytes(Charset.forName("UTF-8")));
+      outs.close();
+      return true;
+    } catch (IOException e) {
+      log.info("failed to save upload journal " + this.journalFilename + ": " + e.toString());
+      return false;
+    }
+  }
+
+  /**
+   * Remove the journal once the upload is completed or aborted.
+   */
+  public void delete() {
+    FileUtils.deleteHDFSDir(this.journalFilename, this.conf);
+  }
+
+  public String toString() {
+    return String.format("%s/%s: upload %s, %d parts done",
+                            this.bucket, this.key, this.uploadId, this.partETags.size());
+  }
+}
@@ -0,0 +1,364 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An in-memory S3 for tests, serving the object and multipart upload calls the
+ * transfers in this package make.
+ */
+class FakeS3 extends AmazonS3Client {
+  // "bucket/key" => content and metadata of the objects.
+  final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+  final Map<String, ObjectMetadata> metadatas = new HashMap<String, ObjectMetadata>();
+  // upload id => (part number => content) of the open multipart uploads.
+  final Map<String, TreeMap<Integer, byte[]>> uploads =
+      new HashMap<String, TreeMap<Integer, byte[]>>();
+  // upload id => user metadata of the open multipart uploads.
+  final Map<String, Map<String, String>> uploadUserMetadatas =
+      new HashMap<String, Map<String, String>>();
+  int uploadPartCalls = 0;
+  int getObjectCalls = 0;
+  int putObjectCalls = 0;
+  int copyPartCalls = 0;
+  // Uploads of this part number fail, if > 0.
+  volatile int failPartNumber = 0;
+  // This many part copies fail before they start to succeed.
+  volatile int failCopyParts = 0;
+  // Run before each copy of an object or a part, if set.
+  volatile Runnable beforeCopy = null;
+  // The content of this many gets fails after "dropAfterBytes" bytes.
+  volatile int dropGets = 0;
+  volatile int dropAfterBytes = 0;
+  // Part uploads wait for this gate to open, if set.
+  volatile CountDownLatch partGate = null;
+
+  FakeS3() {
+    super(new BasicAWSCredentials("fake-key-id", "fake-secret-key"));
+  }
+
+  synchronized void putObject(String bucket, String key, byte[] content,
+                              ObjectMetadata metadata) {
+    metadata.setContentLength(content.length);
+    if (metadata.getETag() == null) {
+      metadata.setHeader("ETag", DigestUtils.md5Hex(content));
+    }
+    this.objects.put(bucket + "/" + key, content);
+    this.metadatas.put(bucket + "/" + key, metadata);
+  }
+
+  synchronized byte[] getContent(String bucket, String key) {
+    return this.objects.get(bucket + "/" + key);
+  }
+
+  @Override
+  public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+    synchronized (this) {
+      this.uploads.remove(request.getUploadId());
+      this.uploadUserMetadatas.remove(request.getUploadId());
+    }
+  }
+
+  @Override
+  public PutObjectResult putObject(PutObjectRequest request) {
+    byte[] content;
+    try {
+      content = readFully(request.getInputStream(),
+                          (int) request.getMetadata().getContentLength());
+    } catch (IOException e) {
+      throw new AmazonClientException("failed to read object", e);
+    }
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setUserMetadata(request.getMetadata().getUserMetadata());
+    synchronized (this) {
+      this.putObjectCalls++;
+      putObject(request.getBucketName(), request.getKey(), content, metadata);
+    }
+    PutObjectResult result = new PutObjectResult();
+    result.setETag(metadata.getETag());
+    return result;
+  }
+
+  @Override
+  public CopyObjectResult copyObject(CopyObjectRequest request) {
+    if (this.beforeCopy != null) {
+      this.beforeCopy.run();
+    }
+    synchronized (this) {
+      String src = request.getSourceBucketName() + "/" + request.getSourceKey();
+      byte[] content = getCopySource(src, request.getMatchingETagConstraints());
+      if (content == null) {
+        return null;
+      }
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setUserMetadata(this.metadatas.get(src).getUserMetadata());
+      putObject(request.getDestinationBucketName(), request.getDestinationKey(), content,
+                metadata);
+      CopyObjectResult result = new CopyObjectResult();
+      result.setETag(metadata.getETag());
+      return result;
+    }
+  }
+
+  @Override
+  public CopyPartResult copyPart(CopyPartRequest request) {
+    if (this.beforeCopy != null) {
+      this.beforeCopy.run();
+    }
+    synchronized (this) {
+      this.copyPartCalls++;
+      if (this.failCopyParts > 0) {
+        this.failCopyParts--;
+        throw new AmazonServiceException("injected failure of part copy");
+      }
+      String src = request.getSourceBucketName() + "/" + request.getSourceKey();
+      byte[] content = getCopySource(src, request.getMatchingETagConstraints());
+      if (content == null) {
+        return null;
+      }
+      content = Arrays.copyOfRange(content, request.getFirstByte().intValue(),
+                                   request.getLastByte().intValue() + 1);
+      TreeMap<Integer, byte[]> parts = this.uploads.get(request.getUploadId());
+      if (parts == null) {
+        throw new AmazonServiceException("no such upload " + request.getUploadId());
+      }
+      parts.put(request.getPartNumber(), content);
+      CopyPartResult result = new CopyPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag(DigestUtils.md5Hex(content));
+      return result;
+    }
+  }
+
+  /**
+   * @return  content of the source of a copy, or null if its etag doesn't match.
+   */
+  private byte[] getCopySource(String src, List<String> matchingETags) {
+    byte[] content = this.objects.get(src);
+    if (content == null) {
+      AmazonServiceException e = new AmazonServiceException("no such key");
+      e.setStatusCode(404);
+      throw e;
+    }
+    if (matchingETags != null && !matchingETags.isEmpty() &&
+            !matchingETags.contains(this.metadatas.get(src).getETag())) {
+      return null;
+    }
+    return content;
+  }
+
+  @Override
+  public S3Object getObject(String bucket, String key) {
+    return getObject(new GetObjectRequest(bucket, key));
+  }
+
+  @Override
+  public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+    return getObjectMetadata(request.getBucketName(), request.getKey());
+  }
+
+  @Override
+  public synchronized InitiateMultipartUploadResult initiateMultipartUpload(
+      InitiateMultipartUploadRequest request) {
+    String uploadId = UUID.randomUUID().toString();
+    this.uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+    if (request.getObjectMetadata() != null) {
+      this.uploadUserMetadatas.put(uploadId, request.getObjectMetadata().getUserMetadata());
+    }
+    InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+    result.setBucketName(request.getBucketName());
+    result.setKey(request.getKey());
+    result.setUploadId(uploadId);
+    return result;
+  }
+
+  @Override
+  public UploadPartResult uploadPart(UploadPartRequest request) {
+    if (this.partGate != null) {
+      try {
+        this.partGate.await();
+      } catch (InterruptedException e) {
+        throw new AmazonClientException("interrupted", e);
+      }
+    }
+    if (request.getPartNumber() == this.failPartNumber) {
+      throw new AmazonServiceException("injected failure of part " + request.getPartNumber());
+    }
+    byte[] content;
+    try {
+      content = readFully(request.getInputStream(), (int) request.getPartSize());
+    } catch (IOException e) {
+      throw new AmazonClientException("failed to read part", e);
+    }
+    synchronized (this) {
+      this.uploadPartCalls++;
+      TreeMap<Integer, byte[]> parts = this.uploads.get(request.getUploadId());
+      if (parts == null) {
+        throw new AmazonServiceException("no such upload " + request.getUploadId());
+      }
+      parts.put(request.getPartNumber(), content);
+    }
+    UploadPartResult result = new UploadPartResult();
+    result.setPartNumber(request.getPartNumber());
+    result.setETag(DigestUtils.md5Hex(content));
+    return result;
+  }
+
+  @Override
+  public synchronized PartListing listParts(ListPartsRequest request) {
+    TreeMap<Integer, byte[]> parts = this.uploads.get(request.getUploadId());
+    if (parts == null) {
+      AmazonServiceException e = new AmazonServiceException("no such upload");
+      e.setStatusCode(404);
+      throw e;
+    }
+    List<PartSummary> summaries = new ArrayList<PartSummary>();
+    for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+      PartSummary summary = new PartSummary();
+      summary.setPartNumber(part.getKey());
+      summary.setETag(DigestUtils.md5Hex(part.getValue()));
+      summary.setSize(part.getValue().length);
+      summaries.add(summary);
+    }
+    PartListing listing = new PartListing();
+    listing.setParts(summaries);
+    listing.setTruncated(false);
+    return listing;
+  }
+
+  @Override
+  public synchronized CompleteMultipartUploadResult completeMultipartUpload(
+      CompleteMultipartUploadRequest request) {
+    TreeMap<Integer, byte[]> parts = this.uploads.remove(request.getUploadId());
+    if (parts == null) {
+      throw new AmazonServiceException("no such upload " + request.getUploadId());
+    }
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    ByteArrayOutputStream etags = new ByteArrayOutputStream();
+    for (PartETag etag : request.getPartETags()) {
+      byte[] part = parts.get(etag.getPartNumber());
+      if (part == null || !DigestUtils.md5Hex(part).equals(etag.getETag())) {
+        throw new AmazonServiceException("bad part " + etag.getPartNumber());
+      }
+      content.write(part, 0, part.length);
+      byte[] partMD5 = DigestUtils.md5(part);
+      etags.write(partMD5, 0, partMD5.length);
+    }
+    String etag = DigestUtils.md5Hex(etags.toByteArray()) + "-" + request.getPartETags().size();
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setHeader("ETag", etag);
+    Map<String, String> userMetadata = this.uploadUserMetadatas.remove(request.getUploadId());
+    if (userMetadata != null) {
+      metadata.setUserMetadata(userMetadata);
+    }
+    putObject(request.getBucketName(), request.getKey(), content.toByteArray(), metadata);
+    CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+    result.setBucketName(request.getBucketName());
+    result.setKey(request.getKey());
+    result.setETag(etag);
+    return result;
+  }
+
+  @Override
+  public synchronized S3Object getObject(GetObjectRequest request) {
+    this.getObjectCalls++;
+    byte[] content = this.objects.get(request.getBucketName() + "/" + request.getKey());
+    if (content == null) {
+      AmazonServiceException e = new AmazonServiceException("no such key");
+      e.setStatusCode(404);
+      throw e;
+    }
+    ObjectMetadata metadata =
+        this.metadatas.get(request.getBucketName() + "/" + request.getKey());
+    List<String> matchingETags = request.getMatchingETagConstraints();
+    if (matchingETags != null && !matchingETags.isEmpty() &&
+            !matchingETags.contains(metadata.getETag())) {
+      return null;
+    }
+    long[] range = request.getRange();
+    if (range != null) {
+      int end = (int) Math.min(range[1] + 1, content.length);
+      content = Arrays.copyOfRange(content, (int) range[0], end);
+    }
+    S3Object object = new S3Object();
+    object.setBucketName(request.getBucketName());
+    object.setKey(request.getKey());
+    object.setObjectMetadata(metadata);
+    InputStream ins = new ByteArrayInputStream(content);
+    if (this.dropGets > 0) {
+      this.dropGets--;
+      ins = new DroppingInputStream(ins, this.dropAfterBytes);
+    }
+    object.setObjectContent(ins);
+    return object;
+  }
+
+  @Override
+  public synchronized ObjectMetadata getObjectMetadata(String bucket, String key) {
+    ObjectMetadata metadata = this.metadatas.get(bucket + "/" + key);
+    if (metadata == null) {
+      AmazonServiceException e = new AmazonServiceException("no such key");
+      e.setStatusCode(404);
+      throw e;
+    }
+    return metadata;
+  }
+
+  /**
+   * Fails like a dropped connection after some bytes.
+   */
+  private static class DroppingInputStream extends FilterInputStream {
+    private int remaining;
+
+    DroppingInputStream(InputStream ins, int dropAfterBytes) {
+      super(ins);
+      this.remaining = dropAfterBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (this.remaining <= 0) {
+        throw new IOException("connection reset");
+      }
+      int n = super.read(b, off, Math.min(len, this.remaining));
+      if (n > 0) {
+        this.remaining -= n;
+      }
+      return n;
+    }
+  }
+
+  static byte[] readFully(InputStream ins, int length) throws IOException {
+    ByteArrayOutputStream outs = new ByteArrayOutputStream(length);
+    byte[] buffer = new byte[64 * 1024];
+    int len;
+    while ((len = ins.read(buffer)) > 0) {
+      outs.write(buffer, 0, len);
+    }
+    return outs.toByteArray();
+  }
+}
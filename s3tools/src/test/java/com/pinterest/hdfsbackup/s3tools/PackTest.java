@@ -0,0 +1,180 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.FilePair;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class PackTest extends TestCase {
+  private static final String CONTAINER = "s3n://bucket/root/_hdfsbackup_packs/pack-test";
+  private static final String CONTAINER_KEY = "root/_hdfsbackup_packs/pack-test";
+  private static final Progressable PROGRESS = new Progressable() {
+    public void progress() {}
+  };
+
+  private FakeS3 fakeS3;
+  private Configuration conf;
+  private S3CopyOptions options;
+  private File srcDir;
+  private File destDir;
+  private List<FilePair> members;
+  private List<byte[]> contents;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.fakeS3 = new FakeS3();
+    this.conf = new Configuration();
+    this.conf.set("fs.s3n.awsAccessKeyId", "fake-key-id");
+    this.conf.set("fs.s3n.awsSecretAccessKey", "fake-secret-key");
+    this.options = new S3CopyOptions();
+    this.srcDir = createTempDir("pack-src");
+    this.destDir = createTempDir("pack-dest");
+    this.members = new ArrayList<FilePair>();
+    this.contents = new ArrayList<byte[]>();
+    String[] names = {"a", "dir/b", "dir/c"};
+    int[] sizes = {1000, 0, 5000};
+    Random random = new Random(1);
+    for (int i = 0; i < names.length; i++) {
+      byte[] content = new byte[sizes[i]];
+      random.nextBytes(content);
+      File file = new File(this.srcDir, names[i]);
+      file.getParentFile().mkdirs();
+      FileOutputStream outs = new FileOutputStream(file);
+      outs.write(content);
+      outs.close();
+      this.contents.add(content);
+      this.members.add(new FilePair("file://" + file.getAbsolutePath(),
+                                    "s3n://bucket/root/" + names[i], true, sizes[i]));
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    deleteDir(this.srcDir);
+    deleteDir(this.destDir);
+  }
+
+  private static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    dir.delete();
+    dir.mkdirs();
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] children = dir.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteDir(child);
+      }
+    }
+    dir.delete();
+  }
+
+  private boolean uploadPack() {
+    S3Uploader uploader = new S3Uploader(this.conf, this.options, PROGRESS);
+    uploader.s3client = this.fakeS3;
+    return uploader.uploadPack(this.members, CONTAINER);
+  }
+
+  private S3Downloader createDownloader() {
+    S3Downloader downloader = new S3Downloader(this.conf, this.options, PROGRESS);
+    downloader.s3client = this.fakeS3;
+    return downloader;
+  }
+
+  private void assertRestored(String name, byte[] content) throws IOException {
+    File file = new File(this.destDir, name);
+    assertTrue(file.exists());
+    byte[] restored = FakeS3.readFully(new FileInputStream(file), content.length);
+    assertTrue(Arrays.equals(content, restored));
+  }
+
+  private PackIndex readIndex() {
+    return PackIndex.read(this.fakeS3, "bucket", CONTAINER_KEY);
+  }
+
+  public void testPackAndRestore() throws IOException {
+    assertTrue(uploadPack());
+    PackIndex index = readIndex();
+    assertEquals(3, index.getEntries().size());
+    assertEquals(6000, index.containerLength);
+
+    assertTrue(createDownloader().DownloadPack(CONTAINER,
+                                               "file://" + this.destDir.getAbsolutePath(),
+                                               true));
+    assertRestored("a", this.contents.get(0));
+    assertRestored("dir/b", this.contents.get(1));
+    assertRestored("dir/c", this.contents.get(2));
+  }
+
+  public void testPackAgainIsSkipped() {
+    assertTrue(uploadPack());
+    int puts = this.fakeS3.putObjectCalls;
+    assertTrue(uploadPack());
+    assertEquals(puts, this.fakeS3.putObjectCalls);
+  }
+
+  public void testPackChangedFileIsUploaded() throws IOException {
+    assertTrue(uploadPack());
+    int puts = this.fakeS3.putObjectCalls;
+    // Same name and size, different content.
+    FileOutputStream outs = new FileOutputStream(new File(this.srcDir, "a"));
+    outs.write(new byte[1000]);
+    outs.close();
+    assertTrue(uploadPack());
+    assertTrue(this.fakeS3.putObjectCalls > puts);
+    byte[] container = this.fakeS3.getContent("bucket", CONTAINER_KEY);
+    assertTrue(Arrays.equals(new byte[1000], Arrays.copyOfRange(container, 0, 1000)));
+  }
+
+  public void testContainerMD5MismatchFallsBackToMembers() throws IOException {
+    assertTrue(uploadPack());
+    PackIndex index = readIndex();
+    index.containerMD5 = "bad-md5";
+    assertTrue(index.write(this.fakeS3, "bucket", CONTAINER_KEY));
+    int gets = this.fakeS3.getObjectCalls;
+    assertTrue(createDownloader().DownloadPack(CONTAINER,
+                                               "file://" + this.destDir.getAbsolutePath(),
+                                               false));
+    // Index, container, and a range GET for each non-empty member.
+    assertEquals(gets + 4, this.fakeS3.getObjectCalls);
+    assertRestored("a", this.contents.get(0));
+    assertRestored("dir/c", this.contents.get(2));
+  }
+
+  public void testCorruptedContainerFails() {
+    assertTrue(uploadPack());
+    byte[] container = this.fakeS3.getContent("bucket", CONTAINER_KEY);
+    container[10] ^= 1;
+    assertFalse(createDownloader().DownloadPack(CONTAINER, null, false));
+  }
+
+  public void testRestoreSomeMembers() throws IOException {
+    assertTrue(uploadPack());
+    Map<String, String> destFilenames = new HashMap<String, String>();
+    destFilenames.put("dir/c", "file://" + this.destDir.getAbsolutePath() + "/c");
+    int gets = this.fakeS3.getObjectCalls;
+    assertTrue(createDownloader().DownloadPackMembers(CONTAINER, destFilenames, false));
+    // Index, and the range of the container that holds the member.
+    assertEquals(gets + 2, this.fakeS3.getObjectCalls);
+    assertRestored("c", this.contents.get(2));
+    assertFalse(new File(this.destDir, "a").exists());
+
+    destFilenames.put("missing", null);
+    assertFalse(createDownloader().DownloadPackMembers(CONTAINER, destFilenames, false));
+  }
+}
@@ -0,0 +1,165 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class ParallelReadUploadTest extends TestCase {
+  private static final int PART_SIZE = 64 * 1024;
+
+  private File srcFile;
+  private byte[] content;
+  private FakeS3 fakeS3;
+  private PartTransferScheduler scheduler;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.content = new byte[PART_SIZE * 5 + 1234];
+    new Random(1).nextBytes(this.content);
+    this.srcFile = File.createTempFile("parallel-read-upload", ".bin");
+    FileOutputStream outs = new FileOutputStream(this.srcFile);
+    outs.write(this.content);
+    outs.close();
+    this.fakeS3 = new FakeS3();
+    this.scheduler = new PartTransferScheduler(3, 3);
+  }
+
+  @Override
+  protected void tearDown() {
+    this.scheduler.close();
+    this.srcFile.delete();
+  }
+
+  private String upload(String srcFilename, PartBufferPool pool) throws IOException {
+    S3CopyOptions options = new S3CopyOptions();
+    options.parallelReadParts = 3;
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(this.content.length);
+    ParallelReadUpload upload =
+        new ParallelReadUpload(this.fakeS3, new Configuration(), options, null, null,
+                               pool, this.scheduler, null, srcFilename, "bucket", "key",
+                               metadata, PART_SIZE);
+    return upload.upload();
+  }
+
+  private void assertUploaded(String md5) {
+    assertEquals(new String(Base64.encodeBase64(DigestUtils.md5(this.content))), md5);
+    assertTrue(Arrays.equals(this.content, this.fakeS3.getContent("bucket", "key")));
+  }
+
+  public void testAlignPartSize() {
+    long mb = 1024 * 1024;
+    // No block size, keep the part size.
+    assertEquals(7 * mb, ParallelReadUpload.alignPartSize(7 * mb, 0));
+    // Grown to whole blocks.
+    assertEquals(256 * mb, ParallelReadUpload.alignPartSize(200 * mb, 128 * mb));
+    assertEquals(128 * mb, ParallelReadUpload.alignPartSize(128 * mb, 128 * mb));
+    // Shrunk to an even fraction of a block.
+    assertEquals(32 * mb, ParallelReadUpload.alignPartSize(32 * mb, 128 * mb));
+    assertEquals((128 * mb + 2) / 3, ParallelReadUpload.alignPartSize(40 * mb, 128 * mb));
+    assertEquals(128 * mb, ParallelReadUpload.alignPartSize(100 * mb, 128 * mb));
+    // Never below the S3 min part size.
+    assertEquals(S3CopyOptions.MIN_PART_SIZE, ParallelReadUpload.alignPartSize(mb, 8 * mb));
+  }
+
+  public void testUploadWithOffHeapPool() throws IOException {
+    // Direct buffers from the pool must be read into, not taken as mapped parts.
+    PartBufferPool pool = new PartBufferPool(PART_SIZE * 3, true);
+    // A path without scheme is read through the default file system.
+    assertUploaded(upload(this.srcFile.getAbsolutePath(), pool));
+    assertEquals(0, pool.getInUseBytes());
+  }
+
+  public void testUploadWithHeapPool() throws IOException {
+    PartBufferPool pool = new PartBufferPool(PART_SIZE * 3, false);
+    assertUploaded(upload(this.srcFile.getAbsolutePath(), pool));
+    assertEquals(0, pool.getInUseBytes());
+  }
+
+  public void testUploadWithoutPool() throws IOException {
+    assertUploaded(upload(this.srcFile.getAbsolutePath(), null));
+  }
+
+  public void testPoolSmallerThanWindow() throws Exception {
+    // The upload must not wait for a third buffer while holding two finished parts.
+    final PartBufferPool pool = new PartBufferPool(PART_SIZE * 2, false);
+    final Exception[] error = new Exception[1];
+    final String[] md5 = new String[1];
+    Thread uploader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          md5[0] = upload(srcFile.getAbsolutePath(), pool);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    uploader.setDaemon(true);
+    uploader.start();
+    uploader.join(10000);
+    assertFalse("upload is stuck", uploader.isAlive());
+    assertNull(error[0]);
+    assertUploaded(md5[0]);
+    assertEquals(0, pool.getInUseBytes());
+  }
+
+  public void testFailedPartReleasesBufferOnce() {
+    PartBufferPool pool = new PartBufferPool(PART_SIZE * 3, false);
+    this.fakeS3.failPartNumber = 2;
+    try {
+      upload(this.srcFile.getAbsolutePath(), pool);
+      fail("upload should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(0, pool.getInUseBytes());
+    assertTrue(this.fakeS3.uploads.isEmpty());
+  }
+
+  public void testInterruptWaitsForRunningParts() throws Exception {
+    final PartBufferPool pool = new PartBufferPool(PART_SIZE * 3, false);
+    CountDownLatch gate = new CountDownLatch(1);
+    this.fakeS3.partGate = gate;
+    final Exception[] error = new Exception[1];
+    Thread uploader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          upload(srcFile.getAbsolutePath(), pool);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    uploader.start();
+    while (this.scheduler.getInflightParts() == 0) {
+      Thread.sleep(10);
+    }
+    uploader.interrupt();
+    // The buffers of the running parts are not released until the parts stop.
+    uploader.join(500);
+    assertTrue(uploader.isAlive());
+    assertTrue(pool.getInUseBytes() > 0);
+    gate.countDown();
+    uploader.join();
+    assertTrue(error[0] instanceof InterruptedIOException);
+    assertEquals(0, pool.getInUseBytes());
+  }
+
+  public void testUploadMappedLocalFile() throws IOException {
+    PartBufferPool pool = new PartBufferPool(PART_SIZE * 3, true);
+    assertUploaded(upload("file://" + this.srcFile.getAbsolutePath(), pool));
+    assertEquals(0, pool.getInUseBytes());
+  }
+}
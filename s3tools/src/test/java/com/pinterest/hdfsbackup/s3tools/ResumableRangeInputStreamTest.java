@@ -0,0 +1,84 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ResumableRangeInputStreamTest extends TestCase {
+  private FakeS3 fakeS3;
+  private byte[] content;
+
+  @Override
+  protected void setUp() {
+    this.fakeS3 = new FakeS3();
+    this.content = new byte[10000];
+    new Random(1).nextBytes(this.content);
+    this.fakeS3.putObject("bucket", "key", this.content, new ObjectMetadata());
+  }
+
+  private ResumableRangeInputStream open(long begin, long end, int maxResumes) {
+    ResumableRangeInputStream ins =
+        new ResumableRangeInputStream(this.fakeS3, "bucket", "key", begin, end, maxResumes);
+    assertTrue(ins.open());
+    return ins;
+  }
+
+  public void testReadRange() throws IOException {
+    ResumableRangeInputStream ins = open(100, 5099, 3);
+    byte[] read = FakeS3.readFully(ins, 5000);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(this.content, 100, 5100), read));
+    assertEquals(5100, ins.getPosition());
+    assertEquals(-1, ins.read());
+    ins.close();
+    assertEquals(1, this.fakeS3.getObjectCalls);
+  }
+
+  public void testResumeAfterDrops() throws IOException {
+    this.fakeS3.dropGets = 2;
+    this.fakeS3.dropAfterBytes = 3000;
+    ResumableRangeInputStream ins = open(0, this.content.length - 1, 3);
+    byte[] read = FakeS3.readFully(ins, this.content.length);
+    assertTrue(Arrays.equals(this.content, read));
+    // Resumed from the last byte received, twice.
+    assertEquals(3, this.fakeS3.getObjectCalls);
+    ins.close();
+  }
+
+  public void testFailAfterMaxResumes() {
+    this.fakeS3.dropGets = 3;
+    this.fakeS3.dropAfterBytes = 1000;
+    ResumableRangeInputStream ins = open(0, this.content.length - 1, 2);
+    try {
+      FakeS3.readFully(ins, this.content.length);
+      fail("read should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(3000, ins.getPosition());
+  }
+
+  public void testNoResumeOfChangedObject() {
+    this.fakeS3.dropGets = 1;
+    this.fakeS3.dropAfterBytes = 1000;
+    ResumableRangeInputStream ins = open(0, this.content.length - 1, 3);
+    byte[] newContent = new byte[this.content.length];
+    this.fakeS3.putObject("bucket", "key", newContent, new ObjectMetadata());
+    try {
+      FakeS3.readFully(ins, this.content.length);
+      fail("read should fail");
+    } catch (IOException e) {
+      // The bytes of the new object are not mixed with the ones read.
+      assertTrue(e.getMessage().contains("changed"));
+    }
+  }
+
+  public void testGetMissingObjectNotRetried() {
+    GetObjectRequest request = new GetObjectRequest("bucket", "missing");
+    assertNull(ResumableRangeInputStream.getObject(this.fakeS3, request, 5));
+    assertEquals(1, this.fakeS3.getObjectCalls);
+  }
+}
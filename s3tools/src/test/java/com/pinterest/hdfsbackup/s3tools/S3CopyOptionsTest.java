@@ -0,0 +1,62 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import junit.framework.TestCase;
+
+public class S3CopyOptionsTest extends TestCase {
+  private static final long MB = 1024L * 1024;
+  private static final long GB = 1024 * MB;
+
+  public void testFixedPartSize() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.chunkSize = 30 * MB;
+    assertEquals(30 * MB, options.getPartSize(1));
+    assertEquals(30 * MB, options.getPartSize(100 * GB));
+    // Rounded up to whole MBs, and never below the S3 min part size.
+    options.chunkSize = 30 * MB + 1;
+    assertEquals(31 * MB, options.getPartSize(GB));
+    options.chunkSize = MB;
+    assertEquals(S3CopyOptions.MIN_PART_SIZE, options.getPartSize(GB));
+  }
+
+  public void testPartSizeByTargetPartCount() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.targetPartCount = 100;
+    options.minPartSize = 8 * MB;
+    options.maxPartSize = 512 * MB;
+    // Small objects get parts of the min size.
+    assertEquals(8 * MB, options.getPartSize(100 * MB));
+    // Scales with the object size.
+    assertEquals(20 * MB, options.getPartSize(2000 * MB));
+    assertEquals(11 * MB, options.getPartSize(1000 * MB + 1));
+    // Large objects get parts of the max size.
+    assertEquals(512 * MB, options.getPartSize(1000 * GB));
+  }
+
+  public void testNeverMoreThanMaxPartCount() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.chunkSize = 8 * MB;
+    // 10000 parts of 8MB are only 80GB.
+    long objectSize = 500 * GB;
+    long partSize = options.getPartSize(objectSize);
+    assertTrue(partSize > 8 * MB);
+    assertTrue((objectSize + partSize - 1) / partSize <= S3CopyOptions.MAX_PART_COUNT);
+    assertEquals(0, partSize % MB);
+    // Also over the max part size of the target part count.
+    options.targetPartCount = 100;
+    options.maxPartSize = 64 * MB;
+    partSize = options.getPartSize(objectSize);
+    assertTrue((objectSize + partSize - 1) / partSize <= S3CopyOptions.MAX_PART_COUNT);
+  }
+
+  public void testUploadPartSize() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.chunkSize = 30 * MB;
+    // The part size the object was uploaded with.
+    assertEquals(7 * MB + 3, options.getPartSize(GB, String.valueOf(7 * MB + 3)));
+    // Missing, bad, too small, or too many parts: the configured part size.
+    assertEquals(30 * MB, options.getPartSize(GB, null));
+    assertEquals(30 * MB, options.getPartSize(GB, "abc"));
+    assertEquals(30 * MB, options.getPartSize(GB, String.valueOf(MB)));
+    assertEquals(30 * MB, options.getPartSize(100 * GB, String.valueOf(5 * MB)));
+  }
+}
@@ -0,0 +1,196 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.PartBufferPool;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class S3DownloaderTest extends TestCase {
+  private static final long PART_SIZE = S3CopyOptions.MIN_PART_SIZE;
+
+  private FakeS3 fakeS3;
+  private Configuration conf;
+  private S3CopyOptions options;
+  private PartTransferScheduler scheduler;
+  private File destFile;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.fakeS3 = new FakeS3();
+    this.conf = new Configuration();
+    // Static keys, so no instance profile is looked up.
+    this.conf.set("fs.s3n.awsAccessKeyId", "fake-key-id");
+    this.conf.set("fs.s3n.awsSecretAccessKey", "fake-secret-key");
+    this.options = new S3CopyOptions();
+    this.options.chunkSize = PART_SIZE;
+    this.options.downloadWindowParts = 4;
+    this.scheduler = new PartTransferScheduler(4, 4);
+    this.destFile = File.createTempFile("s3-downloader", ".bin");
+    this.destFile.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    this.scheduler.close();
+    this.destFile.delete();
+  }
+
+  private byte[] putObject(String key, int size) {
+    return putObject(key, size, new ObjectMetadata());
+  }
+
+  private byte[] putObject(String key, int size, ObjectMetadata metadata) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    metadata.addUserMetadata("contentmd5",
+                             new String(Base64.encodeBase64(DigestUtils.md5(content))));
+    this.fakeS3.putObject("bucket", key, content, metadata);
+    return content;
+  }
+
+  // Metadata of an object uploaded by parts of "partSize".
+  private static ObjectMetadata multipartMetadata(byte[] content, long partSize) {
+    ByteArrayOutputStream partMD5s = new ByteArrayOutputStream();
+    int parts = 0;
+    for (int begin = 0; begin < content.length; begin += partSize) {
+      byte[] md5 = DigestUtils.md5(Arrays.copyOfRange(
+          content, begin, (int) Math.min(content.length, begin + partSize)));
+      partMD5s.write(md5, 0, md5.length);
+      parts++;
+    }
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setHeader("ETag", DigestUtils.md5Hex(partMD5s.toByteArray()) + "-" + parts);
+    return metadata;
+  }
+
+  private S3Downloader verify(String key) {
+    S3Downloader downloader = new S3Downloader(this.conf, this.options, new Progressable() {
+      public void progress() {}
+    }, this.scheduler, null, null);
+    assertTrue(downloader.DownloadFile(this.fakeS3, "bucket", key,
+                                       this.fakeS3.getObjectMetadata("bucket", key),
+                                       null, true));
+    return downloader;
+  }
+
+  private boolean download(String key, PartBufferPool pool) {
+    S3Downloader downloader = new S3Downloader(this.conf, this.options, new Progressable() {
+      public void progress() {}
+    }, this.scheduler, null, pool);
+    return downloader.DownloadFile(this.fakeS3, "bucket", key,
+                                   this.fakeS3.getObjectMetadata("bucket", key),
+                                   "file://" + this.destFile.getAbsolutePath(), true);
+  }
+
+  private void assertDownloaded(byte[] content) throws IOException {
+    byte[] dest = FakeS3.readFully(new FileInputStream(this.destFile), content.length);
+    assertTrue(Arrays.equals(content, dest));
+  }
+
+  private void downloadInThread(final String key, final PartBufferPool pool) throws Exception {
+    final boolean[] ret = new boolean[1];
+    Thread downloader = new Thread(new Runnable() {
+      public void run() {
+        ret[0] = download(key, pool);
+      }
+    });
+    downloader.setDaemon(true);
+    downloader.start();
+    downloader.join(10000);
+    assertFalse("download is stuck", downloader.isAlive());
+    assertTrue(ret[0]);
+  }
+
+  public void testMultipartDownloadWithPoolSmallerThanWindow() throws Exception {
+    // The downloader must not wait for a third buffer while holding two finished parts.
+    byte[] content = putObject("key", (int) (PART_SIZE * 4 + 1000));
+    PartBufferPool pool = new PartBufferPool(PART_SIZE * 2, false);
+    downloadInThread("key", pool);
+    assertDownloaded(content);
+    assertEquals(0, pool.getInUseBytes());
+  }
+
+  public void testMultipartDownloadWithoutPool() throws Exception {
+    byte[] content = putObject("key", (int) (PART_SIZE * 4 + 1000));
+    downloadInThread("key", null);
+    assertDownloaded(content);
+  }
+
+  public void testInterruptedDownloadStops() throws Exception {
+    putObject("key", (int) (PART_SIZE * 4 + 1000));
+    final PartBufferPool pool = new PartBufferPool(PART_SIZE * 2, false);
+    final boolean[] ret = new boolean[] {true};
+    final boolean[] interrupted = new boolean[1];
+    Thread downloader = new Thread(new Runnable() {
+      public void run() {
+        Thread.currentThread().interrupt();
+        ret[0] = download("key", pool);
+        interrupted[0] = Thread.currentThread().isInterrupted();
+      }
+    });
+    downloader.setDaemon(true);
+    downloader.start();
+    downloader.join(10000);
+    assertFalse("download is stuck", downloader.isAlive());
+    // The download fails without retrying, and the interrupt is kept for the caller.
+    assertFalse(ret[0]);
+    assertTrue(interrupted[0]);
+    assertTrue(this.fakeS3.getObjectCalls <= 2);
+    // A part that was running when the download stopped releases its buffer once done.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (pool.getInUseBytes() != 0) {
+      assertTrue("part buffers not released", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testVerifyByMultipartETag() {
+    int size = (int) (PART_SIZE * 4 + 1000);
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    ObjectMetadata metadata = multipartMetadata(content, PART_SIZE);
+    metadata.addUserMetadata(S3Utils.PART_SIZE_METADATA, String.valueOf(PART_SIZE));
+    putObject("key", size, metadata);
+    // The parts are checked against the etag, no md5 of the whole object is taken.
+    assertEquals("", verify("key").getLastMD5Checksum());
+  }
+
+  public void testVerifyWithoutPartSizeTakesFullDigest() {
+    // Uploaded by parts of another size, and the etag happens to have as many parts as
+    // the chunk size gives.
+    int size = (int) (PART_SIZE * 4 + 1000);
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    ObjectMetadata metadata = multipartMetadata(content, PART_SIZE + 100);
+    assertTrue(metadata.getETag().endsWith("-5"));
+    putObject("key", size, metadata);
+    assertEquals(new String(Base64.encodeBase64(DigestUtils.md5(content))),
+                 verify("key").getLastMD5Checksum());
+  }
+
+  public void testVerifyKMSObjectTakesFullDigest() {
+    int size = (int) (PART_SIZE * 4 + 1000);
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    ObjectMetadata metadata = new ObjectMetadata();
+    // The etag of a SSE-KMS object is not an md5.
+    metadata.setHeader("ETag", "0123456789abcdef0123456789abcdef-5");
+    metadata.setServerSideEncryption("aws:kms");
+    metadata.addUserMetadata(S3Utils.PART_SIZE_METADATA, String.valueOf(PART_SIZE));
+    putObject("key", size, metadata);
+    assertEquals(new String(Base64.encodeBase64(DigestUtils.md5(content))),
+                 verify("key").getLastMD5Checksum());
+  }
+}
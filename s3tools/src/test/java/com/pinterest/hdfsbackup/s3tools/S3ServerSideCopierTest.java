@@ -0,0 +1,168 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.PackIndex;
+import com.pinterest.hdfsbackup.utils.PartTransferScheduler;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Progressable;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class S3ServerSideCopierTest extends TestCase {
+  private static final Progressable PROGRESS = new Progressable() {
+    public void progress() {}
+  };
+
+  private FakeS3 fakeS3;
+  private S3CopyOptions options;
+  private PartTransferScheduler scheduler;
+  private byte[] content;
+
+  @Override
+  protected void setUp() {
+    this.fakeS3 = new FakeS3();
+    this.options = new S3CopyOptions();
+    this.scheduler = new PartTransferScheduler(3, 3);
+    // Three parts of the min part size.
+    this.content = new byte[(int) S3CopyOptions.MIN_PART_SIZE * 2 + 1000];
+    new Random(1).nextBytes(this.content);
+    putSource(this.content);
+  }
+
+  @Override
+  protected void tearDown() {
+    this.scheduler.close();
+  }
+
+  private void putSource(byte[] content) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.addUserMetadata("contentlength", String.valueOf(content.length));
+    metadata.addUserMetadata(S3Utils.PART_SIZE_METADATA,
+                             String.valueOf(S3CopyOptions.MIN_PART_SIZE));
+    this.fakeS3.putObject("bucket", "src", content, metadata);
+  }
+
+  private S3ServerSideCopier createCopier() {
+    Configuration conf = new Configuration();
+    conf.set("fs.s3n.awsAccessKeyId", "fake-key-id");
+    conf.set("fs.s3n.awsSecretAccessKey", "fake-secret-key");
+    S3ServerSideCopier copier = new S3ServerSideCopier(conf, this.options, PROGRESS,
+                                                       this.scheduler);
+    copier.s3client = this.fakeS3;
+    return copier;
+  }
+
+  private boolean copy() {
+    return createCopier().copyObject("s3n://bucket/src", "s3n://bucket/dest");
+  }
+
+  // A member of the "src" object as a pack container.
+  private PackIndex.Member packMember(int offset, int length) {
+    byte[] md5 = DigestUtils.md5(Arrays.copyOfRange(this.content, offset, offset + length));
+    PackIndex.Entry entry = new PackIndex.Entry("dir/file", offset, length,
+                                                new String(Base64.encodeBase64(md5)));
+    return new PackIndex.Member("s3n://bucket/src", entry);
+  }
+
+  private void assertCopied(byte[] expected) {
+    assertTrue(Arrays.equals(expected, this.fakeS3.getContent("bucket", "dest")));
+    assertEquals(String.valueOf(expected.length),
+                 this.fakeS3.getObjectMetadata("bucket", "dest").getUserMetadata()
+                     .get("contentlength"));
+  }
+
+  public void testCopyAsOneObject() {
+    assertTrue(copy());
+    assertCopied(this.content);
+    assertEquals(0, this.fakeS3.copyPartCalls);
+  }
+
+  public void testMultipartCopy() {
+    this.options.multipartCopyThreshold = 0;
+    assertTrue(copy());
+    assertCopied(this.content);
+    assertEquals(3, this.fakeS3.copyPartCalls);
+    assertTrue(this.fakeS3.uploads.isEmpty());
+  }
+
+  public void testPartCopyRetried() {
+    this.options.multipartCopyThreshold = 0;
+    this.fakeS3.failCopyParts = 2;
+    long start = System.currentTimeMillis();
+    assertTrue(copy());
+    assertCopied(this.content);
+    assertEquals(5, this.fakeS3.copyPartCalls);
+    // Failed parts back off before they are retried.
+    assertTrue(System.currentTimeMillis() - start >= 100);
+  }
+
+  public void testSourceRewrittenDuringCopy() {
+    final byte[] newContent = new byte[1000];
+    new Random(2).nextBytes(newContent);
+    // The source is rewritten after its metadata is got for the first attempt.
+    this.fakeS3.beforeCopy = new Runnable() {
+      public void run() {
+        fakeS3.beforeCopy = null;
+        putSource(newContent);
+      }
+    };
+    assertTrue(copy());
+    assertCopied(newContent);
+  }
+
+  public void testSourceRewrittenDuringMultipartCopy() {
+    this.options.multipartCopyThreshold = 0;
+    final byte[] newContent = new byte[this.content.length];
+    new Random(2).nextBytes(newContent);
+    this.fakeS3.beforeCopy = new Runnable() {
+      public void run() {
+        fakeS3.beforeCopy = null;
+        putSource(newContent);
+      }
+    };
+    assertTrue(copy());
+    assertCopied(newContent);
+    assertTrue(this.fakeS3.uploads.isEmpty());
+  }
+
+  public void testCopyPackMember() {
+    PackIndex.Member member = packMember(1000, 3000);
+    assertTrue(createCopier().copyPackMember(member, "s3n://bucket/dest"));
+    byte[] expected = Arrays.copyOfRange(this.content, 1000, 4000);
+    assertCopied(expected);
+    // The member's md5 is the copy's checksum.
+    assertEquals(member.entry.md5,
+                 this.fakeS3.getObjectMetadata("bucket", "dest").getUserMetadata()
+                     .get("contentmd5"));
+    assertTrue(this.fakeS3.uploads.isEmpty());
+  }
+
+  public void testCopyLargePackMemberByParts() {
+    this.options.chunkSize = S3CopyOptions.MIN_PART_SIZE;
+    // Two parts, starting and ending inside the container.
+    PackIndex.Member member = packMember(500, (int) S3CopyOptions.MIN_PART_SIZE + 200);
+    assertTrue(createCopier().copyPackMember(member, "s3n://bucket/dest"));
+    assertCopied(Arrays.copyOfRange(this.content, 500,
+                                    (int) S3CopyOptions.MIN_PART_SIZE + 700));
+    assertEquals(2, this.fakeS3.copyPartCalls);
+  }
+
+  public void testCopyEmptyPackMember() {
+    assertTrue(createCopier().copyPackMember(packMember(1000, 0), "s3n://bucket/dest"));
+    assertCopied(new byte[0]);
+  }
+
+  public void testPackMemberBeyondContainer() {
+    PackIndex.Member member = packMember(this.content.length - 10, 10);
+    member = new PackIndex.Member(member.containerFilename,
+                                  new PackIndex.Entry("dir/file", member.entry.offset, 20,
+                                                      member.entry.md5));
+    assertFalse(createCopier().copyPackMember(member, "s3n://bucket/dest"));
+    assertEquals(0, this.fakeS3.copyPartCalls);
+  }
+}
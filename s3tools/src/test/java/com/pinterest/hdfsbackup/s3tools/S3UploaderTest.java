@@ -0,0 +1,134 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.ChecksumCache;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class S3UploaderTest extends TestCase {
+  private static final Progressable PROGRESS = new Progressable() {
+    public void progress() {}
+  };
+
+  private FakeS3 fakeS3;
+  private Configuration conf;
+  private File tempDir;
+  private String srcFilename;
+  private byte[] content;
+  private ChecksumCache checksumCache;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.fakeS3 = new FakeS3();
+    this.conf = new Configuration();
+    this.conf.set("fs.s3n.awsAccessKeyId", "fake-key-id");
+    this.conf.set("fs.s3n.awsSecretAccessKey", "fake-secret-key");
+    this.tempDir = File.createTempFile("s3uploader", "");
+    this.tempDir.delete();
+    this.tempDir.mkdirs();
+    writeSource(100 * 1024);
+    this.checksumCache =
+        new ChecksumCache(this.conf, "file://" + this.tempDir.getAbsolutePath() + "/cache");
+  }
+
+  private void writeSource(int size) throws IOException {
+    this.content = new byte[size];
+    new Random(1).nextBytes(this.content);
+    File srcFile = new File(this.tempDir, "src");
+    FileOutputStream outs = new FileOutputStream(srcFile);
+    outs.write(this.content);
+    outs.close();
+    this.srcFilename = "file://" + srcFile.getAbsolutePath();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = new File(this.tempDir, "cache").listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    new File(this.tempDir, "cache").delete();
+    files = new File(this.tempDir, "journal").listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    new File(this.tempDir, "journal").delete();
+    new File(this.tempDir, "src").delete();
+    this.tempDir.delete();
+  }
+
+  private boolean upload(S3CopyOptions options) {
+    // Upload by multipart.
+    options.singlePutThreshold = 0;
+    S3Uploader uploader = new S3Uploader(this.conf, options, PROGRESS, null, null, null, null,
+                                         this.checksumCache);
+    uploader.s3client = this.fakeS3;
+    return uploader.uploadFile(this.srcFilename, "s3n://bucket/key");
+  }
+
+  private String getCachedChecksum() {
+    return this.checksumCache.get(this.srcFilename,
+                                  this.checksumCache.getVersion(this.srcFilename));
+  }
+
+  public void testUploadCachesPrePassChecksum() {
+    assertTrue(upload(new S3CopyOptions()));
+    assertTrue(Arrays.equals(this.content, this.fakeS3.getContent("bucket", "key")));
+    assertEquals(new String(Base64.encodeBase64(DigestUtils.md5(this.content))),
+                 getCachedChecksum());
+  }
+
+  public void testSinglePassUploadDoesNotCacheChecksum() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.singlePassUpload = true;
+    assertTrue(upload(options));
+    assertTrue(Arrays.equals(this.content, this.fakeS3.getContent("bucket", "key")));
+    // The checksum computed during upload is not an independent read of the source.
+    assertNull(getCachedChecksum());
+  }
+
+  public void testParallelReadUploadDoesNotCacheChecksum() {
+    S3CopyOptions options = new S3CopyOptions();
+    options.parallelReadUpload = true;
+    assertTrue(upload(options));
+    assertTrue(Arrays.equals(this.content, this.fakeS3.getContent("bucket", "key")));
+    assertNull(getCachedChecksum());
+  }
+
+  public void testUploadNotResumedWithOtherChecksumMode() throws IOException {
+    writeSource((int) S3CopyOptions.MIN_PART_SIZE + 1000);
+    S3CopyOptions options = new S3CopyOptions();
+    options.chunkSize = S3CopyOptions.MIN_PART_SIZE;
+    options.singlePassUpload = true;
+    options.uploadJournalDir = "file://" + this.tempDir.getAbsolutePath() + "/journal";
+    // A single pass upload is left open after it uploaded a part.
+    this.fakeS3.failPartNumber = 2;
+    assertFalse(upload(options));
+    assertEquals(1, this.fakeS3.uploads.size());
+
+    // A run without single pass must not complete the upload that says the checksum is
+    // in a sidecar.
+    this.fakeS3.failPartNumber = 0;
+    options.singlePassUpload = false;
+    assertTrue(upload(options));
+    assertTrue(this.fakeS3.uploads.isEmpty());
+    ObjectMetadata metadata = this.fakeS3.getObjectMetadata("bucket", "key");
+    assertFalse(S3Utils.hasChecksumSidecar(metadata));
+    assertEquals(new String(Base64.encodeBase64(DigestUtils.md5(this.content))),
+                 metadata.getUserMetadata().get("contentmd5"));
+  }
+}
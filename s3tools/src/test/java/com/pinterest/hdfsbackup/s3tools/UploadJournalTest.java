@@ -0,0 +1,137 @@
+package com.pinterest.hdfsbackup.s3tools;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.pinterest.hdfsbackup.utils.S3Utils;
+import junit.framework.TestCase;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+
+public class UploadJournalTest extends TestCase {
+  private File journalDir;
+  private String journalDirname;
+  private Configuration conf;
+
+  @Override
+  protected void setUp() throws IOException {
+    this.journalDir = File.createTempFile("upload-journal", "");
+    this.journalDir.delete();
+    this.journalDir.mkdirs();
+    this.journalDirname = "file://" + this.journalDir.getAbsolutePath();
+    this.conf = new Configuration();
+  }
+
+  @Override
+  protected void tearDown() {
+    File[] files = this.journalDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    this.journalDir.delete();
+  }
+
+  private UploadJournal load() {
+    return UploadJournal.load(this.conf, this.journalDirname, "bucket", "key");
+  }
+
+  private UploadJournal startUpload() {
+    UploadJournal journal = load();
+    journal.reset("hdfs://nn/src", 1000, 123, 100, "sidecar");
+    assertTrue(journal.setUploadId("upload-1"));
+    return journal;
+  }
+
+  public void testLoadMissingJournal() {
+    UploadJournal journal = load();
+    assertNull(journal.getUploadId());
+    assertFalse(journal.matches("hdfs://nn/src", 1000, 123, 100, "sidecar"));
+  }
+
+  public void testSaveAndLoad() {
+    UploadJournal journal = startUpload();
+    journal.saveIntervalMs = 0;
+    assertTrue(journal.addPart(1, "etag-1"));
+    assertTrue(journal.addPart(2, "etag-2"));
+
+    UploadJournal loaded = load();
+    assertEquals("upload-1", loaded.getUploadId());
+    assertTrue(loaded.matches("hdfs://nn/src", 1000, 123, 100, "sidecar"));
+    assertEquals(2, loaded.partETags.size());
+    assertEquals("etag-2", loaded.partETags.get(2));
+  }
+
+  public void testMatchesOnlySameSource() {
+    startUpload();
+    UploadJournal loaded = load();
+    assertFalse(loaded.matches("hdfs://nn/other", 1000, 123, 100, "sidecar"));
+    assertFalse(loaded.matches("hdfs://nn/src", 1001, 123, 100, "sidecar"));
+    assertFalse(loaded.matches("hdfs://nn/src", 1000, 124, 100, "sidecar"));
+    assertFalse(loaded.matches("hdfs://nn/src", 1000, 123, 200, "sidecar"));
+  }
+
+  public void testMatchesOnlySameChecksumMode() {
+    startUpload();
+    UploadJournal loaded = load();
+    assertTrue(loaded.matches("hdfs://nn/src", 1000, 123, 100, "sidecar"));
+    // An upload started with the checksum in a sidecar can't be completed as one with
+    // the md5 in its metadata, or the other way around.
+    assertFalse(loaded.matches("hdfs://nn/src", 1000, 123, 100, "md5:abc"));
+
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.addUserMetadata("contentmd5", "abc");
+    assertEquals("md5:abc", UploadJournal.getChecksumMode(metadata));
+    metadata = new ObjectMetadata();
+    metadata.addUserMetadata(S3Utils.CHECKSUM_SIDECAR_METADATA, "true");
+    assertEquals("sidecar", UploadJournal.getChecksumMode(metadata));
+  }
+
+  public void testPartsSavedInBatches() {
+    UploadJournal journal = startUpload();
+    journal.saveIntervalMs = 60 * 1000L;
+    assertTrue(journal.addPart(1, "etag-1"));
+    assertTrue(journal.addPart(2, "etag-2"));
+    // Not saved yet, the journal was saved when the upload started.
+    assertTrue(load().partETags.isEmpty());
+    assertTrue(journal.save());
+    assertEquals(2, load().partETags.size());
+
+    journal.saveIntervalMs = 0;
+    assertTrue(journal.addPart(3, "etag-3"));
+    assertEquals(3, load().partETags.size());
+  }
+
+  public void testSetUploadIdDropsParts() {
+    UploadJournal journal = startUpload();
+    journal.saveIntervalMs = 0;
+    journal.addPart(1, "etag-1");
+    assertTrue(journal.setUploadId("upload-2"));
+    UploadJournal loaded = load();
+    assertEquals("upload-2", loaded.getUploadId());
+    assertTrue(loaded.partETags.isEmpty());
+  }
+
+  public void testIgnoreBadJournal() throws IOException {
+    startUpload();
+    File[] files = this.journalDir.listFiles();
+    assertEquals(1, files.length);
+    FileOutputStream outs = new FileOutputStream(files[0]);
+    outs.write("uploadid\tupload-1\npartsize\tnot-a-number\n".getBytes("UTF-8"));
+    outs.close();
+    UploadJournal loaded = load();
+    assertNull(loaded.getUploadId());
+  }
+
+  public void testAbortUploads() {
+    startUpload();
+    FakeS3 fakeS3 = new FakeS3();
+    fakeS3.uploads.put("upload-1", new TreeMap<Integer, byte[]>());
+    assertEquals(1, UploadJournal.abortUploads(this.conf, this.journalDirname, fakeS3));
+    assertTrue(fakeS3.uploads.isEmpty());
+    assertNull(load().getUploadId());
+  }
+}